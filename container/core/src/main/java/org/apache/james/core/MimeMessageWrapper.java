@@ -182,6 +182,17 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         return source != null ? source.getSourceId() : null;
     }
 
+    /**
+     * Returns the MimeMessageSource that is supplying this with data, or null.
+     * The source still holds the original message if {@link #isModified()}
+     * returns false.
+     *
+     * @see MimeMessageSource
+     */
+    public synchronized MimeMessageSource getMessageSource() {
+        return source;
+    }
+
     /**
      * Load the message headers from the internal source.
      * 
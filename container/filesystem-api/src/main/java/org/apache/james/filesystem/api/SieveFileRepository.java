@@ -49,15 +49,33 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * <code>SieveFileRepository</code> manages sieve scripts stored on the file system.
  * <p>The sieve root directory is a sub-directory of the application base directory named "sieve".
  * Scripts are stored in sub-directories of the sieve root directory, each with the name of the
  * associated user.
+ * <p>Registered {@link ScriptChangeListener}s are told about every change of the scripts of a user,
+ * so cached scripts can be dropped.
  */
 public class SieveFileRepository implements SieveRepository {
 
+    /**
+     * Listener which is told about changes of the scripts of a user
+     */
+    public interface ScriptChangeListener {
+
+        /**
+         * Called after the scripts of the given user were changed
+         *
+         * @param user
+         */
+        void scriptChanged(String user);
+    }
+
+    private static final List<ScriptChangeListener> LISTENERS = new CopyOnWriteArrayList<ScriptChangeListener>();
+
     private static final String SIEVE_ROOT = FileSystem.FILE_PROTOCOL + "sieve/";
     private static final String UTF_8 = "UTF-8";
     private static final String FILE_NAME_QUOTA = ".quota";
@@ -160,6 +178,33 @@ public class SieveFileRepository implements SieveRepository {
         _fileSystem = fileSystem;
     }
 
+    /**
+     * Register a listener for the changes done by all repositories. The
+     * listener is held until it is removed by
+     * {@link #removeScriptChangeListener(ScriptChangeListener)}, so components
+     * must remove it when they are destroyed
+     *
+     * @param listener
+     */
+    public static void addScriptChangeListener(ScriptChangeListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Remove a listener registered by {@link #addScriptChangeListener(ScriptChangeListener)}
+     *
+     * @param listener
+     */
+    public static void removeScriptChangeListener(ScriptChangeListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    protected void fireScriptChanged(String user) {
+        for (ScriptChangeListener listener : LISTENERS) {
+            listener.scriptChanged(user);
+        }
+    }
+
     @Override
     public void deleteScript(final String user, final String name) throws UserNotFoundException,
             ScriptNotFoundException, IsActiveException, StorageException {
@@ -172,6 +217,8 @@ public class SieveFileRepository implements SieveRepository {
                 FileUtils.forceDelete(file);
             } catch (IOException ex) {
                 throw new StorageException(ex);
+            } finally {
+                fireScriptChanged(user);
             }
         }
     }
@@ -270,7 +317,11 @@ public class SieveFileRepository implements SieveRepository {
         synchronized (lock) {
             File file = new File(getUserDirectory(user), name);
             haveSpace(user, name, content.length());
-            toFile(file, content);
+            try {
+                toFile(file, content);
+            } finally {
+                fireScriptChanged(user);
+            }
         }
     }
 
@@ -293,6 +344,8 @@ public class SieveFileRepository implements SieveRepository {
                 FileUtils.forceDelete(oldFile);
             } catch (IOException ex) {
                 throw new StorageException(ex);
+            } finally {
+                fireScriptChanged(user);
             }
         }
     }
@@ -313,24 +366,28 @@ public class SieveFileRepository implements SieveRepository {
     public void setActive(final String user, final String name) throws UserNotFoundException,
             ScriptNotFoundException, StorageException {
         synchronized (lock) {
-            // Turn off currently active script, if any
-            File oldActive = null;
             try {
-                oldActive = getActiveFile(user);
-                setActiveFile(oldActive, false);
-            } catch (ScriptNotFoundException ex) {
-                // This is permissible
-            }
-            // Turn on the new active script if not an empty name
-            if ((null != name) && (!name.trim().isEmpty())) {
+                // Turn off currently active script, if any
+                File oldActive = null;
                 try {
-                    setActiveFile(getScriptFile(user, name), true);
+                    oldActive = getActiveFile(user);
+                    setActiveFile(oldActive, false);
                 } catch (ScriptNotFoundException ex) {
-                    if (null != oldActive) {
-                        setActiveFile(oldActive, true);
+                    // This is permissible
+                }
+                // Turn on the new active script if not an empty name
+                if ((null != name) && (!name.trim().isEmpty())) {
+                    try {
+                        setActiveFile(getScriptFile(user, name), true);
+                    } catch (ScriptNotFoundException ex) {
+                        if (null != oldActive) {
+                            setActiveFile(oldActive, true);
+                        }
+                        throw ex;
                     }
-                    throw ex;
                 }
+            } finally {
+                fireScriptChanged(user);
             }
         }
     }
@@ -441,6 +498,8 @@ public class SieveFileRepository implements SieveRepository {
                 FileUtils.forceDelete(dir);
             } catch (IOException ex) {
                 throw new StorageException(ex);
+            } finally {
+                fireScriptChanged(user);
             }
         }
     }
@@ -0,0 +1,132 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.adapter.mailbox.delivery;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Stream on a message which leaves out all the fields with the given name,
+ * including their folded lines. The body is passed through unchanged.
+ */
+class HeaderFilterInputStream extends InputStream {
+
+    private final InputStream in;
+    private final String name;
+
+    /** The current header line, to return from pos to length */
+    private byte[] line = new byte[256];
+    private int pos;
+    private int length;
+
+    private boolean inHeader = true;
+    private boolean skipping;
+
+    /**
+     * @param in
+     *            The message
+     * @param name
+     *            The name of the fields to leave out
+     */
+    public HeaderFilterInputStream(InputStream in, String name) {
+        // the header is read byte per byte
+        this.in = new BufferedInputStream(in);
+        this.name = name;
+    }
+
+    /**
+     * Read the next header line to return, skipping the filtered ones
+     * 
+     * @return false if there is no more header line
+     */
+    private boolean nextLine() throws IOException {
+        while (inHeader) {
+            length = 0;
+            pos = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = (byte) b;
+                if (b == '\n') {
+                    break;
+                }
+            }
+            if (length == 0) {
+                inHeader = false;
+                return false;
+            }
+            if (line[0] == '\r' || line[0] == '\n') {
+                // end of the header
+                inHeader = false;
+                return true;
+            }
+            if (line[0] != ' ' && line[0] != '\t') {
+                skipping = isFiltered();
+            }
+            if (!skipping) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isFiltered() throws IOException {
+        int colon = 0;
+        while (colon < length && line[colon] != ':') {
+            colon++;
+        }
+        if (colon == length) {
+            return false;
+        }
+        String field = new String(line, 0, colon, "US-ASCII").trim();
+        return field.equalsIgnoreCase(name);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos < length || nextLine()) {
+            return line[pos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < length || nextLine()) {
+            int count = Math.min(len, length - pos);
+            System.arraycopy(line, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
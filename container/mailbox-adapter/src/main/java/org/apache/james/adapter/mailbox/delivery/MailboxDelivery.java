@@ -0,0 +1,222 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.adapter.mailbox.delivery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.MailboxNotFoundException;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.slf4j.Logger;
+
+/**
+ * Appends messages to the mailboxes of local users. The deliveries of one
+ * message are grouped in a {@link Batch}, which opens one session per user
+ * and looks every mailbox up only once, no matter how many times it is used.
+ * Mailboxes which are known to exist are remembered across batches, so they
+ * are not checked again for every message.
+ */
+public class MailboxDelivery {
+
+    /** The count of existing mailboxes to remember */
+    public final static int DEFAULT_MAX_KNOWN_MAILBOXES = 10000;
+
+    private final MailboxManager mailboxManager;
+
+    private final int maxKnownMailboxes;
+
+    private final Map<MailboxPath, Boolean> knownMailboxes = new ConcurrentHashMap<MailboxPath, Boolean>();
+
+    public MailboxDelivery(MailboxManager mailboxManager) {
+        this(mailboxManager, DEFAULT_MAX_KNOWN_MAILBOXES);
+    }
+
+    /**
+     * @param mailboxManager
+     *            The manager to deliver to
+     * @param maxKnownMailboxes
+     *            The count of existing mailboxes to remember
+     */
+    public MailboxDelivery(MailboxManager mailboxManager, int maxKnownMailboxes) {
+        this.mailboxManager = mailboxManager;
+        this.maxKnownMailboxes = maxKnownMailboxes;
+    }
+
+    /**
+     * Start the delivery of a message. The returned batch must be closed
+     * after all recipients were handled
+     * 
+     * @param log
+     *            The log to use for the sessions
+     * @return batch
+     */
+    public Batch newBatch(Logger log) {
+        return new Batch(log);
+    }
+
+    private void remember(MailboxPath path) {
+        if (knownMailboxes.size() >= maxKnownMailboxes) {
+            // cheap bound, the mailboxes are checked again on the next use
+            knownMailboxes.clear();
+        }
+        knownMailboxes.put(path, Boolean.TRUE);
+    }
+
+    /**
+     * The deliveries of one message. A batch is used by one thread only
+     */
+    public final class Batch {
+
+        private final Logger log;
+
+        private final Map<String, MailboxSession> sessions = new HashMap<String, MailboxSession>();
+
+        private final Map<MailboxPath, MessageManager> mailboxes = new HashMap<MailboxPath, MessageManager>();
+
+        private Batch(Logger log) {
+            this.log = log;
+        }
+
+        /**
+         * Return the session of the given user, creating it on first use
+         * 
+         * @param user
+         *            The user
+         * @return session
+         * @throws MailboxException
+         */
+        public MailboxSession getSession(String user) throws MailboxException {
+            MailboxSession session = sessions.get(user);
+            if (session == null) {
+                session = mailboxManager.createSystemSession(user, log);
+                mailboxManager.startProcessingRequest(session);
+                sessions.put(user, session);
+            }
+            return session;
+        }
+
+        /**
+         * Append a message to the INBOX of the given user, creating it if
+         * needed
+         * 
+         * @param user
+         *            The user
+         * @param content
+         *            The message, which is closed afterwards
+         * @throws MailboxException
+         */
+        public void appendToInbox(String user, InputStream content) throws MailboxException {
+            MailboxSession session = getSession(user);
+            append(session, MailboxPath.inbox(session), true, content);
+        }
+
+        /**
+         * Append a message to the given mailbox
+         * 
+         * @param session
+         *            A session returned by {@link #getSession(String)}
+         * @param path
+         *            The mailbox
+         * @param create
+         *            true if the mailbox should be created if it does not
+         *            exist
+         * @param content
+         *            The message, which is closed afterwards
+         * @throws MailboxNotFoundException
+         *             if the mailbox does not exist and should not be created
+         * @throws MailboxException
+         */
+        public void append(MailboxSession session, MailboxPath path, boolean create, InputStream content) throws MailboxException {
+            try {
+                MessageManager mailbox;
+                try {
+                    mailbox = getMailbox(session, path, create);
+                } catch (MailboxNotFoundException e) {
+                    // a remembered mailbox may have been deleted since
+                    if (!create || knownMailboxes.remove(path) == null) {
+                        throw e;
+                    }
+                    mailbox = getMailbox(session, path, create);
+                }
+                mailbox.appendMessage(content, new Date(), session, true, null);
+            } finally {
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+
+        private MessageManager getMailbox(MailboxSession session, MailboxPath path, boolean create) throws MailboxException {
+            MessageManager mailbox = mailboxes.get(path);
+            if (mailbox == null) {
+                if (create && !knownMailboxes.containsKey(path)) {
+                    if (!mailboxManager.mailboxExists(path, session)) {
+                        mailboxManager.createMailbox(path, session);
+                    }
+                    remember(path);
+                }
+                mailbox = mailboxManager.getMailbox(path, session);
+                if (mailbox == null) {
+                    throw new MailboxNotFoundException(path);
+                }
+                mailboxes.put(path, mailbox);
+            }
+            return mailbox;
+        }
+
+        /**
+         * End the delivery, closing all sessions
+         * 
+         * @throws MailboxException
+         *             if a session could not be closed
+         */
+        public void close() throws MailboxException {
+            MailboxException error = null;
+            Iterator<MailboxSession> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                MailboxSession session = it.next();
+                session.close();
+                try {
+                    mailboxManager.logout(session, true);
+                } catch (MailboxException e) {
+                    error = e;
+                } finally {
+                    mailboxManager.endProcessingRequest(session);
+                }
+            }
+            sessions.clear();
+            mailboxes.clear();
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
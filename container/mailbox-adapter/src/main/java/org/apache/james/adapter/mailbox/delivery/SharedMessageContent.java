@@ -0,0 +1,162 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.adapter.mailbox.delivery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * The content of a message which is read once and then appended to many
+ * mailboxes. Small messages are kept in memory, bigger ones in a temporary
+ * file which is deleted by {@link #dispose()}.
+ */
+public class SharedMessageContent {
+
+    /** The default size (in bytes) up to which the content is kept in memory */
+    public final static int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private byte[] data;
+    private File file;
+    private long size;
+
+    /**
+     * Read the given content, keeping up to
+     * {@link #DEFAULT_MEMORY_THRESHOLD} bytes in memory
+     * 
+     * @param in
+     *            The content, which is not closed
+     * @throws IOException
+     */
+    public SharedMessageContent(InputStream in) throws IOException {
+        this(in, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Read the given message without the fields of the given name, keeping up
+     * to {@link #DEFAULT_MEMORY_THRESHOLD} bytes in memory. The fields which
+     * differ per recipient can then be added with
+     * {@link #newInputStream(byte[])}.
+     * 
+     * @param in
+     *            The message, which is not closed
+     * @param excludedField
+     *            The name of the header fields to leave out
+     * @throws IOException
+     */
+    public SharedMessageContent(InputStream in, String excludedField) throws IOException {
+        this(new HeaderFilterInputStream(in, excludedField), DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * @param in
+     *            The content, which is not closed
+     * @param memoryThreshold
+     *            The size (in bytes) up to which the content is kept in memory
+     * @throws IOException
+     */
+    public SharedMessageContent(InputStream in, int memoryThreshold) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = buffer;
+        byte[] buf = new byte[8192];
+        boolean complete = false;
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                if (file == null && size + len > memoryThreshold) {
+                    file = File.createTempFile("james-delivery", ".eml");
+                    out = new FileOutputStream(file);
+                    buffer.writeTo(out);
+                    buffer = null;
+                }
+                out.write(buf, 0, len);
+                size += len;
+            }
+            complete = true;
+        } finally {
+            if (file != null) {
+                out.close();
+            }
+            if (!complete) {
+                dispose();
+            }
+        }
+        if (file == null) {
+            data = buffer.toByteArray();
+        }
+    }
+
+    /**
+     * Return a new stream on the content
+     * 
+     * @return in
+     * @throws IOException
+     */
+    public InputStream newInputStream() throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Return a new stream on the content, preceded by the given bytes. This
+     * allows to add headers which differ for every recipient
+     * 
+     * @param prefix
+     *            The bytes to return first
+     * @return in
+     * @throws IOException
+     */
+    public InputStream newInputStream(byte[] prefix) throws IOException {
+        if (prefix == null || prefix.length == 0) {
+            return newInputStream();
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(prefix), newInputStream());
+    }
+
+    /**
+     * Return the size of the content (in bytes)
+     * 
+     * @return size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Release the content. Streams which are still open may fail afterwards
+     */
+    public void dispose() {
+        data = null;
+        if (file != null) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+}
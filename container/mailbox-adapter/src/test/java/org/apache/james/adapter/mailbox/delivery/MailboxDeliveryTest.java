@@ -0,0 +1,231 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.adapter.mailbox.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxNotFoundException;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MailboxDeliveryTest {
+
+    /** The count of calls per method of the mailbox manager */
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+
+    /** The mailboxes which exist */
+    private final Set<MailboxPath> existing = new HashSet<MailboxPath>();
+
+    /** The messages appended, as user:mailbox:content */
+    private final List<String> appended = new ArrayList<String>();
+
+    private MailboxDelivery delivery;
+
+    private synchronized void called(String method) {
+        Integer count = calls.get(method);
+        calls.put(method, count == null ? 1 : count + 1);
+    }
+
+    private synchronized int count(String method) {
+        Integer count = calls.get(method);
+        return count == null ? 0 : count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(MailboxDeliveryTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return false;
+        } else if (type == Character.TYPE) {
+            return '.';
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        }
+        return null;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        return out.toString();
+    }
+
+    private MailboxSession session(final String user) {
+        return proxy(MailboxSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getUser")) {
+                    return proxy(MailboxSession.User.class, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return method.getName().equals("getUserName") ? user : defaultValue(method);
+                        }
+                    });
+                } else if (method.getName().equals("getPersonalSpace")) {
+                    return "#private";
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private MessageManager mailbox(final MailboxPath path) {
+        return proxy(MessageManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                if (method.getName().equals("appendMessage")) {
+                    synchronized (appended) {
+                        appended.add(path.getUser() + ":" + path.getName() + ":" + read((InputStream) args[0]));
+                    }
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private final MailboxManager manager = proxy(MailboxManager.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            called(name);
+            if (name.equals("createSystemSession")) {
+                return session((String) args[0]);
+            } else if (name.equals("mailboxExists")) {
+                return existing.contains(args[0]);
+            } else if (name.equals("createMailbox")) {
+                existing.add((MailboxPath) args[0]);
+            } else if (name.equals("getMailbox")) {
+                MailboxPath path = (MailboxPath) args[0];
+                if (!existing.contains(path)) {
+                    throw new MailboxNotFoundException(path);
+                }
+                return mailbox(path);
+            }
+            return defaultValue(method);
+        }
+    });
+
+    private static InputStream content(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    @Before
+    public void setUp() {
+        delivery = new MailboxDelivery(manager);
+    }
+
+    @Test
+    public void testOneSessionPerUser() throws Exception {
+        MailboxDelivery.Batch batch = delivery.newBatch(LoggerFactory.getLogger(MailboxDeliveryTest.class));
+        batch.appendToInbox("user1", content("first"));
+        batch.appendToInbox("user2", content("second"));
+        batch.appendToInbox("user1", content("third"));
+
+        MailboxSession session = batch.getSession("user2");
+        MailboxPath archive = new MailboxPath("#private", "user2", "archive");
+        existing.add(archive);
+        batch.append(session, archive, false, content("fourth"));
+        batch.close();
+
+        assertEquals(2, count("createSystemSession"));
+        assertEquals(2, count("startProcessingRequest"));
+        // the inbox of user1 is looked up once
+        assertEquals(3, count("getMailbox"));
+        assertEquals(2, count("createMailbox"));
+        assertEquals(2, count("logout"));
+        assertEquals(2, count("endProcessingRequest"));
+
+        assertEquals(4, appended.size());
+        assertEquals("user1:INBOX:first", appended.get(0));
+        assertEquals("user2:INBOX:second", appended.get(1));
+        assertEquals("user1:INBOX:third", appended.get(2));
+        assertEquals("user2:archive:fourth", appended.get(3));
+    }
+
+    @Test
+    public void testKnownMailboxesAreNotCheckedAgain() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            MailboxDelivery.Batch batch = delivery.newBatch(LoggerFactory.getLogger(MailboxDeliveryTest.class));
+            batch.appendToInbox("user", content("message " + i));
+            batch.close();
+        }
+        assertEquals(1, count("mailboxExists"));
+        assertEquals(1, count("createMailbox"));
+        assertEquals(3, count("getMailbox"));
+        assertEquals(3, appended.size());
+    }
+
+    @Test
+    public void testDeletedKnownMailboxIsCreatedAgain() throws Exception {
+        MailboxDelivery.Batch batch = delivery.newBatch(LoggerFactory.getLogger(MailboxDeliveryTest.class));
+        batch.appendToInbox("user", content("first"));
+        batch.close();
+
+        existing.clear();
+
+        batch = delivery.newBatch(LoggerFactory.getLogger(MailboxDeliveryTest.class));
+        batch.appendToInbox("user", content("second"));
+        batch.close();
+
+        assertEquals(2, count("createMailbox"));
+        assertEquals(2, appended.size());
+    }
+
+    @Test
+    public void testMissingMailboxIsNotCreated() throws Exception {
+        MailboxDelivery.Batch batch = delivery.newBatch(LoggerFactory.getLogger(MailboxDeliveryTest.class));
+        try {
+            MailboxSession session = batch.getSession("user");
+            batch.append(session, new MailboxPath("#private", "user", "missing"), false, content("first"));
+            fail("The mailbox should not be created");
+        } catch (MailboxNotFoundException e) {
+            // expected
+        } finally {
+            batch.close();
+        }
+        assertEquals(0, count("createMailbox"));
+        assertEquals(0, appended.size());
+    }
+}
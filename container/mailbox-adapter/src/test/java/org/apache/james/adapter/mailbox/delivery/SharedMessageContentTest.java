@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.adapter.mailbox.delivery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class SharedMessageContentTest {
+
+    private final static String MESSAGE = "Received: from localhost\r\n" +
+            "Delivered-To: first@localhost\r\n" +
+            "Subject: test\r\n" +
+            "DELIVERED-TO : second@localhost,\r\n" +
+            "\tthird@localhost\r\n" +
+            "\r\n" +
+            "Delivered-To: in the body\r\n";
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[7];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        SharedMessageContent content = new SharedMessageContent(stream(MESSAGE));
+        assertEquals(MESSAGE.length(), content.getSize());
+        assertEquals(MESSAGE, read(content.newInputStream()));
+        // every stream starts over
+        assertEquals(MESSAGE, read(content.newInputStream()));
+        content.dispose();
+    }
+
+    @Test
+    public void testInFile() throws IOException {
+        StringBuilder message = new StringBuilder("Subject: big\r\n\r\n");
+        for (int i = 0; i < 1000; i++) {
+            message.append("line ").append(i).append("\r\n");
+        }
+        SharedMessageContent content = new SharedMessageContent(stream(message.toString()), 100);
+        assertEquals(message.length(), content.getSize());
+        assertEquals(message.toString(), read(content.newInputStream()));
+        assertEquals(message.toString(), read(content.newInputStream()));
+        content.dispose();
+    }
+
+    @Test
+    public void testPrefix() throws IOException {
+        SharedMessageContent content = new SharedMessageContent(stream("Subject: test\r\n\r\nbody\r\n"));
+        assertEquals("X-Test: 1\r\nSubject: test\r\n\r\nbody\r\n", read(content.newInputStream("X-Test: 1\r\n".getBytes())));
+        assertEquals("Subject: test\r\n\r\nbody\r\n", read(content.newInputStream(null)));
+        content.dispose();
+    }
+
+    @Test
+    public void testExcludedField() throws IOException {
+        SharedMessageContent content = new SharedMessageContent(stream(MESSAGE), "Delivered-To");
+        String expected = "Received: from localhost\r\n" +
+                "Subject: test\r\n" +
+                "\r\n" +
+                "Delivered-To: in the body\r\n";
+        assertEquals(expected, read(content.newInputStream()));
+        assertEquals(expected.length(), content.getSize());
+        content.dispose();
+    }
+
+    @Test
+    public void testExcludedFieldWithoutBody() throws IOException {
+        SharedMessageContent content = new SharedMessageContent(stream("Subject: test\nDelivered-To: a@localhost"), "Delivered-To");
+        assertEquals("Subject: test\n", read(content.newInputStream()));
+        content.dispose();
+    }
+}
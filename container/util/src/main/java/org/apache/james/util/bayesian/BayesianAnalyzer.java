@@ -19,10 +19,16 @@
 
 package org.apache.james.util.bayesian;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,6 +37,15 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+
 /**
  * <p>
  * Determines probability that text contains Spam.
@@ -52,7 +67,8 @@ import java.util.TreeSet;
  * methods to build up the Maps of ham & spam tokens/occurrences. Both addHam
  * and addSpam assume they're reading one message at a time, if you feed more
  * than one message per call, be sure to adjust the appropriate message counter:
- * hamMessageCount or spamMessageCount.
+ * hamMessageCount or spamMessageCount. The variants taking a {@link Part}
+ * only scan the text parts of a message.
  * <p/>
  * Then...
  * </p>
@@ -60,7 +76,7 @@ import java.util.TreeSet;
  * <p>
  * Use: void buildCorpus()
  * <p/>
- * to build the final token/probabilities Map.
+ * to build the final token/probabilities {@link TokenCorpus}.
  * <p/>
  * Use your own methods for persistent storage of either the individual ham/spam
  * corpus & message counts, and/or the final corpus.
@@ -76,7 +92,7 @@ import java.util.TreeSet;
  * </p>
  * <p/>
  * <p>
- * If you use persistent storage, use: void setCorpus(Map)
+ * If you use persistent storage, use: void setCorpus(TokenCorpus)
  * <p/>
  * before calling computeSpamProbability.
  * </p>
@@ -86,8 +102,6 @@ import java.util.TreeSet;
 
 public class BayesianAnalyzer {
 
-    private final Object lock = new Object();
-
     /**
      * Number of "interesting" tokens to use to compute overall spamminess
      * probability.
@@ -106,6 +120,12 @@ public class BayesianAnalyzer {
      */
     private final static double DEFAULT_TOKEN_PROBABILITY = 0.4;
 
+    /**
+     * Charset used for text parts without a known charset. It maps every
+     * byte to a character.
+     */
+    private final static String DEFAULT_CHARSET = "ISO-8859-1";
+
     /**
      * Map of ham tokens and their occurrences.
      */
@@ -127,9 +147,10 @@ public class BayesianAnalyzer {
     private int spamMessageCount = 0;
 
     /**
-     * Final token/probability corpus.
+     * Final token/probability corpus. It is replaced as a whole, so analysis
+     * can go on with the previous corpus while a new one is built.
      */
-    private Map<String, Double> corpus = new HashMap<String, Double>();
+    private volatile TokenCorpus corpus = TokenCorpus.EMPTY;
 
     /**
      * Inner class for managing Token Probability Strengths during the
@@ -151,6 +172,12 @@ public class BayesianAnalyzer {
          */
         double strength = Math.abs(0.5 - DEFAULT_TOKEN_PROBABILITY);
 
+        /**
+         * Token's probability, from the corpus or from one of its degenerated
+         * forms.
+         */
+        double probability = DEFAULT_TOKEN_PROBABILITY;
+
         /**
          * Force the natural sort order for this object to be high-to-low.
          *
@@ -256,7 +283,7 @@ public class BayesianAnalyzer {
      * Clears all analysis repositories and counters.
      */
     public void clear() {
-        corpus.clear();
+        corpus = TokenCorpus.EMPTY;
 
         tokenCountsClear();
 
@@ -277,14 +304,14 @@ public class BayesianAnalyzer {
      *
      * @param corpus The new corpus.
      */
-    public void setCorpus(Map<String, Double> corpus) {
+    public void setCorpus(TokenCorpus corpus) {
         this.corpus = corpus;
     }
 
     /**
      * Public getter for corpus.
      */
-    public Map<String, Double> getCorpus() {
+    public TokenCorpus getCorpus() {
         return this.corpus;
     }
 
@@ -292,18 +319,9 @@ public class BayesianAnalyzer {
      * Builds the corpus from the existing ham & spam counts.
      */
     public void buildCorpus() {
-        // Combine the known ham & spam tokens.
-        Set<String> set = new HashSet<String>(hamTokenCounts.size() + spamTokenCounts.size());
-        set.addAll(hamTokenCounts.keySet());
-        set.addAll(spamTokenCounts.keySet());
-        Map<String, Double> tempCorpus = new HashMap<String, Double>(set.size());
-
-        // Iterate through all the tokens and compute their new
-        // individual probabilities.
-        for (String token : set) {
-            tempCorpus.put(token, computeProbability(token));
-        }
-        setCorpus(tempCorpus);
+        TokenCorpus.Builder builder = new TokenCorpus.Builder(Math.max(hamTokenCounts.size(), spamTokenCounts.size()));
+        builder.addHam(hamTokenCounts).addSpam(spamTokenCounts).addMessageCounts(hamMessageCount, spamMessageCount);
+        setCorpus(builder.build());
     }
 
     /**
@@ -313,7 +331,21 @@ public class BayesianAnalyzer {
      * @throws IOException If any error occurs
      */
     public void addHam(Reader stream) throws java.io.IOException {
-        addTokenOccurrences(stream, hamTokenCounts);
+        new Tokenizer(new TokenCounter(hamTokenCounts), 0).tokenize(stream);
+        hamMessageCount++;
+    }
+
+    /**
+     * Adds a message to the ham list, scanning only its text parts.
+     *
+     * @param message The ham message to analyze
+     * @param headers Whether to analyze the headers of the message itself
+     * @param maxChars The maximal number of characters to scan, &lt;= 0 for no limit
+     * @throws IOException If any error occurs
+     * @throws MessagingException If the message can't be parsed
+     */
+    public void addHam(Part message, boolean headers, long maxChars) throws IOException, MessagingException {
+        tokenize(message, headers, new Tokenizer(new TokenCounter(hamTokenCounts), maxChars));
         hamMessageCount++;
     }
 
@@ -324,10 +356,40 @@ public class BayesianAnalyzer {
      * @throws IOException If any error occurs
      */
     public void addSpam(Reader stream) throws java.io.IOException {
-        addTokenOccurrences(stream, spamTokenCounts);
+        new Tokenizer(new TokenCounter(spamTokenCounts), 0).tokenize(stream);
+        spamMessageCount++;
+    }
+
+    /**
+     * Adds a message to the spam list, scanning only its text parts.
+     *
+     * @param message The spam message to analyze
+     * @param headers Whether to analyze the headers of the message itself
+     * @param maxChars The maximal number of characters to scan, &lt;= 0 for no limit
+     * @throws IOException If any error occurs
+     * @throws MessagingException If the message can't be parsed
+     */
+    public void addSpam(Part message, boolean headers, long maxChars) throws IOException, MessagingException {
+        tokenize(message, headers, new Tokenizer(new TokenCounter(spamTokenCounts), maxChars));
         spamMessageCount++;
     }
 
+    /**
+     * Computes the probability that the message contains SPAM, scanning its
+     * headers and its text parts.
+     *
+     * @param message The message to be analyzed for Spamminess.
+     * @param maxChars The maximal number of characters to scan, &lt;= 0 for no limit
+     * @return A 0.0 - 1.0 probability
+     * @throws IOException If any error occurs
+     * @throws MessagingException If the message can't be parsed
+     */
+    public double computeSpamProbability(Part message, long maxChars) throws IOException, MessagingException {
+        UniqueTokens tokens = new UniqueTokens();
+        tokenize(message, true, new Tokenizer(tokens, maxChars));
+        return computeSpamProbability(tokens.getTokens());
+    }
+
     /**
      * Computes the probability that the stream contains SPAM.
      *
@@ -337,11 +399,16 @@ public class BayesianAnalyzer {
      */
     public double computeSpamProbability(Reader stream) throws java.io.IOException {
         // Build a set of the tokens in the Stream.
-        Set<String> tokens = parse(stream);
+        UniqueTokens tokens = new UniqueTokens();
+        new Tokenizer(tokens, 0).tokenize(stream);
+
+        return computeSpamProbability(tokens.getTokens());
+    }
 
+    private double computeSpamProbability(Set<String> tokens) {
         // Get the corpus to use in this run
         // A new corpus may be being built in the meantime
-        Map<String, Double> workCorpus = getCorpus();
+        TokenCorpus workCorpus = getCorpus();
 
         // Assign their probabilities from the Corpus (using an additional
         // calculation to determine spamminess).
@@ -349,215 +416,90 @@ public class BayesianAnalyzer {
 
         // Compute and return the overall probability that the
         // stream is SPAM.
-        return computeOverallProbability(tokenProbabilityStrengths, workCorpus);
+        return computeOverallProbability(tokenProbabilityStrengths);
     }
 
     /**
-     * Parses a stream into tokens, and updates the target Map with the
-     * token/counts.
+     * Feeds the text of a message part to the tokenizer. Multiparts and
+     * attached messages are scanned recursively, with the headers of their
+     * parts, and parts which are neither text nor containers are skipped.
      *
-     * @param stream
-     * @param target
+     * @param part
+     * @param headers whether to scan the headers of the part
+     * @param tokenizer
      */
-    private void addTokenOccurrences(Reader stream, Map<String, Integer> target) throws java.io.IOException {
-        String token;
-        String header = "";
-
-        // Update target with the tokens/count encountered.
-        while ((token = nextToken(stream)) != null) {
-            boolean endingLine = false;
-            if (token.length() > 0 && token.charAt(token.length() - 1) == '\n') {
-                endingLine = true;
-                token = token.substring(0, token.length() - 1);
-            }
-
-            if (token.length() > 0 && header.length() + token.length() < 90 && !allDigits(token)) {
-                if (token.equals("From:") || token.equals("Return-Path:") || token.equals("Subject:") || token.equals("To:")) {
-                    header = token;
-                    if (!endingLine) {
-                        continue;
-                    }
-                }
-
-                token = header + token;
-
-                Integer value;
-
-                if (target.containsKey(token)) {
-                    value = target.get(token) + 1;
-                } else {
-                    value = 1;
-                }
-
-                target.put(token, value);
-            }
-
-            if (endingLine) {
-                header = "";
-            }
-        }
-    }
-
-    /**
-     * Parses a stream into tokens, and returns a Set of the unique tokens
-     * encountered.
-     *
-     * @param stream
-     * @return Set
-     */
-    private Set<String> parse(Reader stream) throws java.io.IOException {
-        Set<String> tokens = new HashSet<String>();
-        String token;
-        String header = "";
-
-        // Build a Map of tokens encountered.
-        while ((token = nextToken(stream)) != null) {
-            boolean endingLine = false;
-            if (token.length() > 0 && token.charAt(token.length() - 1) == '\n') {
-                endingLine = true;
-                token = token.substring(0, token.length() - 1);
-            }
-
-            if (token.length() > 0 && header.length() + token.length() < 90 && !allDigits(token)) {
-                if (token.equals("From:") || token.equals("Return-Path:") || token.equals("Subject:") || token.equals("To:")) {
-                    header = token;
-                    if (!endingLine) {
-                        continue;
-                    }
-                }
-
-                token = header + token;
-
-                tokens.add(token);
-            }
-
-            if (endingLine) {
-                header = "";
+    private void tokenize(Part part, boolean headers, Tokenizer tokenizer) throws IOException, MessagingException {
+        if (headers && part instanceof MimePart) {
+            Enumeration<?> lines = ((MimePart) part).getAllHeaderLines();
+            while (lines.hasMoreElements() && !tokenizer.isLimitReached()) {
+                tokenizer.tokenize(new StringReader(lines.nextElement() + "\n"));
             }
         }
-
-        // Return the unique set of tokens encountered.
-        return tokens;
-    }
-
-    private String nextToken(Reader reader) throws java.io.IOException {
-        StringBuilder token = new StringBuilder();
-        int i;
-        char ch, ch2;
-        boolean previousWasDigit = false;
-        boolean tokenCharFound = false;
-
-        if (!reader.ready()) {
-            return null;
+        if (tokenizer.isLimitReached()) {
+            return;
         }
 
-        while ((i = reader.read()) != -1) {
-
-            ch = (char) i;
-
-            if (ch == ':') {
-                String tokenString = token.toString() + ':';
-                if (tokenString.equals("From:") || tokenString.equals("Return-Path:") || tokenString.equals("Subject:") || tokenString.equals("To:")) {
-                    return tokenString;
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart) content;
+                for (int i = 0; i < multipart.getCount() && !tokenizer.isLimitReached(); i++) {
+                    tokenize(multipart.getBodyPart(i), true, tokenizer);
                 }
+                return;
             }
-
-            if (Character.isLetter(ch) || ch == '-' || ch == '$' || ch == '\u20AC' // the
-                    // EURO
-                    // symbol
-                    || ch == '!' || ch == '\'') {
-                tokenCharFound = true;
-                previousWasDigit = false;
-                token.append(ch);
-            } else if (Character.isDigit(ch)) {
-                tokenCharFound = true;
-                previousWasDigit = true;
-                token.append(ch);
-            } else if (previousWasDigit && (ch == '.' || ch == ',')) {
-                reader.mark(1);
-                previousWasDigit = false;
-                i = reader.read();
-                if (i == -1) {
-                    break;
-                }
-                ch2 = (char) i;
-                if (Character.isDigit(ch2)) {
-                    tokenCharFound = true;
-                    previousWasDigit = true;
-                    token.append(ch);
-                    token.append(ch2);
-                } else {
-                    reader.reset();
-                    break;
-                }
-            } else if (ch == '\r') {
-                // cr found, ignore
-            } else if (ch == '\n') {
-                // eol found
-                tokenCharFound = true;
-                previousWasDigit = false;
-                token.append(ch);
-                break;
-            } else if (tokenCharFound) {
-                break;
+        } else if (part.isMimeType("message/rfc822")) {
+            Object content = part.getContent();
+            if (content instanceof Part) {
+                tokenize((Part) content, true, tokenizer);
+                return;
             }
+        } else if (!part.isMimeType("text/*")) {
+            // binary content, nothing to learn from
+            return;
         }
 
-        if (tokenCharFound) {
-            // System.out.println("Token read: " + token);
-            return token.toString();
-        } else {
-            return null;
+        // text, or a container which could not be parsed
+        InputStream in = getInputStream(part);
+        try {
+            tokenizer.tokenize(new BufferedReader(new InputStreamReader(in, getCharset(part))));
+        } finally {
+            in.close();
         }
     }
 
     /**
-     * Compute the probability that "token" is SPAM.
-     *
-     * @param token
-     * @return The probability that the token occurs within spam.
+     * Return the decoded content of the part, or its raw content if the
+     * transfer encoding is not supported.
      */
-    private double computeProbability(String token) {
-        double hamFactor = 0;
-        double spamFactor = 0;
-
-        boolean foundInHam = false;
-        boolean foundInSpam = false;
-
-        double minThreshold = 0.01;
-        double maxThreshold = 0.99;
-
-        if (hamTokenCounts.containsKey(token)) {
-            foundInHam = true;
-        }
-
-        if (spamTokenCounts.containsKey(token)) {
-            foundInSpam = true;
-        }
-
-        if (foundInHam) {
-            hamFactor = 2 * hamTokenCounts.get(token).doubleValue();
-            if (!foundInSpam) {
-                minThreshold = (hamFactor > 20) ? 0.0001 : 0.0002;
+    private InputStream getInputStream(Part part) throws IOException, MessagingException {
+        try {
+            return part.getInputStream();
+        } catch (MessagingException e) {
+            if (part instanceof MimeBodyPart) {
+                return ((MimeBodyPart) part).getRawInputStream();
+            } else if (part instanceof MimeMessage) {
+                return ((MimeMessage) part).getRawInputStream();
             }
+            throw e;
         }
+    }
 
-        if (foundInSpam) {
-            spamFactor = spamTokenCounts.get(token).doubleValue();
-            if (!foundInHam) {
-                maxThreshold = (spamFactor > 10) ? 0.9999 : 0.9998;
+    private String getCharset(Part part) {
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            if (charset != null) {
+                charset = MimeUtility.javaCharset(charset);
+                if (Charset.isSupported(charset)) {
+                    return charset;
+                }
             }
+        } catch (MessagingException e) {
+            // invalid content type
+        } catch (IllegalArgumentException e) {
+            // invalid charset name
         }
-
-        if ((hamFactor + spamFactor) < 5) {
-            // This token hasn't been seen enough.
-            return 0.4;
-        }
-
-        double spamFreq = Math.min(1.0, spamFactor / spamMessageCount);
-        double hamFreq = Math.min(1.0, hamFactor / hamMessageCount);
-
-        return Math.max(minThreshold, Math.min(maxThreshold, (spamFreq / (hamFreq + spamFreq))));
+        return DEFAULT_CHARSET;
     }
 
     /**
@@ -569,7 +511,7 @@ public class BayesianAnalyzer {
      * @param workCorpus
      * @return SortedSet of TokenProbabilityStrength objects.
      */
-    private SortedSet<TokenProbabilityStrength> getTokenProbabilityStrengths(Set<String> tokens, Map<String, Double> workCorpus) {
+    private SortedSet<TokenProbabilityStrength> getTokenProbabilityStrengths(Set<String> tokens, TokenCorpus workCorpus) {
         // Convert to a SortedSet of token probability strengths.
         SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths = new TreeSet<TokenProbabilityStrength>();
 
@@ -578,38 +520,24 @@ public class BayesianAnalyzer {
 
             tps.token = token;
 
-            if (workCorpus.containsKey(tps.token)) {
-                tps.strength = Math.abs(0.5 - workCorpus.get(tps.token));
+            double corpusProbability = workCorpus.getProbability(tps.token);
+            if (corpusProbability != TokenCorpus.UNKNOWN) {
+                tps.probability = corpusProbability;
+                tps.strength = Math.abs(0.5 - corpusProbability);
             } else {
                 // This token has never been seen before,
-                // we'll give it initially the default probability.
-                Double corpusProbability = DEFAULT_TOKEN_PROBABILITY;
-                tps.strength = Math.abs(0.5 - DEFAULT_TOKEN_PROBABILITY);
-                boolean isTokenDegeneratedFound = false;
-
-                Collection<String> degeneratedTokens = buildDegenerated(tps.token);
-                Iterator<String> iDegenerated = degeneratedTokens.iterator();
-                String tokenDegenerated;
-                double strengthDegenerated;
-                while (iDegenerated.hasNext()) {
-                    tokenDegenerated = iDegenerated.next();
-                    if (workCorpus.containsKey(tokenDegenerated)) {
-                        Double probabilityTemp = workCorpus.get(tokenDegenerated);
-                        strengthDegenerated = Math.abs(0.5 - probabilityTemp);
+                // we'll give it initially the default probability, unless
+                // one of its degenerated forms is stronger.
+                for (String tokenDegenerated : buildDegenerated(tps.token)) {
+                    double probabilityDegenerated = workCorpus.getProbability(tokenDegenerated);
+                    if (probabilityDegenerated != TokenCorpus.UNKNOWN) {
+                        double strengthDegenerated = Math.abs(0.5 - probabilityDegenerated);
                         if (strengthDegenerated > tps.strength) {
-                            isTokenDegeneratedFound = true;
                             tps.strength = strengthDegenerated;
-                            corpusProbability = probabilityTemp;
+                            tps.probability = probabilityDegenerated;
                         }
                     }
                 }
-                // to reduce memory usage, put in the corpus only if the
-                // probability is different from (stronger than) the default
-                if (isTokenDegeneratedFound) {
-                    synchronized (lock) {
-                        workCorpus.put(tps.token, corpusProbability);
-                    }
-                }
             }
 
             tokenProbabilityStrengths.add(tps);
@@ -673,10 +601,9 @@ public class BayesianAnalyzer {
      * tokenProbabilities SortedSet.
      *
      * @param tokenProbabilityStrengths
-     * @param workCorpus
      * @return Computed spamminess.
      */
-    private double computeOverallProbability(SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths, Map<String, Double> workCorpus) {
+    private double computeOverallProbability(SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths) {
         double p = 1.0;
         double np = 1.0;
         double tempStrength = 0.5;
@@ -688,14 +615,8 @@ public class BayesianAnalyzer {
 
             // System.out.println(tps);
 
-            double theDoubleValue = DEFAULT_TOKEN_PROBABILITY; // initialize it
-            // to the default
-            Double theDoubleObject = workCorpus.get(tps.token);
-            // if either the original token or a degeneration was found use the
-            // double value, otherwise use the default
-            if (theDoubleObject != null) {
-                theDoubleValue = theDoubleObject;
-            }
+            // either the original token, a degeneration or the default
+            double theDoubleValue = tps.probability;
             p *= theDoubleValue;
             np *= (1.0 - theDoubleValue);
             // System.out.println("Token " + tps + ", p=" + theDoubleValue +
@@ -720,12 +641,62 @@ public class BayesianAnalyzer {
         return true;
     }
 
-    private boolean allDigits(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            if (!Character.isDigit(s.charAt(i))) {
-                return false;
+    /**
+     * Counts the occurrences of each token.
+     */
+    private static final class TokenCounter implements Tokenizer.Collector {
+        private final Map<String, Integer> target;
+
+        private TokenCounter(Map<String, Integer> target) {
+            this.target = target;
+        }
+
+        public void add(char[] token, int length) {
+            String key = new String(token, 0, length);
+            Integer value = target.get(key);
+            target.put(key, value == null ? 1 : value + 1);
+        }
+    }
+
+    /**
+     * Collects the distinct tokens. Tokens are first checked against the set
+     * of hashes already seen, so that repeated tokens don't allocate a String.
+     */
+    private static final class UniqueTokens implements Tokenizer.Collector {
+        private final Set<String> tokens = new HashSet<String>();
+        private long[] seen = new long[256];
+
+        public void add(char[] token, int length) {
+            long hash = TokenCorpus.hash(token, length);
+            int mask = seen.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (seen[slot] != 0) {
+                if (seen[slot] == hash) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            seen[slot] = hash;
+            tokens.add(new String(token, 0, length));
+
+            if (tokens.size() * 2 > seen.length) {
+                long[] old = seen;
+                seen = new long[old.length * 2];
+                mask = seen.length - 1;
+                for (long h : old) {
+                    if (h != 0) {
+                        slot = (int) (h ^ (h >>> 32)) & mask;
+                        while (seen[slot] != 0) {
+                            slot = (slot + 1) & mask;
+                        }
+                        seen[slot] = h;
+                    }
+                }
             }
         }
-        return true;
+
+        private Set<String> getTokens() {
+            return tokens;
+        }
     }
 }
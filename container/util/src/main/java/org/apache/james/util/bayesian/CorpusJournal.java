@@ -0,0 +1,251 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * The last updates done to a corpus database by the analyzers of this JVM,
+ * used to bring a loaded corpus up to date without reading all the tokens
+ * again.
+ * <p>
+ * Each update gets a sequence number when it is recorded, which can be before
+ * it is stored in the database. Updates may be stored out of order, for
+ * example by a ham and a spam feeder flushing independently, so the journal
+ * only considers the updates up to the highest <em>contiguous</em> stored
+ * sequence number as stored, and keeps track of the ones stored above it.
+ * </p>
+ * <p>
+ * Use {@link #getInstance(Object)} to share a journal between the analyzers
+ * of the same database.
+ * </p>
+ */
+public class CorpusJournal {
+
+    /** The journals in use, by database. */
+    private final static Map<Object, CorpusJournal> INSTANCES = new WeakHashMap<Object, CorpusJournal>();
+
+    /** The default maximal number of token counts kept in the journal. */
+    public final static int DEFAULT_MAX_TOKENS = 1000000;
+
+    private final int maxTokens;
+
+    private final LinkedList<CorpusUpdate> updates = new LinkedList<CorpusUpdate>();
+
+    /** Number of token counts held by the journal. */
+    private int tokens;
+
+    /** Sequence number of the last update added to the journal. */
+    private long lastSequence;
+
+    /**
+     * Sequence number up to which all the updates are stored in the database.
+     */
+    private long storedSequence;
+
+    /** Sequence numbers above storedSequence which are stored already. */
+    private final TreeSet<Long> storedAbove = new TreeSet<Long>();
+
+    public CorpusJournal() {
+        this(DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * @param maxTokens
+     *            the maximal number of token counts kept in the journal
+     */
+    public CorpusJournal(int maxTokens) {
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Return the journal of the given database, creating it if needed. The
+     * journal is released once the key is not referenced anymore.
+     * 
+     * @param database
+     *            the key of the database, usually its DataSource
+     * @return journal
+     */
+    public static CorpusJournal getInstance(Object database) {
+        synchronized (INSTANCES) {
+            CorpusJournal journal = INSTANCES.get(database);
+            if (journal == null) {
+                journal = new CorpusJournal();
+                INSTANCES.put(database, journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Records the given token counts, which are not stored yet. Once stored,
+     * call {@link #markStored(Collection)} with the returned sequence number.
+     * 
+     * @param hamTokenCounts
+     * @param spamTokenCounts
+     * @param hamMessageCount
+     * @param spamMessageCount
+     * @return the sequence number of the update
+     */
+    public synchronized long record(Map<String, Integer> hamTokenCounts, Map<String, Integer> spamTokenCounts, int hamMessageCount, int spamMessageCount) {
+        CorpusUpdate update = new CorpusUpdate(++lastSequence, hamTokenCounts, spamTokenCounts, hamMessageCount, spamMessageCount);
+        updates.add(update);
+        tokens += update.size();
+        while (tokens > maxTokens) {
+            tokens -= updates.removeFirst().size();
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Marks the updates with the given sequence numbers as stored in the
+     * database. Must be called once the transaction is committed, while
+     * holding the lock which keeps the corpus from being loaded.
+     * 
+     * @param sequences
+     */
+    public synchronized void markStored(Collection<Long> sequences) {
+        for (Long sequence : sequences) {
+            if (sequence > storedSequence) {
+                storedAbove.add(sequence);
+            }
+        }
+        while (!storedAbove.isEmpty() && storedAbove.first() == storedSequence + 1) {
+            storedSequence = storedAbove.pollFirst();
+        }
+    }
+
+    /**
+     * Return the sequence number up to which all the updates are stored in
+     * the database.
+     * 
+     * @param stored
+     *            if not null, the sequence numbers above it which are stored
+     *            already are added to it
+     * @return storedSequence
+     */
+    public synchronized long getStoredSequence(Set<Long> stored) {
+        if (stored != null) {
+            stored.addAll(storedAbove);
+        }
+        return storedSequence;
+    }
+
+    /**
+     * Return the sequence number of the last recorded update.
+     * 
+     * @return lastSequence
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Return the updates recorded after the given sequence number, up to
+     * {@link #getLastSequence()}.
+     * 
+     * @param sequence
+     *            the sequence number of the last update already applied
+     * @param skip
+     *            the sequence numbers of updates after it which were applied
+     *            already
+     * @return the updates, or null if they are not all in the journal anymore
+     */
+    synchronized List<CorpusUpdate> getUpdates(long sequence, Set<Long> skip) {
+        long missing = lastSequence - sequence;
+        if (sequence < 0 || missing > updates.size()) {
+            return null;
+        }
+        List<CorpusUpdate> result = new ArrayList<CorpusUpdate>((int) missing);
+        for (CorpusUpdate update : updates.subList(updates.size() - (int) missing, updates.size())) {
+            if (!skip.contains(update.sequence)) {
+                result.add(update);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the recorded updates, once the database was cleared. The
+     * loaded corpora can't be updated from the journal anymore.
+     */
+    public synchronized void reset() {
+        updates.clear();
+        tokens = 0;
+        storedAbove.clear();
+        storedSequence = ++lastSequence;
+    }
+
+    /**
+     * Token counts of one update of the database, with the tokens already
+     * hashed to save memory
+     */
+    final static class CorpusUpdate {
+        private final long sequence;
+        private final long[] hamKeys;
+        private final int[] hamCounts;
+        private final long[] spamKeys;
+        private final int[] spamCounts;
+        private final int hamMessageCount;
+        private final int spamMessageCount;
+
+        private CorpusUpdate(long sequence, Map<String, Integer> ham, Map<String, Integer> spam, int hamMessageCount, int spamMessageCount) {
+            this.sequence = sequence;
+            hamKeys = new long[ham.size()];
+            hamCounts = new int[ham.size()];
+            copy(ham, hamKeys, hamCounts);
+            spamKeys = new long[spam.size()];
+            spamCounts = new int[spam.size()];
+            copy(spam, spamKeys, spamCounts);
+            this.hamMessageCount = hamMessageCount;
+            this.spamMessageCount = spamMessageCount;
+        }
+
+        private static void copy(Map<String, Integer> tokenCounts, long[] keys, int[] counts) {
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : tokenCounts.entrySet()) {
+                keys[i] = TokenCorpus.hash(entry.getKey());
+                counts[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        private int size() {
+            return hamKeys.length + spamKeys.length;
+        }
+
+        void applyTo(TokenCorpus.Builder builder) {
+            for (int i = 0; i < hamKeys.length; i++) {
+                builder.addHam(hamKeys[i], hamCounts[i]);
+            }
+            for (int i = 0; i < spamKeys.length; i++) {
+                builder.addSpam(spamKeys[i], spamCounts[i]);
+            }
+            builder.addMessageCounts(hamMessageCount, spamMessageCount);
+        }
+    }
+}
@@ -21,9 +21,15 @@ package org.apache.james.util.bayesian;
 
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
+import org.apache.james.util.sql.StatementCache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import java.io.File;
 
@@ -32,6 +38,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.DatabaseMetaData;
+import java.sql.Statement;
 
 /**
  * Manages the persistence of the spam bayesian analysis corpus using a JDBC
@@ -80,6 +87,33 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     /** Holds value of property lastDatabaseUpdateTime. */
     private static long lastDatabaseUpdateTime;
 
+    /** The maximal number of token updates sent in one round trip. */
+    private final static int BATCH_SIZE = 500;
+
+    /**
+     * Whether the database reports usable JDBC batch update counts, null until
+     * known.
+     */
+    private Boolean batchUpdates;
+
+    /**
+     * The last updates done to the database, shared with the other analyzers
+     * of the same database with {@link #setJournal(CorpusJournal)}.
+     */
+    private CorpusJournal journal = new CorpusJournal();
+
+    /**
+     * Sequence number up to which all the updates are included in the corpus
+     * of this analyzer, -1 if no corpus was loaded yet.
+     */
+    private long corpusSequence = -1;
+
+    /**
+     * Sequence numbers above corpusSequence of the updates included in the
+     * corpus, as they were stored out of order before it was loaded.
+     */
+    private Set<Long> corpusIncluded = new HashSet<Long>();
+
     /**
      * Getter for property sqlFileName.
      * 
@@ -122,6 +156,29 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
         this.sqlParameters = sqlParameters;
     }
 
+    /**
+     * Getter for property journal.
+     * 
+     * @return Value of property journal.
+     */
+    public CorpusJournal getJournal() {
+
+        return this.journal;
+    }
+
+    /**
+     * Setter for property journal. The analyzers feeding and reading the
+     * same database must share the journal, see
+     * {@link CorpusJournal#getInstance(Object)}.
+     * 
+     * @param journal
+     *            New value of property journal.
+     */
+    public void setJournal(CorpusJournal journal) {
+
+        this.journal = journal;
+    }
+
     /**
      * Getter for static lastDatabaseUpdateTime.
      * 
@@ -147,32 +204,45 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     }
 
     /**
-     * Loads the token frequencies from the database.
+     * Loads the corpus from the token frequencies of the database. The
+     * current corpus is used until the new one is completely loaded.
+     * <p>
+     * The caller must hold {@link #DATABASE_LOCK}, so that no update is
+     * stored while loading.
+     * </p>
      * 
      * @param conn
      *            The connection for accessing the database
      * @throws SQLException
      *             If a database error occurs
      */
-    public void loadHamNSpam(Connection conn) throws java.sql.SQLException {
+    public void loadCorpus(Connection conn) throws java.sql.SQLException {
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
+        // the updates recorded but not stored yet will be applied by
+        // loadCorpusDelta
+        Set<Long> included = new HashSet<Long>();
+        long sequence = journal.getStoredSequence(included);
+
         try {
+            TokenCorpus.Builder builder = new TokenCorpus.Builder(getCorpus().size());
+
             pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectHamTokens", true));
             rs = pstmt.executeQuery();
 
-            Map<String, Integer> ham = getHamTokenCounts();
+            int hamCount = 0;
             while (rs.next()) {
                 String token = rs.getString(1);
                 int count = rs.getInt(2);
                 // to reduce memory, use the token only if the count is > 1
                 if (count > 1) {
-                    ham.put(token, count);
+                    builder.addHam(token, count);
+                    hamCount++;
                 }
             }
             // Verbose.
-            delegatedLog("Ham tokens count: " + ham.size());
+            delegatedLog("Ham tokens count: " + hamCount);
 
             rs.close();
             pstmt.close();
@@ -181,18 +251,19 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
             pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectSpamTokens", true));
             rs = pstmt.executeQuery();
 
-            Map<String, Integer> spam = getSpamTokenCounts();
+            int spamCount = 0;
             while (rs.next()) {
                 String token = rs.getString(1);
                 int count = rs.getInt(2);
                 // to reduce memory, use the token only if the count is > 1
                 if (count > 1) {
-                    spam.put(token, count);
+                    builder.addSpam(token, count);
+                    spamCount++;
                 }
             }
 
             // Verbose.
-            delegatedLog("Spam tokens count: " + spam.size());
+            delegatedLog("Spam tokens count: " + spamCount);
 
             rs.close();
             pstmt.close();
@@ -201,13 +272,16 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
             pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectMessageCounts", true));
             rs = pstmt.executeQuery();
             if (rs.next()) {
-                setHamMessageCount(rs.getInt(1));
-                setSpamMessageCount(rs.getInt(2));
+                builder.addMessageCounts(rs.getInt(1), rs.getInt(2));
             }
 
             rs.close();
             pstmt.close();
 
+            setCorpus(builder.build());
+            corpusSequence = sequence;
+            corpusIncluded = included;
+
         } finally {
             if (rs != null) {
                 try {
@@ -229,6 +303,73 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
         }
     }
 
+    /**
+     * Applies the updates recorded with
+     * {@link #recordUpdate(Map, Map, int, int)} since the corpus was loaded,
+     * and swaps in the updated corpus.
+     * <p>
+     * Only the updates done in this JVM are known, so the corpus still needs
+     * a full load from time to time to pick up other changes.
+     * </p>
+     * 
+     * @return false if no corpus was loaded yet, or if the updates are not in
+     *         the journal anymore. The corpus must be loaded with
+     *         {@link #loadCorpus(Connection)} then.
+     */
+    public boolean loadCorpusDelta() {
+        List<CorpusJournal.CorpusUpdate> updates;
+        long sequence;
+        synchronized (journal) {
+            sequence = journal.getLastSequence();
+            updates = journal.getUpdates(corpusSequence, corpusIncluded);
+        }
+        if (updates == null) {
+            return false;
+        }
+
+        if (!updates.isEmpty()) {
+            TokenCorpus.Builder builder = new TokenCorpus.Builder(getCorpus());
+            for (CorpusJournal.CorpusUpdate update : updates) {
+                update.applyTo(builder);
+            }
+            setCorpus(builder.build());
+
+            delegatedLog("Applied " + updates.size() + " updates to the corpus");
+        }
+        corpusSequence = sequence;
+        corpusIncluded = new HashSet<Long>();
+        return true;
+    }
+
+    /**
+     * Records the given token counts in the journal, so that the analyzers
+     * sharing it can apply them with {@link #loadCorpusDelta()} before they
+     * are stored in the database. Once stored, call
+     * {@link #markStored(Collection)} with the returned sequence number.
+     * 
+     * @param hamTokenCounts
+     * @param spamTokenCounts
+     * @param hamMessageCount
+     * @param spamMessageCount
+     * @return the sequence number of the update
+     */
+    public long recordUpdate(Map<String, Integer> hamTokenCounts, Map<String, Integer> spamTokenCounts, int hamMessageCount, int spamMessageCount) {
+        long sequence = journal.record(hamTokenCounts, spamTokenCounts, hamMessageCount, spamMessageCount);
+        touchLastDatabaseUpdateTime();
+        return sequence;
+    }
+
+    /**
+     * Marks the updates with the given sequence numbers as stored in the
+     * database. Must be called while holding {@link #DATABASE_LOCK}, once the
+     * transaction is committed.
+     * 
+     * @param sequences
+     */
+    public void markStored(Collection<Long> sequences) {
+        journal.markStored(sequences);
+    }
+
     /**
      * Updates the database with new "ham" token frequencies.
      * 
@@ -269,6 +410,10 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
         deleteData(conn, sqlQueries.getSqlString("deleteHamTokens", true));
         deleteData(conn, sqlQueries.getSqlString("deleteSpamTokens", true));
         deleteData(conn, sqlQueries.getSqlString("deleteMessageCounts", true));
+
+        // the loaded corpora can't be updated from the journal anymore
+        journal.reset();
+        touchLastDatabaseUpdateTime();
     }
 
     private void setMessageCount(Connection conn, String sqlStatement, int count) throws java.sql.SQLException {
@@ -304,49 +449,52 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     }
 
     private void updateTokens(Connection conn, Map<String, Integer> tokens, String insertSqlStatement, String updateSqlStatement) throws java.sql.SQLException {
-        PreparedStatement insert = null;
-        PreparedStatement update = null;
+        StatementCache statements = new StatementCache(conn, theJDBCUtil);
 
         try {
-            // Used to insert new token entries.
-            insert = conn.prepareStatement(insertSqlStatement);
-
-            // Used to update existing token entries.
-            update = conn.prepareStatement(updateSqlStatement);
-
+            List<Object[]> updates = new ArrayList<Object[]>(tokens.size());
             for (Map.Entry<String, Integer> entry : tokens.entrySet()) {
-                update.setInt(1, entry.getValue());
-                update.setString(2, entry.getKey());
-
-                // If the update affected 0 (zero) rows, then the token hasn't
-                // been
-                // encountered before, and we need to add it to the corpus.
-                if (update.executeUpdate() == 0) {
-                    insert.setString(1, entry.getKey());
-                    insert.setInt(2, entry.getValue());
+                updates.add(new Object[] { entry.getValue(), entry.getKey() });
+            }
 
-                    insert.executeUpdate();
+            // Tokens which haven't been encountered before need to be added to
+            // the corpus.
+            List<Object[]> inserts = new ArrayList<Object[]>();
+            if (useBatchUpdates(conn)) {
+                int[] counts = statements.executeBatch(updateSqlStatement, updates, BATCH_SIZE);
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                        // The updates are relative, so they can't be checked
+                        // afterwards. Give up batching and let the caller roll
+                        // back.
+                        batchUpdates = Boolean.FALSE;
+                        throw new SQLException("JDBC driver does not report batch update counts, batch updates disabled");
+                    }
+                    if (counts[i] == 0) {
+                        Object[] update = updates.get(i);
+                        inserts.add(new Object[] { update[1], update[0] });
+                    }
                 }
-            }
-        } finally {
-            if (insert != null) {
-                try {
-                    insert.close();
-                } catch (java.sql.SQLException ignore) {
+                statements.executeBatch(insertSqlStatement, inserts, BATCH_SIZE);
+            } else {
+                for (Object[] update : updates) {
+                    // If the update affected 0 (zero) rows, then the token
+                    // hasn't been encountered before.
+                    if (statements.prepare(updateSqlStatement, update).executeUpdate() == 0) {
+                        statements.prepare(insertSqlStatement, update[1], update[0]).executeUpdate();
+                    }
                 }
-
-                insert = null;
             }
+        } finally {
+            statements.close();
+        }
+    }
 
-            if (update != null) {
-                try {
-                    update.close();
-                } catch (java.sql.SQLException ignore) {
-                }
-
-                update = null;
-            }
+    private boolean useBatchUpdates(Connection conn) throws SQLException {
+        if (batchUpdates == null) {
+            batchUpdates = conn.getMetaData().supportsBatchUpdates();
         }
+        return batchUpdates;
     }
 
     /**
@@ -0,0 +1,455 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.util.Map;
+
+/**
+ * Immutable ham/spam token counts used by {@link BayesianAnalyzer} to compute
+ * token probabilities.
+ * <p>
+ * Tokens are stored as 64 bit hashes in an open addressing table with the ham
+ * and spam counts held in primitive arrays, which takes 16 bytes per slot
+ * instead of the few hundred bytes of a boxed <code>HashMap</code> entry and its
+ * <code>String</code> key. Two tokens sharing the same hash would share their
+ * counts, which is very unlikely to happen with a 64 bit hash and has no other
+ * effect than a slightly wrong probability.
+ * </p>
+ * <p>
+ * Instances are never modified once built, so a new corpus can be swapped in
+ * while messages are analyzed with the old one. Use a {@link Builder} to create
+ * a new corpus or to apply changes to an existing one. Changes are kept in a
+ * small table on top of the existing one, which is shared, until they grow too
+ * big and both tables are merged.
+ * </p>
+ */
+public final class TokenCorpus {
+
+    /**
+     * Probability returned by {@link #getProbability(String)} for tokens which
+     * are not part of the corpus.
+     */
+    public final static double UNKNOWN = -1;
+
+    /**
+     * An empty corpus.
+     */
+    public final static TokenCorpus EMPTY = new Builder().build();
+
+    /**
+     * Changes are merged into the shared table once they hold more than
+     * 1/MERGE_RATIO of its tokens.
+     */
+    private final static int MERGE_RATIO = 8;
+
+    /**
+     * The shared table the counts of this corpus are added to, null if none.
+     */
+    private final TokenCorpus base;
+
+    private final long[] keys;
+
+    private final int[] hamCounts;
+
+    private final int[] spamCounts;
+
+    /**
+     * Number of tokens in the table of this corpus, without the base.
+     */
+    private final int entries;
+
+    private final int size;
+
+    private final int hamMessageCount;
+
+    private final int spamMessageCount;
+
+    private TokenCorpus(Builder builder) {
+        this.base = builder.base;
+        this.keys = builder.keys;
+        this.hamCounts = builder.hamCounts;
+        this.spamCounts = builder.spamCounts;
+        this.entries = builder.entries;
+        this.size = builder.size;
+        this.hamMessageCount = builder.hamMessageCount;
+        this.spamMessageCount = builder.spamMessageCount;
+    }
+
+    /**
+     * Return the number of tokens in this corpus
+     * 
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the number of ham messages this corpus was built from
+     * 
+     * @return hamMessageCount
+     */
+    public int getHamMessageCount() {
+        return hamMessageCount;
+    }
+
+    /**
+     * Return the number of spam messages this corpus was built from
+     * 
+     * @return spamMessageCount
+     */
+    public int getSpamMessageCount() {
+        return spamMessageCount;
+    }
+
+    /**
+     * Return the probability that the given token occurs within spam, or
+     * {@link #UNKNOWN} if the token is not part of the corpus.
+     * 
+     * @param token
+     * @return probability
+     */
+    public double getProbability(String token) {
+        long key = hash(token);
+        boolean found = false;
+        int hamCount = 0;
+        int spamCount = 0;
+
+        int slot = find(keys, key);
+        if (keys[slot] != 0) {
+            found = true;
+            hamCount = hamCounts[slot];
+            spamCount = spamCounts[slot];
+        }
+        if (base != null) {
+            slot = find(base.keys, key);
+            if (base.keys[slot] != 0) {
+                found = true;
+                hamCount += base.hamCounts[slot];
+                spamCount += base.spamCounts[slot];
+            }
+        }
+
+        if (!found) {
+            return UNKNOWN;
+        }
+        return computeProbability(hamCount, spamCount, hamMessageCount, spamMessageCount);
+    }
+
+    /**
+     * Compute the probability that a token is SPAM from its counts.
+     */
+    static double computeProbability(int hamCount, int spamCount, int hamMessageCount, int spamMessageCount) {
+        double hamFactor = 0;
+        double spamFactor = 0;
+
+        double minThreshold = 0.01;
+        double maxThreshold = 0.99;
+
+        if (hamCount > 0) {
+            hamFactor = 2 * (double) hamCount;
+            if (spamCount <= 0) {
+                minThreshold = (hamFactor > 20) ? 0.0001 : 0.0002;
+            }
+        }
+
+        if (spamCount > 0) {
+            spamFactor = spamCount;
+            if (hamCount <= 0) {
+                maxThreshold = (spamFactor > 10) ? 0.9999 : 0.9998;
+            }
+        }
+
+        if ((hamFactor + spamFactor) < 5) {
+            // This token hasn't been seen enough.
+            return 0.4;
+        }
+
+        double spamFreq = Math.min(1.0, spamFactor / spamMessageCount);
+        double hamFreq = Math.min(1.0, hamFactor / hamMessageCount);
+
+        return Math.max(minThreshold, Math.min(maxThreshold, (spamFreq / (hamFreq + spamFreq))));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the token. 0 marks free slots, so it is never
+     * returned.
+     */
+    static long hash(String token) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Same as {@link #hash(String)}, for a token held in a char array.
+     */
+    static long hash(char[] token, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= token[i];
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Return the slot holding the given key, or the free slot where it has to
+     * be inserted.
+     */
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        // FNV has weak low bits, mix the high bits in
+        int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize + expectedSize / 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Collects token counts and builds a {@link TokenCorpus}. A builder can
+     * only be used once.
+     */
+    public static class Builder {
+
+        private TokenCorpus base;
+
+        private long[] keys;
+
+        private int[] hamCounts;
+
+        private int[] spamCounts;
+
+        private int entries;
+
+        private int size;
+
+        private int hamMessageCount;
+
+        private int spamMessageCount;
+
+        /**
+         * Create a builder for an empty corpus
+         */
+        public Builder() {
+            this(16);
+        }
+
+        /**
+         * Create a builder for an empty corpus sized for the given number of
+         * tokens
+         * 
+         * @param expectedSize
+         */
+        public Builder(int expectedSize) {
+            int capacity = capacityFor(expectedSize);
+            keys = new long[capacity];
+            hamCounts = new int[capacity];
+            spamCounts = new int[capacity];
+        }
+
+        /**
+         * Create a builder adding to the counts of the given corpus. The
+         * corpus itself is not modified.
+         * 
+         * @param corpus
+         */
+        public Builder(TokenCorpus corpus) {
+            hamMessageCount = corpus.hamMessageCount;
+            spamMessageCount = corpus.spamMessageCount;
+
+            if (corpus.base == null) {
+                // start a new table of changes on top of the corpus
+                this.base = corpus;
+                keys = new long[16];
+                hamCounts = new int[16];
+                spamCounts = new int[16];
+                size = corpus.size;
+            } else if (corpus.entries * MERGE_RATIO < corpus.base.entries) {
+                // go on with a copy of the changes
+                this.base = corpus.base;
+                keys = corpus.keys.clone();
+                hamCounts = corpus.hamCounts.clone();
+                spamCounts = corpus.spamCounts.clone();
+                entries = corpus.entries;
+                size = corpus.size;
+            } else {
+                // too many changes, merge them into a new table
+                int capacity = capacityFor(corpus.size);
+                keys = new long[capacity];
+                hamCounts = new int[capacity];
+                spamCounts = new int[capacity];
+                addAll(corpus.base);
+                addAll(corpus);
+            }
+        }
+
+        /**
+         * Add occurrences of a ham token
+         * 
+         * @param token
+         * @param count
+         * @return this
+         */
+        public Builder addHam(String token, int count) {
+            return addHam(hash(token), count);
+        }
+
+        /**
+         * Add occurrences of a spam token
+         * 
+         * @param token
+         * @param count
+         * @return this
+         */
+        public Builder addSpam(String token, int count) {
+            return addSpam(hash(token), count);
+        }
+
+        Builder addHam(long key, int count) {
+            // slot() may grow the arrays, so call it first
+            int slot = slot(key);
+            hamCounts[slot] += count;
+            return this;
+        }
+
+        Builder addSpam(long key, int count) {
+            int slot = slot(key);
+            spamCounts[slot] += count;
+            return this;
+        }
+
+        /**
+         * Add the occurrences of all the given ham tokens
+         * 
+         * @param tokenCounts
+         * @return this
+         */
+        public Builder addHam(Map<String, Integer> tokenCounts) {
+            for (Map.Entry<String, Integer> entry : tokenCounts.entrySet()) {
+                addHam(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * Add the occurrences of all the given spam tokens
+         * 
+         * @param tokenCounts
+         * @return this
+         */
+        public Builder addSpam(Map<String, Integer> tokenCounts) {
+            for (Map.Entry<String, Integer> entry : tokenCounts.entrySet()) {
+                addSpam(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * Add to the number of ham and spam messages
+         * 
+         * @param hamMessages
+         * @param spamMessages
+         * @return this
+         */
+        public Builder addMessageCounts(int hamMessages, int spamMessages) {
+            hamMessageCount += hamMessages;
+            spamMessageCount += spamMessages;
+            return this;
+        }
+
+        /**
+         * Build the corpus. The builder can't be used anymore afterwards.
+         * 
+         * @return corpus
+         */
+        public TokenCorpus build() {
+            if (keys == null) {
+                throw new IllegalStateException("Corpus already built");
+            }
+            TokenCorpus corpus = new TokenCorpus(this);
+            base = null;
+            keys = null;
+            hamCounts = null;
+            spamCounts = null;
+            return corpus;
+        }
+
+        /**
+         * Add the counts of the table of the given corpus, without its base
+         */
+        private void addAll(TokenCorpus corpus) {
+            for (int i = 0; i < corpus.keys.length; i++) {
+                long key = corpus.keys[i];
+                if (key != 0) {
+                    int slot = slot(key);
+                    hamCounts[slot] += corpus.hamCounts[i];
+                    spamCounts[slot] += corpus.spamCounts[i];
+                }
+            }
+        }
+
+        private int slot(long key) {
+            int slot = find(keys, key);
+            if (keys[slot] == 0) {
+                if ((entries + 1) * 3 > keys.length * 2) {
+                    grow();
+                    slot = find(keys, key);
+                }
+                keys[slot] = key;
+                entries++;
+                if (base == null || base.keys[find(base.keys, key)] == 0) {
+                    size++;
+                }
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldHamCounts = hamCounts;
+            int[] oldSpamCounts = spamCounts;
+
+            keys = new long[oldKeys.length * 2];
+            hamCounts = new int[keys.length];
+            spamCounts = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = find(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    hamCounts[slot] = oldHamCounts[i];
+                    spamCounts[slot] = oldSpamCounts[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits text into the tokens used by {@link BayesianAnalyzer}.
+ * <p>
+ * Tokens following one of the <code>From:</code>, <code>Return-Path:</code>,
+ * <code>Subject:</code> or <code>To:</code> header names are prefixed with it
+ * up to the end of the line. The characters of a token are collected in a
+ * reused buffer and passed to a {@link Collector}, which decides whether a
+ * <code>String</code> is needed at all.
+ * </p>
+ * <p>
+ * A tokenizer can be fed several readers in a row, for example the parts of a
+ * message, and stops reading once the maximal number of characters is
+ * reached.
+ * </p>
+ */
+final class Tokenizer {
+
+    /**
+     * Receives the tokens
+     */
+    interface Collector {
+
+        /**
+         * Called for each token. The array is reused for the next token.
+         * 
+         * @param token
+         * @param length
+         */
+        void add(char[] token, int length);
+    }
+
+    private final static char[][] HEADERS = { "From:".toCharArray(), "Return-Path:".toCharArray(), "Subject:".toCharArray(), "To:".toCharArray() };
+
+    /**
+     * Maximal length of a token, including its header prefix.
+     */
+    private final static int MAX_TOKEN_LENGTH = 90;
+
+    private final Collector collector;
+
+    private final long maxChars;
+
+    private long chars;
+
+    /**
+     * Current header prefix, null if none
+     */
+    private char[] header;
+
+    /**
+     * Characters of the current token, after the header prefix
+     */
+    private char[] buffer = new char[128];
+
+    private int length;
+
+    /**
+     * Character read ahead and not consumed, -1 if none
+     */
+    private int pushback = -1;
+
+    /**
+     * Create a tokenizer
+     * 
+     * @param collector
+     *            receives the tokens
+     * @param maxChars
+     *            maximal number of characters to read, &lt;= 0 for no limit
+     */
+    Tokenizer(Collector collector, long maxChars) {
+        this.collector = collector;
+        this.maxChars = maxChars > 0 ? maxChars : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return true if no more characters will be read
+     * 
+     * @return limitReached
+     */
+    boolean isLimitReached() {
+        return chars >= maxChars;
+    }
+
+    /**
+     * Read all the tokens of the given reader, or as many as allowed by the
+     * limit. The reader is not closed.
+     * 
+     * @param reader
+     * @throws IOException
+     */
+    void tokenize(Reader reader) throws IOException {
+        // every reader starts on a new line
+        header = null;
+        pushback = -1;
+
+        int result;
+        while ((result = nextToken(reader)) != EOF) {
+            boolean endingLine = result == END_OF_LINE;
+            int headerLength = header == null ? 0 : header.length;
+
+            if (length > 0 && headerLength + length < MAX_TOKEN_LENGTH && !allDigits()) {
+                // header names never end a line, they are returned as soon as
+                // the colon is read
+                char[] newHeader = matchHeader();
+                if (newHeader != null) {
+                    header = newHeader;
+                } else {
+                    emit(headerLength);
+                }
+            }
+
+            if (endingLine) {
+                header = null;
+            }
+        }
+    }
+
+    private final static int EOF = 0;
+
+    private final static int TOKEN = 1;
+
+    private final static int END_OF_LINE = 2;
+
+    /**
+     * Read the next token into the buffer.
+     * 
+     * @return EOF if there are no more tokens, END_OF_LINE if the token ends
+     *         the line, TOKEN otherwise
+     */
+    private int nextToken(Reader reader) throws IOException {
+        length = 0;
+        boolean previousWasDigit = false;
+        boolean tokenCharFound = false;
+        int i;
+
+        while ((i = read(reader)) != -1) {
+            char ch = (char) i;
+
+            if (ch == ':') {
+                append(ch);
+                if (matchHeader() != null) {
+                    return TOKEN;
+                }
+                length--;
+            }
+
+            if (Character.isLetter(ch) || ch == '-' || ch == '$' || ch == '\u20AC' // the
+                    // EURO
+                    // symbol
+                    || ch == '!' || ch == '\'') {
+                tokenCharFound = true;
+                previousWasDigit = false;
+                append(ch);
+            } else if (Character.isDigit(ch)) {
+                tokenCharFound = true;
+                previousWasDigit = true;
+                append(ch);
+            } else if (previousWasDigit && (ch == '.' || ch == ',')) {
+                previousWasDigit = false;
+                i = read(reader);
+                if (i == -1) {
+                    break;
+                }
+                char ch2 = (char) i;
+                if (Character.isDigit(ch2)) {
+                    tokenCharFound = true;
+                    previousWasDigit = true;
+                    append(ch);
+                    append(ch2);
+                } else {
+                    pushback = i;
+                    break;
+                }
+            } else if (ch == '\r') {
+                // cr found, ignore
+            } else if (ch == '\n') {
+                // eol found
+                return END_OF_LINE;
+            } else if (tokenCharFound) {
+                break;
+            }
+        }
+
+        return tokenCharFound ? TOKEN : EOF;
+    }
+
+    private int read(Reader reader) throws IOException {
+        if (pushback != -1) {
+            int ch = pushback;
+            pushback = -1;
+            return ch;
+        }
+        if (chars >= maxChars) {
+            return -1;
+        }
+        int ch = reader.read();
+        if (ch != -1) {
+            chars++;
+        }
+        return ch;
+    }
+
+    private void append(char ch) {
+        if (length == buffer.length) {
+            char[] newBuffer = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+        buffer[length++] = ch;
+    }
+
+    /**
+     * Return the header name held by the buffer, null if it holds something
+     * else
+     */
+    private char[] matchHeader() {
+        for (char[] name : HEADERS) {
+            if (name.length == length) {
+                int i = 0;
+                while (i < length && name[i] == buffer[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean allDigits() {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isDigit(buffer[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass the header prefix followed by the buffer to the collector
+     */
+    private void emit(int headerLength) {
+        if (headerLength == 0) {
+            collector.add(buffer, length);
+            return;
+        }
+        char[] token = new char[headerLength + length];
+        System.arraycopy(header, 0, token, 0, headerLength);
+        System.arraycopy(buffer, 0, token, headerLength, length);
+        collector.add(token, token.length);
+    }
+}
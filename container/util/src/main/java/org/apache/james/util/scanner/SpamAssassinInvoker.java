@@ -21,19 +21,14 @@ package org.apache.james.util.scanner;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Sends the message through daemonized SpamAssassin (spamd), visit <a
  * href="SpamAssassin.org">SpamAssassin.org</a> for info on configuration.
+ * Holds the result of a single scan, the connection handling is done by a
+ * {@link SpamdClient} which should be shared between scans.
  */
 public class SpamAssassinInvoker {
 
@@ -43,9 +38,9 @@ public class SpamAssassinInvoker {
     /** The mail attribute under which the flag get stored */
     public final static String FLAG_MAIL_ATTRIBUTE_NAME = "org.apache.james.spamassassin.flag";
 
-    private final String spamdHost;
+    private final SpamdClient client;
 
-    private final int spamdPort;
+    private boolean scanned = false;
 
     private String hits = "?";
 
@@ -62,8 +57,17 @@ public class SpamAssassinInvoker {
      *            The port on which spamd listen
      */
     public SpamAssassinInvoker(String spamdHost, int spamdPort) {
-        this.spamdHost = spamdHost;
-        this.spamdPort = spamdPort;
+        this(new SpamdClient(spamdHost, spamdPort));
+    }
+
+    /**
+     * Init the spamassassin invoker
+     * 
+     * @param client
+     *            The client used to talk to spamd
+     */
+    public SpamAssassinInvoker(SpamdClient client) {
+        this.client = client;
     }
 
     /**
@@ -76,71 +80,36 @@ public class SpamAssassinInvoker {
      *             if an error on scanning is detected
      */
     public boolean scanMail(MimeMessage message) throws MessagingException {
-        Socket socket = null;
-        OutputStream out = null;
-        BufferedReader in = null;
-
-        try {
-            socket = new Socket(spamdHost, spamdPort);
-
-            out = socket.getOutputStream();
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.write("CHECK SPAMC/1.2\r\n\r\n".getBytes());
-
-            // pass the message to spamd
-            message.writeTo(out);
-            out.flush();
-            socket.shutdownOutput();
-            String s;
-            while ((s = in.readLine()) != null) {
-                if (s.startsWith("Spam:")) {
-                    StringTokenizer t = new StringTokenizer(s, " ");
-                    boolean spam;
-                    try {
-                        t.nextToken();
-                        spam = Boolean.valueOf(t.nextToken());
-                    } catch (Exception e) {
-                        // On exception return flase
-                        return false;
-                    }
-                    t.nextToken();
-                    hits = t.nextToken();
-                    t.nextToken();
-                    required = t.nextToken();
-
-                    if (spam) {
-                        // message was spam
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "YES");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "Yes, hits=" + hits + " required=" + required);
-
-                        // spam detected
-                        return true;
-                    } else {
-                        // add headers
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "NO");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "No, hits=" + hits + " required=" + required);
-
-                        return false;
-                    }
-                }
-            }
+        SpamdResult result = client.scan(message);
+        scanned = result != null;
+        if (!scanned) {
+            // skipped because of size or load
             return false;
-        } catch (UnknownHostException e1) {
-            throw new MessagingException("Error communicating with spamd. Unknown host: " + spamdHost);
-        } catch (IOException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } catch (MessagingException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } finally {
-            try {
-                in.close();
-                out.close();
-                socket.close();
-            } catch (Exception e) {
-                // Should never happin
-            }
-
         }
+        hits = result.getHits();
+        required = result.getRequiredHits();
+
+        if (result.isSpam()) {
+            // message was spam
+            headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "YES");
+            headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "Yes, hits=" + hits + " required=" + required);
+            return true;
+        } else {
+            // add headers
+            headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "NO");
+            headers.put(STATUS_MAIL_ATTRIBUTE_NAME, "No, hits=" + hits + " required=" + required);
+            return false;
+        }
+    }
+
+    /**
+     * Return true if the last message was scanned by spamd, false if it was
+     * skipped because of its size or because spamd was saturated
+     * 
+     * @return scanned
+     */
+    public boolean isScanned() {
+        return scanned;
     }
 
     /**
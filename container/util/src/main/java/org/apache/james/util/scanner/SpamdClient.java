@@ -0,0 +1,487 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Enumeration;
+import java.util.StringTokenizer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Client for the spamd daemon which is meant to be shared between all scans of
+ * a component. It bounds the time spent on connecting and waiting for spamd
+ * and can limit the count of concurrent scans and skip messages which are
+ * bigger then a configured limit, so a slow or overloaded spamd does not stall
+ * the callers. By default neither of the limits is applied, so every message
+ * is scanned as before.
+ * <p>
+ * spamd answers a single request per connection and signals the end of the
+ * reply by closing it, so connections can not be kept alive or pipelined.
+ * Instead the client reuses the resolved address and streams the message
+ * through a buffered socket without copying it into memory.
+ * </p>
+ */
+public class SpamdClient implements SpamdClientMBean {
+
+    /** The default port spamd listens on */
+    public final static int DEFAULT_PORT = 783;
+
+    /** The default time (in ms) to wait for a connection to spamd */
+    public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /** The default time (in ms) to wait for data from spamd */
+    public final static int DEFAULT_READ_TIMEOUT = 30000;
+
+    /** The default count of scans which may run at the same time, 0 means no limit */
+    public final static int DEFAULT_MAX_CONCURRENT_SCANS = 0;
+
+    /** The default maximal size of messages to scan, 0 means no limit */
+    public final static long DEFAULT_MAX_MESSAGE_SIZE = 0;
+
+    private final static byte[] CHECK_REQUEST = "CHECK SPAMC/1.2\r\n\r\n".getBytes();
+
+    private final String spamdHost;
+
+    private final int spamdPort;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private final long maxMessageSize;
+
+    private final Semaphore scanPermits;
+
+    private final AtomicInteger activeScans = new AtomicInteger();
+
+    private volatile InetSocketAddress address;
+
+    private final AtomicLong scans = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong skippedBySize = new AtomicLong();
+
+    private final AtomicLong skippedByLoad = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private MBeanServer mbeanServer;
+
+    private ObjectName mbeanName;
+
+    /**
+     * Create a client which uses the default timeouts and limits
+     * 
+     * @param spamdHost
+     *            The host on which spamd runs
+     * @param spamdPort
+     *            The port on which spamd listen
+     */
+    public SpamdClient(String spamdHost, int spamdPort) {
+        this(spamdHost, spamdPort, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONCURRENT_SCANS, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Create a client
+     * 
+     * @param spamdHost
+     *            The host on which spamd runs
+     * @param spamdPort
+     *            The port on which spamd listen
+     * @param connectTimeout
+     *            The time (in ms) to wait for a connection, 0 means no timeout
+     * @param readTimeout
+     *            The time (in ms) to wait for data from spamd, 0 means no
+     *            timeout
+     * @param maxConcurrentScans
+     *            The count of scans which may run at the same time, 0 means no
+     *            limit. Scans beyond this limit are skipped instead of queued
+     * @param maxMessageSize
+     *            The maximal size (in bytes) of messages to scan, 0 means no
+     *            limit
+     */
+    public SpamdClient(String spamdHost, int spamdPort, int connectTimeout, int readTimeout, int maxConcurrentScans, long maxMessageSize) {
+        if (maxConcurrentScans < 0) {
+            throw new IllegalArgumentException("maxConcurrentScans must not be negative");
+        }
+        this.spamdHost = spamdHost;
+        this.spamdPort = spamdPort;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxMessageSize = maxMessageSize;
+        this.scanPermits = maxConcurrentScans > 0 ? new Semaphore(maxConcurrentScans) : null;
+    }
+
+    /**
+     * Create a client and register its statistics under
+     * <code>org.apache.james:type=component,component=spamd,name=jmxName</code>
+     * if <code>jmxName</code> is not <code>null</code>. The registration is
+     * removed by {@link #dispose()}.
+     * 
+     * @param spamdHost
+     *            The host on which spamd runs
+     * @param spamdPort
+     *            The port on which spamd listen
+     * @param connectTimeout
+     *            The time (in ms) to wait for a connection, 0 means no timeout
+     * @param readTimeout
+     *            The time (in ms) to wait for data from spamd, 0 means no
+     *            timeout
+     * @param maxConcurrentScans
+     *            The count of scans which may run at the same time, 0 means no
+     *            limit
+     * @param maxMessageSize
+     *            The maximal size (in bytes) of messages to scan, 0 means no
+     *            limit
+     * @param jmxName
+     *            The name to register the statistics under
+     */
+    public SpamdClient(String spamdHost, int spamdPort, int connectTimeout, int readTimeout, int maxConcurrentScans, long maxMessageSize, String jmxName) {
+        this(spamdHost, spamdPort, connectTimeout, readTimeout, maxConcurrentScans, maxMessageSize);
+        if (jmxName != null) {
+            registerMBean(jmxName);
+        }
+    }
+
+    /**
+     * Scan a MimeMessage for spam by passing it to spamd.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @return result The result reported by spamd or <code>null</code> if the
+     *         message was not scanned because it is too big or too many scans
+     *         are running
+     * @throws MessagingException
+     *             if an error on scanning is detected
+     */
+    public SpamdResult scan(MimeMessage message) throws MessagingException {
+        if (maxMessageSize > 0 && exceedsSize(message, maxMessageSize)) {
+            skippedBySize.incrementAndGet();
+            return null;
+        }
+        if (scanPermits != null && !scanPermits.tryAcquire()) {
+            skippedByLoad.incrementAndGet();
+            return null;
+        }
+        activeScans.incrementAndGet();
+        long start = System.currentTimeMillis();
+        try {
+            SpamdResult result = check(message);
+            recordLatency(System.currentTimeMillis() - start);
+            return result;
+        } catch (MessagingException e) {
+            errors.incrementAndGet();
+            throw e;
+        } finally {
+            activeScans.decrementAndGet();
+            if (scanPermits != null) {
+                scanPermits.release();
+            }
+        }
+    }
+
+    private SpamdResult check(MimeMessage message) throws MessagingException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(getAddress(), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            out.write(CHECK_REQUEST);
+
+            // pass the message to spamd
+            message.writeTo(out);
+            out.flush();
+            socket.shutdownOutput();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.startsWith("SPAMD/")) {
+                    checkResponseCode(s);
+                } else if (s.startsWith("Spam:")) {
+                    return parseSpamHeader(s);
+                }
+            }
+            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " No result returned");
+        } catch (SocketTimeoutException e) {
+            throw new MessagingException("Timeout communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e);
+        } catch (IOException e) {
+            // unresolvable hosts are retried with the next scan
+            address = null;
+            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+    }
+
+    private InetSocketAddress getAddress() throws MessagingException {
+        InetSocketAddress address = this.address;
+        if (address == null) {
+            address = new InetSocketAddress(spamdHost, spamdPort);
+            if (address.isUnresolved()) {
+                throw new MessagingException("Error communicating with spamd. Unknown host: " + spamdHost);
+            }
+            this.address = address;
+        }
+        return address;
+    }
+
+    private void checkResponseCode(String line) throws MessagingException {
+        StringTokenizer t = new StringTokenizer(line, " ");
+        t.nextToken();
+        if (t.hasMoreTokens() && !"0".equals(t.nextToken())) {
+            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Response: " + line);
+        }
+    }
+
+    private SpamdResult parseSpamHeader(String line) {
+        // Spam: True ; 15 / 5
+        StringTokenizer t = new StringTokenizer(line, " ");
+        try {
+            t.nextToken();
+            boolean spam = Boolean.valueOf(t.nextToken());
+            t.nextToken();
+            String hits = t.nextToken();
+            t.nextToken();
+            String required = t.nextToken();
+            return new SpamdResult(spam, hits, required);
+        } catch (RuntimeException e) {
+            // malformed header, handle the message as not spam
+            return new SpamdResult(false, "?", "?");
+        }
+    }
+
+    private void recordLatency(long latency) {
+        scans.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatency.get())) {
+            if (maxLatency.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return true if the message is bigger then the given limit. The size is
+     * taken from the message if it is known, otherwise the message is written
+     * to a counting stream which stops as soon as the limit is exceeded.
+     * 
+     * @param message
+     *            the message
+     * @param limit
+     *            the limit in bytes
+     * @return exceeds
+     * @throws MessagingException
+     */
+    private static boolean exceedsSize(MimeMessage message, long limit) throws MessagingException {
+        int bodySize = message.getSize();
+        if (bodySize >= 0) {
+            long size = bodySize;
+            @SuppressWarnings("unchecked")
+            Enumeration<String> lines = message.getAllHeaderLines();
+            while (lines.hasMoreElements()) {
+                size += lines.nextElement().length() + 2;
+            }
+            return size > limit;
+        }
+
+        LimitedCountingOutputStream out = new LimitedCountingOutputStream(limit);
+        try {
+            message.writeTo(out);
+            return false;
+        } catch (LimitExceededException e) {
+            return true;
+        } catch (IOException e) {
+            throw new MessagingException("Unable to calculate message size", e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getTotalScans()
+     */
+    public long getTotalScans() {
+        return scans.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getTotalErrors()
+     */
+    public long getTotalErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSkippedBySize()
+     */
+    public long getSkippedBySize() {
+        return skippedBySize.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSkippedByLoad()
+     */
+    public long getSkippedByLoad() {
+        return skippedByLoad.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getActiveScans()
+     */
+    public int getActiveScans() {
+        return activeScans.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getAverageLatency()
+     */
+    public double getAverageLatency() {
+        long count = scans.get();
+        if (count == 0) {
+            return 0;
+        }
+        return (double) totalLatency.get() / count;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getMaxLatency()
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        scans.set(0);
+        errors.set(0);
+        skippedBySize.set(0);
+        skippedByLoad.set(0);
+        totalLatency.set(0);
+        maxLatency.set(0);
+    }
+
+    /**
+     * Unregisters the statistics from JMX.
+     */
+    public synchronized void dispose() {
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                // ignore on dispose
+            }
+            mbeanName = null;
+        }
+    }
+
+    private static ObjectName getMBeanName(String name) throws MalformedObjectNameException {
+        if (name.matches(".*[,=:\"*?\\\\\n].*")) {
+            name = ObjectName.quote(name);
+        }
+        return new ObjectName("org.apache.james:type=component,component=spamd,name=" + name);
+    }
+
+    /**
+     * Register the statistics under the jmxName. If another client uses the
+     * name already, for example a mailet and a handler which both scan
+     * messages, a counter is appended to the name.
+     * 
+     * @param jmxName
+     *            the name
+     */
+    private synchronized void registerMBean(String jmxName) {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String name = jmxName;
+            for (int i = 2;; i++) {
+                try {
+                    mbeanName = mbeanServer.registerMBean(this, getMBeanName(name)).getObjectName();
+                    break;
+                } catch (InstanceAlreadyExistsException e) {
+                    name = jmxName + "-" + i;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    /**
+     * Thrown by {@link LimitedCountingOutputStream} once the limit is exceeded
+     */
+    @SuppressWarnings("serial")
+    private static final class LimitExceededException extends IOException {
+    }
+
+    /**
+     * OutputStream which only counts the written bytes
+     */
+    private static final class LimitedCountingOutputStream extends OutputStream {
+        private final long limit;
+        private long count;
+
+        public LimitedCountingOutputStream(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            add(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            add(len);
+        }
+
+        private void add(int len) throws LimitExceededException {
+            count += len;
+            if (count > limit) {
+                throw new LimitExceededException();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+/**
+ * JMX view on the statistics collected by a {@link SpamdClient}
+ */
+public interface SpamdClientMBean {
+
+    /**
+     * Return the count of messages which were scanned by spamd
+     * 
+     * @return tScans
+     */
+    long getTotalScans();
+
+    /**
+     * Return the count of scans which failed
+     * 
+     * @return tErrors
+     */
+    long getTotalErrors();
+
+    /**
+     * Return the count of messages which were not scanned because they
+     * exceeded the size limit
+     * 
+     * @return skipped
+     */
+    long getSkippedBySize();
+
+    /**
+     * Return the count of messages which were not scanned because the limit of
+     * concurrent scans was reached
+     * 
+     * @return skipped
+     */
+    long getSkippedByLoad();
+
+    /**
+     * Return the count of scans which are running right now
+     * 
+     * @return active
+     */
+    int getActiveScans();
+
+    /**
+     * Return the average time of a successful scan (in ms)
+     * 
+     * @return aTime
+     */
+    double getAverageLatency();
+
+    /**
+     * Return the maximal time of a successful scan (in ms)
+     * 
+     * @return mTime
+     */
+    long getMaxLatency();
+
+    /**
+     * Reset all statistics
+     */
+    void resetStatistics();
+}
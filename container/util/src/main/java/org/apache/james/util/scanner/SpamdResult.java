@@ -0,0 +1,64 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+/**
+ * The result of a spamd check
+ */
+public class SpamdResult {
+
+    private final boolean spam;
+
+    private final String hits;
+
+    private final String required;
+
+    public SpamdResult(boolean spam, String hits, String required) {
+        this.spam = spam;
+        this.hits = hits;
+        this.required = required;
+    }
+
+    /**
+     * Return true if spamd classified the message as spam
+     * 
+     * @return spam
+     */
+    public boolean isSpam() {
+        return spam;
+    }
+
+    /**
+     * Return the hits which was returned by spamd
+     * 
+     * @return hits The hits which was detected
+     */
+    public String getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the required hits
+     * 
+     * @return required The required hits before a message is handled as spam
+     */
+    public String getRequiredHits() {
+        return required;
+    }
+}
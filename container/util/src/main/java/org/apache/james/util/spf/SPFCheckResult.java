@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.spf;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of a SPF check for a (ip, sender, helo) triple. It is stored in
+ * the {@link SPFResultCache} and passed from the SMTP server to the mailets as
+ * mail attribute, so the check is not done twice for the same mail.
+ */
+public class SPFCheckResult implements Serializable {
+
+    private static final long serialVersionUID = 2817503718846353016L;
+
+    /** The mail attribute which holds the result of the check done at SMTP time */
+    public final static String MAIL_ATTRIBUTE_NAME = "org.apache.james.spf.result";
+
+    private final String ip;
+    private final String sender;
+    private final String helo;
+    private final String result;
+    private final String explanation;
+    private final String headerName;
+    private final String headerText;
+
+    public SPFCheckResult(String ip, String sender, String helo, String result, String explanation, String headerName, String headerText) {
+        this.ip = ip;
+        this.sender = sender;
+        this.helo = helo;
+        this.result = result;
+        this.explanation = explanation;
+        this.headerName = headerName;
+        this.headerText = headerText;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getHelo() {
+        return helo;
+    }
+
+    /**
+     * Return the result, one of the <code>SPFErrorConstants.*_CONV</code>
+     * values of jSPF
+     * 
+     * @return result
+     */
+    public String getResult() {
+        return result;
+    }
+
+    public String getExplanation() {
+        return explanation;
+    }
+
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    public String getHeaderText() {
+        return headerText;
+    }
+
+    /**
+     * Return true if this result was computed for the given ip and sender
+     * 
+     * @param ip
+     *            The remote ip
+     * @param sender
+     *            The envelope sender, the empty string for the null sender
+     * @return matches
+     */
+    public boolean matches(String ip, String sender) {
+        return this.ip.equals(ip) && this.sender.equalsIgnoreCase(sender);
+    }
+
+    public String toString() {
+        return "ip:" + ip + " from:" + sender + " helo:" + helo + " = " + result;
+    }
+}
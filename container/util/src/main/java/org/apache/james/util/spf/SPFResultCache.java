@@ -0,0 +1,232 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.spf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of SPF checks, so a sender which connects again from the
+ * same ip does not cause the same DNS queries again. The container creates one
+ * instance named <code>spfresultcache</code> which is injected into the SMTP
+ * server and the SPF mailet, so both share the results, and exports its
+ * statistics in JMX.
+ * <p>
+ * The jSPF DNS API does not return the TTL of the records, so results are kept
+ * for a configurable time which should not exceed the TTL commonly used for
+ * SPF records. Temporary errors are never cached.
+ * </p>
+ */
+public class SPFResultCache implements SPFResultCacheMBean {
+
+    /**
+     * Does the SPF check on a miss
+     */
+    public interface Evaluator {
+
+        /**
+         * Check the given triple against SPF
+         */
+        SPFCheckResult evaluate(String ip, String sender, String helo);
+    }
+
+    /** The default time (in ms) a result is cached */
+    public final static long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    /** The default count of results to keep */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Equals <code>SPFErrorConstants.TEMP_ERROR_CONV</code> of jSPF */
+    private final static String TEMP_ERROR = "temperror";
+
+    private volatile long timeToLive;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evaluationTime = new AtomicLong();
+    private final AtomicLong maxEvaluationTime = new AtomicLong();
+
+    public SPFResultCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param timeToLive
+     *            The time (in ms) a result is cached, 0 disables caching
+     * @param maxEntries
+     *            The count of results to keep, the least recently used ones
+     *            are dropped first
+     */
+    public SPFResultCache(long timeToLive, final int maxEntries) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the result for the given triple, doing the check if it is not
+     * cached
+     * 
+     * @param ip
+     *            The remote ip
+     * @param sender
+     *            The envelope sender, the empty string for the null sender
+     * @param helo
+     *            The HELO/EHLO name
+     * @param evaluator
+     *            The evaluator to use on a miss
+     * @return result
+     */
+    public SPFCheckResult get(String ip, String sender, String helo, Evaluator evaluator) {
+        // The header text and explanation contain the full sender, so it is
+        // part of the key and not only its domain
+        String key = ip + "\n" + sender.toLowerCase() + "\n" + helo.toLowerCase();
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires > now) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+        }
+        misses.incrementAndGet();
+
+        long start = System.currentTimeMillis();
+        SPFCheckResult result = evaluator.evaluate(ip, sender, helo);
+        long time = System.currentTimeMillis() - start;
+        evaluationTime.addAndGet(time);
+        long max = maxEvaluationTime.get();
+        while (time > max && !maxEvaluationTime.compareAndSet(max, time)) {
+            max = maxEvaluationTime.get();
+        }
+
+        long ttl = timeToLive;
+        if (ttl > 0 && !TEMP_ERROR.equals(result.getResult())) {
+            synchronized (entries) {
+                entries.put(key, new Entry(result, start + ttl));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getHits()
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getMisses()
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getHitRate()
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) h / total;
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getAverageEvaluationTime()
+     */
+    public double getAverageEvaluationTime() {
+        long m = misses.get();
+        if (m == 0) {
+            return 0;
+        }
+        return (double) evaluationTime.get() / m;
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getMaxEvaluationTime()
+     */
+    public long getMaxEvaluationTime() {
+        return maxEvaluationTime.get();
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getSize()
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#getTimeToLive()
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#setTimeToLive(long)
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#clear()
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.spf.SPFResultCacheMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evaluationTime.set(0);
+        maxEvaluationTime.set(0);
+    }
+
+    private static final class Entry {
+        private final SPFCheckResult result;
+        private final long expires;
+
+        public Entry(SPFCheckResult result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
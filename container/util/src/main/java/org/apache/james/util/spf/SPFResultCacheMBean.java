@@ -0,0 +1,93 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.spf;
+
+/**
+ * JMX view on the statistics collected by a {@link SPFResultCache}
+ */
+public interface SPFResultCacheMBean {
+
+    /**
+     * Return the count of lookups which were answered from the cache
+     * 
+     * @return hits
+     */
+    long getHits();
+
+    /**
+     * Return the count of lookups which needed a SPF evaluation
+     * 
+     * @return misses
+     */
+    long getMisses();
+
+    /**
+     * Return the share of lookups answered from the cache (0 to 1)
+     * 
+     * @return hitRate
+     */
+    double getHitRate();
+
+    /**
+     * Return the average time of a SPF evaluation (in ms)
+     * 
+     * @return aTime
+     */
+    double getAverageEvaluationTime();
+
+    /**
+     * Return the maximal time of a SPF evaluation (in ms)
+     * 
+     * @return mTime
+     */
+    long getMaxEvaluationTime();
+
+    /**
+     * Return the count of cached results
+     * 
+     * @return size
+     */
+    int getSize();
+
+    /**
+     * Return the maximal time (in ms) a result is cached
+     * 
+     * @return ttl
+     */
+    long getTimeToLive();
+
+    /**
+     * Set the maximal time (in ms) a result is cached
+     * 
+     * @param timeToLive
+     *            ttl
+     */
+    void setTimeToLive(long timeToLive);
+
+    /**
+     * Drop all cached results
+     */
+    void clear();
+
+    /**
+     * Reset all statistics
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,566 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.sql;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.apache.james.util.retry.DoublingRetrySchedule;
+import org.apache.james.util.retry.api.RetrySchedule;
+
+/**
+ * <p>
+ * Shared access layer for the JDBC based components.
+ * </p>
+ * 
+ * <p>
+ * Every unit of work borrows exactly one connection from the
+ * {@link DataSource} and hands a {@link StatementCache} to the caller, so
+ * statements issued more than once in the same unit of work are only
+ * prepared once. Units of work which were rolled back by the database
+ * (deadlock, serialization failure) or could not get a connection are retried
+ * according to a {@link RetrySchedule}, so callbacks with several statements
+ * must run in a single transaction. Other transient errors (lost connection,
+ * timeout) leave it open whether the work was applied, so they are only
+ * retried for work which is declared idempotent, like queries. The latency of
+ * every named query is recorded and exposed via JMX when a JMX name is given.
+ * </p>
+ * 
+ * <p>
+ * Caching statements across units of work is left to the connection pool (for
+ * example <code>poolPreparedStatements</code> of commons-dbcp), as only the
+ * pool knows which physical connection backs a borrowed one.
+ * </p>
+ */
+public class JDBCTemplate implements JDBCTemplateMBean {
+
+    /**
+     * Work executed on a borrowed connection.
+     */
+    public interface ConnectionCallback<T> {
+
+        /**
+         * @param statements
+         *            the statement cache of the borrowed connection
+         * @return result
+         * @throws SQLException
+         */
+        T doInConnection(StatementCache statements) throws SQLException;
+    }
+
+    /**
+     * Maps the current row of a {@link ResultSet} to an object.
+     */
+    public interface RowMapper<T> {
+
+        /**
+         * @param rs
+         *            the result set, positioned on the row to map
+         * @return the mapped row
+         * @throws SQLException
+         */
+        T mapRow(ResultSet rs) throws SQLException;
+    }
+
+    public final static int DEFAULT_MAX_RETRIES = 2;
+
+    public final static int DEFAULT_BATCH_SIZE = 100;
+
+    private final DataSource dataSource;
+
+    private final JDBCUtil theJDBCUtil;
+
+    private final String jmxName;
+
+    private RetrySchedule retrySchedule = new DoublingRetrySchedule(50, 1000);
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final ConcurrentMap<String, QueryStats> stats = new ConcurrentHashMap<String, QueryStats>();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private MBeanServer mbeanServer;
+
+    private ObjectName mbeanName;
+
+    /**
+     * Creates a template which is not registered in JMX.
+     * 
+     * @param dataSource
+     * @param theJDBCUtil
+     */
+    public JDBCTemplate(DataSource dataSource, JDBCUtil theJDBCUtil) {
+        this(dataSource, theJDBCUtil, null);
+    }
+
+    /**
+     * Creates a template and registers its statistics under
+     * <code>org.apache.james:type=component,component=jdbc,name=jmxName</code>
+     * if <code>jmxName</code> is not <code>null</code>.
+     * 
+     * @param dataSource
+     * @param theJDBCUtil
+     * @param jmxName
+     */
+    public JDBCTemplate(DataSource dataSource, JDBCUtil theJDBCUtil, String jmxName) {
+        this.dataSource = dataSource;
+        this.theJDBCUtil = theJDBCUtil;
+        this.jmxName = jmxName;
+        registerMBean();
+    }
+
+    public void setRetrySchedule(RetrySchedule retrySchedule) {
+        this.retrySchedule = retrySchedule;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Executes the callback, which is not idempotent, on a borrowed
+     * connection. See {@link #execute(String, boolean, ConnectionCallback)}.
+     * 
+     * @param name
+     *            the name the latency of this unit of work is recorded under
+     * @param callback
+     * @return the result of the callback
+     * @throws SQLException
+     */
+    public <T> T execute(String name, ConnectionCallback<T> callback) throws SQLException {
+        return execute(name, false, callback);
+    }
+
+    /**
+     * Executes the callback on a borrowed connection. Transactions are the
+     * business of the callback, but a connection left with auto commit
+     * disabled is rolled back and reset before it is returned to the pool.
+     * 
+     * The callback is retried if no connection could be borrowed or the
+     * database rolled the work back. Other transient errors are only retried
+     * if the callback is idempotent, as the work may have been applied
+     * before the error.
+     * 
+     * @param name
+     *            the name the latency of this unit of work is recorded under
+     * @param idempotent
+     *            true if executing the callback twice has the same effect as
+     *            executing it once
+     * @param callback
+     * @return the result of the callback
+     * @throws SQLException
+     *             if the callback failed with a permanent error, or the
+     *             retries were exhausted
+     */
+    public <T> T execute(String name, boolean idempotent, ConnectionCallback<T> callback) throws SQLException {
+        int retryCount = 0;
+        while (true) {
+            long start = System.currentTimeMillis();
+            Connection conn = null;
+            try {
+                conn = dataSource.getConnection();
+                T result = executeOnce(conn, callback);
+                record(name, System.currentTimeMillis() - start, false);
+                return result;
+            } catch (SQLException e) {
+                record(name, System.currentTimeMillis() - start, true);
+                boolean retry = isRolledBack(e) || ((conn == null || idempotent) && isTransient(e));
+                if (retryCount >= maxRetries || !retry) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                theJDBCUtil.delegatedLog("Transient error while executing " + name + ", retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(retrySchedule.getInterval(retryCount));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                retryCount++;
+            }
+        }
+    }
+
+    /**
+     * Executes the given query and maps its first row.
+     * 
+     * @param sql
+     * @param mapper
+     * @param params
+     * @return the mapped first row, or <code>null</code> if the query returned
+     *         no rows
+     * @throws SQLException
+     */
+    public <T> T queryForObject(final String sql, final RowMapper<T> mapper, final Object... params) throws SQLException {
+        return execute(sql, true, new ConnectionCallback<T>() {
+            public T doInConnection(StatementCache statements) throws SQLException {
+                ResultSet rs = statements.prepare(sql, params).executeQuery();
+                try {
+                    if (rs.next()) {
+                        return mapper.mapRow(rs);
+                    }
+                    return null;
+                } finally {
+                    theJDBCUtil.closeJDBCResultSet(rs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes the given query and maps all its rows.
+     * 
+     * @param sql
+     * @param mapper
+     * @param params
+     * @return the mapped rows, never <code>null</code>
+     * @throws SQLException
+     */
+    public <T> List<T> queryForList(final String sql, final RowMapper<T> mapper, final Object... params) throws SQLException {
+        return execute(sql, true, new ConnectionCallback<List<T>>() {
+            public List<T> doInConnection(StatementCache statements) throws SQLException {
+                return mapRows(statements, sql, mapper, params);
+            }
+        });
+    }
+
+    /**
+     * Executes the given query on the borrowed connection and maps all its
+     * rows. To be used by callbacks combining several statements.
+     * 
+     * @param statements
+     * @param sql
+     * @param mapper
+     * @param params
+     * @return the mapped rows, never <code>null</code>
+     * @throws SQLException
+     */
+    public <T> List<T> mapRows(StatementCache statements, String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        List<T> rows = new ArrayList<T>();
+        ResultSet rs = statements.prepare(sql, params).executeQuery();
+        try {
+            while (rs.next()) {
+                rows.add(mapper.mapRow(rs));
+            }
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rs);
+        }
+        return rows;
+    }
+
+    /**
+     * Executes the given insert, update or delete statement. It is only
+     * retried if it was not applied, use {@link #idempotentUpdate(String, Object...)}
+     * for statements which can safely be executed twice.
+     * 
+     * @param sql
+     * @param params
+     * @return the update count
+     * @throws SQLException
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        return update(false, sql, params);
+    }
+
+    /**
+     * Executes the given update or delete statement, which has the same effect
+     * if it is executed twice, like setting a column to a given value or
+     * deleting rows by key.
+     * 
+     * @param sql
+     * @param params
+     * @return the update count
+     * @throws SQLException
+     */
+    public int idempotentUpdate(String sql, Object... params) throws SQLException {
+        return update(true, sql, params);
+    }
+
+    private int update(boolean idempotent, final String sql, final Object... params) throws SQLException {
+        return execute(sql, idempotent, new ConnectionCallback<Integer>() {
+            public Integer doInConnection(StatementCache statements) throws SQLException {
+                return statements.prepare(sql, params).executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Executes the given statement once per row in JDBC batches of
+     * {@link #getBatchSize()} rows, all in a single transaction.
+     * 
+     * @param sql
+     * @param rows
+     * @return the update counts, see
+     *         {@link StatementCache#executeBatch(String, List, int)}
+     * @throws SQLException
+     */
+    public int[] batchUpdate(final String sql, final List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        return execute(sql, new ConnectionCallback<int[]>() {
+            public int[] doInConnection(StatementCache statements) throws SQLException {
+                Connection conn = statements.getConnection();
+                conn.setAutoCommit(false);
+                int[] counts = statements.executeBatch(sql, rows, batchSize);
+                conn.commit();
+                return counts;
+            }
+        });
+    }
+
+    /**
+     * Returns true if the given exception, or one of the exceptions chained to
+     * it, denotes that the database rolled back the transaction (deadlock,
+     * serialization failure), so none of its work was applied.
+     * 
+     * @param e
+     * @return rolledBack
+     */
+    public static boolean isRolledBack(SQLException e) {
+        SQLException current = e;
+        while (current != null) {
+            if (current instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            String state = current.getSQLState();
+            if (state != null && state.startsWith("40")) {
+                return true;
+            }
+            current = current.getNextException();
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given exception, or one of the exceptions chained to
+     * it, denotes a failure which may not happen again when the work is
+     * retried on a fresh connection.
+     * 
+     * @param e
+     * @return transient
+     */
+    public static boolean isTransient(SQLException e) {
+        SQLException current = e;
+        while (current != null) {
+            if (current instanceof SQLTransientException || current instanceof SQLRecoverableException) {
+                return true;
+            }
+            String state = current.getSQLState();
+            // 08: connection exception, 40: transaction rollback (deadlock,
+            // serialization failure)
+            if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+                return true;
+            }
+            current = current.getNextException();
+        }
+        return false;
+    }
+
+    /**
+     * Unregisters the statistics from JMX.
+     */
+    public synchronized void dispose() {
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                theJDBCUtil.delegatedLog("Unable to unregister mbean " + mbeanName);
+            }
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#getTotalQueries()
+     */
+    public long getTotalQueries() {
+        long count = 0;
+        for (QueryStats s : stats.values()) {
+            count += s.count.get();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#getTotalErrors()
+     */
+    public long getTotalErrors() {
+        long count = 0;
+        for (QueryStats s : stats.values()) {
+            count += s.errors.get();
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#getTotalRetries()
+     */
+    public long getTotalRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#getAverageQueryTime()
+     */
+    public double getAverageQueryTime() {
+        long count = 0;
+        long time = 0;
+        for (QueryStats s : stats.values()) {
+            count += s.count.get();
+            time += s.totalTime.get();
+        }
+        return (count == 0) ? 0 : (double) time / count;
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#getQueryStatistics()
+     */
+    public String[] getQueryStatistics() {
+        List<String> lines = new ArrayList<String>(stats.size());
+        for (Map.Entry<String, QueryStats> entry : stats.entrySet()) {
+            QueryStats s = entry.getValue();
+            long count = s.count.get();
+            lines.add(entry.getKey() + ": count=" + count + ", errors=" + s.errors.get() + ", avg=" + ((count == 0) ? 0 : s.totalTime.get() / count) + "ms, max=" + s.maxTime.get() + "ms");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * @see org.apache.james.util.sql.JDBCTemplateMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        stats.clear();
+        retries.set(0);
+    }
+
+    private <T> T executeOnce(Connection conn, ConnectionCallback<T> callback) throws SQLException {
+        StatementCache statements = new StatementCache(conn, theJDBCUtil);
+        boolean success = false;
+        try {
+            T result = callback.doInConnection(statements);
+            success = true;
+            return result;
+        } finally {
+            statements.close();
+            resetAutoCommit(conn, success);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    private void resetAutoCommit(Connection conn, boolean success) {
+        try {
+            if (!conn.getAutoCommit()) {
+                if (!success) {
+                    conn.rollback();
+                }
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            theJDBCUtil.delegatedLog("Unable to reset auto commit: " + e.getMessage());
+        }
+    }
+
+    private void record(String name, long time, boolean error) {
+        QueryStats s = stats.get(name);
+        if (s == null) {
+            QueryStats newStats = new QueryStats();
+            s = stats.putIfAbsent(name, newStats);
+            if (s == null) {
+                s = newStats;
+            }
+        }
+        s.count.incrementAndGet();
+        s.totalTime.addAndGet(time);
+        if (error) {
+            s.errors.incrementAndGet();
+        }
+        long max = s.maxTime.get();
+        while (time > max && !s.maxTime.compareAndSet(max, time)) {
+            max = s.maxTime.get();
+        }
+    }
+
+    private static ObjectName getMBeanName(String name) throws MalformedObjectNameException {
+        if (name.matches(".*[,=:\"*?\\\\\n].*")) {
+            name = ObjectName.quote(name);
+        }
+        return new ObjectName("org.apache.james:type=component,component=jdbc,name=" + name);
+    }
+
+    /**
+     * Register the statistics under the jmxName. If another template uses the
+     * name already, for example a second repository on the same table, a
+     * counter is appended to the name.
+     */
+    private synchronized void registerMBean() {
+        if (jmxName != null) {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                String name = jmxName;
+                for (int i = 2;; i++) {
+                    try {
+                        mbeanName = mbeanServer.registerMBean(this, getMBeanName(name)).getObjectName();
+                        break;
+                    } catch (InstanceAlreadyExistsException e) {
+                        name = jmxName + "-" + i;
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to register mbean", e);
+            }
+        }
+    }
+
+    private final static class QueryStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+    }
+}
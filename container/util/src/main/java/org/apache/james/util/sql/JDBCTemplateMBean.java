@@ -0,0 +1,66 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.sql;
+
+/**
+ * JMX view on the statistics collected by a {@link JDBCTemplate}
+ */
+public interface JDBCTemplateMBean {
+
+    /**
+     * Return the total count of executed units of work
+     * 
+     * @return tQueries
+     */
+    long getTotalQueries();
+
+    /**
+     * Return the count of units of work which failed, including the ones which
+     * were retried
+     * 
+     * @return tErrors
+     */
+    long getTotalErrors();
+
+    /**
+     * Return the count of retries caused by transient errors
+     * 
+     * @return tRetries
+     */
+    long getTotalRetries();
+
+    /**
+     * Return the average time of a unit of work (in ms)
+     * 
+     * @return aTime
+     */
+    double getAverageQueryTime();
+
+    /**
+     * Return count, errors, average and maximal time of each query
+     * 
+     * @return stats
+     */
+    String[] getQueryStatistics();
+
+    /**
+     * Reset all statistics
+     */
+    void resetStatistics();
+}
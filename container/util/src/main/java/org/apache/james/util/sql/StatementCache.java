@@ -0,0 +1,173 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the {@link PreparedStatement}s created on a single {@link Connection}
+ * so that every distinct SQL string is only prepared once while the connection
+ * is borrowed. All cached statements are closed by {@link #close()}.
+ * <p>
+ * Instances are not thread safe, like the {@link Connection} they wrap.
+ * </p>
+ */
+public class StatementCache {
+
+    private final Connection conn;
+
+    private final JDBCUtil theJDBCUtil;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    /**
+     * Creates a new cache for the given connection.
+     * 
+     * @param conn
+     *            the connection the statements are prepared on
+     * @param theJDBCUtil
+     *            the helper used to quietly close the statements
+     */
+    public StatementCache(Connection conn, JDBCUtil theJDBCUtil) {
+        this.conn = conn;
+        this.theJDBCUtil = theJDBCUtil;
+    }
+
+    /**
+     * Returns the connection the statements of this cache are prepared on.
+     * 
+     * @return conn
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Returns the statement for the given SQL, preparing it on first use. The
+     * parameters of a reused statement are cleared before it is returned.
+     * 
+     * @param sql
+     *            the SQL string
+     * @return statement
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = conn.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the statement for the given SQL with the given parameters bound.
+     * 
+     * @param sql
+     *            the SQL string
+     * @param params
+     *            the parameters, in order. <code>null</code> values are bound
+     *            as SQL NULL
+     * @return statement
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+        PreparedStatement statement = prepare(sql);
+        bind(statement, params);
+        return statement;
+    }
+
+    /**
+     * Executes the given SQL once for every row, sending the rows to the
+     * database in batches of at most <code>batchSize</code> statements.
+     * 
+     * @param sql
+     *            the SQL string
+     * @param rows
+     *            the parameters of each execution
+     * @param batchSize
+     *            the maximal number of rows sent in one round trip
+     * @return the update counts of all rows, in order. Drivers may report
+     *         {@link Statement#SUCCESS_NO_INFO} instead of a real count
+     * @throws SQLException
+     */
+    public int[] executeBatch(String sql, List<Object[]> rows, int batchSize) throws SQLException {
+        int[] counts = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return counts;
+        }
+        PreparedStatement statement = prepare(sql);
+        int done = 0;
+        int pending = 0;
+        for (Object[] row : rows) {
+            bind(statement, row);
+            statement.addBatch();
+            pending++;
+            if (pending == batchSize) {
+                done = copyCounts(statement.executeBatch(), counts, done);
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            copyCounts(statement.executeBatch(), counts, done);
+        }
+        return counts;
+    }
+
+    /**
+     * Closes all cached statements. Errors are logged and ignored.
+     */
+    public void close() {
+        for (Statement statement : statements.values()) {
+            theJDBCUtil.closeJDBCStatement(statement);
+        }
+        statements.clear();
+    }
+
+    /**
+     * Binds the given parameters to the statement.
+     * 
+     * @param statement
+     * @param params
+     * @throws SQLException
+     */
+    public static void bind(PreparedStatement statement, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) {
+                statement.setNull(i + 1, java.sql.Types.VARCHAR);
+            } else {
+                statement.setObject(i + 1, params[i]);
+            }
+        }
+    }
+
+    private int copyCounts(int[] batchCounts, int[] counts, int offset) {
+        System.arraycopy(batchCounts, 0, counts, offset, batchCounts.length);
+        return offset + batchCounts.length;
+    }
+}
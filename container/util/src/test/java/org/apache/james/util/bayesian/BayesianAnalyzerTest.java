@@ -0,0 +1,224 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class BayesianAnalyzerTest {
+
+    private final static String SPAM = "Subject: cheap pills\nBuy cheap pills now, limited offer!\n";
+    private final static String HAM = "Subject: project meeting\nThe project meeting agenda is attached.\n";
+
+    private BayesianAnalyzer train(int messages) throws IOException {
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        for (int i = 0; i < messages; i++) {
+            analyzer.addSpam(new StringReader(SPAM));
+            analyzer.addHam(new StringReader(HAM));
+        }
+        analyzer.buildCorpus();
+        return analyzer;
+    }
+
+    @Test
+    public void testComputeSpamProbability() throws IOException {
+        BayesianAnalyzer analyzer = train(10);
+
+        assertTrue(analyzer.computeSpamProbability(new StringReader("Subject: pills\nbuy cheap pills\n")) > 0.9);
+        assertTrue(analyzer.computeSpamProbability(new StringReader("Subject: meeting\nproject agenda attached\n")) < 0.1);
+    }
+
+    @Test
+    public void testDegeneratedTokens() throws IOException {
+        BayesianAnalyzer analyzer = train(10);
+
+        // "CHEAP" and "Pills!!" are not in the corpus, their degenerated forms are
+        assertTrue(analyzer.computeSpamProbability(new StringReader("Buy CHEAP Pills!!\n")) > 0.9);
+    }
+
+    private MimeMessage createMessage(String message) throws MessagingException {
+        return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(message.getBytes()));
+    }
+
+    @Test
+    public void testMessageTextPartsOnly() throws IOException, MessagingException {
+        MimeMessage message = createMessage("Subject: offer\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/mixed; boundary=\"XXX\"\r\n" +
+                "\r\n" +
+                "--XXX\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "Content-Transfer-Encoding: quoted-printable\r\n" +
+                "\r\n" +
+                "Buy cheap caf=C3=A9\r\n" +
+                "--XXX\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n" +
+                "binary attachment\r\n" +
+                "--XXX--\r\n");
+
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.addSpam(message, true, 0);
+        Map<String, Integer> tokens = analyzer.getSpamTokenCounts();
+
+        assertTrue(tokens.containsKey("Subject:offer"));
+        assertTrue(tokens.containsKey("cheap"));
+        assertTrue(tokens.containsKey("caf\u00e9"));
+        assertFalse(tokens.containsKey("attachment"));
+        assertEquals(1, analyzer.getSpamMessageCount());
+
+        analyzer.clear();
+        analyzer.addHam(message, false, 0);
+        assertFalse(analyzer.getHamTokenCounts().containsKey("Subject:offer"));
+        assertTrue(analyzer.getHamTokenCounts().containsKey("cheap"));
+    }
+
+    @Test
+    public void testMaxChars() throws IOException, MessagingException {
+        MimeMessage message = createMessage("Subject: test\r\n\r\nfirst second third fourth\r\n");
+
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.addHam(message, false, 13);
+
+        assertEquals(2, analyzer.getHamTokenCounts().size());
+        assertTrue(analyzer.getHamTokenCounts().containsKey("second"));
+    }
+
+    @Test
+    public void testCorpusProbabilities() {
+        TokenCorpus corpus = new TokenCorpus.Builder().addHam("ham", 10).addSpam("spam", 10).addHam("both", 4).addSpam("both", 4).addHam("rare", 1).addMessageCounts(10, 10).build();
+
+        assertEquals(4, corpus.size());
+        assertEquals(0.0002, corpus.getProbability("ham"), 0);
+        assertEquals(0.9998, corpus.getProbability("spam"), 0);
+        assertEquals(1.0 / 3, corpus.getProbability("both"), 1e-9);
+        assertEquals(0.4, corpus.getProbability("rare"), 0);
+        assertEquals(TokenCorpus.UNKNOWN, corpus.getProbability("unknown"), 0);
+    }
+
+    @Test
+    public void testBuilderCopy() {
+        TokenCorpus.Builder builder = new TokenCorpus.Builder();
+        for (int i = 0; i < 100000; i++) {
+            builder.addHam("token" + i, i % 7 + 2);
+        }
+        TokenCorpus corpus = builder.addMessageCounts(100, 100).build();
+        TokenCorpus updated = new TokenCorpus.Builder(corpus).addSpam("token1", 50).addSpam("new", 50).addMessageCounts(0, 1).build();
+
+        assertEquals(100000, corpus.size());
+        assertEquals(100001, updated.size());
+        assertEquals(100, corpus.getSpamMessageCount());
+        assertEquals(101, updated.getSpamMessageCount());
+        assertEquals(TokenCorpus.UNKNOWN, corpus.getProbability("new"), 0);
+        assertEquals(TokenCorpus.computeProbability(3, 0, 100, 100), corpus.getProbability("token1"), 0);
+        assertEquals(TokenCorpus.computeProbability(3, 50, 100, 101), updated.getProbability("token1"), 0);
+        for (int i = 0; i < 100000; i += 997) {
+            assertEquals(TokenCorpus.computeProbability(i % 7 + 2, 0, 100, 100), corpus.getProbability("token" + i), 0);
+        }
+    }
+
+    @Test
+    public void testSuccessiveUpdates() {
+        TokenCorpus corpus = new TokenCorpus.Builder().addHam("base", 10).addMessageCounts(10, 0).build();
+        for (int i = 0; i < 100; i++) {
+            corpus = new TokenCorpus.Builder(corpus).addSpam("base", 1).addSpam("update" + i, 5).addMessageCounts(0, 1).build();
+        }
+
+        assertEquals(101, corpus.size());
+        assertEquals(100, corpus.getSpamMessageCount());
+        assertEquals(TokenCorpus.computeProbability(10, 100, 10, 100), corpus.getProbability("base"), 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(TokenCorpus.computeProbability(0, 5, 10, 100), corpus.getProbability("update" + i), 0);
+        }
+    }
+
+    @Test
+    public void testClassificationWithBigCorpus() throws IOException {
+        TokenCorpus.Builder builder = new TokenCorpus.Builder();
+        for (int i = 0; i < 50000; i++) {
+            builder.addHam("ham" + i, 20);
+            builder.addSpam("spam" + i, 20);
+        }
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.setCorpus(builder.addMessageCounts(100, 100).build());
+
+        Random random = new Random(42);
+        StringBuilder spam = new StringBuilder("Subject: spam1\n");
+        StringBuilder ham = new StringBuilder("Subject: ham1\n");
+        for (int i = 0; i < 300; i++) {
+            // unknown tokens must not change the result
+            spam.append("spam").append(random.nextInt(50000)).append(" unknown").append(i).append(' ');
+            ham.append("ham").append(random.nextInt(50000)).append(" unknown").append(i).append(' ');
+        }
+        assertTrue(analyzer.computeSpamProbability(new StringReader(spam.toString())) > 0.9);
+        assertTrue(analyzer.computeSpamProbability(new StringReader(ham.toString())) < 0.1);
+    }
+
+    /**
+     * Not a real benchmark, but gives an idea of the classification
+     * throughput with a big corpus. Run it by hand, the timings are only
+     * printed
+     */
+    @Ignore
+    @Test
+    public void testClassificationThroughput() throws IOException {
+        Random random = new Random(42);
+        TokenCorpus.Builder builder = new TokenCorpus.Builder();
+        for (int i = 0; i < 500000; i++) {
+            builder.addHam("word" + i, random.nextInt(20) + 2);
+            builder.addSpam("word" + i, random.nextInt(20) + 2);
+        }
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.setCorpus(builder.addMessageCounts(1000, 1000).build());
+
+        String[] messages = new String[100];
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder message = new StringBuilder("Subject: word").append(random.nextInt(500000)).append('\n');
+            for (int j = 0; j < 300; j++) {
+                message.append(j % 12 == 0 ? "Word" : "word").append(random.nextInt(600000)).append(j % 15 == 0 ? "!\n" : " ");
+            }
+            messages[i] = message.toString();
+        }
+
+        int count = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            double probability = analyzer.computeSpamProbability(new StringReader(messages[i % messages.length]));
+            assertTrue(probability >= 0 && probability <= 1);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Classified " + count + " messages in " + elapsed / 1000000 + " ms (" + (count * 1000000000L / Math.max(1, elapsed)) + " messages/s)");
+    }
+}
@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CorpusJournalTest {
+
+    private final static Map<String, Integer> NONE = Collections.emptyMap();
+
+    private long recordHam(CorpusJournal journal, String token) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put(token, 1);
+        return journal.record(counts, NONE, 1, 0);
+    }
+
+    private long recordSpam(CorpusJournal journal, String token) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put(token, 1);
+        return journal.record(NONE, counts, 0, 1);
+    }
+
+    private TokenCorpus apply(TokenCorpus corpus, List<CorpusJournal.CorpusUpdate> updates) {
+        TokenCorpus.Builder builder = new TokenCorpus.Builder(corpus);
+        for (CorpusJournal.CorpusUpdate update : updates) {
+            update.applyTo(builder);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testInterleavedFeeders() {
+        CorpusJournal journal = new CorpusJournal();
+
+        // a ham and a spam feeder train messages in turn
+        long ham1 = recordHam(journal, "meeting");
+        long spam1 = recordSpam(journal, "pills");
+        long ham2 = recordHam(journal, "agenda");
+
+        // the ham feeder flushes first, the spam training is still pending
+        journal.markStored(Arrays.asList(ham1, ham2));
+        Set<Long> included = new HashSet<Long>();
+        assertEquals(ham1, journal.getStoredSequence(included));
+        assertEquals(Collections.singleton(ham2), included);
+
+        // a corpus loaded now holds both ham updates but not the spam one,
+        // which must be applied exactly once by the next delta
+        TokenCorpus loaded = new TokenCorpus.Builder().addMessageCounts(2, 0).build();
+        List<CorpusJournal.CorpusUpdate> updates = journal.getUpdates(ham1, included);
+        assertEquals(1, updates.size());
+        TokenCorpus corpus = apply(loaded, updates);
+        assertEquals(2, corpus.getHamMessageCount());
+        assertEquals(1, corpus.getSpamMessageCount());
+
+        // the spam feeder flushes, all the updates are stored now
+        journal.markStored(Collections.singleton(spam1));
+        included.clear();
+        assertEquals(ham2, journal.getStoredSequence(included));
+        assertTrue(included.isEmpty());
+        assertEquals(journal.getLastSequence(), ham2);
+        assertTrue(journal.getUpdates(ham2, included).isEmpty());
+    }
+
+    @Test
+    public void testFailedFlushIsNotStored() {
+        CorpusJournal journal = new CorpusJournal();
+
+        long ham = recordHam(journal, "meeting");
+        long spam = recordSpam(journal, "pills");
+
+        // the ham flush failed, the spam one succeeded
+        journal.markStored(Collections.singleton(spam));
+        assertEquals(0, journal.getStoredSequence(null));
+
+        // the ham training is stored with the next flush
+        journal.markStored(Collections.singleton(ham));
+        assertEquals(spam, journal.getStoredSequence(null));
+    }
+
+    @Test
+    public void testJournalOverflow() {
+        CorpusJournal journal = new CorpusJournal(2);
+
+        recordHam(journal, "one");
+        recordHam(journal, "two");
+        assertEquals(2, journal.getUpdates(0, Collections.<Long> emptySet()).size());
+
+        recordHam(journal, "three");
+        assertNull(journal.getUpdates(0, Collections.<Long> emptySet()));
+        assertEquals(2, journal.getUpdates(1, Collections.<Long> emptySet()).size());
+    }
+
+    @Test
+    public void testReset() {
+        CorpusJournal journal = new CorpusJournal();
+
+        long ham = recordHam(journal, "meeting");
+        recordSpam(journal, "pills");
+        journal.reset();
+
+        assertEquals(journal.getLastSequence(), journal.getStoredSequence(null));
+        assertNull(journal.getUpdates(ham, Collections.<Long> emptySet()));
+    }
+
+    @Test
+    public void testSharedInstance() {
+        Object database = new Object();
+        assertTrue(CorpusJournal.getInstance(database) == CorpusJournal.getInstance(database));
+        assertTrue(CorpusJournal.getInstance(database) != CorpusJournal.getInstance(new Object()));
+    }
+}
@@ -0,0 +1,138 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local spamd which speaks enough of the SPAMC protocol for tests. Every
+ * connection is served by its own thread, messages containing {@link #GTUBE}
+ * are reported as spam.
+ */
+public class FakeSpamd implements Runnable {
+
+    /**
+     * Mailcontent which is 100% spam
+     */
+    public final static String GTUBE = "-SPAM-";
+
+    private final ServerSocket socket;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile long delay;
+
+    private volatile boolean closed;
+
+    public FakeSpamd() throws IOException {
+        socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, "FakeSpamd");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Set the time (in ms) to wait before answering a request
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Return the count of received requests
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                final Socket connection = socket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() {
+                        handle(connection);
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void handle(Socket connection) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+            OutputStream out = connection.getOutputStream();
+
+            String line = in.readLine();
+            if (line == null || !line.startsWith("CHECK SPAMC/")) {
+                out.write("SPAMD/1.1 76 Bad header line\r\n".getBytes());
+                return;
+            }
+            requests.incrementAndGet();
+
+            // skip the request headers and read the message until the client
+            // shuts down the output
+            boolean spam = false;
+            while ((line = in.readLine()) != null) {
+                if (line.contains(GTUBE)) {
+                    spam = true;
+                }
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (spam) {
+                out.write("SPAMD/1.1 0 EX_OK\r\nSpam: True ; 1000.0 / 5.0\r\n\r\n".getBytes());
+            } else {
+                out.write("SPAMD/1.1 0 EX_OK\r\nSpam: False ; 3.0 / 5.0\r\n\r\n".getBytes());
+            }
+            out.flush();
+        } catch (IOException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+    }
+}
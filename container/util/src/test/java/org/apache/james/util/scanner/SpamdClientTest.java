@@ -0,0 +1,222 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpamdClientTest {
+
+    private FakeSpamd spamd;
+
+    @Before
+    public void setUp() throws Exception {
+        spamd = new FakeSpamd();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        spamd.close();
+    }
+
+    private MimeMessage createMessage(String text) throws MessagingException {
+        String raw = "From: sender@james.apache.org\r\nTo: rcpt@james.apache.org\r\nSubject: test\r\n\r\n" + text + "\r\n";
+        return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(raw.getBytes()));
+    }
+
+    private SpamdClient createClient(int readTimeout, int maxConcurrentScans, long maxMessageSize) {
+        return new SpamdClient("127.0.0.1", spamd.getPort(), 1000, readTimeout, maxConcurrentScans, maxMessageSize);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        SpamdClient client = createClient(5000, 5, 0);
+
+        SpamdResult result = client.scan(createMessage("test"));
+        assertNotNull(result);
+        assertFalse(result.isSpam());
+        assertEquals("3.0", result.getHits());
+        assertEquals("5.0", result.getRequiredHits());
+
+        result = client.scan(createMessage(FakeSpamd.GTUBE));
+        assertTrue(result.isSpam());
+        assertEquals("1000.0", result.getHits());
+
+        assertEquals(2, client.getTotalScans());
+        assertEquals(2, spamd.getRequests());
+        assertEquals(0, client.getActiveScans());
+        assertTrue(client.getMaxLatency() >= client.getAverageLatency());
+    }
+
+    @Test
+    public void testInvoker() throws Exception {
+        SpamAssassinInvoker sa = new SpamAssassinInvoker(createClient(5000, 5, 0));
+        assertTrue(sa.scanMail(createMessage(FakeSpamd.GTUBE)));
+        assertTrue(sa.isScanned());
+        assertEquals("YES", sa.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+        assertEquals("Yes, hits=1000.0 required=5.0", sa.getHeadersAsAttribute().get(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME));
+    }
+
+    @Test
+    public void testSkipBySize() throws Exception {
+        SpamdClient client = createClient(5000, 5, 100);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("0123456789\r\n");
+        }
+
+        assertNull(client.scan(createMessage(text.toString())));
+        assertEquals(1, client.getSkippedBySize());
+        assertEquals(0, spamd.getRequests());
+
+        // messages without a known size are counted while written
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setText(text.toString());
+        assertNull(client.scan(message));
+        assertEquals(2, client.getSkippedBySize());
+
+        assertNotNull(client.scan(createMessage("test")));
+    }
+
+    @Test
+    public void testSkipByLoad() throws Exception {
+        spamd.setDelay(1000);
+        final SpamdClient client = createClient(5000, 1, 0);
+        final MimeMessage message = createMessage("test");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread scan = new Thread() {
+            public void run() {
+                try {
+                    client.scan(message);
+                } catch (MessagingException e) {
+                    // checked below
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        scan.start();
+        while (client.getActiveScans() == 0) {
+            Thread.sleep(10);
+        }
+
+        long start = System.currentTimeMillis();
+        assertNull(client.scan(createMessage("test")));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, client.getSkippedByLoad());
+
+        done.await();
+        assertEquals(1, client.getTotalScans());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        spamd.setDelay(2000);
+        SpamdClient client = createClient(200, 5, 0);
+        try {
+            client.scan(createMessage("test"));
+            fail("Timeout expected");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(1, client.getTotalErrors());
+        assertEquals(0, client.getActiveScans());
+    }
+
+    @Test
+    public void testNoLimitsByDefault() throws Exception {
+        assertEquals(0, SpamdClient.DEFAULT_MAX_CONCURRENT_SCANS);
+        assertEquals(0, SpamdClient.DEFAULT_MAX_MESSAGE_SIZE);
+
+        spamd.setDelay(500);
+        final SpamdClient client = new SpamdClient("127.0.0.1", spamd.getPort());
+        final MimeMessage message = createMessage("test");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread scan = new Thread() {
+            public void run() {
+                try {
+                    client.scan(message);
+                } catch (MessagingException e) {
+                    // checked below
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        scan.start();
+        while (client.getActiveScans() == 0) {
+            Thread.sleep(10);
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append("0123456789\r\n");
+        }
+        assertNotNull(client.scan(createMessage(text.toString())));
+        done.await();
+        assertEquals(2, client.getTotalScans());
+        assertEquals(0, client.getSkippedByLoad());
+        assertEquals(0, client.getSkippedBySize());
+        assertEquals(0, client.getActiveScans());
+    }
+
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName first = new ObjectName("org.apache.james:type=component,component=spamd,name=spamdtest");
+        ObjectName second = new ObjectName("org.apache.james:type=component,component=spamd,name=spamdtest-2");
+
+        SpamdClient client = new SpamdClient("127.0.0.1", spamd.getPort(), 1000, 5000, 0, 0, "spamdtest");
+        SpamdClient other = new SpamdClient("127.0.0.1", spamd.getPort(), 1000, 5000, 0, 0, "spamdtest");
+        try {
+            assertTrue(mbeanServer.isRegistered(first));
+            assertTrue(mbeanServer.isRegistered(second));
+
+            client.scan(createMessage("test"));
+            assertEquals(1L, mbeanServer.getAttribute(first, "TotalScans"));
+            assertEquals(0L, mbeanServer.getAttribute(second, "TotalScans"));
+        } finally {
+            client.dispose();
+            other.dispose();
+        }
+        assertFalse(mbeanServer.isRegistered(first));
+        assertFalse(mbeanServer.isRegistered(second));
+    }
+}
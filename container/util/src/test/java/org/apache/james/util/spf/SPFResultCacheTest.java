@@ -0,0 +1,111 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.spf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SPFResultCacheTest {
+
+    private static class CountingEvaluator implements SPFResultCache.Evaluator {
+        private final String result;
+        private int calls;
+
+        public CountingEvaluator(String result) {
+            this.result = result;
+        }
+
+        public SPFCheckResult evaluate(String ip, String sender, String helo) {
+            calls++;
+            return new SPFCheckResult(ip, sender, helo, result, "explanation", "Received-SPF", result + " (test)");
+        }
+    }
+
+    @Test
+    public void testResultIsCached() {
+        SPFResultCache cache = new SPFResultCache();
+        CountingEvaluator evaluator = new CountingEvaluator("pass");
+
+        SPFCheckResult first = cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        SPFCheckResult second = cache.get("192.168.0.1", "USER@example.com", "MX.example.com", evaluator);
+
+        assertSame(first, second);
+        assertEquals(1, evaluator.calls);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 0.001);
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testKeyContainsIpSenderAndHelo() {
+        SPFResultCache cache = new SPFResultCache();
+        CountingEvaluator evaluator = new CountingEvaluator("pass");
+
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.2", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.1", "other@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.1", "user@example.com", "mx2.example.com", evaluator);
+
+        assertEquals(4, evaluator.calls);
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testTempErrorIsNotCached() {
+        SPFResultCache cache = new SPFResultCache();
+        CountingEvaluator evaluator = new CountingEvaluator("temperror");
+
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+
+        assertEquals(2, evaluator.calls);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testExpiredResultIsEvaluatedAgain() throws Exception {
+        SPFResultCache cache = new SPFResultCache(10, 100);
+        CountingEvaluator evaluator = new CountingEvaluator("fail");
+
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        Thread.sleep(50);
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+
+        assertEquals(2, evaluator.calls);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        SPFResultCache cache = new SPFResultCache(60000, 2);
+        CountingEvaluator evaluator = new CountingEvaluator("pass");
+
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.2", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.3", "user@example.com", "mx.example.com", evaluator);
+        cache.get("192.168.0.1", "user@example.com", "mx.example.com", evaluator);
+
+        assertEquals(3, evaluator.calls);
+        assertEquals(2, cache.getSize());
+    }
+}
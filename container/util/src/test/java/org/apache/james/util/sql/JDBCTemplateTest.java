@@ -0,0 +1,226 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.apache.james.util.retry.DoublingRetrySchedule;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JDBCTemplateTest {
+
+    private int connections;
+    private int failingConnections;
+    private int closed;
+    private JDBCTemplate template;
+
+    private final JDBCUtil theJDBCUtil = new JDBCUtil() {
+        protected void delegatedLog(String errorString) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        connections = 0;
+        failingConnections = 0;
+        closed = 0;
+        DataSource dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getConnection")) {
+                    if (failingConnections > 0) {
+                        failingConnections--;
+                        throw new SQLTransientConnectionException("no connection");
+                    }
+                    connections++;
+                    return newConnection();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        template = new JDBCTemplate(dataSource, theJDBCUtil);
+        template.setRetrySchedule(new DoublingRetrySchedule(0, 0));
+    }
+
+    private Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("close")) {
+                    closed++;
+                    return null;
+                } else if (method.getName().equals("getAutoCommit")) {
+                    return true;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testTransientErrorsAreRetried() throws SQLException {
+        final int[] calls = new int[1];
+        String result = template.execute("test", true, new JDBCTemplate.ConnectionCallback<String>() {
+            public String doInConnection(StatementCache statements) throws SQLException {
+                if (++calls[0] < 3) {
+                    throw new SQLTransientConnectionException("lost");
+                }
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertEquals(3, connections);
+        assertEquals(3, closed);
+        assertEquals(2, template.getTotalRetries());
+        assertEquals(3, template.getTotalQueries());
+        assertEquals(2, template.getTotalErrors());
+    }
+
+    @Test
+    public void testLostConnectionIsNotRetriedForWrites() {
+        try {
+            template.execute("test", new JDBCTemplate.ConnectionCallback<String>() {
+                public String doInConnection(StatementCache statements) throws SQLException {
+                    // the insert may have been committed before the connection broke
+                    throw new SQLTransientConnectionException("lost");
+                }
+            });
+            fail("Exception expected");
+        } catch (SQLException e) {
+            assertTrue(e instanceof SQLTransientConnectionException);
+        }
+        assertEquals(1, connections);
+        assertEquals(0, template.getTotalRetries());
+    }
+
+    @Test
+    public void testMissingConnectionIsRetriedForWrites() throws SQLException {
+        failingConnections = 2;
+        String result = template.execute("test", new JDBCTemplate.ConnectionCallback<String>() {
+            public String doInConnection(StatementCache statements) throws SQLException {
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertEquals(1, connections);
+        assertEquals(2, template.getTotalRetries());
+    }
+
+    @Test
+    public void testRollbackIsRetriedForWrites() throws SQLException {
+        final int[] calls = new int[1];
+        String result = template.execute("test", new JDBCTemplate.ConnectionCallback<String>() {
+            public String doInConnection(StatementCache statements) throws SQLException {
+                if (++calls[0] < 2) {
+                    throw new SQLException("deadlock", "40001");
+                }
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertEquals(2, connections);
+        assertEquals(1, template.getTotalRetries());
+    }
+
+    @Test
+    public void testPermanentErrorsAreNotRetried() {
+        try {
+            template.execute("test", new JDBCTemplate.ConnectionCallback<String>() {
+                public String doInConnection(StatementCache statements) throws SQLException {
+                    throw new SQLException("syntax error", "42000");
+                }
+            });
+            fail("Exception expected");
+        } catch (SQLException e) {
+            assertEquals("42000", e.getSQLState());
+        }
+        assertEquals(1, connections);
+        assertEquals(1, closed);
+        assertEquals(0, template.getTotalRetries());
+    }
+
+    @Test
+    public void testRetriesAreBounded() {
+        template.setMaxRetries(1);
+        try {
+            template.execute("test", new JDBCTemplate.ConnectionCallback<String>() {
+                public String doInConnection(StatementCache statements) throws SQLException {
+                    throw new SQLException("deadlock", "40001");
+                }
+            });
+            fail("Exception expected");
+        } catch (SQLException e) {
+            assertEquals("40001", e.getSQLState());
+        }
+        assertEquals(2, connections);
+    }
+
+    @Test
+    public void testIsTransient() {
+        assertTrue(JDBCTemplate.isTransient(new SQLTransientConnectionException()));
+        assertTrue(JDBCTemplate.isTransient(new SQLException("connection failure", "08006")));
+        assertFalse(JDBCTemplate.isTransient(new SQLException("constraint violation", "23505")));
+        assertFalse(JDBCTemplate.isTransient(new SQLException("no state")));
+
+        SQLException chained = new SQLException("batch failed", "HY000");
+        chained.setNextException(new SQLException("deadlock", "40P01"));
+        assertTrue(JDBCTemplate.isTransient(chained));
+    }
+
+    @Test
+    public void testIsRolledBack() {
+        assertTrue(JDBCTemplate.isRolledBack(new SQLException("serialization failure", "40001")));
+        assertFalse(JDBCTemplate.isRolledBack(new SQLTransientConnectionException()));
+        assertFalse(JDBCTemplate.isRolledBack(new SQLException("connection failure", "08006")));
+    }
+
+    @Test
+    public void testTemplatesWithTheSameName() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName first = new ObjectName("org.apache.james:type=component,component=jdbc,name=templatetest");
+        ObjectName second = new ObjectName("org.apache.james:type=component,component=jdbc,name=templatetest-2");
+        JDBCTemplate template1 = new JDBCTemplate(null, theJDBCUtil, "templatetest");
+        JDBCTemplate template2 = new JDBCTemplate(null, theJDBCUtil, "templatetest");
+        try {
+            assertTrue(mbeanServer.isRegistered(first));
+            assertTrue(mbeanServer.isRegistered(second));
+        } finally {
+            template2.dispose();
+        }
+        // disposing one template leaves the statistics of the other
+        assertTrue(mbeanServer.isRegistered(first));
+        assertFalse(mbeanServer.isRegistered(second));
+        template1.dispose();
+        assertFalse(mbeanServer.isRegistered(first));
+    }
+}
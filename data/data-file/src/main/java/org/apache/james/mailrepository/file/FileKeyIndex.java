@@ -0,0 +1,242 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Journal of the keys stored in a {@link FileMailRepository}, so that the
+ * repository does not need to enumerate its directory on startup.
+ * <p>
+ * Every record is an operation byte followed by the key written with
+ * {@link DataOutputStream#writeUTF(String)}. A key is journaled and synced to
+ * the disk before its files are written, and its removal after its files are
+ * deleted, so a crash can only leave keys without files behind, which the
+ * repository cleans up when they are retrieved. A torn record at the end of
+ * the journal means that it was not written completely, so it is not used
+ * and the repository rebuilds it from its directory.
+ */
+class FileKeyIndex {
+
+    private static final int MAGIC = 0x4b494458; // "KIDX"
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static final byte ADD = '+';
+
+    private static final byte REMOVE = '-';
+
+    /**
+     * Minimum number of records before the journal is compacted
+     */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private final File file;
+
+    private FileOutputStream fileOut;
+
+    private DataOutputStream out;
+
+    private int records;
+
+    private int live;
+
+    FileKeyIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the journal into the given set and open it for appending.
+     * 
+     * @param keys
+     *            the set to fill
+     * @return false if there is no usable journal or its last record is
+     *         torn, in which case the set is left empty and
+     *         {@link #rewrite(Collection)} must be called
+     */
+    synchronized boolean load(Set<String> keys) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        long valid = 0;
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            valid = HEADER_LENGTH;
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (op == ADD) {
+                    keys.add(key);
+                } else if (op == REMOVE) {
+                    keys.remove(key);
+                } else {
+                    throw new IOException("Corrupt key index " + file);
+                }
+                valid += 1 + 2 + utfLength(key);
+                count++;
+            }
+        } catch (EOFException e) {
+            // torn record, the journal is not used below
+        } catch (UTFDataFormatException e) {
+            // torn record, the journal is not used below
+        } catch (IOException e) {
+            keys.clear();
+            throw e;
+        } finally {
+            in.close();
+        }
+        if (valid == 0 || valid < file.length()) {
+            keys.clear();
+            return false;
+        }
+        records = count;
+        live = keys.size();
+        if (records > COMPACT_THRESHOLD && records > 2 * live) {
+            rewrite(keys);
+        } else {
+            open();
+        }
+        return true;
+    }
+
+    /**
+     * Replace the journal by one holding exactly the given keys.
+     */
+    synchronized void rewrite(Collection<String> keys) throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpFileOut = new FileOutputStream(tmp);
+        DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFileOut));
+        try {
+            tmpOut.writeInt(MAGIC);
+            for (String key : keys) {
+                tmpOut.write(ADD);
+                tmpOut.writeUTF(key);
+            }
+            tmpOut.flush();
+            tmpFileOut.getFD().sync();
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows does not allow renaming over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+        records = keys.size();
+        live = records;
+        open();
+    }
+
+    synchronized void add(String key) throws IOException {
+        write(ADD, key);
+        live++;
+    }
+
+    synchronized void remove(String key) throws IOException {
+        write(REMOVE, key);
+        live--;
+    }
+
+    /**
+     * @return true if the journal holds many more records than live keys
+     */
+    synchronized boolean needsCompaction() {
+        return records > COMPACT_THRESHOLD && records > 2 * live;
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                fileOut = null;
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * Delete the journal, forcing the next startup to enumerate the
+     * repository.
+     */
+    synchronized void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore, the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    private void write(byte op, String key) throws IOException {
+        if (out == null) {
+            throw new IOException("Key index " + file + " is not open");
+        }
+        out.write(op);
+        out.writeUTF(key);
+        out.flush();
+        if (op == ADD) {
+            // the files of the key are written next, the record must not get
+            // lost if they survive a power loss
+            fileOut.getFD().sync();
+        }
+        records++;
+    }
+
+    private static int utfLength(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
@@ -34,6 +34,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -42,6 +43,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>
@@ -58,17 +60,30 @@ import java.util.Set;
  * <p/>
  * Requires a logger called MailRepository.
  * </p>
+ * <p>
+ * The files can be spread over <code>DIRECTORYLEVELS</code> (0 by default)
+ * levels of hashed sub directories. Existing files are moved when the number of
+ * levels changes. When keys are cached (<code>CACHEKEYS</code>) they are also
+ * journaled to a key index file, so that startup does not need to enumerate
+ * the repository. The key index file is deleted while it is not maintained,
+ * and deleting it forces a full scan, which also removes incomplete messages,
+ * on the next startup.
+ * </p>
  */
 public class FileMailRepository extends AbstractMailRepository {
 
     private FilePersistentStreamRepository streamRepository;
     private FilePersistentObjectRepository objectRepository;
+    private static final String KEY_INDEX_NAME = "Repository.keys";
+
     private String destination;
-    private Set keys;
-    private final Object lock = new Object();
+    private Set<String> keys;
     private boolean fifo;
     private boolean cacheKeys; // experimental: for use with write mostly
     // repositories such as spam and error
+    private boolean useKeyIndex;
+    private int directoryLevels;
+    private FileKeyIndex keyIndex;
     private FileSystem fileSystem;
 
     @Inject
@@ -85,6 +100,8 @@ public class FileMailRepository extends AbstractMailRepository {
         }
         fifo = config.getBoolean("[@FIFO]", false);
         cacheKeys = config.getBoolean("[@CACHEKEYS]", true);
+        useKeyIndex = config.getBoolean("[@KEYINDEX]", true);
+        directoryLevels = config.getInt("[@DIRECTORYLEVELS]", 0);
         // ignore model
     }
 
@@ -94,6 +111,7 @@ public class FileMailRepository extends AbstractMailRepository {
             DefaultConfigurationBuilder reposConfiguration = new DefaultConfigurationBuilder();
 
             reposConfiguration.addProperty("[@destinationURL]", destination);
+            reposConfiguration.addProperty("[@directoryLevels]", directoryLevels);
             objectRepository = new FilePersistentObjectRepository();
             objectRepository.setLog(getLogger());
             objectRepository.setFileSystem(fileSystem);
@@ -107,7 +125,21 @@ public class FileMailRepository extends AbstractMailRepository {
             streamRepository.init();
 
             if (cacheKeys)
-                keys = Collections.synchronizedSet(new HashSet());
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+            if (keys != null && useKeyIndex) {
+                if (loadKeyIndex()) {
+                    if (getLogger().isDebugEnabled()) {
+                        String logBuffer = getClass().getName() + " loaded " + keys.size() + " keys from index in " + destination;
+                        getLogger().debug(logBuffer);
+                    }
+                    return;
+                }
+            } else {
+                // Mails stored from now on are not journaled, so an index left
+                // behind would hide them once it gets enabled again
+                new FileKeyIndex(getKeyIndexFile()).delete();
+            }
 
             // Finds non-matching pairs and deletes the extra files
             HashSet streamKeys = new HashSet();
@@ -137,9 +169,14 @@ public class FileMailRepository extends AbstractMailRepository {
                 // Next get a list from the object repository
                 // and use that for the list of keys
                 keys.clear();
-                for (Iterator i = objectRepository.list(); i.hasNext(); ) {
+                for (Iterator<String> i = objectRepository.list(); i.hasNext(); ) {
                     keys.add(i.next());
                 }
+                if (useKeyIndex) {
+                    FileKeyIndex index = new FileKeyIndex(getKeyIndexFile());
+                    index.rewrite(keys);
+                    keyIndex = index;
+                }
             }
             if (getLogger().isDebugEnabled()) {
                 String logBuffer = getClass().getName() + " created in " + destination;
@@ -152,11 +189,76 @@ public class FileMailRepository extends AbstractMailRepository {
         }
     }
 
+    private File getKeyIndexFile() throws IOException {
+        return new File(fileSystem.getFile(destination), KEY_INDEX_NAME);
+    }
+
+    /**
+     * Load the cached keys from the key index
+     * 
+     * @return true if the index was usable
+     */
+    private boolean loadKeyIndex() {
+        FileKeyIndex index = null;
+        try {
+            index = new FileKeyIndex(getKeyIndexFile());
+            if (index.load(keys)) {
+                keyIndex = index;
+                return true;
+            }
+        } catch (IOException e) {
+            getLogger().warn("Unable to read key index of " + destination + ", scanning the repository", e);
+            keys.clear();
+            if (index != null) {
+                index.delete();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Journal a new key, falling back to a full scan on the next startup if
+     * the key index can not be written.
+     */
+    private void addToKeyIndex(String key) {
+        FileKeyIndex index = keyIndex;
+        if (index != null) {
+            try {
+                index.add(key);
+            } catch (IOException e) {
+                disableKeyIndex(e);
+            }
+        }
+    }
+
+    private void removeFromKeyIndex(String key) {
+        FileKeyIndex index = keyIndex;
+        if (index != null) {
+            try {
+                index.remove(key);
+                if (index.needsCompaction()) {
+                    index.rewrite(keys);
+                }
+            } catch (IOException e) {
+                disableKeyIndex(e);
+            }
+        }
+    }
+
+    private synchronized void disableKeyIndex(IOException e) {
+        if (keyIndex != null) {
+            getLogger().warn("Unable to update key index of " + destination + ", disabling it", e);
+            keyIndex.delete();
+            keyIndex = null;
+        }
+    }
+
     @Override
     protected void internalStore(Mail mc) throws MessagingException, IOException {
         String key = mc.getName();
-        if (keys != null && !keys.contains(key)) {
-            keys.add(key);
+        if (keys != null && keys.add(key)) {
+            // Journal the key before writing the files, see FileKeyIndex
+            addToKeyIndex(key);
         }
         boolean saveStream = true;
         boolean update = true;
@@ -248,29 +350,32 @@ public class FileMailRepository extends AbstractMailRepository {
 
     @Override
     protected void internalRemove(String key) throws MessagingException {
-        if (keys != null)
-            keys.remove(key);
         streamRepository.remove(key);
         objectRepository.remove(key);
+        if (keys != null && keys.remove(key)) {
+            removeFromKeyIndex(key);
+        }
     }
 
     @Override
-    public Iterator list() {
-        // Fix ConcurrentModificationException by cloning
-        // the keyset before getting an iterator
-        final ArrayList clone;
-        if (keys != null)
-            synchronized (lock) {
-                clone = new ArrayList(keys);
-            }
-        else {
-            clone = new ArrayList();
-            for (Iterator i = objectRepository.list(); i.hasNext(); ) {
-                clone.add(i.next());
-            }
+    public Iterator<String> list() {
+        final Iterator<String> iterator;
+        if (keys != null) {
+            // The concurrent set iterates without
+            // ConcurrentModificationException, no need to clone it
+            iterator = Collections.unmodifiableSet(keys).iterator();
+        } else {
+            // Reads the repository one directory at a time
+            iterator = objectRepository.list();
+        }
+        if (!fifo) {
+            return iterator;
+        }
+        final ArrayList<String> clone = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            clone.add(iterator.next());
         }
-        if (fifo)
-            Collections.sort(clone); // Keys is a HashSet; impose FIFO for apps
+        Collections.sort(clone); // Keys are unordered; impose FIFO for apps
         // that need it
         return clone.iterator();
     }
@@ -0,0 +1,264 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte offset table of the messages of an mbox file, persisted in a sidecar
+ * file next to the mbox.
+ * <p>
+ * The index remembers the length and modification time of the mbox file it
+ * was built for, and is discarded as soon as one of them differs. New entries
+ * can be appended to the sidecar file without rewriting it.
+ * </p>
+ * <p>
+ * Sidecar file layout: magic, version, mbox length, mbox modification time,
+ * followed by one (key, offset, length) record per message in file order.
+ * </p>
+ */
+class MBoxIndex {
+
+    private static final int MAGIC = 0x4d424958; // "MBIX"
+
+    private static final int VERSION = 1;
+
+    /**
+     * Offset of the mbox length in the sidecar file
+     */
+    private static final int STATE_OFFSET = 8;
+
+    /**
+     * A message of the mbox file
+     */
+    static class Entry {
+        final String key;
+        final long offset;
+        final long length;
+
+        Entry(String key, long offset, long length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * All messages, in file order, including duplicates
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * The last message of each key
+     */
+    private final Map<String, Entry> byKey = new HashMap<String, Entry>();
+
+    private long mboxLength;
+
+    private long mboxLastModified;
+
+    /**
+     * Creates an empty index for the current state of the given mbox file.
+     */
+    MBoxIndex(File mbox) {
+        setFileState(mbox);
+    }
+
+    private MBoxIndex(long mboxLength, long mboxLastModified) {
+        this.mboxLength = mboxLength;
+        this.mboxLastModified = mboxLastModified;
+    }
+
+    /**
+     * Records the current length and modification time of the mbox file.
+     */
+    void setFileState(File mbox) {
+        mboxLength = mbox.length();
+        mboxLastModified = mbox.lastModified();
+    }
+
+    /**
+     * @return true if the mbox file did not change since the index was built
+     */
+    boolean isValidFor(File mbox) {
+        return mbox.length() == mboxLength && mbox.lastModified() == mboxLastModified;
+    }
+
+    long getMBoxLength() {
+        return mboxLength;
+    }
+
+    void add(String key, long offset, long length) {
+        Entry entry = new Entry(key, offset, length);
+        entries.add(entry);
+        byKey.put(key, entry);
+    }
+
+    Entry get(String key) {
+        return byKey.get(key);
+    }
+
+    boolean containsKey(String key) {
+        return byKey.containsKey(key);
+    }
+
+    /**
+     * @return the messages in file order
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the distinct keys, in file order
+     */
+    List<String> getKeys() {
+        LinkedHashSet<String> keys = new LinkedHashSet<String>(entries.size());
+        for (Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        return new ArrayList<String>(keys);
+    }
+
+    int size() {
+        return byKey.size();
+    }
+
+    /**
+     * Loads the index from the sidecar file.
+     * 
+     * @return the index, or null if it is missing, unreadable or does not
+     *         match the current state of the mbox file
+     */
+    static MBoxIndex load(File indexFile, File mbox) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            MBoxIndex index = new MBoxIndex(in.readLong(), in.readLong());
+            if (!index.isValidFor(mbox)) {
+                return null;
+            }
+            long end = indexFile.length();
+            long read = STATE_OFFSET + 16;
+            while (read < end) {
+                String key = in.readUTF();
+                long offset = in.readLong();
+                long length = in.readLong();
+                index.add(key, offset, length);
+                // modified UTF-8 of the ascii key: 2 bytes length + 1 byte per
+                // char
+                read += 2 + key.length() + 16;
+            }
+            return index;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the whole index to the sidecar file, replacing it atomically.
+     */
+    void save(File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mboxLength);
+            out.writeLong(mboxLastModified);
+            for (Entry entry : entries) {
+                writeEntry(out, entry);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to delete file " + indexFile);
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Failed to rename file " + tmp + " -> " + indexFile);
+        }
+    }
+
+    /**
+     * Appends the given entries, which must already be part of this index, to
+     * the sidecar file and records the current mbox state in its header. The
+     * sidecar file must have been written for the previous state of this
+     * index.
+     */
+    void append(File indexFile, List<Entry> added) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        for (Entry entry : added) {
+            writeEntry(out, entry);
+        }
+        out.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(records.toByteArray());
+            raf.seek(STATE_OFFSET);
+            raf.writeLong(mboxLength);
+            raf.writeLong(mboxLastModified);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.key);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.length);
+    }
+
+    private static void close(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an mbox file line by line as raw bytes, keeping track of the byte
+ * offset of every line. Line terminators (<code>\n</code> or
+ * <code>\r\n</code>) are not part of the returned line.
+ * <p>
+ * The wrapped stream should be buffered.
+ * </p>
+ */
+class MBoxLineReader {
+
+    private final InputStream in;
+
+    private byte[] line = new byte[256];
+
+    private int length;
+
+    private long position;
+
+    private long lineStart;
+
+    /**
+     * @param in
+     *            the stream to read from
+     * @param position
+     *            the offset of the first byte of the stream in the mbox file
+     */
+    MBoxLineReader(InputStream in, long position) {
+        this.in = in;
+        this.position = position;
+    }
+
+    /**
+     * Reads the next line.
+     * 
+     * @return false if the end of the stream was reached before any byte of a
+     *         new line could be read
+     * @throws IOException
+     */
+    boolean readLine() throws IOException {
+        lineStart = position;
+        length = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            position++;
+            if (c == '\n') {
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+            if (length == line.length) {
+                byte[] newLine = new byte[line.length * 2];
+                System.arraycopy(line, 0, newLine, 0, length);
+                line = newLine;
+            }
+            line[length++] = (byte) c;
+        }
+        return position > lineStart;
+    }
+
+    /**
+     * @return the buffer holding the current line. Only the first
+     *         {@link #getLength()} bytes are valid
+     */
+    byte[] getLine() {
+        return line;
+    }
+
+    /**
+     * @return the length of the current line, without terminator
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offset of the first byte of the current line
+     */
+    long getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the offset of the first byte following the current line
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return true if the current line starts with <code>prefix</code>
+     */
+    boolean startsWith(byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current line decoded as ISO-8859-1
+     */
+    String getLineAsString() {
+        try {
+            return new String(line, 0, length, "ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException e) {
+            // ISO-8859-1 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
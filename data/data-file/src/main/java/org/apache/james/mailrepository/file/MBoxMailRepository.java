@@ -22,35 +22,39 @@
  * 1. Currently, iterating through the message collection does not
  *    preserve the order in the file.  Change this with some form of
  *    OrderedMap.  There is a suitable class in Jakarta Commons
- *    Collections.
+ *    Collections. - DONE, the index keeps the file order.
  *
- * 2. Optimize the remove operation.
+ * 2. Optimize the remove operation. - DONE, single streaming pass.
  *
  * 3. Don't load entire message into memory.  This would mean computing
  *    the hash during I/O streaming, rather than loading entire message
  *    into memory, and using a MimeMessageWrapper with a suitable data
  *    source.  As a strawman, the interface to MessageAction would
  *    carry the hash, along with a size-limited stream providing the
- *    message body.
+ *    message body. - Partially done, the hash is computed while
+ *    scanning, but retrieve still loads the message.
  *
  * 4. Decide what to do when there are IDENTICAL messages in the file.
- *    Right now only the last one will ever be processed, due to key
- *    collissions.
+ *    Right now only the last one will ever be retrieved, due to key
+ *    collissions, but all of them are removed.
  *
  * 5. isComplete()  - DONE.
  *
- * 6. Buffered I/O. - Partially done, and optional.
+ * 6. Buffered I/O. - DONE.
  *
  */
 
 package org.apache.james.mailrepository.file;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -58,12 +62,13 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -101,10 +106,12 @@ import org.slf4j.Logger;
  * <p>
  * Implementation notes:
  * <p>
- * This class keeps an internal store of the mbox file When the internal mbox
- * file is updated (added/deleted) then the file will be re-read from disk and
- * then written back. This is a bit inefficent but means that the file on disk
- * should be correct.
+ * The key and byte range of every message are kept in an index, which is
+ * persisted in a sidecar file (the mbox file name followed by
+ * <code>.index</code>) and discarded whenever the length or the modification
+ * time of the mbox file no longer match. Retrieving a message seeks directly
+ * to its range, storing appends to both the mbox and the index, and removing
+ * copies the retained ranges to a new file in a single pass.
  * <p>
  * The mbox store is mainly meant to be used as a one-way street. Storing new
  * emails is very fast (append to file) whereas reading them (via POP3) is
@@ -118,31 +125,27 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     static final SimpleDateFormat dy = new SimpleDateFormat("EE MMM dd HH:mm:ss yyyy", Locale.US);
     static final String LOCKEXT = ".lock";
     static final String WORKEXT = ".work";
+    static final String INDEXEXT = ".index";
     static final int LOCKSLEEPDELAY = 2000; // 2 second back off in the event of
                                             // a problem with the lock file
     static final int MAXSLEEPTIMES = 100; //
-    static final long MLISTPRESIZEFACTOR = 10 * 1024; // The hash table will be
-                                                      // loaded with a initial
-                                                      // capacity of
-                                                      // filelength/MLISTPRESIZEFACTOR
-    static final long DEFAULTMLISTCAPACITY = 20; // Set up a hashtable to have a
-                                                 // meaningful default
+    static final int BUFFERSIZE = 64 * 1024; // Read buffer used when scanning
+                                             // the mbox file
 
-    /**
-     * Whether line buffering is turned used.
-     */
-    private static boolean BUFFERING = true;
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("^From (.*) (.*):(.*):(.*)$");
+
+    private static final byte[] SEPARATOR_PREFIX = { 'F', 'r', 'o', 'm', ' ' };
 
     /**
-     * Whether 'deep debugging' is turned on.
+     * The index of the messages in the mbox file
      */
-    private static final boolean DEEP_DEBUG = true;
+    private MBoxIndex index = null;
 
     /**
-     * The internal list of the emails The key is an adapted MD5 checksum of the
-     * mail
+     * Whether the sidecar file holds the current index
      */
-    private Hashtable<String, Long> mList = null;
+    private boolean indexPersisted = false;
+
     /**
      * The filename to read & write the mbox from/to
      */
@@ -150,16 +153,6 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
 
     private boolean fifo;
 
-    /**
-     * A callback used when a message is read from the mbox file
-     */
-    public interface MessageAction {
-        boolean isComplete(); // *** Not valid until AFTER each call to
-                              // messageAction(...)!
-
-        MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart);
-    }
-
     private Logger logger;
 
     public void setLog(Logger logger) {
@@ -167,13 +160,8 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     public void configure(HierarchicalConfiguration configuration) throws ConfigurationException {
-        /*
-      The repository configuration
-     */
-        HierarchicalConfiguration configuration1 = configuration;
         String destination;
-        this.mList = null;
-        BUFFERING = configuration.getBoolean("[@BUFFERING]", true);
+        this.index = null;
         fifo = configuration.getBoolean("[@FIFO]", false);
         destination = configuration.getString("[@destinationURL]");
         if (destination.charAt(destination.length() - 1) == '/') {
@@ -202,77 +190,13 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     /**
-     * Convert a MimeMessage into raw text
-     * 
-     * @param mc
-     *            The mime message to convert
-     * @return A string representation of the mime message
-     * @throws IOException
-     * @throws MessagingException
-     */
-    private String getRawMessage(MimeMessage mc) throws IOException, MessagingException {
-
-        ByteArrayOutputStream rawMessage = new ByteArrayOutputStream();
-        mc.writeTo(rawMessage);
-        return rawMessage.toString();
-    }
-
-    /**
-     * Parse a text block as an email and convert it into a mime message
+     * Generate a hex representation of an MD5 checksum
      * 
-     * @param emailBody
-     *            The headers and body of an email. This will be parsed into a
-     *            mime message and stored
+     * @param digArray
+     *            the checksum
+     * @return A hex representation of the checksum
      */
-    private MimeMessage convertTextToMimeMessage(String emailBody) {
-        // this.emailBody = emailBody;
-        MimeMessage mimeMessage = null;
-        // Parse the mime message as we have the full message now (in string
-        // format)
-        ByteArrayInputStream mb = new ByteArrayInputStream(emailBody.getBytes());
-        Properties props = System.getProperties();
-        Session session = Session.getDefaultInstance(props);
-        try {
-            mimeMessage = new MimeMessage(session, mb);
-
-        } catch (MessagingException e) {
-            getLogger().error("Unable to parse mime message!", e);
-        }
-
-        if (mimeMessage == null && getLogger().isDebugEnabled()) {
-            String logBuffer = this.getClass().getName() + " Mime message is null";
-            getLogger().debug(logBuffer);
-        }
-
-        /*
-         * String toAddr = null; try { // Attempt to read the TO field and see
-         * if it errors toAddr =
-         * mimeMessage.getRecipients(javax.mail.Message.RecipientType
-         * .TO).toString(); } catch (Exception e) { // It has errored, so time
-         * for plan B // use the from field I suppose try {
-         * mimeMessage.setRecipients(javax.mail.Message.RecipientType.TO,
-         * mimeMessage.getFrom()); if (getLogger().isDebugEnabled()) {
-         * StringBuffer logBuffer = new StringBuffer(128)
-         * .append(this.getClass().getName())
-         * .append(" Patching To: field for message ")
-         * .append(" with  From: field");
-         * getLogger().debug(logBuffer.toString()); } } catch
-         * (MessagingException e1) {
-         * getLogger().error("Unable to set to: field to from: field", e); } }
-         */
-        return mimeMessage;
-    }
-
-    /**
-     * Generate a hex representation of an MD5 checksum on the emailbody
-     * 
-     * @param emailBody
-     * @return A hex representation of the text
-     * @throws NoSuchAlgorithmException
-     */
-    private String generateKeyValue(String emailBody) throws NoSuchAlgorithmException {
-        // MD5 the email body for a reilable (ha ha) key
-        byte[] digArray = MessageDigest.getInstance("MD5").digest(emailBody.getBytes());
+    private String generateKeyValue(byte[] digArray) {
         StringBuilder digest = new StringBuilder();
         for (byte aDigArray : digArray) {
             digest.append(Integer.toString(aDigArray, Character.MAX_RADIX).toUpperCase(Locale.US));
@@ -281,114 +205,61 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     /**
-     * Parse the mbox file.
+     * @return true if the current line of the reader is a message separator
+     */
+    private boolean isSeparator(MBoxLineReader reader) {
+        return reader.startsWith(SEPARATOR_PREFIX) && SEPARATOR_PATTERN.matcher(reader.getLineAsString()).matches();
+    }
+
+    /**
+     * Scan the mbox file from the given offset to its end, and add every
+     * message found to the index. The key of a message is the MD5 checksum of
+     * the lines following its separator, each terminated by a single LF.
      * 
      * @param ins
-     *            The random access file to load. Note that the file may or may
-     *            not start at offset 0 in the file
-     * @param messAct
-     *            The action to take when a message is found
+     *            The mbox file. The offset must be the start of a line
+     * @param start
+     *            The offset to start scanning at
+     * @param target
+     *            The index to add the messages to
      */
-    private MimeMessage parseMboxFile(RandomAccessFile ins, MessageAction messAct) {
+    private void scan(RandomAccessFile ins, long start, MBoxIndex target) throws IOException, NoSuchAlgorithmException {
         if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Start parsing " + mboxFile;
+            String logBuffer = this.getClass().getName() + " Start parsing " + mboxFile + " at offset " + start;
 
             getLogger().debug(logBuffer);
         }
-        try {
-
-            Pattern sepMatchPattern = Pattern.compile("^From (.*) (.*):(.*):(.*)$");
-
-            int c;
-            boolean inMessage = false;
-            StringBuffer messageBuffer = new StringBuffer();
-            String previousMessageSeparator = null;
-            boolean foundSep;
-
-            long prevMessageStart = ins.getFilePointer();
-            if (BUFFERING) {
-                String line;
-                while ((line = ins.readLine()) != null) {
-                    foundSep = sepMatchPattern.matcher(line).matches();
-
-                    if (foundSep && inMessage) {
-                        // if ((DEEP_DEBUG) && (getLogger().isDebugEnabled())) {
-                        // getLogger().debug(this.getClass().getName() +
-                        // " Invoking " + messAct.getClass() + " at " +
-                        // prevMessageStart);
-                        // }
-                        MimeMessage endResult = messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-                        if (messAct.isComplete()) {
-                            // I've got what I want so just exit
-                            return endResult;
-                        }
-                        previousMessageSeparator = line;
-                        prevMessageStart = ins.getFilePointer() - line.length();
-                        messageBuffer = new StringBuffer();
-                        inMessage = true;
-                    }
-                    // Only done at the start (first header)
-                    if (foundSep && !inMessage) {
-                        previousMessageSeparator = line;
-                        inMessage = true;
-                    }
-                    if (!foundSep && inMessage) {
-                        messageBuffer.append(line).append("\n");
-                    }
-                }
-            } else {
-                StringBuffer line = new StringBuffer();
-                while ((c = ins.read()) != -1) {
-                    if (c == 10) {
-                        foundSep = sepMatchPattern.matcher(line).matches();
-                        if (foundSep && inMessage) {
-                            // if ((DEEP_DEBUG) &&
-                            // (getLogger().isDebugEnabled())) {
-                            // getLogger().debug(this.getClass().getName() +
-                            // " Invoking " + messAct.getClass() + " at " +
-                            // prevMessageStart);
-                            // }
-                            MimeMessage endResult = messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-                            if (messAct.isComplete()) {
-                                // I've got what I want so just exit
-                                return endResult;
-                            }
-                            previousMessageSeparator = line.toString();
-                            prevMessageStart = ins.getFilePointer() - line.length();
-                            messageBuffer = new StringBuffer();
-                            inMessage = true;
-                        }
-                        // Only done at the start (first header)
-                        if (foundSep && !inMessage) {
-                            previousMessageSeparator = line.toString();
-                            inMessage = true;
-                        }
-                        if (!foundSep) {
-                            messageBuffer.append(line).append((char) c);
-                        }
-                        line = new StringBuffer(); // Reset buffer
-                    } else {
-                        line.append((char) c);
-                    }
+        FileChannel channel = ins.getChannel();
+        channel.position(start);
+        MBoxLineReader reader = new MBoxLineReader(new BufferedInputStream(Channels.newInputStream(channel), BUFFERSIZE), start);
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        long messageStart = -1;
+        while (reader.readLine()) {
+            if (isSeparator(reader)) {
+                if (messageStart >= 0) {
+                    addToIndex(target, generateKeyValue(digest.digest()), messageStart, reader.getLineStart() - messageStart);
                 }
+                messageStart = reader.getLineStart();
+            } else if (messageStart >= 0) {
+                digest.update(reader.getLine(), 0, reader.getLength());
+                digest.update((byte) '\n');
             }
+        }
+        if (messageStart >= 0) {
+            addToIndex(target, generateKeyValue(digest.digest()), messageStart, reader.getPosition() - messageStart);
+        }
+        if ((getLogger().isDebugEnabled())) {
+            String logBuffer = this.getClass().getName() + " Finished parsing " + mboxFile;
 
-            if (messageBuffer.length() != 0) {
-                // process last message
-                return messAct.messageAction(previousMessageSeparator, messageBuffer.toString(), prevMessageStart);
-            }
-        } catch (IOException ioEx) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, ioEx);
-        } catch (PatternSyntaxException e) {
-            getLogger().error("Bad regex passed " + mboxFile, e);
-        } finally {
-            if ((getLogger().isDebugEnabled())) {
-                String logBuffer = this.getClass().getName() + " Finished parsing " + mboxFile;
+            getLogger().debug(logBuffer);
+        }
+    }
 
-                getLogger().debug(logBuffer);
-            }
+    private void addToIndex(MBoxIndex target, String key, long offset, long length) {
+        target.add(key, offset, length);
+        if ((getLogger().isDebugEnabled())) {
+            getLogger().debug(this.getClass().getName() + " Key " + key + " at " + offset);
         }
-        return null;
     }
 
     /**
@@ -400,17 +271,18 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
      * @param key
      *            The key of the message to find
      */
-    private MimeMessage findMessage(String key) {
+    private synchronized MimeMessage findMessage(String key) {
         MimeMessage foundMessage;
 
-        // See if we can get the message by using the cache position first
+        loadKeys();
+        // See if we can get the message by using the index first
         foundMessage = selectMessage(key);
-        if (foundMessage == null) {
+        if (foundMessage == null && index.containsKey(key)) {
             // If the message is not found something has changed from
-            // the cache. The cache may have been invalidated by
-            // another method, or the file may have been replaced from
-            // underneath us. Reload the cache, and try again.
-            mList = null;
+            // the index, even though the file looks the same. Rebuild
+            // the index, and try again.
+            index = null;
+            new File(mboxFile + INDEXEXT).delete();
             loadKeys();
             foundMessage = selectMessage(key);
         }
@@ -426,50 +298,47 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     private MimeMessage selectMessage(final String key) {
         MimeMessage foundMessage = null;
         // Can we find the key first
-        if (mList == null || !mList.containsKey(key)) {
+        MBoxIndex.Entry entry = (index == null) ? null : index.get(key);
+        if (entry == null) {
             // Not initiailised so no point looking
             if ((getLogger().isDebugEnabled())) {
-                String logBuffer = this.getClass().getName() + " mList - key not found " + mboxFile;
+                String logBuffer = this.getClass().getName() + " index - key not found " + mboxFile;
 
                 getLogger().debug(logBuffer);
             }
             return foundMessage;
         }
-        long messageStart = mList.get(key);
         if ((getLogger().isDebugEnabled())) {
-            String logBuffer = this.getClass().getName() + " Load message starting at offset " + messageStart + " from file " + mboxFile;
+            String logBuffer = this.getClass().getName() + " Load message starting at offset " + entry.offset + " from file " + mboxFile;
 
             getLogger().debug(logBuffer);
         }
-        // Now try and find the position in the file
+        // Now read the message range
         RandomAccessFile ins = null;
         try {
             ins = new RandomAccessFile(mboxFile, "r");
-            if (messageStart != 0) {
-                ins.seek(messageStart - 1);
-            }
-            MessageAction op = new MessageAction() {
-                public boolean isComplete() {
-                    return true;
+            FileChannel channel = ins.getChannel();
+            channel.position(entry.offset);
+            long end = entry.offset + entry.length;
+            MBoxLineReader reader = new MBoxLineReader(new BufferedInputStream(Channels.newInputStream(channel), (int) Math.min(BUFFERSIZE, Math.max(entry.length, 1))), entry.offset);
+            if (reader.readLine() && isSeparator(reader)) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(entry.length, Integer.MAX_VALUE));
+                while (reader.getPosition() < end && reader.readLine()) {
+                    body.write(reader.getLine(), 0, reader.getLength());
+                    body.write('\n');
                 }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    try {
-                        if (key.equals(generateKeyValue(bodyText))) {
-                            getLogger().debug(this.getClass().getName() + " Located message. Returning MIME message");
-                            return convertTextToMimeMessage(bodyText);
-                        }
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
-                    }
-                    return null;
+                byte[] bodyBytes = body.toByteArray();
+                if (key.equals(generateKeyValue(MessageDigest.getInstance("MD5").digest(bodyBytes)))) {
+                    getLogger().debug(this.getClass().getName() + " Located message. Returning MIME message");
+                    foundMessage = convertToMimeMessage(bodyBytes);
                 }
-            };
-            foundMessage = this.parseMboxFile(ins, op);
+            }
         } catch (FileNotFoundException e) {
             getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
         } catch (IOException e) {
             getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+        } catch (NoSuchAlgorithmException e) {
+            getLogger().error("MD5 not supported! ", e);
         } finally {
             if (foundMessage == null) {
                 if ((getLogger().isDebugEnabled())) {
@@ -489,48 +358,63 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     }
 
     /**
-     * Load the message keys and file pointer offsets from disk
+     * Parse the headers and body of an email into a mime message
+     * 
+     * @param emailBody
+     *            The raw headers and body of an email
+     */
+    private MimeMessage convertToMimeMessage(byte[] emailBody) {
+        MimeMessage mimeMessage = null;
+        Properties props = System.getProperties();
+        Session session = Session.getDefaultInstance(props);
+        try {
+            mimeMessage = new MimeMessage(session, new ByteArrayInputStream(emailBody));
+        } catch (MessagingException e) {
+            getLogger().error("Unable to parse mime message!", e);
+        }
+
+        if (mimeMessage == null && getLogger().isDebugEnabled()) {
+            String logBuffer = this.getClass().getName() + " Mime message is null";
+            getLogger().debug(logBuffer);
+        }
+        return mimeMessage;
+    }
+
+    /**
+     * Load the message keys and file pointer offsets, from the sidecar index
+     * file if it is still valid, by scanning the mbox file otherwise
      */
     private synchronized void loadKeys() {
-        if (mList != null) {
+        File mbox = new File(mboxFile);
+        if (index != null && index.isValidFor(mbox)) {
             return;
         }
+        File indexFile = new File(mboxFile + INDEXEXT);
+        index = MBoxIndex.load(indexFile, mbox);
+        if (index != null) {
+            indexPersisted = true;
+            if ((getLogger().isDebugEnabled())) {
+                getLogger().debug(this.getClass().getName() + " Loaded " + index.size() + " keys from " + indexFile);
+            }
+            return;
+        }
+
+        // The state is recorded before scanning, so changes made while
+        // scanning invalidate the index
+        MBoxIndex newIndex = new MBoxIndex(mbox);
+        index = newIndex;
+        indexPersisted = false;
         RandomAccessFile ins = null;
         try {
             ins = new RandomAccessFile(mboxFile, "r");
-            long initialCapacity = (ins.length() > MLISTPRESIZEFACTOR ? ins.length() / MLISTPRESIZEFACTOR : 0);
-            if (initialCapacity < DEFAULTMLISTCAPACITY) {
-                initialCapacity = DEFAULTMLISTCAPACITY;
-            }
-            if (initialCapacity > Integer.MAX_VALUE) {
-                initialCapacity = Integer.MAX_VALUE - 1;
-            }
-            this.mList = new Hashtable<String, Long>((int) initialCapacity);
-            this.parseMboxFile(ins, new MessageAction() {
-                public boolean isComplete() {
-                    return false;
-                }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    try {
-                        String key = generateKeyValue(bodyText);
-                        mList.put(key, messageStart);
-                        if ((getLogger().isDebugEnabled())) {
-                            getLogger().debug(this.getClass().getName() + " Key " + key + " at " + messageStart);
-                        }
-
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
-                    }
-                    return null;
-                }
-            });
-            // System.out.println("Done Load keys!");
+            scan(ins, 0, newIndex);
+            saveIndex();
         } catch (FileNotFoundException e) {
             getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
-            this.mList = new Hashtable<String, Long>((int) DEFAULTMLISTCAPACITY);
         } catch (IOException e) {
             getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+        } catch (NoSuchAlgorithmException e) {
+            getLogger().error("MD5 not supported! ", e);
         } finally {
             if (ins != null)
                 try {
@@ -541,6 +425,20 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
         }
     }
 
+    /**
+     * Write the whole index to the sidecar file. Failures only cost a rescan
+     * later, so they are logged and ignored.
+     */
+    private void saveIndex() {
+        try {
+            index.save(new File(mboxFile + INDEXEXT));
+            indexPersisted = true;
+        } catch (IOException e) {
+            indexPersisted = false;
+            getLogger().warn("Unable to write index file for " + mboxFile, e);
+        }
+    }
+
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#store(Mail)
      */
@@ -551,12 +449,11 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
 
             getLogger().debug(logBuffer);
         }
-        this.mList = null;
         // Now make up the from header
-        String fromHeader = null;
-        String message = null;
+        String fromHeader;
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
         try {
-            message = getRawMessage(mc.getMessage());
+            mc.getMessage().writeTo(message);
             // check for nullsender
             if (mc.getMessage().getFrom() == null) {
                 fromHeader = "From   " + dy.format(Calendar.getInstance().getTime());
@@ -566,46 +463,90 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
 
         } catch (IOException e) {
             getLogger().error("Unable to parse mime message for " + mboxFile, e);
+            return;
         } catch (MessagingException e) {
             getLogger().error("Unable to parse mime message for " + mboxFile, e);
+            return;
         }
         // And save only the new stuff to disk
-        RandomAccessFile saveFile;
-        try {
-            saveFile = new RandomAccessFile(mboxFile, "rw");
-            saveFile.seek(saveFile.length()); // Move to the end
-            saveFile.writeBytes((fromHeader + "\n"));
-            saveFile.writeBytes((message + "\n"));
-            saveFile.close();
+        synchronized (this) {
+            File mbox = new File(mboxFile);
+            boolean updateIndex = index != null && index.isValidFor(mbox);
+            RandomAccessFile saveFile = null;
+            try {
+                saveFile = new RandomAccessFile(mboxFile, "rw");
+                long start = saveFile.length();
+                if (start > 0) {
+                    // The new separator must start a line to be indexed
+                    saveFile.seek(start - 1);
+                    updateIndex = updateIndex && saveFile.read() == '\n';
+                }
+                saveFile.seek(start); // Move to the end
+                saveFile.writeBytes((fromHeader + "\n"));
+                message.write('\n');
+                message.writeTo(new RandomAccessFileOutputStream(saveFile));
+
+                if (updateIndex) {
+                    int previousSize = index.getEntries().size();
+                    scan(saveFile, start, index);
+                    saveFile.close();
+                    saveFile = null;
+                    index.setFileState(mbox);
+                    appendToIndex(new ArrayList<MBoxIndex.Entry>(index.getEntries().subList(previousSize, index.getEntries().size())));
+                }
+            } catch (FileNotFoundException e) {
+                getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
+            } catch (IOException e) {
+                getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            } catch (NoSuchAlgorithmException e) {
+                getLogger().error("MD5 not supported! ", e);
+                index = null;
+            } finally {
+                if (saveFile != null) {
+                    try {
+                        saveFile.close();
+                    } catch (IOException e) {
+                        getLogger().error("Unable to close file (General I/O problem) " + mboxFile, e);
+                    }
+                }
+            }
+        }
+    }
 
-        } catch (FileNotFoundException e) {
-            getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
+    /**
+     * Append new entries to the sidecar file, or rewrite it if it is not known
+     * to hold the previous state of the index.
+     */
+    private void appendToIndex(List<MBoxIndex.Entry> added) {
+        if (!indexPersisted) {
+            saveIndex();
+            return;
+        }
+        try {
+            index.append(new File(mboxFile + INDEXEXT), added);
         } catch (IOException e) {
-            getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            getLogger().warn("Unable to update index file for " + mboxFile, e);
+            saveIndex();
         }
     }
 
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#list()
      */
-    public Iterator<String> list() {
+    public synchronized Iterator<String> list() {
         loadKeys();
-        ArrayList<String> keys = new ArrayList<String>(mList.keySet());
+        // The index is validated against the mbox file, so changes made to it
+        // behind our back have been detected by now.
+        List<String> keys = index.getKeys();
 
-        if (!keys.isEmpty()) {
-            // find the first message. This is a trick to make sure that if
-            // the file is changed out from under us, we will detect it and
-            // correct for it BEFORE we return the iterator.
-            findMessage(keys.iterator().next());
-        }
         if ((getLogger().isDebugEnabled())) {
             String logBuffer = this.getClass().getName() + " " + keys.size() + " keys to be iterated over.";
 
             getLogger().debug(logBuffer);
         }
         if (fifo)
-            Collections.sort(keys); // Keys is a HashSet; impose FIFO for apps
-                                    // that need it
+            Collections.sort(keys); // Keys are in file order; impose FIFO for
+                                    // apps that need it
         return keys.iterator();
     }
 
@@ -614,7 +555,6 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
      */
     public Mail retrieve(String key) {
 
-        loadKeys();
         MailImpl res;
 
         MimeMessage foundMessage = findMessage(key);
@@ -692,84 +632,109 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#remove(Collection)
      */
-    public void remove(final Collection<Mail> mails) {
+    public synchronized void remove(final Collection<Mail> mails) {
         if ((getLogger().isDebugEnabled())) {
             String logBuffer = this.getClass().getName() + " Removing entry for key " + mails;
 
             getLogger().debug(logBuffer);
         }
+        Set<String> keys = new HashSet<String>();
+        for (Mail mail : mails) {
+            if (mail != null) {
+                keys.add(mail.getName());
+            }
+        }
         // The plan is as follows:
-        // Attempt to locate the message in the file
-        // by reading through the
-        // once we've done that then seek to the file
+        // Use the index to locate the messages to remove, then copy
+        // everything else to a work file in one pass and replace the
+        // mbox file with it.
+        loadKeys();
+        boolean found = false;
+        for (String key : keys) {
+            found = found || index.containsKey(key);
+        }
+        if (!found) {
+            return;
+        }
+        RandomAccessFile ins = null;
+        RandomAccessFile outputFile = null;
         try {
-            RandomAccessFile ins = new RandomAccessFile(mboxFile, "r"); // The
-                                                                        // source
-            final RandomAccessFile outputFile = new RandomAccessFile(mboxFile + WORKEXT, "rw"); // The
-                                                                                                // destination
-            parseMboxFile(ins, new MessageAction() {
-                public boolean isComplete() {
-                    return false;
+            ins = new RandomAccessFile(mboxFile, "r"); // The source
+            outputFile = new RandomAccessFile(mboxFile + WORKEXT, "rw"); // The
+                                                                         // destination
+            outputFile.setLength(0);
+            FileChannel source = ins.getChannel();
+            FileChannel destination = outputFile.getChannel();
+
+            List<MBoxIndex.Entry> kept = new ArrayList<MBoxIndex.Entry>();
+            long copyFrom = 0;
+            long removed = 0;
+            for (MBoxIndex.Entry entry : index.getEntries()) {
+                if (keys.contains(entry.key)) {
+                    transfer(source, destination, copyFrom, entry.offset - copyFrom);
+                    copyFrom = entry.offset + entry.length;
+                    removed += entry.length;
+                } else {
+                    kept.add(new MBoxIndex.Entry(entry.key, entry.offset - removed, entry.length));
                 }
-
-                public MimeMessage messageAction(String messageSeparator, String bodyText, long messageStart) {
-                    // Write out the messages as we go, until we reach the key
-                    // we want
-                    try {
-                        String currentKey = generateKeyValue(bodyText);
-                        boolean foundKey = false;
-                        Iterator<Mail> mailList = mails.iterator();
-                        String key;
-                        while (mailList.hasNext()) {
-                            // Attempt to find the current key in the array
-                            key = mailList.next().getName();
-                            if (key.equals(currentKey)) {
-                                // Don't write the message to disk
-                                foundKey = true;
-                                break;
-                            }
-                        }
-                        if (!foundKey) {
-                            // We didn't find the key in the array so we will
-                            // keep it
-                            outputFile.writeBytes(messageSeparator + "\n");
-                            outputFile.writeBytes(bodyText);
-
-                        }
-                    } catch (NoSuchAlgorithmException e) {
-                        getLogger().error("MD5 not supported! ", e);
-                    } catch (IOException e) {
-                        getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
-                    }
-                    return null;
-                }
-            });
+            }
+            transfer(source, destination, copyFrom, source.size() - copyFrom);
             ins.close();
+            ins = null;
             outputFile.close();
+            outputFile = null;
+
             // Delete the old mbox file
             File mbox = new File(mboxFile);
             if (!mbox.delete()) {
                 throw new IOException("Unable to delete file " + mbox);
             }
-            // And rename the lock file to be the new mbox
-            mbox = new File(mboxFile + WORKEXT);
-            if (!mbox.renameTo(new File(mboxFile))) {
-                throw new IOException("Failed to rename file " + mbox + " -> " + mboxFile);
+            // And rename the work file to be the new mbox
+            File work = new File(mboxFile + WORKEXT);
+            if (!work.renameTo(new File(mboxFile))) {
+                throw new IOException("Failed to rename file " + work + " -> " + mboxFile);
             }
 
-            // Now delete the keys in mails from the main hash
-            Iterator<Mail> mailList = mails.iterator();
-            String key;
-            while (mailList.hasNext()) {
-                // Attempt to find the current key in the array
-                key = mailList.next().getName();
-                mList.remove(key);
+            // Now rebuild the index from the retained messages
+            index = new MBoxIndex(mbox);
+            for (MBoxIndex.Entry entry : kept) {
+                index.add(entry.key, entry.offset, entry.length);
             }
+            saveIndex();
 
         } catch (FileNotFoundException e) {
             getLogger().error("Unable to save(open) file (File not found) " + mboxFile, e);
+            index = null;
         } catch (IOException e) {
             getLogger().error("Unable to write file (General I/O problem) " + mboxFile, e);
+            index = null;
+        } finally {
+            closeQuietly(ins);
+            closeQuietly(outputFile);
+        }
+    }
+
+    /**
+     * Copy a byte range between two file channels
+     */
+    private void transfer(FileChannel source, FileChannel destination, long position, long count) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = source.transferTo(position + done, count - done, destination);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file " + mboxFile);
+            }
+            done += transferred;
+        }
+    }
+
+    private void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                getLogger().error("Unable to close file (General I/O problem) " + mboxFile, e);
+            }
         }
     }
 
@@ -777,18 +742,23 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
      * @see org.apache.james.mailrepository.api.MailRepository#remove(String)
      */
     public void remove(String key) {
-        loadKeys();
         try {
             lockMBox();
         } catch (Exception e) {
             getLogger().error("Lock failed!", e);
             return; // No lock, so exit
         }
-        ArrayList<Mail> keys = new ArrayList<Mail>();
-        keys.add(retrieve(key));
+        try {
+            // Only the name is needed to remove the message
+            MailImpl mail = new MailImpl();
+            mail.setName(key);
+            ArrayList<Mail> keys = new ArrayList<Mail>();
+            keys.add(mail);
 
-        this.remove(keys);
-        unlockMBox();
+            this.remove(keys);
+        } finally {
+            unlockMBox();
+        }
     }
 
     /**
@@ -804,4 +774,26 @@ public class MBoxMailRepository implements MailRepository, LogEnabled, Configura
     public boolean unlock(String key) {
         return false;
     }
+
+    /**
+     * Minimal output stream writing to the current position of a
+     * {@link RandomAccessFile}
+     */
+    private static final class RandomAccessFileOutputStream extends java.io.OutputStream {
+        private final RandomAccessFile file;
+
+        RandomAccessFileOutputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            file.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(b, off, len);
+        }
+    }
 }
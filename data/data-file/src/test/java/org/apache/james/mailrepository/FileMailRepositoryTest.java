@@ -19,10 +19,20 @@
 
 package org.apache.james.mailrepository;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
 import org.apache.james.mailrepository.api.MailRepository;
 import org.apache.james.mailrepository.file.FileMailRepository;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
 public class FileMailRepositoryTest extends AbstractMailRepositoryTest {
@@ -35,6 +45,14 @@ public class FileMailRepositoryTest extends AbstractMailRepositoryTest {
      */
     @Override
     protected MailRepository getMailRepository() throws Exception {
+        return getMailRepository(true);
+    }
+
+    protected MailRepository getMailRepository(boolean cacheKeys) throws Exception {
+        return getMailRepository(cacheKeys, true, 0);
+    }
+
+    protected MailRepository getMailRepository(boolean cacheKeys, boolean keyIndex, int directoryLevels) throws Exception {
         MockFileSystem fs = new MockFileSystem();
         FileMailRepository mr = new FileMailRepository();
         mr.setFileSystem(fs);
@@ -42,9 +60,115 @@ public class FileMailRepositoryTest extends AbstractMailRepositoryTest {
         DefaultConfigurationBuilder defaultConfiguration = new DefaultConfigurationBuilder();
         defaultConfiguration.addProperty("[@destinationURL]", "file://target/var/mr");
         defaultConfiguration.addProperty("[@type]", "MAIL");
+        defaultConfiguration.addProperty("[@CACHEKEYS]", cacheKeys);
+        defaultConfiguration.addProperty("[@KEYINDEX]", keyIndex);
+        defaultConfiguration.addProperty("[@DIRECTORYLEVELS]", directoryLevels);
         mr.configure(defaultConfiguration);
         mr.init();
         return mr;
     }
 
+    @Test
+    public void testKeyIndexSurvivesRestart() throws Exception {
+        mailRepository.store(mail);
+
+        assertTrue("Key index written", new MockFileSystem().getFile("file://target/var/mr/Repository.keys").exists());
+
+        MailRepository restarted = getMailRepository();
+        Iterator<String> keys = restarted.list();
+        assertTrue(keys.hasNext());
+        assertEquals(mail.getName(), keys.next());
+        assertFalse(keys.hasNext());
+
+        restarted.remove(mail.getName());
+        assertFalse(getMailRepository().list().hasNext());
+    }
+
+    @Test
+    public void testListWithoutKeyCache() throws Exception {
+        mailRepository.store(mail);
+
+        Iterator<String> keys = getMailRepository(false).list();
+        assertTrue(keys.hasNext());
+        assertEquals(mail.getName(), keys.next());
+        assertFalse(keys.hasNext());
+    }
+
+    @Test
+    public void testChangeDirectoryLevels() throws Exception {
+        mailRepository.store(mail);
+        assertEquals("Messages are stored in the base directory by default", 2, countMessageFiles());
+
+        for (int levels : new int[] { 2, 1, 0 }) {
+            MailRepository restarted = getMailRepository(false, true, levels);
+            Iterator<String> keys = restarted.list();
+            assertTrue(keys.hasNext());
+            assertEquals(mail.getName(), keys.next());
+            assertFalse(keys.hasNext());
+            assertNotNull(restarted.retrieve(mail.getName()));
+        }
+        assertEquals("Messages are moved back to the base directory", 2, countMessageFiles());
+    }
+
+    @Test
+    public void testKeyIndexIsRebuiltAfterBeingDisabled() throws Exception {
+        mailRepository.store(mail);
+
+        MailRepository withoutIndex = getMailRepository(true, false, 0);
+        assertFalse("Key index deleted", new MockFileSystem().getFile("file://target/var/mr/Repository.keys").exists());
+        mail.setName("mail2");
+        withoutIndex.store(mail);
+
+        MailRepository restarted = getMailRepository();
+        Iterator<String> keys = restarted.list();
+        Set<String> names = new HashSet<String>();
+        while (keys.hasNext()) {
+            names.add(keys.next());
+        }
+        assertEquals(2, names.size());
+        assertTrue(names.contains("mail2"));
+        restarted.remove("mail2");
+    }
+
+    @Test
+    public void testTornKeyIndexIsRebuilt() throws Exception {
+        mailRepository.store(mail);
+        mail.setName("mail2");
+        mailRepository.store(mail);
+
+        // lose the end of the last record, the files of mail2 are still there
+        File index = new MockFileSystem().getFile("file://target/var/mr/Repository.keys");
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        try {
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+
+        MailRepository restarted = getMailRepository();
+        Iterator<String> keys = restarted.list();
+        Set<String> names = new HashSet<String>();
+        while (keys.hasNext()) {
+            names.add(keys.next());
+        }
+        assertEquals(2, names.size());
+        assertTrue(names.contains("mail2"));
+        restarted.remove("mail2");
+    }
+
+    /**
+     * @return the number of message files stored directly in the base
+     *         directory
+     */
+    private int countMessageFiles() throws Exception {
+        int count = 0;
+        File base = new MockFileSystem().getFile("file://target/var/mr");
+        for (String name : base.list()) {
+            if (name.endsWith(".FileObjectStore") || name.endsWith(".FileStreamStore")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
 }
@@ -19,13 +19,24 @@
 package org.apache.james.mailrepository;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
 import org.apache.james.mailrepository.api.MailRepository;
 import org.apache.james.mailrepository.file.MBoxMailRepository;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import org.apache.mailet.Mail;
+import org.junit.After;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
@@ -38,13 +49,26 @@ import org.slf4j.LoggerFactory;
  */
 public class MBoxMailRepositoryTest {
 
-    protected MailRepository getMailRepository() throws Exception {
-        MBoxMailRepository mr = new MBoxMailRepository();
+    private File copy;
 
-        DefaultConfigurationBuilder defaultConfiguration = new DefaultConfigurationBuilder();
+    @After
+    public void tearDown() {
+        if (copy != null) {
+            new File(copy.getPath() + ".index").delete();
+            copy.delete();
+        }
+    }
 
+    protected MailRepository getMailRepository() throws Exception {
         File fInbox = new MockFileSystem().getFile("file://conf/org/apache/james/mailrepository/testdata/Inbox");
         String mboxPath = "mbox://" + fInbox.toURI().toString().substring(new File("").toURI().toString().length());
+        return getMailRepository(mboxPath);
+    }
+
+    protected MailRepository getMailRepository(String mboxPath) throws Exception {
+        MBoxMailRepository mr = new MBoxMailRepository();
+
+        DefaultConfigurationBuilder defaultConfiguration = new DefaultConfigurationBuilder();
 
         defaultConfiguration.addProperty("[@destinationURL]", mboxPath);
         defaultConfiguration.addProperty("[@type]", "MAIL");
@@ -71,6 +95,78 @@ public class MBoxMailRepositoryTest {
         assertFalse("No messages", keys.hasNext());
     }
 
+    @Test
+    public void testRetrieve() throws Exception {
+        MailRepository mr = getMailRepository();
+
+        Iterator<String> keys = mr.list();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Mail mail = mr.retrieve(key);
+            assertNotNull("Message " + key + " retrieved", mail);
+            assertEquals(key, mail.getName());
+            assertNotNull(mail.getMessage());
+        }
+    }
+
+    @Test
+    public void testIndexIsReused() throws Exception {
+        String mboxPath = "mbox://" + copyInbox().getAbsolutePath();
+        List<String> keys = toList(getMailRepository(mboxPath).list());
+
+        assertTrue("Index written", new File(copy.getPath() + ".index").exists());
+
+        MailRepository mr = getMailRepository(mboxPath);
+        assertEquals(keys, toList(mr.list()));
+        assertNotNull(mr.retrieve(keys.get(1)));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        String mboxPath = "mbox://" + copyInbox().getAbsolutePath();
+        MailRepository mr = getMailRepository(mboxPath);
+        List<String> keys = toList(mr.list());
+        long length = copy.length();
+
+        mr.remove(keys.get(0));
+
+        assertTrue("File shrunk", copy.length() < length);
+        assertEquals(keys.subList(1, 2), toList(mr.list()));
+        assertNotNull(mr.retrieve(keys.get(1)));
+
+        // A fresh repository must see the same content, with or without the
+        // index
+        assertEquals(keys.subList(1, 2), toList(getMailRepository(mboxPath).list()));
+        new File(copy.getPath() + ".index").delete();
+        assertEquals(keys.subList(1, 2), toList(getMailRepository(mboxPath).list()));
+    }
+
+    private File copyInbox() throws IOException {
+        File fInbox = new MockFileSystem().getFile("file://conf/org/apache/james/mailrepository/testdata/Inbox");
+        copy = File.createTempFile("mbox", ".test");
+        InputStream in = new FileInputStream(fInbox);
+        OutputStream out = new FileOutputStream(copy);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return copy;
+    }
+
+    private List<String> toList(Iterator<String> keys) {
+        List<String> list = new ArrayList<String>();
+        while (keys.hasNext()) {
+            list.add(keys.next());
+        }
+        return list;
+    }
+
     /*
      * public void runBare() throws Throwable {
      * System.err.println("TEST DISABLED!"); // Decomment this or remove this
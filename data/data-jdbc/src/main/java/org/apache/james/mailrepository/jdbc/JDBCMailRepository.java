@@ -19,6 +19,7 @@
 
 package org.apache.james.mailrepository.jdbc;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -33,15 +34,18 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
@@ -57,8 +61,10 @@ import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.mailrepository.lib.AbstractMailRepository;
 import org.apache.james.repository.file.FilePersistentStreamRepository;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
+import org.apache.james.util.sql.StatementCache;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 
@@ -83,6 +89,14 @@ import org.apache.mailet.MailAddress;
  * </p>
  * 
  * <p>
+ * With <code>&lt;streamBodies&gt;true&lt;/streamBodies&gt;</code>, messages
+ * which were not modified since they were loaded are written straight from
+ * their source with their exact length, instead of being buffered first. With
+ * a <code>filestore</code> the message bodies are kept in files and only the
+ * headers and the other metadata are stored in the database.
+ * </p>
+ * 
+ * <p>
  * Requires a logger called MailRepository.
  * </p>
  * 
@@ -132,6 +146,11 @@ public class JDBCMailRepository extends AbstractMailRepository {
      */
     protected JDBCUtil theJDBCUtil;
 
+    /**
+     * The shared JDBC access layer
+     */
+    protected JDBCTemplate jdbcTemplate;
+
     /**
      * "Support for Mail Attributes under JDBC repositories is ready" indicator.
      */
@@ -142,6 +161,17 @@ public class JDBCMailRepository extends AbstractMailRepository {
      */
     private int inMemorySizeLimit;
 
+    /**
+     * Whether unmodified messages are written straight from their source
+     */
+    private boolean streamBodies;
+
+    /**
+     * The maximum number of keys deleted by a single "removeMessagesSQL"
+     * statement
+     */
+    private static final int REMOVE_BATCH_SIZE = 100;
+
     private FileSystem fileSystem;
 
     private String filestore;
@@ -212,6 +242,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
 
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600000);
+        streamBodies = configuration.getBoolean("streamBodies", false);
 
         filestore = configuration.getString("filestore", null);
         sqlFileName = configuration.getString("sqlFile");
@@ -327,6 +358,19 @@ public class JDBCMailRepository extends AbstractMailRepository {
             theJDBCUtil.closeJDBCStatement(createStatement);
             theJDBCUtil.closeJDBCConnection(conn);
         }
+
+        jdbcTemplate = new JDBCTemplate(datasource, theJDBCUtil, "mailrepository-" + tableName + "/" + repositoryName);
+    }
+
+    /**
+     * Unregister the statistics of the database access
+     */
+    @PreDestroy
+    public void destroy() {
+        if (jdbcTemplate != null) {
+            jdbcTemplate.dispose();
+            jdbcTemplate = null;
+        }
     }
 
     /**
@@ -397,6 +441,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
      */
     protected void internalStore(Mail mc) throws IOException, MessagingException {
         Connection conn = null;
+        MessageInputStream is = null;
         try {
             conn = datasource.getConnection();
             // Need to determine whether need to insert this record, or update
@@ -423,7 +468,6 @@ public class JDBCMailRepository extends AbstractMailRepository {
             } else {
                 saveBody = true;
             }
-            MessageInputStream is = new MessageInputStream(mc, sr, inMemorySizeLimit, true);
 
             // Begin a transaction
             conn.setAutoCommit(false);
@@ -486,31 +530,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     PreparedStatement updateMessageAttr = null;
                     try {
                         updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        setAttributes(updateMessageAttr, 1, mc);
                         updateMessageAttr.setString(2, mc.getName());
                         updateMessageAttr.setString(3, repositoryName);
                         updateMessageAttr.execute();
@@ -524,6 +544,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
 
                 if (saveBody) {
 
+                    is = new MessageInputStream(mc, sr, inMemorySizeLimit, true, streamBodies);
                     PreparedStatement updateMessageBody = conn.prepareStatement(sqlQueries.getSqlString("updateMessageBodySQL", true));
                     try {
                         updateMessageBody.setBinaryStream(1, is, (int) is.getSize());
@@ -564,35 +585,12 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     insertMessage.setString(8, mc.getRemoteAddr());
                     insertMessage.setTimestamp(9, new java.sql.Timestamp(mc.getLastUpdated().getTime()));
 
+                    is = new MessageInputStream(mc, sr, inMemorySizeLimit, true, streamBodies);
                     insertMessage.setBinaryStream(10, is, (int) is.getSize());
 
                     // Store attributes
                     if (number_of_parameters > 10) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            insertMessage.setBinaryStream(11, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        setAttributes(insertMessage, 11, mc);
                     }
 
                     insertMessage.execute();
@@ -607,91 +605,111 @@ public class JDBCMailRepository extends AbstractMailRepository {
             getLogger().debug("Failed to store internal mail", e);
             throw new IOException(e.getMessage());
         } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ioe) {
+                    getLogger().debug("JDBCMailRepository: Unexpected exception while closing message stream.", ioe);
+                }
+            }
             theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
     /**
-     * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
+     * Serializes the attributes of the given mail into a statement parameter
+     * 
+     * @param statement
+     *            the statement
+     * @param parameterIndex
+     *            the index of the attributes parameter
+     * @param mc
+     *            the mail
      */
-    public Mail retrieve(String key) throws MessagingException {
-        if (DEEP_DEBUG) {
-            System.err.println("retrieving " + key);
-        }
-        Connection conn = null;
-        PreparedStatement retrieveMessage = null;
-        ResultSet rsMessage = null;
+    private void setAttributes(PreparedStatement statement, int parameterIndex, Mail mc) throws IOException, SQLException {
+        AttributesOutputStream baos = new AttributesOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
         try {
-            conn = datasource.getConnection();
-            if (DEEP_DEBUG) {
-                System.err.println("got a conn " + key);
-            }
-
-            retrieveMessage = conn.prepareStatement(sqlQueries.getSqlString("retrieveMessageSQL", true));
-            retrieveMessage.setString(1, key);
-            retrieveMessage.setString(2, repositoryName);
-            rsMessage = retrieveMessage.executeQuery();
-            if (DEEP_DEBUG) {
-                System.err.println("ran the query " + key);
-            }
-            if (!rsMessage.next()) {
-                if (getLogger().isDebugEnabled()) {
-                    String debugBuffer = "Did not find a record " + key + " in " + repositoryName;
-                    getLogger().debug(debugBuffer);
+            if (mc instanceof MailImpl) {
+                oos.writeObject(((MailImpl) mc).getAttributesRaw());
+            } else {
+                HashMap temp = new HashMap();
+                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                    String hashKey = (String) i.next();
+                    temp.put(hashKey, mc.getAttribute(hashKey));
                 }
-                return null;
+                oos.writeObject(temp);
             }
-            // Determine whether attributes are used and retrieve them
-            PreparedStatement retrieveMessageAttr = null;
-            HashMap attributes = null;
-            if (jdbcMailAttributesReady) {
-                String retrieveMessageAttrSql = sqlQueries.getSqlString("retrieveMessageAttributesSQL", false);
-                ResultSet rsMessageAttr = null;
-                try {
-                    retrieveMessageAttr = conn.prepareStatement(retrieveMessageAttrSql);
+            oos.flush();
+            statement.setBinaryStream(parameterIndex, baos.toInputStream(), baos.size());
+        } finally {
+            try {
+                oos.close();
+            } catch (IOException ioe) {
+                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
+            }
+        }
+    }
 
-                    retrieveMessageAttr.setString(1, key);
-                    retrieveMessageAttr.setString(2, repositoryName);
-                    rsMessageAttr = retrieveMessageAttr.executeQuery();
+    /**
+     * Gives access to the serialized attributes without copying them
+     */
+    private static final class AttributesOutputStream extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
 
-                    if (rsMessageAttr.next()) {
-                        try {
-                            byte[] serialized_attr;
-                            String getAttributesOption = sqlQueries.getDbOption("getAttributes");
-                            if (getAttributesOption != null && (getAttributesOption.equalsIgnoreCase("useBlob") || getAttributesOption.equalsIgnoreCase("useBinaryStream"))) {
-                                Blob b = rsMessageAttr.getBlob(1);
-                                serialized_attr = b.getBytes(1, (int) b.length());
-                            } else {
-                                serialized_attr = rsMessageAttr.getBytes(1);
-                            }
-                            // this check is for better backwards compatibility
-                            if (serialized_attr != null) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
-                                ObjectInputStream ois = new ObjectInputStream(bais);
-                                attributes = (HashMap) ois.readObject();
-                                ois.close();
-                            }
-                        } catch (IOException ioe) {
+    /**
+     * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
+     */
+    public Mail retrieve(final String key) throws MessagingException {
+        if (DEEP_DEBUG) {
+            System.err.println("retrieving " + key);
+        }
+        try {
+            return jdbcTemplate.execute("retrieveMessageSQL", true, new JDBCTemplate.ConnectionCallback<Mail>() {
+                public Mail doInConnection(StatementCache statements) throws SQLException {
+                    ResultSet rsMessage = statements.prepare(sqlQueries.getSqlString("retrieveMessageSQL", true), key, repositoryName).executeQuery();
+                    try {
+                        if (DEEP_DEBUG) {
+                            System.err.println("ran the query " + key);
+                        }
+                        if (!rsMessage.next()) {
                             if (getLogger().isDebugEnabled()) {
-                                String debugBuffer = "Exception reading attributes " + key + " in " + repositoryName;
-                                getLogger().debug(debugBuffer, ioe);
+                                String debugBuffer = "Did not find a record " + key + " in " + repositoryName;
+                                getLogger().debug(debugBuffer);
                             }
+                            return null;
                         }
-                    } else {
-                        if (getLogger().isDebugEnabled()) {
-                            String debugBuffer = "Did not find a record (attributes) " + key + " in " + repositoryName;
-                            getLogger().debug(debugBuffer);
-                        }
+                        return readMail(statements, key, rsMessage);
+                    } finally {
+                        theJDBCUtil.closeJDBCResultSet(rsMessage);
                     }
-                } catch (SQLException sqle) {
-                    String errorBuffer = "Error retrieving message" + sqle.getMessage() + sqle.getErrorCode() + sqle.getSQLState() + sqle.getNextException();
-                    getLogger().error(errorBuffer);
-                } finally {
-                    theJDBCUtil.closeJDBCResultSet(rsMessageAttr);
-                    theJDBCUtil.closeJDBCStatement(retrieveMessageAttr);
                 }
-            }
+            });
+        } catch (SQLException sqle) {
+            String errorBuffer = "Error retrieving message" + sqle.getMessage() + sqle.getErrorCode() + sqle.getSQLState() + sqle.getNextException();
+            getLogger().error(errorBuffer);
+            getLogger().debug("Failed to retrieve mail", sqle);
+            throw new MessagingException("Exception while retrieving mail: " + sqle.getMessage(), sqle);
+        } catch (Exception me) {
+            throw new MessagingException("Exception while retrieving mail: " + me.getMessage(), me);
+        }
+    }
+
+    /**
+     * Builds the mail from the current row of the "retrieveMessageSQL" result
+     * set, fetching the attributes on the same connection if enabled.
+     */
+    private Mail readMail(StatementCache statements, String key, ResultSet rsMessage) throws SQLException {
+        // Determine whether attributes are used and retrieve them
+        HashMap attributes = null;
+        if (jdbcMailAttributesReady) {
+            attributes = readAttributes(statements, key);
+        }
 
+        try {
             MailImpl mc = new MailImpl();
             mc.setAttributesRaw(attributes);
             mc.setName(key);
@@ -717,69 +735,176 @@ public class JDBCMailRepository extends AbstractMailRepository {
             MimeMessageCopyOnWriteProxy message = new MimeMessageCopyOnWriteProxy(source);
             mc.setMessage(message);
             return mc;
+        } catch (MessagingException me) {
+            throw new SQLException("Unable to read mail " + key + ": " + me.getMessage(), me);
+        }
+    }
+
+    /**
+     * Reads the serialized attributes of the given mail. Failures are logged
+     * and reported as no attributes, like for mails stored before attributes
+     * support was enabled.
+     */
+    private HashMap readAttributes(StatementCache statements, String key) {
+        String retrieveMessageAttrSql = sqlQueries.getSqlString("retrieveMessageAttributesSQL", false);
+        ResultSet rsMessageAttr = null;
+        try {
+            rsMessageAttr = statements.prepare(retrieveMessageAttrSql, key, repositoryName).executeQuery();
+
+            if (rsMessageAttr.next()) {
+                try {
+                    InputStream serialized_attr;
+                    String getAttributesOption = sqlQueries.getDbOption("getAttributes");
+                    if (getAttributesOption != null && (getAttributesOption.equalsIgnoreCase("useBlob") || getAttributesOption.equalsIgnoreCase("useBinaryStream"))) {
+                        // Deserialize straight from the blob
+                        Blob b = rsMessageAttr.getBlob(1);
+                        serialized_attr = b == null ? null : new BufferedInputStream(b.getBinaryStream());
+                    } else {
+                        byte[] bytes = rsMessageAttr.getBytes(1);
+                        serialized_attr = bytes == null ? null : new ByteArrayInputStream(bytes);
+                    }
+                    // this check is for better backwards compatibility
+                    if (serialized_attr != null) {
+                        ObjectInputStream ois = new ObjectInputStream(serialized_attr);
+                        try {
+                            return (HashMap) ois.readObject();
+                        } finally {
+                            ois.close();
+                        }
+                    }
+                } catch (IOException ioe) {
+                    if (getLogger().isDebugEnabled()) {
+                        String debugBuffer = "Exception reading attributes " + key + " in " + repositoryName;
+                        getLogger().debug(debugBuffer, ioe);
+                    }
+                } catch (ClassNotFoundException cnfe) {
+                    if (getLogger().isDebugEnabled()) {
+                        String debugBuffer = "Exception reading attributes " + key + " in " + repositoryName;
+                        getLogger().debug(debugBuffer, cnfe);
+                    }
+                }
+            } else {
+                if (getLogger().isDebugEnabled()) {
+                    String debugBuffer = "Did not find a record (attributes) " + key + " in " + repositoryName;
+                    getLogger().debug(debugBuffer);
+                }
+            }
         } catch (SQLException sqle) {
             String errorBuffer = "Error retrieving message" + sqle.getMessage() + sqle.getErrorCode() + sqle.getSQLState() + sqle.getNextException();
             getLogger().error(errorBuffer);
-            getLogger().debug("Failed to retrieve mail", sqle);
-            throw new MessagingException("Exception while retrieving mail: " + sqle.getMessage(), sqle);
-        } catch (Exception me) {
-            throw new MessagingException("Exception while retrieving mail: " + me.getMessage(), me);
         } finally {
-            theJDBCUtil.closeJDBCResultSet(rsMessage);
-            theJDBCUtil.closeJDBCStatement(retrieveMessage);
-            theJDBCUtil.closeJDBCConnection(conn);
+            theJDBCUtil.closeJDBCResultSet(rsMessageAttr);
         }
+        return null;
     }
 
     /**
      * @see org.apache.james.mailrepository.lib.AbstractMailRepository#internalRemove(String)
      */
     protected void internalRemove(String key) throws MessagingException {
-        Connection conn = null;
-        PreparedStatement removeMessage = null;
         try {
-            conn = datasource.getConnection();
-            removeMessage = conn.prepareStatement(sqlQueries.getSqlString("removeMessageSQL", true));
-            removeMessage.setString(1, key);
-            removeMessage.setString(2, repositoryName);
-            removeMessage.execute();
+            jdbcTemplate.idempotentUpdate(sqlQueries.getSqlString("removeMessageSQL", true), key, repositoryName);
 
             if (sr != null) {
                 sr.remove(key);
             }
         } catch (Exception me) {
             throw new MessagingException("Exception while removing mail: " + me.getMessage(), me);
+        }
+    }
+
+    /**
+     * Removes the mails with as few "removeMessagesSQL" statements as possible,
+     * in a single transaction. Falls back to removing the mails one at a time
+     * when the statement is not defined.
+     * 
+     * @see org.apache.james.mailrepository.api.MailRepository#remove(Collection)
+     */
+    public void remove(Collection<Mail> mails) throws MessagingException {
+        final String removeMessagesSql = sqlQueries.getSqlString("removeMessagesSQL", false);
+        if (removeMessagesSql == null || mails.size() < 2) {
+            super.remove(mails);
+            return;
+        }
+        Set<String> locked = new LinkedHashSet<String>();
+        List<String> notLocked = new ArrayList<String>();
+        try {
+            for (Mail mail : mails) {
+                String key = mail.getName();
+                if (locked.contains(key) || lock(key)) {
+                    locked.add(key);
+                } else {
+                    notLocked.add(key);
+                }
+            }
+            final List<String> keys = new ArrayList<String>(locked);
+            if (!keys.isEmpty()) {
+                jdbcTemplate.execute("removeMessagesSQL", true, new JDBCTemplate.ConnectionCallback<Void>() {
+                    public Void doInConnection(StatementCache statements) throws SQLException {
+                        Connection conn = statements.getConnection();
+                        conn.setAutoCommit(false);
+                        for (int i = 0; i < keys.size(); i += REMOVE_BATCH_SIZE) {
+                            List<String> batch = keys.subList(i, Math.min(i + REMOVE_BATCH_SIZE, keys.size()));
+                            Object[] params = new Object[batch.size() + 1];
+                            params[0] = repositoryName;
+                            for (int j = 0; j < batch.size(); j++) {
+                                params[j + 1] = batch.get(j);
+                            }
+                            statements.prepare(expandInList(removeMessagesSql, batch.size()), params).executeUpdate();
+                        }
+                        conn.commit();
+                        return null;
+                    }
+                });
+                if (sr != null) {
+                    for (String key : keys) {
+                        sr.remove(key);
+                    }
+                }
+            }
+        } catch (Exception me) {
+            throw new MessagingException("Exception while removing mails: " + me.getMessage(), me);
         } finally {
-            theJDBCUtil.closeJDBCStatement(removeMessage);
-            theJDBCUtil.closeJDBCConnection(conn);
+            for (String key : locked) {
+                unlock(key);
+            }
+        }
+        if (!notLocked.isEmpty()) {
+            throw new MessagingException("Cannot lock " + notLocked + " to remove them");
+        }
+    }
+
+    /**
+     * Replaces the last parameter of the given SQL string, the content of an
+     * "IN (?)" clause, by the given number of parameters.
+     */
+    private static String expandInList(String sql, int size) {
+        int index = sql.lastIndexOf('?');
+        StringBuilder expanded = new StringBuilder(sql.length() + 3 * size);
+        expanded.append(sql, 0, index);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                expanded.append(", ");
+            }
+            expanded.append('?');
         }
+        expanded.append(sql, index + 1, sql.length());
+        return expanded.toString();
     }
 
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#list()
      */
     public Iterator list() throws MessagingException {
-        // System.err.println("listing messages");
-        Connection conn = null;
-        PreparedStatement listMessages = null;
-        ResultSet rsListMessages = null;
         try {
-            conn = datasource.getConnection();
-            listMessages = conn.prepareStatement(sqlQueries.getSqlString("listMessagesSQL", true));
-            listMessages.setString(1, repositoryName);
-            rsListMessages = listMessages.executeQuery();
-
-            List messageList = new ArrayList();
-            while (rsListMessages.next() && !Thread.currentThread().isInterrupted()) {
-                messageList.add(rsListMessages.getString(1));
-            }
+            List<String> messageList = jdbcTemplate.queryForList(sqlQueries.getSqlString("listMessagesSQL", true), new JDBCTemplate.RowMapper<String>() {
+                public String mapRow(ResultSet rs) throws SQLException {
+                    return rs.getString(1);
+                }
+            }, repositoryName);
             return messageList.iterator();
         } catch (Exception me) {
             throw new MessagingException("Exception while listing mail: " + me.getMessage(), me);
-        } finally {
-            theJDBCUtil.closeJDBCResultSet(rsListMessages);
-            theJDBCUtil.closeJDBCStatement(listMessages);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
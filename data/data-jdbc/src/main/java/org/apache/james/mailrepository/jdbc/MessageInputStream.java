@@ -20,6 +20,7 @@
 package org.apache.james.mailrepository.jdbc;
 
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
 import org.apache.james.core.MimeMessageUtil;
 import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.repository.api.StreamRepository;
@@ -40,7 +41,9 @@ import java.io.PipedOutputStream;
  * This class provides an inputStream for a Mail object.<br>
  * If the Mail is larger than 4KB it uses Piped streams and a worker thread,
  * otherwise it simply creates a temporary byte buffer and does not create the
- * worker thread.
+ * worker thread.<br>
+ * In streaming mode an unmodified message is read straight from its source,
+ * whose exact size is known, without buffering or worker thread.
  * 
  * <strong>Note</strong>: Javamail (or the Activation Framework) already uses a
  * worker thread when asked for an inputstream.
@@ -82,16 +85,44 @@ final class MessageInputStream extends InputStream {
      *             the mail
      */
     public MessageInputStream(Mail mc, StreamRepository srep, int sizeLimit, final boolean update) throws IOException, MessagingException {
+        this(mc, srep, sizeLimit, update, false);
+    }
+
+    /**
+     * Constructor allowing to read unmodified messages from their source.
+     * 
+     * @param mc
+     *            the Mail
+     * @param srep
+     *            the StreamRepository the StreamRepository used for dbfiles.
+     * @param sizeLimit
+     *            the sizeLimit which set the limit after which the streaming
+     *            will be disabled
+     * @param streaming
+     *            true to read unmodified messages from their source when no
+     *            StreamRepository is used
+     * @throws IOException
+     *             get thrown if an IO error detected
+     * @throws MessagingException
+     *             get thrown if an error detected while reading informations of
+     *             the mail
+     */
+    public MessageInputStream(Mail mc, StreamRepository srep, int sizeLimit, final boolean update, boolean streaming) throws IOException, MessagingException {
         super();
         caughtException = null;
         streamRep = srep;
-        size = mc.getMessageSize();
+        MimeMessageSource source = streaming && streamRep == null ? getUnmodifiedSource(mc.getMessage()) : null;
+        // The source size is exact, unlike the size of the Mail
+        size = source != null ? source.getMessageSize() : mc.getMessageSize();
 
         // we use the pipes only when streamRep is null and the message size is
         // greater than 4096
         // Otherwise we should calculate the header size and not the message
         // size when streamRep is not null (JAMES-475)
-        if (streamRep == null && size > sizeLimit) {
+        if (source != null) {
+            // The source holds the exact bytes to store
+            wrapped = source.getInputStream();
+        } else if (streamRep == null && size > sizeLimit) {
             PipedOutputStream headerOut = new PipedOutputStream();
             new Thread() {
                 private Mail mail;
@@ -123,6 +154,27 @@ final class MessageInputStream extends InputStream {
         }
     }
 
+    /**
+     * Returns the source of the given message if it was not modified since it
+     * was loaded from it.
+     * 
+     * @param msg
+     *            the message
+     * @return the source, or null
+     */
+    private static MimeMessageSource getUnmodifiedSource(MimeMessage msg) {
+        if (msg instanceof MimeMessageCopyOnWriteProxy) {
+            msg = ((MimeMessageCopyOnWriteProxy) msg).getWrappedMessage();
+        }
+        if (msg instanceof MimeMessageWrapper) {
+            MimeMessageWrapper wrapper = (MimeMessageWrapper) msg;
+            if (!wrapper.isModified()) {
+                return wrapper.getMessageSource();
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns the size of the full message
      * 
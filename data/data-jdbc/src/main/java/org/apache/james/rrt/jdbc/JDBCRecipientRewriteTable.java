@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
@@ -40,6 +41,7 @@ import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.rrt.lib.AbstractRecipientRewriteTable;
 import org.apache.james.rrt.lib.RecipientRewriteTableUtil;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
 
@@ -78,6 +80,11 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
         }
     };
 
+    /**
+     * The shared JDBC access layer
+     */
+    private JDBCTemplate jdbcTemplate;
+
     @PostConstruct
     public void init() throws Exception {
 
@@ -138,6 +145,19 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
             theJDBCUtil.closeJDBCStatement(createStatement);
             theJDBCUtil.closeJDBCConnection(conn);
         }
+
+        jdbcTemplate = new JDBCTemplate(dataSource, theJDBCUtil, "recipientrewritetable");
+    }
+
+    /**
+     * Unregister the statistics of the database access
+     */
+    @PreDestroy
+    public void destroy() {
+        if (jdbcTemplate != null) {
+            jdbcTemplate.dispose();
+            jdbcTemplate = null;
+        }
     }
 
     @Inject
@@ -219,32 +239,16 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      *      java.lang.String)
      */
     protected String mapAddressInternal(String user, String domain) throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("selectMappings", true));
-
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, user);
-                mappingStmt.setString(2, domain);
-                mappingRS = mappingStmt.executeQuery();
-                if (mappingRS.next()) {
-                    return mappingRS.getString(1);
+            return jdbcTemplate.queryForObject(sqlQueries.getSqlString("selectMappings", true), new JDBCTemplate.RowMapper<String>() {
+                public String mapRow(ResultSet rs) throws SQLException {
+                    return rs.getString(1);
                 }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-
+            }, user, domain);
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
             throw new RecipientRewriteTableException("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
-        return null;
     }
 
     /**
@@ -253,30 +257,16 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      *      java.lang.String)
      */
     protected Collection<String> getUserDomainMappingsInternal(String user, String domain) throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("selectUserDomainMapping", true));
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, user);
-                mappingStmt.setString(2, domain);
-                mappingRS = mappingStmt.executeQuery();
-                if (mappingRS.next()) {
-                    return RecipientRewriteTableUtil.mappingToCollection(mappingRS.getString(1));
+            return jdbcTemplate.queryForObject(sqlQueries.getSqlString("selectUserDomainMapping", true), new JDBCTemplate.RowMapper<Collection<String>>() {
+                public Collection<String> mapRow(ResultSet rs) throws SQLException {
+                    return RecipientRewriteTableUtil.mappingToCollection(rs.getString(1));
                 }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
+            }, user, domain);
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
             throw new RecipientRewriteTableException("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
-        return null;
     }
 
     /**
@@ -284,34 +274,23 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      * @see org.apache.james.rrt.lib.AbstractRecipientRewriteTable#getAllMappingsInternal()
      */
     protected Map<String, Collection<String>> getAllMappingsInternal() throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
-        Map<String, Collection<String>> mapping = new HashMap<String, Collection<String>>();
+        final Map<String, Collection<String>> mapping = new HashMap<String, Collection<String>>();
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("selectAllMappings", true));
-            ResultSet mappingRS = null;
-            try {
-                mappingRS = mappingStmt.executeQuery();
-                while (mappingRS.next()) {
-                    String user = mappingRS.getString(1);
-                    String domain = mappingRS.getString(2);
-                    String map = mappingRS.getString(3);
+            jdbcTemplate.queryForList(sqlQueries.getSqlString("selectAllMappings", true), new JDBCTemplate.RowMapper<Void>() {
+                public Void mapRow(ResultSet rs) throws SQLException {
+                    String user = rs.getString(1);
+                    String domain = rs.getString(2);
+                    String map = rs.getString(3);
                     mapping.put(user + "@" + domain, RecipientRewriteTableUtil.mappingToCollection(map));
+                    return null;
                 }
-                if (mapping.size() > 0)
-                    return mapping;
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-
+            });
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
             throw new RecipientRewriteTableException("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
+        if (mapping.size() > 0)
+            return mapping;
         return null;
     }
 
@@ -345,32 +324,15 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      * @throws RecipientRewriteTableException
      */
     private void doUpdateMapping(String user, String domain, String mapping) throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
-
+        int updated;
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("updateMapping", true));
-
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, mapping);
-                mappingStmt.setString(2, user);
-                mappingStmt.setString(3, domain);
-
-                if (mappingStmt.executeUpdate() < 1) {
-                    throw new RecipientRewriteTableException("Mapping not found");
-                }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-
+            updated = jdbcTemplate.idempotentUpdate(sqlQueries.getSqlString("updateMapping", true), mapping, user, domain);
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
             throw new RecipientRewriteTableException("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+        }
+        if (updated < 1) {
+            throw new RecipientRewriteTableException("Mapping not found");
         }
     }
 
@@ -387,30 +349,15 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      * @throws RecipientRewriteTableException
      */
     private void doRemoveMapping(String user, String domain, String mapping) throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
-
+        int updated;
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("deleteMapping", true));
-
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, user);
-                mappingStmt.setString(2, domain);
-                mappingStmt.setString(3, mapping);
-                if (mappingStmt.executeUpdate() < 1) {
-                    throw new RecipientRewriteTableException("Mapping not found");
-                }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-
+            updated = jdbcTemplate.update(sqlQueries.getSqlString("deleteMapping", true), user, domain, mapping);
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+            return;
+        }
+        if (updated < 1) {
+            throw new RecipientRewriteTableException("Mapping not found");
         }
     }
 
@@ -427,31 +374,15 @@ public class JDBCRecipientRewriteTable extends AbstractRecipientRewriteTable {
      * @throws RecipientRewriteTableException
      */
     private void doAddMapping(String user, String domain, String mapping) throws RecipientRewriteTableException {
-        Connection conn = null;
-        PreparedStatement mappingStmt = null;
-
+        int updated;
         try {
-            conn = dataSource.getConnection();
-            mappingStmt = conn.prepareStatement(sqlQueries.getSqlString("addMapping", true));
-
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, user);
-                mappingStmt.setString(2, domain);
-                mappingStmt.setString(3, mapping);
-
-                if (mappingStmt.executeUpdate() < 1) {
-                    throw new RecipientRewriteTableException("Mapping not found");
-                }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
-            }
-
+            updated = jdbcTemplate.update(sqlQueries.getSqlString("addMapping", true), user, domain, mapping);
         } catch (SQLException sqle) {
             getLogger().error("Error accessing database", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+            return;
+        }
+        if (updated < 1) {
+            throw new RecipientRewriteTableException("Mapping not found");
         }
     }
 
@@ -34,6 +34,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
@@ -43,8 +44,10 @@ import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.user.api.UsersRepositoryException;
 import org.apache.james.user.api.model.User;
 import org.apache.james.user.lib.AbstractJamesUsersRepository;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
+import org.apache.james.util.sql.StatementCache;
 
 /**
  * An abstract base class for creating UserRepository implementations which use
@@ -116,6 +119,9 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
     // The JDBCUtil helper class
     private JDBCUtil theJDBCUtil;
 
+    // The shared JDBC access layer
+    private JDBCTemplate jdbcTemplate;
+
     private FileSystem fileSystem;
 
     /**
@@ -334,6 +340,19 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
         } finally {
             theJDBCUtil.closeJDBCConnection(conn);
         }
+
+        jdbcTemplate = new JDBCTemplate(m_datasource, theJDBCUtil, "usersrepository");
+    }
+
+    /**
+     * Unregister the statistics of the database access
+     */
+    @PreDestroy
+    public void destroy() {
+        if (jdbcTemplate != null) {
+            jdbcTemplate.dispose();
+            jdbcTemplate = null;
+        }
     }
 
     /**
@@ -452,33 +471,16 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
      * @throws UsersRepositoryException
      */
     private Collection<User> getAllUsers() throws UsersRepositoryException {
-        List<User> userList = new ArrayList<User>(); // Build the users into
-                                                     // this list.
-
-        Connection conn = null;
-        PreparedStatement getUsersStatement = null;
-        ResultSet rsUsers = null;
         try {
-            conn = openConnection();
-            // Get a ResultSet containing all users.
-            getUsersStatement = conn.prepareStatement(m_getUsersSql);
-            rsUsers = getUsersStatement.executeQuery();
-
-            // Loop through and build a User for every row.
-            while (rsUsers.next()) {
-                User user = readUserFromResultSet(rsUsers);
-                userList.add(user);
-            }
+            return jdbcTemplate.queryForList(m_getUsersSql, new JDBCTemplate.RowMapper<User>() {
+                public User mapRow(ResultSet rs) throws SQLException {
+                    return readUserFromResultSet(rs);
+                }
+            });
         } catch (SQLException sqlExc) {
             sqlExc.printStackTrace();
             throw new UsersRepositoryException("Error accessing database", sqlExc);
-        } finally {
-            theJDBCUtil.closeJDBCResultSet(rsUsers);
-            theJDBCUtil.closeJDBCStatement(getUsersStatement);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
-
-        return userList;
     }
 
     /**
@@ -489,25 +491,20 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
      *            the user to add
      * @throws UsersRepositoryException
      */
-    protected void doAddUser(User user) throws UsersRepositoryException {
-        Connection conn = null;
-        PreparedStatement addUserStatement = null;
-
+    protected void doAddUser(final User user) throws UsersRepositoryException {
         // Insert into the database.
         try {
-            conn = openConnection();
-            // Get a PreparedStatement for the insert.
-            addUserStatement = conn.prepareStatement(m_insertUserSql);
-
-            setUserForInsertStatement(user, addUserStatement);
-
-            addUserStatement.execute();
+            jdbcTemplate.execute(m_insertUserSql, new JDBCTemplate.ConnectionCallback<Void>() {
+                public Void doInConnection(StatementCache statements) throws SQLException {
+                    PreparedStatement addUserStatement = statements.prepare(m_insertUserSql);
+                    setUserForInsertStatement(user, addUserStatement);
+                    addUserStatement.execute();
+                    return null;
+                }
+            });
         } catch (SQLException sqlExc) {
             sqlExc.printStackTrace();
             throw new UsersRepositoryException("Error accessing database", sqlExc);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(addUserStatement);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
@@ -522,21 +519,12 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
     protected void doRemoveUser(User user) throws UsersRepositoryException {
         String username = user.getUserName();
 
-        Connection conn = null;
-        PreparedStatement removeUserStatement = null;
-
         // Delete from the database.
         try {
-            conn = openConnection();
-            removeUserStatement = conn.prepareStatement(m_deleteUserSql);
-            removeUserStatement.setString(1, username);
-            removeUserStatement.execute();
+            jdbcTemplate.idempotentUpdate(m_deleteUserSql, username);
         } catch (SQLException sqlExc) {
             sqlExc.printStackTrace();
             throw new UsersRepositoryException("Error accessing database", sqlExc);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(removeUserStatement);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
@@ -547,22 +535,20 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
      *            the user to update
      * @throws UsersRepositoryException
      */
-    protected void doUpdateUser(User user) throws UsersRepositoryException {
-        Connection conn = null;
-        PreparedStatement updateUserStatement = null;
-
+    protected void doUpdateUser(final User user) throws UsersRepositoryException {
         // Update the database.
         try {
-            conn = openConnection();
-            updateUserStatement = conn.prepareStatement(m_updateUserSql);
-            setUserForUpdateStatement(user, updateUserStatement);
-            updateUserStatement.execute();
+            jdbcTemplate.execute(m_updateUserSql, true, new JDBCTemplate.ConnectionCallback<Void>() {
+                public Void doInConnection(StatementCache statements) throws SQLException {
+                    PreparedStatement updateUserStatement = statements.prepare(m_updateUserSql);
+                    setUserForUpdateStatement(user, updateUserStatement);
+                    updateUserStatement.execute();
+                    return null;
+                }
+            });
         } catch (SQLException sqlExc) {
             sqlExc.printStackTrace();
             throw new UsersRepositoryException("Error accessing database", sqlExc);
-        } finally {
-            theJDBCUtil.closeJDBCStatement(updateUserStatement);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
@@ -615,40 +601,27 @@ public abstract class AbstractJdbcUsersRepository extends AbstractJamesUsersRepo
 
         // Always get the user via case-insensitive SQL,
         // then check case if necessary.
-        Connection conn = null;
-        PreparedStatement getUsersStatement = null;
-        ResultSet rsUsers = null;
         try {
-            conn = openConnection();
-            // Get a ResultSet containing all users.
-            String sql = m_userByNameCaseInsensitiveSql;
-            getUsersStatement = conn.prepareStatement(sql);
-
-            getUsersStatement.setString(1, name.toLowerCase(Locale.US));
-
-            rsUsers = getUsersStatement.executeQuery();
+            List<User> users = jdbcTemplate.queryForList(m_userByNameCaseInsensitiveSql, new JDBCTemplate.RowMapper<User>() {
+                public User mapRow(ResultSet rs) throws SQLException {
+                    return readUserFromResultSet(rs);
+                }
+            }, name.toLowerCase(Locale.US));
 
             // For case-insensitive matching, the first matching user will be
             // returned.
-            User user = null;
-            while (rsUsers.next()) {
-                User rowUser = readUserFromResultSet(rsUsers);
+            for (User rowUser : users) {
                 String actualName = rowUser.getUserName();
 
                 // Check case before we assume it's the right one.
                 if (ignoreCase || actualName.equals(name)) {
-                    user = rowUser;
-                    break;
+                    return rowUser;
                 }
             }
-            return user;
+            return null;
         } catch (SQLException sqlExc) {
             sqlExc.printStackTrace();
             throw new UsersRepositoryException("Error accessing database", sqlExc);
-        } finally {
-            theJDBCUtil.closeJDBCResultSet(rsUsers);
-            theJDBCUtil.closeJDBCStatement(getUsersStatement);
-            theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
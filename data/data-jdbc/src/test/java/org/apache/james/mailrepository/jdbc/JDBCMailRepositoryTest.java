@@ -19,14 +19,24 @@
 
 package org.apache.james.mailrepository.jdbc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
 import javax.sql.DataSource;
 
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.derby.jdbc.EmbeddedDriver;
+import org.apache.james.core.MailImpl;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
 import org.apache.james.mailrepository.AbstractMailRepositoryTest;
 import org.apache.james.mailrepository.api.MailRepository;
+import org.apache.mailet.Mail;
+import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
 public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
@@ -47,6 +57,7 @@ public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
         defaultConfiguration.addProperty("[@destinationURL]", "db://maildb/mr/testrepo");
         defaultConfiguration.addProperty("sqlFile", "file://conf/sqlResources.xml");
         defaultConfiguration.addProperty("[@type]", "MAIL");
+        configure(defaultConfiguration);
         mr.setFileSystem(fs);
         mr.setDatasource(datasource);
         mr.setLog(LoggerFactory.getLogger("MockLog"));
@@ -59,6 +70,30 @@ public class JDBCMailRepositoryTest extends AbstractMailRepositoryTest {
         return "db";
     }
 
+    /**
+     * Hook to add repository specific configuration
+     */
+    protected void configure(DefaultConfigurationBuilder configuration) {
+    }
+
+    @Test
+    public void testRemoveCollection() throws Exception {
+        Collection<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 3; i++) {
+            Mail copy = new MailImpl(mail, "mail" + i);
+            mailRepository.store(copy);
+            mails.add(copy);
+        }
+        Mail kept = new MailImpl(mail, "kept");
+        mailRepository.store(kept);
+
+        mailRepository.remove(mails);
+
+        Iterator<String> keys = mailRepository.list();
+        assertEquals("kept", keys.next());
+        assertFalse(keys.hasNext());
+    }
+
     private BasicDataSource getDataSource() {
         BasicDataSource ds = new BasicDataSource();
         ds.setDriverClassName(EmbeddedDriver.class.getName());
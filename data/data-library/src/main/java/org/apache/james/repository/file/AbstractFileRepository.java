@@ -29,7 +29,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -45,6 +47,12 @@ import org.slf4j.Logger;
 
 /**
  * This an abstract class implementing functionality for creating a file-store.
+ * <p>
+ * When <code>directoryLevels</code> is configured, the files are spread over
+ * that many levels of sub directories named after a hash of the file name, so
+ * that no single directory grows too large. The number of levels is recorded
+ * in the base directory. When it changes, or no level was recorded yet, the
+ * files found at any level are moved to their new directory on {@link #init()}.
  */
 public abstract class AbstractFileRepository implements Repository, Configurable, LogEnabled {
 
@@ -52,6 +60,13 @@ public abstract class AbstractFileRepository implements Repository, Configurable
 
     protected static final int BYTE_MASK = 0x0f;
 
+    protected static final int MAX_DIRECTORY_LEVELS = 4;
+
+    /**
+     * Suffix of the file which records the directory levels of a repository
+     */
+    private static final String LEVELS_SUFFIX = ".levels";
+
     protected static final char[] HEX_DIGITS = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
 
     protected String m_extension;
@@ -62,6 +77,11 @@ public abstract class AbstractFileRepository implements Repository, Configurable
 
     protected File m_baseDirectory;
 
+    /**
+     * Number of hashed sub directory levels, 0 for a flat layout
+     */
+    protected int m_directoryLevels;
+
     private FileSystem fileSystem;
 
     private Logger logger;
@@ -70,6 +90,10 @@ public abstract class AbstractFileRepository implements Repository, Configurable
 
     public void configure(HierarchicalConfiguration configuration) throws ConfigurationException {
         destination = configuration.getString("[@destinationURL]");
+        m_directoryLevels = configuration.getInt("[@directoryLevels]", 0);
+        if (m_directoryLevels < 0 || m_directoryLevels > MAX_DIRECTORY_LEVELS) {
+            throw new ConfigurationException("directoryLevels must be between 0 and " + MAX_DIRECTORY_LEVELS);
+        }
     }
 
     @Inject
@@ -145,6 +169,142 @@ public abstract class AbstractFileRepository implements Repository, Configurable
             throw e;
         }
 
+        checkDirectoryLevels();
+    }
+
+    /**
+     * Move the files to the directory of the configured layout if the layout
+     * recorded in the base directory is a different one. A missing record
+     * means the repository was written by a version which did not know about
+     * sub directories, or that a previous move was interrupted.
+     * 
+     * @throws IOException
+     *             get thrown if a sub directory or the record can not be
+     *             created
+     */
+    private void checkDirectoryLevels() throws IOException {
+        final File baseDirectory = new File(m_baseDirectory.getAbsolutePath());
+        final File levelsFile = new File(baseDirectory, m_name + getExtensionDecorator() + LEVELS_SUFFIX);
+        if (readDirectoryLevels(levelsFile) == m_directoryLevels) {
+            return;
+        }
+        final int moved = moveFiles(baseDirectory, 0);
+        if (moved > 0) {
+            getLogger().info("Moved " + moved + " files of " + baseDirectory + " to " + m_directoryLevels + " levels of sub directories");
+        }
+        final OutputStream out = new FileOutputStream(levelsFile);
+        try {
+            out.write(String.valueOf(m_directoryLevels).getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the recorded directory levels, or -1 if none are recorded
+     */
+    private int readDirectoryLevels(File levelsFile) throws IOException {
+        if (!levelsFile.isFile()) {
+            return -1;
+        }
+        final InputStream in = new FileInputStream(levelsFile);
+        try {
+            final StringBuilder levels = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                levels.append((char) c);
+            }
+            return Integer.parseInt(levels.toString().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Move the files of the given directory and of its hashed sub directories
+     * to the directory they belong to, and remove the sub directories which
+     * end up empty.
+     * 
+     * @param directory
+     *            the directory to visit
+     * @param level
+     *            the level of the directory, 0 for the base directory
+     * @return the number of files moved
+     * @throws IOException
+     *             get thrown if a sub directory can not be created
+     */
+    private int moveFiles(File directory, int level) throws IOException {
+        int moved = 0;
+        final String[] names = directory.list(m_filter);
+        if (names != null) {
+            for (String name : names) {
+                File origFile = new File(directory, name);
+                File newDirectory = getDirectory(name);
+                if (!origFile.isFile() || newDirectory.equals(directory)) {
+                    continue;
+                }
+                File newFile = new File(newDirectory, name);
+                createParentDirectory(newFile);
+                if (origFile.renameTo(newFile)) {
+                    moved++;
+                } else {
+                    getLogger().warn("Unable to move " + origFile + " to " + newFile);
+                }
+            }
+        }
+        if (level < MAX_DIRECTORY_LEVELS) {
+            final String[] children = directory.list(SUB_DIRECTORY_FILTER);
+            if (children != null) {
+                for (String child : children) {
+                    File subDirectory = new File(directory, child);
+                    if (subDirectory.isDirectory()) {
+                        moved += moveFiles(subDirectory, level + 1);
+                        // only succeeds if nothing is left in it
+                        subDirectory.delete();
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Return the directory holding the file with the given name
+     * 
+     * @param fileName
+     *            the encoded file name
+     * @return directory the base directory or one of its hashed sub directories
+     */
+    protected File getDirectory(final String fileName) {
+        if (m_directoryLevels == 0) {
+            return m_baseDirectory;
+        }
+        // Spread the bits of the hash, file names usually share long
+        // prefixes and differ only in a few characters
+        int hash = fileName.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        StringBuilder path = new StringBuilder(m_baseDirectory.getAbsolutePath());
+        for (int level = 0; level < m_directoryLevels; level++) {
+            path.append(File.separatorChar);
+            path.append(HEX_DIGITS[(hash >>> 4) & BYTE_MASK]);
+            path.append(HEX_DIGITS[hash & BYTE_MASK]);
+            hash >>>= 8;
+        }
+        return new File(path.toString());
+    }
+
+    private void createParentDirectory(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
     }
 
     /**
@@ -194,6 +354,7 @@ public abstract class AbstractFileRepository implements Repository, Configurable
 
         child.setFileSystem(fileSystem);
         child.setLog(logger);
+        child.m_directoryLevels = m_directoryLevels;
 
         try {
             child.setDestination(m_baseDirectory.getAbsolutePath() + File.pathSeparatorChar + childName + File.pathSeparator);
@@ -255,7 +416,11 @@ public abstract class AbstractFileRepository implements Repository, Configurable
      *             get thrown on IO error
      */
     protected OutputStream getOutputStream(final String key) throws IOException {
-        return new FileOutputStream(getFile(key));
+        final File file = getFile(key);
+        if (m_directoryLevels > 0) {
+            createParentDirectory(file);
+        }
+        return new FileOutputStream(file);
     }
 
     /**
@@ -295,10 +460,14 @@ public abstract class AbstractFileRepository implements Repository, Configurable
     }
 
     /**
-     * Returns the list of used keys.
+     * Returns the list of used keys. With hashed sub directories the keys are
+     * read one directory at a time while iterating.
      */
     public Iterator<String> list() {
         final File storeDir = new File(m_baseDirectory.getAbsolutePath());
+        if (m_directoryLevels > 0) {
+            return new KeyIterator(storeDir);
+        }
         final String[] names = storeDir.list(m_filter);
         final List<String> list = new ArrayList<String>();
 
@@ -333,11 +502,10 @@ public abstract class AbstractFileRepository implements Repository, Configurable
         }
 
         StringBuilder result = new StringBuilder();
-        result.append(m_baseDirectory.getAbsolutePath());
-        result.append(File.separator);
         result.append(buffer);
         result.append(m_extension);
-        return result.toString();
+        String fileName = result.toString();
+        return getDirectory(fileName).getAbsolutePath() + File.separator + fileName;
     }
 
     /**
@@ -361,4 +529,75 @@ public abstract class AbstractFileRepository implements Repository, Configurable
 
         return new String(bytes);
     }
+
+    /**
+     * Iterates over the keys of a repository with hashed sub directories,
+     * listing a single directory at a time.
+     */
+    private final class KeyIterator implements Iterator<String> {
+
+        /**
+         * Sub directories still to visit, with their level
+         */
+        private final LinkedList<File> directories = new LinkedList<File>();
+
+        private final LinkedList<Integer> levels = new LinkedList<Integer>();
+
+        private String[] names = new String[0];
+
+        private int position;
+
+        private KeyIterator(File baseDirectory) {
+            directories.add(baseDirectory);
+            levels.add(0);
+        }
+
+        public boolean hasNext() {
+            while (position >= names.length) {
+                if (directories.isEmpty()) {
+                    return false;
+                }
+                File directory = directories.removeFirst();
+                int level = levels.removeFirst();
+                if (level < m_directoryLevels) {
+                    String[] children = directory.list(SUB_DIRECTORY_FILTER);
+                    if (children != null) {
+                        for (String child : children) {
+                            directories.add(new File(directory, child));
+                            levels.add(level + 1);
+                        }
+                    }
+                } else {
+                    String[] files = directory.list(m_filter);
+                    names = files == null ? new String[0] : files;
+                    position = 0;
+                }
+            }
+            return true;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return decode(names[position++]);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Accepts the names of hashed sub directories
+     */
+    private static final FilenameFilter SUB_DIRECTORY_FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.length() == 2 && isHexDigit(name.charAt(0)) && isHexDigit(name.charAt(1));
+        }
+
+        private boolean isHexDigit(char c) {
+            return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
+        }
+    };
 }
@@ -19,9 +19,6 @@
 
 package org.apache.james.transport.mailets;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.StringReader;
 import java.sql.Connection;
 import java.text.DecimalFormat;
 import java.util.Collection;
@@ -33,6 +30,7 @@ import javax.mail.internet.MimeMessage;
 import javax.sql.DataSource;
 
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.util.bayesian.CorpusJournal;
 import org.apache.james.util.bayesian.JDBCBayesianAnalyzer;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.mailet.Mail;
@@ -61,9 +59,10 @@ import org.apache.mailet.base.RFC2822Headers;
  * The analysis capabilities are based on token frequencies (the <i>Corpus</i>)
  * learned through a training process (see {@link BayesianAnalysisFeeder}) and
  * stored in a JDBC database. After a training session, the Corpus must be
- * rebuilt from the database in order to acquire the new frequencies. Every 10
- * minutes a special thread in this mailet will check if any change was made to
- * the database by the feeder, and rebuild the corpus if necessary.
+ * rebuilt in order to acquire the new frequencies. Every 5 seconds a special
+ * thread in this mailet will check if the feeder trained new messages, and
+ * apply these changes to the corpus if necessary, even before they are stored
+ * in the database. The whole corpus is reloaded from the database once a day.
  * </p>
  * 
  * <p>
@@ -94,8 +93,9 @@ import org.apache.mailet.base.RFC2822Headers;
  *   --&gt;
  *   &lt;ignoreLocalSender&gt;true&lt;/ignoreLocalSender&gt;
  *   &lt;!--
- *     Set this to the maximum message size (in bytes) that a message may have
- *     to be considered spam (default is 100000).
+ *     Set this to the maximum number of characters of the headers and text
+ *     parts of a message which are scanned (default is 100000). Binary
+ *     attachments are never scanned.
  *   --&gt;
  *   &lt;maxSize&gt;100000&lt;/maxSize&gt;
  *   &lt;!--
@@ -146,7 +146,8 @@ public class BayesianAnalysis extends GenericMailet {
 
     private static final String MAIL_ATTRIBUTE_NAME = "org.apache.james.spam.probability";
     private static final String HEADER_NAME = "X-MessageIsSpamProbability";
-    private static final long CORPUS_RELOAD_INTERVAL = 600000;
+    private static final long CORPUS_RELOAD_INTERVAL = 5000;
+    private static final long CORPUS_FULL_RELOAD_INTERVAL = 24 * 3600000;
     private String headerName;
     private boolean ignoreLocalSender = false;
     private boolean tagSubject = true;
@@ -170,6 +171,11 @@ public class BayesianAnalysis extends GenericMailet {
      */
     private long lastCorpusLoadTime;
 
+    /**
+     * Time of the last load of the whole corpus from the database.
+     */
+    private long lastCorpusFullLoadTime;
+
     private FileSystem fs;
 
     /**
@@ -214,11 +220,12 @@ public class BayesianAnalysis extends GenericMailet {
     }
 
     /**
-     * Sets lastCorpusLoadTime to System.currentTimeMillis().
+     * Sets lastCorpusLoadTime to the time the last load started at. Updates
+     * done from then on will be loaded next time.
      */
-    private void touchLastCorpusLoadTime() {
+    private void touchLastCorpusLoadTime(long loadStartTime) {
 
-        this.lastCorpusLoadTime = System.currentTimeMillis();
+        this.lastCorpusLoadTime = loadStartTime;
     }
 
     /**
@@ -265,6 +272,10 @@ public class BayesianAnalysis extends GenericMailet {
 
     private void initDb() throws MessagingException {
 
+        // share the journal with the BayesianAnalysisFeeder mailets of the
+        // database
+        analyzer.setJournal(CorpusJournal.getInstance(datasource));
+
         try {
             analyzer.initSqlQueries(datasource.getConnection(), fs.getFile("file://conf/sqlResources.xml"));
         } catch (Exception e) {
@@ -304,16 +315,7 @@ public class BayesianAnalysis extends GenericMailet {
                 return;
             }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            double probability;
-
-            if (message.getSize() < getMaxSize()) {
-                message.writeTo(baos);
-                probability = analyzer.computeSpamProbability(new BufferedReader(new StringReader(baos.toString())));
-            } else {
-                probability = 0.0;
-            }
+            double probability = analyzer.computeSpamProbability(message, getMaxSize());
 
             mail.setAttribute(MAIL_ATTRIBUTE_NAME, probability);
             message.setHeader(headerName, Double.toString(probability));
@@ -346,19 +348,18 @@ public class BayesianAnalysis extends GenericMailet {
     }
 
     private void loadData(Connection conn) throws java.sql.SQLException {
+        long loadStartTime = System.currentTimeMillis();
 
         try {
             // this is synchronized to avoid concurrent update of the corpus
             synchronized (JDBCBayesianAnalyzer.DATABASE_LOCK) {
-                analyzer.tokenCountsClear();
-                analyzer.loadHamNSpam(conn);
-                analyzer.buildCorpus();
-                analyzer.tokenCountsClear();
+                analyzer.loadCorpus(conn);
             }
 
             log("BayesianAnalysis Corpus loaded");
 
-            touchLastCorpusLoadTime();
+            touchLastCorpusLoadTime(loadStartTime);
+            lastCorpusFullLoadTime = loadStartTime;
 
         } finally {
             if (conn != null) {
@@ -368,6 +369,22 @@ public class BayesianAnalysis extends GenericMailet {
 
     }
 
+    /**
+     * Brings the corpus up to date with the changes done by the feeder, and
+     * reloads it from the database when they are not all known or when the
+     * last full load is too old.
+     */
+    private void reloadData() throws java.sql.SQLException {
+        long loadStartTime = System.currentTimeMillis();
+        if (loadStartTime - lastCorpusFullLoadTime < CORPUS_FULL_RELOAD_INTERVAL && analyzer.loadCorpusDelta()) {
+            touchLastCorpusLoadTime(loadStartTime);
+            return;
+        }
+        log("Reloading Corpus ...");
+        loadData(datasource.getConnection());
+        log("Corpus reloaded");
+    }
+
     private String getAddressesString(Collection<MailAddress> addresses) {
         if (addresses == null) {
             return "null";
@@ -429,11 +446,11 @@ public class BayesianAnalysis extends GenericMailet {
                 Thread.sleep(CORPUS_RELOAD_INTERVAL);
 
                 while (true) {
-                    if (analysis.getLastCorpusLoadTime() < JDBCBayesianAnalyzer.getLastDatabaseUpdateTime()) {
-                        analysis.log("Reloading Corpus ...");
+                    // updates done in the same millisecond as the last load
+                    // may not be part of it
+                    if (analysis.getLastCorpusLoadTime() <= JDBCBayesianAnalyzer.getLastDatabaseUpdateTime()) {
                         try {
-                            analysis.loadData(analysis.datasource.getConnection());
-                            analysis.log("Corpus reloaded");
+                            analysis.reloadData();
                         } catch (java.sql.SQLException se) {
                             analysis.log("SQLException: ", se);
                         }
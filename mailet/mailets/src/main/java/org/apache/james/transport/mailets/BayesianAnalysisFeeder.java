@@ -19,19 +19,24 @@
 
 package org.apache.james.transport.mailets;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.StringReader;
 import java.sql.Connection;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
-import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.sql.DataSource;
 
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.util.bayesian.BayesianAnalyzer;
+import org.apache.james.util.bayesian.CorpusJournal;
 import org.apache.james.util.bayesian.JDBCBayesianAnalyzer;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.mailet.Mail;
@@ -58,18 +63,23 @@ import org.apache.mailet.base.GenericMailet;
  *     &lt;repositoryPath&gt; db://maildb &lt;/repositoryPath&gt;
  *     &lt;feedType&gt;ham&lt;/feedType&gt;
  *     &lt;!--
- *       Set this to the maximum message size (in bytes) that a message may have
- *       to be analyzed (default is 100000).
+ *       Set this to the maximum number of characters of a message which are
+ *       analyzed (default is 100000).
  *     --&gt;
  *     &lt;maxSize&gt;100000&lt;/maxSize&gt;
+ *     &lt;!--
+ *       Set this to the interval (in milliseconds) at which the trained
+ *       messages are stored in the database (default is 5000).
+ *     --&gt;
+ *     &lt;flushInterval&gt;5000&lt;/flushInterval&gt;
  *   &lt;/mailet&gt;
  * 
  *   &lt;mailet match="RecipientIs=spam@thisdomain.com" class="BayesianAnalysisFeeder"&gt;
  *     &lt;repositoryPath&gt; db://maildb &lt;/repositoryPath&gt;
  *     &lt;feedType&gt;spam&lt;/feedType&gt;
  *     &lt;!--
- *       Set this to the maximum message size (in bytes) that a message may have
- *       to be analyzed (default is 100000).
+ *       Set this to the maximum number of characters of a message which are
+ *       analyzed (default is 100000).
  *     --&gt;
  *     &lt;maxSize&gt;100000&lt;/maxSize&gt;
  *   &lt;/mailet&gt;
@@ -103,22 +113,23 @@ import org.apache.mailet.base.GenericMailet;
  * <p>
  * <b>The correct approach is to send the original ham/spam message as an
  * attachment to another message sent to the feeder; all the headers of the
- * enveloping message will be removed and only the original message's tokens
- * will be analyzed.</b>
+ * enveloping message will be ignored and only the original message's tokens
+ * will be analyzed.</b> Binary attachments are never analyzed.
  * </p>
  * 
  * <p>
  * After a training session, the frequency <i>Corpus</i> used by
- * <code>BayesianAnalysis</code> must be rebuilt from the database, in order to
- * take advantage of the new token frequencies. Every 10 minutes a special
- * thread in the <code>BayesianAnalysis</code> mailet will check if any change
- * was made to the database, and rebuild the corpus if necessary.
+ * <code>BayesianAnalysis</code> must be updated, in order to take advantage of
+ * the new token frequencies. Every 5 seconds a special thread in the
+ * <code>BayesianAnalysis</code> mailet will check if any message was trained,
+ * and update the corpus if necessary.
  * </p>
  * 
  * <p>
- * Only one message at a time is scanned (the database update activity is
- * <i>synchronized</i>) in order to avoid too much database locking, as
- * thousands of rows may be updated just for one message fed.
+ * Messages are scanned concurrently and their token frequencies are added up
+ * in memory. They are stored in the database in one transaction every
+ * <code>flushInterval</code> milliseconds, in order to avoid too much database
+ * locking, as thousands of rows may be updated just for one message fed.
  * </p>
  * 
  * @see BayesianAnalysis
@@ -150,6 +161,31 @@ public class BayesianAnalysisFeeder extends GenericMailet {
 
     private String feedType;
 
+    private static final long DEFAULT_FLUSH_INTERVAL = 5000;
+
+    /**
+     * Guards the pending token frequencies
+     */
+    private final Object pendingLock = new Object();
+
+    /**
+     * Token frequencies trained and not stored in the database yet
+     */
+    private Map<String, Integer> pendingHamTokenCounts = new HashMap<String, Integer>();
+
+    private Map<String, Integer> pendingSpamTokenCounts = new HashMap<String, Integer>();
+
+    private int pendingHamMessageCount;
+
+    private int pendingSpamMessageCount;
+
+    /**
+     * Journal sequence numbers of the pending updates
+     */
+    private List<Long> pendingSequences = new ArrayList<Long>();
+
+    private ScheduledExecutorService flusher;
+
     /**
      * Return a string describing this mailet.
      * 
@@ -221,12 +257,49 @@ public class BayesianAnalysisFeeder extends GenericMailet {
         }
         log("maxSize: " + getMaxSize());
 
+        long flushInterval = DEFAULT_FLUSH_INTERVAL;
+        String flushIntervalParam = getInitParameter("flushInterval");
+        if (flushIntervalParam != null) {
+            flushInterval = Long.parseLong(flushIntervalParam);
+        }
+        log("flushInterval: " + flushInterval);
+
         initDb();
 
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BayesianAnalysisFeeder Flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores the pending token frequencies before shutting down.
+     */
+    public void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
     }
 
     private void initDb() throws MessagingException {
 
+        // share the journal with the BayesianAnalysis mailets of the database
+        analyzer.setJournal(CorpusJournal.getInstance(datasource));
+
         try {
             analyzer.initSqlQueries(datasource.getConnection(), fs.getFile("file://conf/sqlResources.xml"));
         } catch (Exception e) {
@@ -236,43 +309,102 @@ public class BayesianAnalysisFeeder extends GenericMailet {
     }
 
     /**
-     * Scans the mail and updates the token frequencies in the database.
-     * 
-     * The method is synchronized in order to avoid too much database locking,
-     * as thousands of rows may be updated just for one message fed.
+     * Scans the mail and adds its token frequencies to the pending ones, which
+     * are stored in the database later on.
      * 
      * @param mail
      *            The Mail message to be scanned.
      */
     public void service(Mail mail) {
-        boolean dbUpdated = false;
-
         mail.setState(Mail.GHOST);
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        Connection conn = null;
-
         try {
 
             MimeMessage message = mail.getMessage();
 
             String messageId = message.getMessageID();
 
-            if (message.getSize() > getMaxSize()) {
-                log(messageId + " Feeding HAM/SPAM ignored because message size > " + getMaxSize() + ": " + message.getSize());
-                return;
+            // use a new analyzer for each message, so that messages can be
+            // scanned concurrently
+            BayesianAnalyzer tokens = new BayesianAnalyzer();
+
+            if ("ham".equalsIgnoreCase(feedType)) {
+                log(messageId + " Feeding HAM");
+                // Process the stream as ham (not spam).
+                tokens.addHam(message, false, getMaxSize());
+            } else {
+                log(messageId + " Feeding SPAM");
+                // Process the stream as spam.
+                tokens.addSpam(message, false, getMaxSize());
+            }
+
+            synchronized (pendingLock) {
+                // make the training visible to BayesianAnalysis right away
+                pendingSequences.add(analyzer.recordUpdate(tokens.getHamTokenCounts(), tokens.getSpamTokenCounts(), tokens.getHamMessageCount(), tokens.getSpamMessageCount()));
+                addPending(tokens.getHamTokenCounts(), tokens.getSpamTokenCounts(), tokens.getHamMessageCount(), tokens.getSpamMessageCount());
             }
 
-            clearAllHeaders(message);
+            log(messageId + " Training ended successfully");
+
+        } catch (java.io.IOException ioe) {
+            log("IOException: " + ioe.getMessage());
+        } catch (javax.mail.MessagingException me) {
+            log("MessagingException: " + me.getMessage());
+        }
+    }
+
+    /**
+     * Adds token frequencies to the pending ones. The caller must hold
+     * pendingLock.
+     */
+    private void addPending(Map<String, Integer> hamTokenCounts, Map<String, Integer> spamTokenCounts, int hamMessageCount, int spamMessageCount) {
+        add(hamTokenCounts, pendingHamTokenCounts);
+        add(spamTokenCounts, pendingSpamTokenCounts);
+        pendingHamMessageCount += hamMessageCount;
+        pendingSpamMessageCount += spamMessageCount;
+    }
 
-            message.writeTo(baos);
+    private void add(Map<String, Integer> tokenCounts, Map<String, Integer> target) {
+        for (Map.Entry<String, Integer> entry : tokenCounts.entrySet()) {
+            Integer value = target.get(entry.getKey());
+            target.put(entry.getKey(), value == null ? entry.getValue() : value + entry.getValue());
+        }
+    }
 
-            BufferedReader br = new BufferedReader(new StringReader(baos.toString()));
+    /**
+     * Stores the pending token frequencies in the database, in one
+     * transaction. They are kept for the next flush if it fails.
+     */
+    private void flush() {
+        // this is synchronized to avoid concurrent update of the corpus
+        synchronized (JDBCBayesianAnalyzer.DATABASE_LOCK) {
+            Map<String, Integer> hamTokenCounts;
+            Map<String, Integer> spamTokenCounts;
+            int hamMessageCount;
+            int spamMessageCount;
+            List<Long> sequences;
+
+            synchronized (pendingLock) {
+                if (pendingHamMessageCount == 0 && pendingSpamMessageCount == 0) {
+                    return;
+                }
+                hamTokenCounts = pendingHamTokenCounts;
+                spamTokenCounts = pendingSpamTokenCounts;
+                hamMessageCount = pendingHamMessageCount;
+                spamMessageCount = pendingSpamMessageCount;
+                sequences = pendingSequences;
+
+                pendingHamTokenCounts = new HashMap<String, Integer>();
+                pendingSpamTokenCounts = new HashMap<String, Integer>();
+                pendingHamMessageCount = 0;
+                pendingSpamMessageCount = 0;
+                pendingSequences = new ArrayList<Long>();
+            }
 
-            // this is synchronized to avoid concurrent update of the corpus
-            synchronized (JDBCBayesianAnalyzer.DATABASE_LOCK) {
+            boolean dbUpdated = false;
+            Connection conn = null;
 
+            try {
                 conn = datasource.getConnection();
 
                 if (conn.getAutoCommit()) {
@@ -281,65 +413,45 @@ public class BayesianAnalysisFeeder extends GenericMailet {
 
                 dbUpdated = true;
 
-                // Clear out any existing word/counts etc..
-                analyzer.clear();
-
-                if ("ham".equalsIgnoreCase(feedType)) {
-                    log(messageId + " Feeding HAM");
-                    // Process the stream as ham (not spam).
-                    analyzer.addHam(br);
+                analyzer.setHamTokenCounts(hamTokenCounts);
+                analyzer.setSpamTokenCounts(spamTokenCounts);
+                analyzer.setHamMessageCount(hamMessageCount);
+                analyzer.setSpamMessageCount(spamMessageCount);
 
-                    // Update storage statistics.
+                // Update storage statistics.
+                if (hamMessageCount > 0) {
                     analyzer.updateHamTokens(conn);
-                } else {
-                    log(messageId + " Feeding SPAM");
-                    // Process the stream as spam.
-                    analyzer.addSpam(br);
-
-                    // Update storage statistics.
+                }
+                if (spamMessageCount > 0) {
                     analyzer.updateSpamTokens(conn);
                 }
 
-                // Commit our changes if necessary.
-                if (conn != null && dbUpdated && !conn.getAutoCommit()) {
-                    conn.commit();
-                    dbUpdated = false;
-                    log(messageId + " Training ended successfully");
-                    JDBCBayesianAnalyzer.touchLastDatabaseUpdateTime();
-                }
+                conn.commit();
+                dbUpdated = false;
+                analyzer.markStored(sequences);
 
-            }
+                log("Stored the training of " + (hamMessageCount + spamMessageCount) + " messages");
 
-        } catch (java.sql.SQLException se) {
-            log("SQLException: " + se.getMessage());
-        } catch (java.io.IOException ioe) {
-            log("IOException: " + ioe.getMessage());
-        } catch (javax.mail.MessagingException me) {
-            log("MessagingException: " + me.getMessage());
-        } finally {
-            // Rollback our changes if necessary.
-            try {
-                if (conn != null && dbUpdated && !conn.getAutoCommit()) {
-                    conn.rollback();
-                    dbUpdated = false;
-                }
-            } catch (Exception e) {
-            }
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
-    }
+            } catch (java.sql.SQLException se) {
+                log("SQLException: " + se.getMessage());
 
-    private void clearAllHeaders(MimeMessage message) throws javax.mail.MessagingException {
-        Enumeration headers = message.getAllHeaders();
-
-        while (headers.hasMoreElements()) {
-            Header header = (Header) headers.nextElement();
-            try {
-                message.removeHeader(header.getName());
-            } catch (javax.mail.MessagingException me) {
+                // retry with the next flush
+                synchronized (pendingLock) {
+                    addPending(hamTokenCounts, spamTokenCounts, hamMessageCount, spamMessageCount);
+                    pendingSequences.addAll(sequences);
+                }
+            } finally {
+                // Rollback our changes if necessary.
+                try {
+                    if (conn != null && dbUpdated && !conn.getAutoCommit()) {
+                        conn.rollback();
+                        dbUpdated = false;
+                    }
+                } catch (Exception e) {
+                }
+                theJDBCUtil.closeJDBCConnection(conn);
             }
         }
-        message.saveChanges();
     }
 
 }
@@ -165,4 +165,14 @@ public class LocalDelivery extends GenericMailet {
         
     }
 
+    /**
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    public void destroy() {
+        if (sieveMailet != null) {
+            sieveMailet.destroy();
+        }
+        super.destroy();
+    }
+
 }
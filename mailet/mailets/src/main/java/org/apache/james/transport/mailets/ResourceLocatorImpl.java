@@ -46,25 +46,73 @@ public class ResourceLocatorImpl implements ResourceLocator {
     }
 
     public InputStream get(String uri) throws IOException {
+        File sieveFile = getScriptFile(getScriptOwner(uri));
+        if (sieveFile == null) {
+            throw new FileNotFoundException("No sieve script for " + uri);
+        }
+        return new FileInputStream(sieveFile);
+    }
+
+    /**
+     * Return the name the sieve script of the given uri is stored under
+     * 
+     * @param uri
+     *            The uri of the script
+     * @return owner
+     */
+    public String getScriptOwner(String uri) {
         // Use the complete email address for finding the sieve file
         uri = uri.substring(2);
+        return getOwner(uri.substring(0, uri.indexOf("/")));
+    }
 
-        String username;
-        if (virtualHosting) {
-            username = uri.substring(0, uri.indexOf("/"));
-        } else {
-            username = uri.substring(0, uri.indexOf("@"));
+    /**
+     * Return the name the sieve script of the given user is stored under.
+     * Without virtual hosting the domain is not part of the name, so
+     * <code>user</code> and <code>user@localhost</code> use the same script.
+     * 
+     * @param user
+     *            The user, with or without domain
+     * @return owner
+     */
+    public String getOwner(String user) {
+        if (!virtualHosting) {
+            int i = user.indexOf("@");
+            if (i >= 0) {
+                return user.substring(0, i);
+            }
         }
+        return user;
+    }
 
+    /**
+     * Return the sieve script of the given owner
+     * 
+     * @param owner
+     *            The name returned by {@link #getScriptOwner(String)}
+     * @return script or null if the owner has no script
+     * @throws IOException
+     */
+    public File getScriptFile(String owner) throws IOException {
         // RFC 5228 permits extensions: .siv .sieve
-        String sieveFilePrefix = FileSystem.FILE_PROTOCOL + "sieve/" + username + ".";
-        File sieveFile;
+        String sieveFilePrefix = FileSystem.FILE_PROTOCOL + "sieve/" + owner + ".";
+        File sieveFile = getExistingFile(sieveFilePrefix + "sieve");
+        if (sieveFile == null) {
+            sieveFile = getExistingFile(sieveFilePrefix + "siv");
+        }
+        return sieveFile;
+    }
+
+    private File getExistingFile(String url) throws IOException {
         try {
-            sieveFile = fileSystem.getFile(sieveFilePrefix + "sieve");
+            File file = fileSystem.getFile(url);
+            if (file.isFile()) {
+                return file;
+            }
         } catch (FileNotFoundException ex) {
-            sieveFile = fileSystem.getFile(sieveFilePrefix + "siv");
+            // try the next one
         }
-        return new FileInputStream(sieveFile);
+        return null;
     }
 
 }
@@ -19,12 +19,16 @@
 
 package org.apache.james.transport.mailets;
 
+import javax.inject.Inject;
+import javax.inject.Named;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.james.jspf.core.Logger;
 import org.apache.james.jspf.executor.SPFResult;
 import org.apache.james.jspf.impl.DefaultSPF;
+import org.apache.james.util.spf.SPFCheckResult;
+import org.apache.james.util.spf.SPFResultCache;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
@@ -40,6 +44,10 @@ import org.apache.mailet.MailAddress;
  * </code>
  * </pre>
  * 
+ * If the SMTP server already checked the mail, its result is used. Otherwise
+ * the result is taken from the SPF cache shared with the SMTP server, unless
+ * <code>useCache</code> is false.
+ * 
  * Sample configuration:
  * 
  * <pre>
@@ -52,9 +60,24 @@ import org.apache.mailet.MailAddress;
 public class SPF extends GenericMailet {
     private boolean addHeader = false;
     private org.apache.james.jspf.impl.SPF spf;
+    private SPFResultCache sharedCache = new SPFResultCache();
+    private SPFResultCache cache;
+    private SPFResultCache.Evaluator evaluator;
     public final static String EXPLANATION_ATTRIBUTE = "org.apache.james.transport.mailets.spf.explanation";
     public final static String RESULT_ATTRIBUTE = "org.apache.james.transport.mailets.spf.result";
 
+    /**
+     * Set the cache which is shared with the SMTP server. Without one the
+     * mailet uses its own.
+     * 
+     * @param cache
+     *            the cache
+     */
+    @Inject
+    public void setSPFResultCache(@Named("spfresultcache") SPFResultCache cache) {
+        this.sharedCache = cache;
+    }
+
     /**
      * @see org.apache.mailet.base.GenericMailet#init()
      */
@@ -63,6 +86,15 @@ public class SPF extends GenericMailet {
         SPFLoggerAdapter logger = new SPFLoggerAdapter(Boolean.valueOf(getInitParameter("debug", "false")));
 
         spf = new DefaultSPF(logger);
+        evaluator = new SPFResultCache.Evaluator() {
+            public SPFCheckResult evaluate(String ip, String sender, String helo) {
+                SPFResult result = spf.checkSPF(ip, sender, helo);
+                return new SPFCheckResult(ip, sender, helo, result.getResult(), result.getExplanation(), result.getHeaderName(), result.getHeaderText());
+            }
+        };
+        if (Boolean.valueOf(getInitParameter("useCache", "true"))) {
+            cache = sharedCache;
+        }
     }
 
     /**
@@ -80,7 +112,15 @@ public class SPF extends GenericMailet {
             } else {
                 sender = "";
             }
-            SPFResult result = spf.checkSPF(remoteAddr, sender, helo);
+            SPFCheckResult result = null;
+            Object smtpResult = mail.getAttribute(SPFCheckResult.MAIL_ATTRIBUTE_NAME);
+            if (smtpResult instanceof SPFCheckResult && ((SPFCheckResult) smtpResult).matches(remoteAddr, sender)) {
+                result = (SPFCheckResult) smtpResult;
+            } else if (cache != null) {
+                result = cache.get(remoteAddr, sender, helo, evaluator);
+            } else {
+                result = evaluator.evaluate(remoteAddr, sender, helo);
+            }
             mail.setAttribute(EXPLANATION_ATTRIBUTE, result.getExplanation());
             mail.setAttribute(RESULT_ATTRIBUTE, result.getResult());
 
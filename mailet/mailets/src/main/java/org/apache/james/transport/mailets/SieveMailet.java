@@ -18,38 +18,93 @@
  ****************************************************************/
 package org.apache.james.transport.mailets;
 
-import java.util.Date;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import javax.inject.Inject;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.james.adapter.mailbox.delivery.MailboxDelivery;
+import org.apache.james.adapter.mailbox.delivery.SharedMessageContent;
 import org.apache.james.core.MimeMessageInputStream;
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.filesystem.api.SieveFileRepository;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
-import org.apache.james.mailbox.MessageManager;
 import org.apache.james.mailbox.exception.BadCredentialsException;
 import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.MailboxNotFoundException;
 import org.apache.james.mailbox.model.MailboxConstants;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.transport.util.MailetContextLog;
+import org.apache.james.transport.util.SieveScriptCache;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.jsieve.ConfigurationManager;
+import org.apache.jsieve.SieveFactory;
+import org.apache.jsieve.exception.SieveException;
+import org.apache.jsieve.mailet.ActionDispatcher;
 import org.apache.jsieve.mailet.Poster;
+import org.apache.jsieve.mailet.SieveMailAdapter;
 import org.apache.jsieve.mailet.SieveMailboxMailet;
+import org.apache.jsieve.parser.generated.Node;
+import org.apache.jsieve.parser.generated.ParseException;
+import org.apache.jsieve.parser.generated.TokenMgrError;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.MailetConfig;
 
 /**
  * Contains resource bindings.
+ * <p>
+ * The parsed sieve scripts are kept in a {@link SieveScriptCache}, so a script
+ * is only parsed again when it was changed. The statistics of the cache are
+ * exposed in JMX under the name of the mailet.
+ * <p>
+ * All recipients of a mail are delivered in one {@link MailboxDelivery.Batch}.
+ * The message is read only once and its content is shared by all mailboxes,
+ * only the delivery header differs per recipient.
  */
 public class SieveMailet extends SieveMailboxMailet implements Poster {
     private UsersRepository usersRepos;
     private MailboxManager mailboxManager;
     private FileSystem fileSystem;
     private String folder;
+    private ResourceLocatorImpl locator;
+    private SieveFactory factory;
+    private ActionDispatcher actionDispatcher;
+    private SieveScriptCache<Node> scriptCache;
+    private MailboxDelivery delivery;
+    private String deliveryHeader;
+    private final ThreadLocal<DeliveryContext> currentDelivery = new ThreadLocal<DeliveryContext>();
+
+    private final SieveScriptCache.Loader<Node> scriptLoader = new SieveScriptCache.Loader<Node>() {
+        public File locate(String user) throws IOException {
+            return locator.getScriptFile(user);
+        }
+
+        public Node parse(File script) throws IOException, MessagingException {
+            InputStream in = new FileInputStream(script);
+            try {
+                return factory.parse(in);
+            } catch (ParseException e) {
+                throw new ScriptException(e);
+            } catch (TokenMgrError e) {
+                throw new ScriptException(new SieveException(e));
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    private final SieveFileRepository.ScriptChangeListener scriptChangeListener = new SieveFileRepository.ScriptChangeListener() {
+        public void scriptChanged(String user) {
+            scriptCache.invalidate(locator.getOwner(user));
+        }
+    };
 
     @Inject
     public void setUsersRepository(UsersRepository usersRepos) {
@@ -84,12 +139,104 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
     public void init(MailetConfig config) throws MessagingException {
         // ATM Fixed implementation
         try {
-            setLocator(new ResourceLocatorImpl(usersRepos.supportVirtualHosting(), fileSystem));
+            locator = new ResourceLocatorImpl(usersRepos.supportVirtualHosting(), fileSystem);
         } catch (UsersRepositoryException e) {
             throw new MessagingException("Unable to access UsersRepository", e);
         }
+        setLocator(locator);
         setPoster(this);
         super.init(config);
+        delivery = new MailboxDelivery(mailboxManager);
+        deliveryHeader = config.getInitParameter("addDeliveryHeader");
+        try {
+            factory = new ConfigurationManager().build();
+        } catch (SieveException e) {
+            throw new MessagingException("Unable to configure sieve", e);
+        }
+        actionDispatcher = new ActionDispatcher();
+        scriptCache = new SieveScriptCache<Node>(SieveScriptCache.DEFAULT_NEGATIVE_TIME_TO_LIVE, SieveScriptCache.DEFAULT_MAX_ENTRIES, config.getMailetName());
+        SieveFileRepository.addScriptChangeListener(scriptChangeListener);
+    }
+
+    /**
+     * Stop listening for script changes and unregister the statistics of the
+     * cache
+     * 
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    @Override
+    public void destroy() {
+        SieveFileRepository.removeScriptChangeListener(scriptChangeListener);
+        if (scriptCache != null) {
+            scriptCache.dispose();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Deliver the mail to all recipients in one batch
+     * 
+     * @see org.apache.jsieve.mailet.SieveMailboxMailet#service(org.apache.mailet.Mail)
+     */
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        DeliveryContext context = new DeliveryContext();
+        currentDelivery.set(context);
+        try {
+            super.service(mail);
+        } finally {
+            currentDelivery.remove();
+            context.close();
+        }
+    }
+
+    /**
+     * Evaluate the cached sieve script of the recipient. Mails of users
+     * without a valid script are stored in the INBOX.
+     * 
+     * @see org.apache.jsieve.mailet.SieveMailboxMailet#sieveMessage(org.apache.mailet.MailAddress,
+     *      org.apache.mailet.Mail)
+     */
+    @Override
+    protected void sieveMessage(MailAddress recipient, Mail aMail) throws MessagingException {
+        String username = getUsername(recipient);
+        String owner = locator.getScriptOwner(getScriptUri(recipient));
+        Node script;
+        try {
+            script = scriptCache.get(owner, scriptLoader);
+        } catch (ScriptException e) {
+            storeFailureNotice(recipient, aMail, e.getError());
+            return;
+        } catch (IOException e) {
+            log("Cannot read Sieve script. Storing mail in user INBOX.", e);
+            storeInInbox(username, aMail.getMessage());
+            return;
+        }
+        if (script == null) {
+            storeInInbox(username, aMail.getMessage());
+            return;
+        }
+        try {
+            factory.evaluate(new SieveMailAdapter(aMail, getMailetContext(), actionDispatcher, this), script);
+        } catch (SieveException e) {
+            storeFailureNotice(recipient, aMail, e);
+        }
+    }
+
+    /**
+     * Store a notice about the failed script together with the original mail
+     * in the INBOX of the user, the way jSieve does
+     */
+    private void storeFailureNotice(MailAddress recipient, Mail aMail, Exception ex) throws MessagingException {
+        try {
+            super.handleFailure(recipient, aMail, ex);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to store the sieve error notice", e);
+        }
+    }
+
+    private void storeInInbox(String username, MimeMessage message) throws MessagingException {
+        post("mailbox://" + username + "/", message);
     }
 
     /**
@@ -184,56 +331,45 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
                         throw new MessagingException("Unable to accessUsersRepository", e);
                     }
 
-                    MailboxSession session;
-                    try {
-                        session = mailboxManager.createSystemSession(user, new MailetContextLog(getMailetContext()));
-                    } catch (BadCredentialsException e) {
-                        throw new MessagingException("Unable to authenticate to mailbox", e);
-                    } catch (MailboxException e) {
-                        throw new MessagingException("Can not access mailbox", e);
-                    }
-
-                    // Start processing request
-                    mailboxManager.startProcessingRequest(session);
-
-                    // This allows Sieve scripts to use a standard delimiter
-                    // regardless of mailbox implementation
-                    String destination = urlPath.replace('/', session.getPathDelimiter());
-
-                    if (destination == null || "".equals(destination)) {
-                        destination = this.folder;
+                    DeliveryContext context = currentDelivery.get();
+                    boolean ownContext = context == null;
+                    if (ownContext) {
+                        context = new DeliveryContext();
                     }
-                    if (destination.startsWith(session.getPathDelimiter() + ""))
-                        destination = destination.substring(1);
-
-                    // Use the MailboxSession to construct the MailboxPath - See
-                    // JAMES-1326
-                    final MailboxPath path = new MailboxPath(MailboxConstants.USER_NAMESPACE, user, destination);
                     try {
-                        if (this.folder.equalsIgnoreCase(destination) && !(mailboxManager.mailboxExists(path, session))) {
-                            mailboxManager.createMailbox(path, session);
-                        }
-                        final MessageManager mailbox = mailboxManager.getMailbox(path, session);
-                        if (mailbox == null) {
-                            final String error = "Mailbox for user " + user + " was not found on this server.";
-                            throw new MessagingException(error);
+                        MailboxSession session;
+                        try {
+                            session = context.batch.getSession(user);
+                        } catch (BadCredentialsException e) {
+                            throw new MessagingException("Unable to authenticate to mailbox", e);
+                        } catch (MailboxException e) {
+                            throw new MessagingException("Can not access mailbox", e);
                         }
 
-                        mailbox.appendMessage(new MimeMessageInputStream(mail), new Date(), session, true, null);
+                        // This allows Sieve scripts to use a standard delimiter
+                        // regardless of mailbox implementation
+                        String destination = urlPath.replace('/', session.getPathDelimiter());
 
-                    } catch (MailboxException e) {
-                        throw new MessagingException("Unable to access mailbox.", e);
-                    } finally {
-                        session.close();
+                        if (destination == null || "".equals(destination)) {
+                            destination = this.folder;
+                        }
+                        if (destination.startsWith(session.getPathDelimiter() + ""))
+                            destination = destination.substring(1);
+
+                        // Use the MailboxSession to construct the MailboxPath - See
+                        // JAMES-1326
+                        final MailboxPath path = new MailboxPath(MailboxConstants.USER_NAMESPACE, user, destination);
                         try {
-                            mailboxManager.logout(session, true);
+                            context.batch.append(session, path, this.folder.equalsIgnoreCase(destination), context.getContent(mail));
+                        } catch (MailboxNotFoundException e) {
+                            throw new MessagingException("Mailbox for user " + user + " was not found on this server.");
                         } catch (MailboxException e) {
-                            throw new MessagingException("Can logout from mailbox", e);
+                            throw new MessagingException("Unable to access mailbox.", e);
+                        }
+                    } finally {
+                        if (ownContext) {
+                            context.close();
                         }
-
-                        // Stop processing request
-                        mailboxManager.endProcessingRequest(session);
-
                     }
                 }
 
@@ -248,4 +384,91 @@ public class SieveMailet extends SieveMailboxMailet implements Poster {
         }
     }
 
+    /**
+     * Carries a parse error of a sieve script out of the
+     * {@link SieveScriptCache}
+     */
+    private static final class ScriptException extends MessagingException {
+        private static final long serialVersionUID = 1L;
+
+        private final Exception error;
+
+        public ScriptException(Exception error) {
+            super(error.getMessage());
+            this.error = error;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * The deliveries of the mail which is processed by the current thread
+     */
+    private final class DeliveryContext {
+        private final MailboxDelivery.Batch batch = delivery.newBatch(new MailetContextLog(getMailetContext()));
+        private MimeMessage message;
+        private SharedMessageContent content;
+
+        /**
+         * Return the content of the given message. It is read once, without
+         * the delivery header which differs for every recipient. The message
+         * itself is not modified, as it is shared with the other mailets.
+         */
+        public InputStream getContent(MimeMessage mail) throws MessagingException {
+            String[] delivered = null;
+            if (deliveryHeader != null) {
+                delivered = mail.getHeader(deliveryHeader);
+            }
+            if (mail != message) {
+                disposeContent();
+                try {
+                    InputStream in = new MimeMessageInputStream(mail);
+                    try {
+                        if (deliveryHeader != null) {
+                            content = new SharedMessageContent(in, deliveryHeader);
+                        } else {
+                            content = new SharedMessageContent(in);
+                        }
+                        message = mail;
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new MessagingException("Unable to read message", e);
+                }
+            }
+            try {
+                if (delivered == null) {
+                    return content.newInputStream();
+                }
+                StringBuilder prefix = new StringBuilder();
+                for (String value : delivered) {
+                    prefix.append(deliveryHeader).append(": ").append(value).append("\r\n");
+                }
+                return content.newInputStream(prefix.toString().getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new MessagingException("Unable to read message", e);
+            }
+        }
+
+        private void disposeContent() {
+            if (content != null) {
+                content.dispose();
+                content = null;
+                message = null;
+            }
+        }
+
+        public void close() throws MessagingException {
+            disposeContent();
+            try {
+                batch.close();
+            } catch (MailboxException e) {
+                throw new MessagingException("Can logout from mailbox", e);
+            }
+        }
+    }
+
 }
@@ -20,6 +20,7 @@
 package org.apache.james.transport.mailets;
 
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.Mail;
 
@@ -35,6 +36,14 @@ import javax.mail.internet.MimeMessage;
  * value of YES. The default host for spamd is localhost and the default port is
  * 783.
  * 
+ * The optional parameters connectTimeout and readTimeout (in ms, default 5000
+ * and 30000) bound the time spent waiting for spamd. If maxConcurrentScans is
+ * set at most this count of messages are scanned at the same time, and if
+ * maxMessageSize (in bytes) is set bigger messages are not scanned. Both
+ * default to 0, which means no limit. Messages which are not scanned get no
+ * attributes. The statistics of the client are exposed in JMX under the
+ * optional jmxName (default spamassassin).
+ * 
  * <pre>
  * <code>
  *  org.apache.james.spamassassin.status - Holds the status
@@ -48,6 +57,11 @@ import javax.mail.internet.MimeMessage;
  * &lt;mailet notmatch="SenderHostIsLocal" class="SpamAssassin"&gt;
  * &lt;spamdHost&gt;localhost&lt;/spamdHost&gt;
  * &lt;spamdPort&gt;783&lt;/spamdPort&gt;
+ * &lt;connectTimeout&gt;5000&lt;/connectTimeout&gt;
+ * &lt;readTimeout&gt;30000&lt;/readTimeout&gt;
+ * &lt;maxConcurrentScans&gt;20&lt;/maxConcurrentScans&gt;
+ * &lt;maxMessageSize&gt;524288&lt;/maxMessageSize&gt;
+ * &lt;jmxName&gt;spamassassin&lt;/jmxName&gt;
  * </pre>
  */
 public class SpamAssassin extends GenericMailet {
@@ -56,6 +70,8 @@ public class SpamAssassin extends GenericMailet {
 
     int spamdPort;
 
+    private SpamdClient client;
+
     /**
      * @see org.apache.mailet.base.GenericMailet#init()
      */
@@ -76,6 +92,41 @@ public class SpamAssassin extends GenericMailet {
                 throw new MessagingException("Please configure a valid port. Not valid: " + spamdPort);
             }
         }
+
+        int connectTimeout = (int) getLongParameter("connectTimeout", SpamdClient.DEFAULT_CONNECT_TIMEOUT);
+        int readTimeout = (int) getLongParameter("readTimeout", SpamdClient.DEFAULT_READ_TIMEOUT);
+        int maxConcurrentScans = (int) getLongParameter("maxConcurrentScans", SpamdClient.DEFAULT_MAX_CONCURRENT_SCANS);
+        long maxMessageSize = getLongParameter("maxMessageSize", SpamdClient.DEFAULT_MAX_MESSAGE_SIZE);
+        if (maxConcurrentScans < 0) {
+            throw new MessagingException("Please configure a valid maxConcurrentScans. Not valid: " + maxConcurrentScans);
+        }
+        String jmxName = getInitParameter("jmxName");
+        if (jmxName == null || jmxName.equals("")) {
+            jmxName = "spamassassin";
+        }
+        client = new SpamdClient(spamdHost, spamdPort, connectTimeout, readTimeout, maxConcurrentScans, maxMessageSize, jmxName);
+    }
+
+    /**
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    public void destroy() {
+        if (client != null) {
+            client.dispose();
+            client = null;
+        }
+    }
+
+    private long getLongParameter(String name, long defaultValue) throws MessagingException {
+        String value = getInitParameter(name);
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Please configure a valid " + name + ". Not valid: " + value);
+        }
     }
 
     /**
@@ -86,8 +137,11 @@ public class SpamAssassin extends GenericMailet {
             MimeMessage message = mail.getMessage();
 
             // Invoke spamassian connection and scan the message
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
+            SpamAssassinInvoker sa = new SpamAssassinInvoker(client);
             sa.scanMail(message);
+            if (!sa.isScanned()) {
+                return;
+            }
 
             // Add headers as attribute to mail object
             for (String key : sa.getHeadersAsAttribute().keySet()) {
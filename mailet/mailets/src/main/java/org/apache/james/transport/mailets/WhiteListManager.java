@@ -46,6 +46,7 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.sql.DataSource;
 
+import org.apache.james.transport.util.WhitelistCache;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.model.JamesUser;
 import org.apache.james.util.sql.JDBCUtil;
@@ -308,6 +309,7 @@ public class WhiteListManager extends GenericMailet {
         PreparedStatement selectStmt = null;
         PreparedStatement insertStmt = null;
         boolean dbUpdated = false;
+        boolean modified = false;
 
         try {
 
@@ -349,6 +351,7 @@ public class WhiteListManager extends GenericMailet {
                     insertStmt.setString(4, recipientHost);
                     insertStmt.executeUpdate();
                     dbUpdated = true;
+                    modified = true;
 
                 } finally {
                     theJDBCUtil.closeJDBCResultSet(selectRS);
@@ -375,6 +378,9 @@ public class WhiteListManager extends GenericMailet {
             } catch (Exception e) {
             }
             theJDBCUtil.closeJDBCConnection(conn);
+            if (modified) {
+                WhitelistCache.invalidate(senderUser, senderHost);
+            }
         }
     }
 
@@ -440,6 +446,7 @@ public class WhiteListManager extends GenericMailet {
         PreparedStatement selectStmt = null;
         PreparedStatement insertStmt = null;
         boolean dbUpdated = false;
+        boolean modified = false;
 
         StringWriter sout = new StringWriter();
         PrintWriter out = new PrintWriter(sout, true);
@@ -499,6 +506,7 @@ public class WhiteListManager extends GenericMailet {
                         insertStmt.setString(4, recipientHost);
                         insertStmt.executeUpdate();
                         dbUpdated = true;
+                        modified = true;
                         out.println("Inserted: " + recipientMailAddress);
 
                     } finally {
@@ -543,6 +551,9 @@ public class WhiteListManager extends GenericMailet {
             } catch (Exception e) {
             }
             theJDBCUtil.closeJDBCConnection(conn);
+            if (modified) {
+                WhitelistCache.invalidate(senderUser, senderHost);
+            }
         }
     }
 
@@ -560,6 +571,7 @@ public class WhiteListManager extends GenericMailet {
         PreparedStatement selectStmt = null;
         PreparedStatement deleteStmt = null;
         boolean dbUpdated = false;
+        boolean modified = false;
 
         StringWriter sout = new StringWriter();
         PrintWriter out = new PrintWriter(sout, true);
@@ -619,6 +631,7 @@ public class WhiteListManager extends GenericMailet {
                         deleteStmt.setString(4, recipientHost);
                         deleteStmt.executeUpdate();
                         dbUpdated = true;
+                        modified = true;
                         out.println("Removed: " + recipientMailAddress);
 
                     } finally {
@@ -663,6 +676,9 @@ public class WhiteListManager extends GenericMailet {
             } catch (Exception e) {
             }
             theJDBCUtil.closeJDBCConnection(conn);
+            if (modified) {
+                WhitelistCache.invalidate(senderUser, senderHost);
+            }
         }
     }
 
@@ -38,6 +38,7 @@ import org.apache.james.filesystem.api.FileSystem;
 import org.apache.james.transport.mailets.WhiteListManager;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.model.JamesUser;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
 import org.apache.mailet.Mail;
@@ -90,6 +91,11 @@ public abstract class AbstractSQLWhitelistMatcher extends GenericMatcher {
      */
     protected final SqlResources sqlQueries = new SqlResources();
 
+    /**
+     * The shared JDBC access layer
+     */
+    protected JDBCTemplate jdbcTemplate;
+
     private FileSystem fs;
 
     @Inject
@@ -115,6 +121,7 @@ public abstract class AbstractSQLWhitelistMatcher extends GenericMatcher {
         } catch (Exception e) {
             throw new MessagingException("Exception initializing queries", e);
         }
+        jdbcTemplate = new JDBCTemplate(datasource, theJDBCUtil);
 
         super.init();
     }
@@ -19,25 +19,13 @@
 
 package org.apache.james.transport.matchers;
 
-import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
 
 import javax.inject.Inject;
 import javax.mail.MessagingException;
 
-import org.apache.james.mailbox.MailboxManager;
-import org.apache.james.mailbox.MailboxSession;
-import org.apache.james.mailbox.MessageManager;
-import org.apache.james.mailbox.exception.BadCredentialsException;
 import org.apache.james.mailbox.exception.MailboxException;
-import org.apache.james.mailbox.model.FetchGroupImpl;
-import org.apache.james.mailbox.model.MailboxMetaData;
-import org.apache.james.mailbox.model.MailboxPath;
-import org.apache.james.mailbox.model.MailboxQuery;
-import org.apache.james.mailbox.model.MessageRange;
-import org.apache.james.mailbox.model.MessageResult;
-import org.apache.james.transport.util.MailetContextLog;
+import org.apache.james.transport.util.QuotaUsageTracker;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.api.UsersRepositoryException;
 import org.apache.mailet.Mail;
@@ -55,20 +43,20 @@ import org.apache.mailet.MailetContext;
  * user or common to all of them).
  * </p>
  * <p>
- * This matcher need to calculate the mailbox size every time it is called. This
- * can slow down things if there are many mails in the mailbox. Some users also
- * report big problems with the matcher if a JDBC based mailrepository is used.
+ * The used storage is looked up in the {@link QuotaUsageTracker}, which keeps
+ * it up to date from the mailbox events. The inbox only needs to be scanned the
+ * first time a recipient is checked.
  * </p>
  * 
  * @since 2.2.0
  */
 abstract public class AbstractStorageQuota extends AbstractQuotaMatcher {
 
-    private MailboxManager manager;
+    private QuotaUsageTracker usageTracker;
 
     @Inject
-    public void setMailboxManager(MailboxManager manager) {
-        this.manager = manager;
+    public void setQuotaUsageTracker(QuotaUsageTracker usageTracker) {
+        this.usageTracker = usageTracker;
     }
 
     @Inject
@@ -82,8 +70,6 @@ abstract public class AbstractStorageQuota extends AbstractQuotaMatcher {
      */
     private UsersRepository localUsers;
 
-    private MailetContextLog log;
-
     /**
      * Checks the recipient.<br>
      * Does a <code>super.isRecipientChecked</code> and checks that the
@@ -99,14 +85,6 @@ abstract public class AbstractStorageQuota extends AbstractQuotaMatcher {
         return super.isRecipientChecked(recipient) && (mailetContext.isLocalEmail(recipient));
     }
 
-    @Override
-    public void init() throws MessagingException {
-        super.init();
-
-        // init the log
-        log = new MailetContextLog(getMailetContext());
-    }
-
     /**
      * Gets the storage used in the recipient's inbox.
      * 
@@ -115,48 +93,26 @@ abstract public class AbstractStorageQuota extends AbstractQuotaMatcher {
      */
     @Override
     protected long getUsed(MailAddress recipient, Mail _) throws MessagingException {
-        long size = 0;
-        MailboxSession session;
+        String username;
         try {
-            String username;
-            try {
-                // see if we need use the full email address as username or not.
-                // See JAMES-1197
-                if (localUsers.supportVirtualHosting()) {
-                    username = recipient.toString().toLowerCase(Locale.US);
-                }
-                else {
-                    username = recipient.getLocalPart().toLowerCase(Locale.US);
-                }
+            // see if we need use the full email address as username or not.
+            // See JAMES-1197
+            if (localUsers.supportVirtualHosting()) {
+                username = recipient.toString().toLowerCase(Locale.US);
             }
-            catch (UsersRepositoryException e) {
-                throw new MessagingException("Unable to access UsersRepository", e);
+            else {
+                username = recipient.getLocalPart().toLowerCase(Locale.US);
             }
-            session = manager.createSystemSession(username, log);
-            manager.startProcessingRequest(session);
-
-            // get all mailboxes for the user to calculate the size
-            // TODO: See JAMES-1198
-            List<MailboxMetaData> mList = manager.search(
-                    new MailboxQuery(MailboxPath.inbox(session), "", session.getPathDelimiter()), session);
-            for (MailboxMetaData aMList : mList) {
-                MessageManager mailbox = manager.getMailbox(aMList.getPath(), session);
-                Iterator<MessageResult> results = mailbox.getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL,
-                        session);
-                while (results.hasNext()) {
-                    size += results.next().getSize();
-                }
-            }
-            manager.endProcessingRequest(session);
-            manager.logout(session, true);
         }
-        catch (BadCredentialsException e) {
-            throw new MessagingException("Unable to authenticate to mailbox", e);
+        catch (UsersRepositoryException e) {
+            throw new MessagingException("Unable to access UsersRepository", e);
+        }
+
+        try {
+            return usageTracker.getUsedBytes(username);
         }
         catch (MailboxException e) {
             throw new MessagingException("Unable to get used space from mailbox", e);
         }
-
-        return size;
     }
 }
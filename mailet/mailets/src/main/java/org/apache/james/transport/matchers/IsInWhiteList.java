@@ -19,14 +19,16 @@
 
 package org.apache.james.transport.matchers;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 
+import org.apache.james.transport.util.WhitelistCache;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 
@@ -40,6 +42,11 @@ import org.apache.mailet.MailAddress;
  * aliases).
  * </p>
  * <p>
+ * The whitelist of each recipient is loaded once and cached, changes done by
+ * the {@link org.apache.james.transport.mailets.WhiteListManager} are visible
+ * immediately, changes done directly in the database after a few minutes.
+ * </p>
+ * <p>
  * Configuration string: The database name containing the white list table.
  * </p>
  * <p>
@@ -58,12 +65,30 @@ import org.apache.mailet.MailAddress;
  */
 public class IsInWhiteList extends AbstractSQLWhitelistMatcher {
 
-    private String selectByPK;
+    private String selectBySender;
+
+    /** Holds the whitelisted remoteUser@remoteHost entries of each recipient */
+    private final WhitelistCache<Set<String>> whitelists = new WhitelistCache<Set<String>>();
+
+    private final WhitelistCache.Loader<Set<String>> whitelistLoader = new WhitelistCache.Loader<Set<String>>() {
+        public Set<String> load(String localUser, String localHost) throws MessagingException {
+            try {
+                return new HashSet<String>(jdbcTemplate.queryForList(selectBySender, new JDBCTemplate.RowMapper<String>() {
+                    public String mapRow(ResultSet rs) throws SQLException {
+                        return rs.getString(1) + "@" + rs.getString(2);
+                    }
+                }, localUser, localHost));
+            } catch (SQLException sqle) {
+                log("Error accessing database", sqle);
+                throw new MessagingException("Exception thrown", sqle);
+            }
+        }
+    };
 
     @Override
     public void init() throws javax.mail.MessagingException {
         super.init();
-        selectByPK = sqlQueries.getSqlString("selectByPK", true);
+        selectBySender = sqlQueries.getSqlString("selectBySender", true);
     }
 
     /**
@@ -82,76 +107,21 @@ public class IsInWhiteList extends AbstractSQLWhitelistMatcher {
         String senderUser = senderMailAddress.getLocalPart().toLowerCase(Locale.US);
         String senderHost = senderMailAddress.getDomain().toLowerCase(Locale.US);
 
-        Connection conn = null;
-        PreparedStatement selectStmt = null;
-        ResultSet selectRS = null;
-        try {
-            String recipientUser = recipientMailAddress.getLocalPart().toLowerCase(Locale.US);
-            String recipientHost = recipientMailAddress.getDomain().toLowerCase(Locale.US);
+        String recipientUser = recipientMailAddress.getLocalPart().toLowerCase(Locale.US);
+        String recipientHost = recipientMailAddress.getDomain().toLowerCase(Locale.US);
 
-            if (conn == null) {
-                conn = datasource.getConnection();
-            }
+        String exact = senderUser + "@" + senderHost;
+        String wildcard = "*@" + senderHost;
 
-            if (selectStmt == null) {
-                selectStmt = conn.prepareStatement(selectByPK);
-            }
-            selectStmt.setString(1, recipientUser);
-            selectStmt.setString(2, recipientHost);
-            selectStmt.setString(3, senderUser);
-            selectStmt.setString(4, senderHost);
-            selectRS = selectStmt.executeQuery();
-            if (selectRS.next()) {
-                // This address was already in the list
-                return true;
-            }
-
-            // check for wildcard domain entries
-            selectStmt = conn.prepareStatement(selectByPK);
-
-            selectStmt.setString(1, recipientUser);
-            selectStmt.setString(2, recipientHost);
-            selectStmt.setString(3, "*");
-            selectStmt.setString(4, senderHost);
-            selectRS = selectStmt.executeQuery();
-            if (selectRS.next()) {
-                // This address was already in the list
-                return true;
-            }
-
-            // check for wildcard recipient domain entries
-            selectStmt = conn.prepareStatement(selectByPK);
-
-            selectStmt.setString(1, "*");
-            selectStmt.setString(2, recipientHost);
-            selectStmt.setString(3, senderUser);
-            selectStmt.setString(4, senderHost);
-            selectRS = selectStmt.executeQuery();
-            if (selectRS.next()) {
-                // This address was already in the list
-                return true;
-            }
-            // check for wildcard domain entries on both
-            selectStmt = conn.prepareStatement(selectByPK);
-
-            selectStmt.setString(1, "*");
-            selectStmt.setString(2, recipientHost);
-            selectStmt.setString(3, "*");
-            selectStmt.setString(4, senderHost);
-            selectRS = selectStmt.executeQuery();
-            if (selectRS.next()) {
-                // This address was already in the list
-                return true;
-            }
-        } catch (SQLException sqle) {
-            log("Error accessing database", sqle);
-            throw new MessagingException("Exception thrown", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCResultSet(selectRS);
-            theJDBCUtil.closeJDBCStatement(selectStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+        // check the exact and the wildcard domain entries of the recipient
+        Set<String> whitelist = whitelists.get(recipientUser, recipientHost, whitelistLoader);
+        if (whitelist.contains(exact) || whitelist.contains(wildcard)) {
+            return true;
         }
-        return false;
+
+        // check the entries for the whole recipient domain
+        whitelist = whitelists.get("*", recipientHost, whitelistLoader);
+        return whitelist.contains(exact) || whitelist.contains(wildcard);
     }
 
     /**
@@ -18,11 +18,8 @@
  ****************************************************************/
 package org.apache.james.transport.matchers;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -31,6 +28,8 @@ import javax.mail.MessagingException;
 
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
+import org.apache.james.transport.util.WhitelistCache;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 
@@ -45,12 +44,34 @@ import org.apache.mailet.MailAddress;
  * <p>
  * Th whitelisting is done per recipient
  * </p>
+ * <p>
+ * The networks of each recipient are loaded once and cached for a few minutes
+ * </p>
  */
 public class NetworkIsInWhitelist extends AbstractSQLWhitelistMatcher {
 
     private DNSService dns;
     private String selectNetworks;
 
+    /** Holds the whitelisted networks of each recipient */
+    private final WhitelistCache<NetMatcher> whitelists = new WhitelistCache<NetMatcher>();
+
+    private final WhitelistCache.Loader<NetMatcher> whitelistLoader = new WhitelistCache.Loader<NetMatcher>() {
+        public NetMatcher load(String localUser, String localHost) throws MessagingException {
+            try {
+                List<String> nets = jdbcTemplate.queryForList(selectNetworks, new JDBCTemplate.RowMapper<String>() {
+                    public String mapRow(ResultSet rs) throws SQLException {
+                        return rs.getString(1);
+                    }
+                }, localUser, localHost);
+                return new NetMatcher(nets, dns);
+            } catch (SQLException sqle) {
+                log("Error accessing database", sqle);
+                throw new MessagingException("Exception thrown", sqle);
+            }
+        }
+    };
+
     /**
      * Injection setter for the DNSService.
      * 
@@ -80,51 +101,13 @@ public class NetworkIsInWhitelist extends AbstractSQLWhitelistMatcher {
      * #matchedWhitelist(org.apache.mailet.MailAddress, org.apache.mailet.Mail)
      */
     protected boolean matchedWhitelist(MailAddress recipientMailAddress, Mail mail) throws MessagingException {
-        Connection conn = null;
-        PreparedStatement selectStmt = null;
-        ResultSet selectRS = null;
-        try {
-            String recipientUser = recipientMailAddress.getLocalPart().toLowerCase(Locale.US);
-            String recipientHost = recipientMailAddress.getDomain().toLowerCase(Locale.US);
-
-            if (conn == null) {
-                conn = datasource.getConnection();
-            }
+        String recipientUser = recipientMailAddress.getLocalPart().toLowerCase(Locale.US);
+        String recipientHost = recipientMailAddress.getDomain().toLowerCase(Locale.US);
 
-            if (selectStmt == null) {
-                selectStmt = conn.prepareStatement(selectNetworks);
-            }
-            selectStmt.setString(1, recipientUser);
-            selectStmt.setString(2, recipientHost);
-            selectRS = selectStmt.executeQuery();
-            List<String> nets = new ArrayList<String>();
-            while (selectRS.next()) {
-                nets.add(selectRS.getString(1));
-            }
-            NetMatcher matcher = new NetMatcher(nets, dns);
-            boolean matched = matcher.matchInetNetwork(mail.getRemoteAddr());
-
-            if (!matched) {
-                selectStmt = conn.prepareStatement(selectNetworks);
-                selectStmt.setString(1, "*");
-                selectStmt.setString(2, recipientHost);
-                selectRS = selectStmt.executeQuery();
-                nets = new ArrayList<String>();
-                while (selectRS.next()) {
-                    nets.add(selectRS.getString(1));
-                }
-                matcher = new NetMatcher(nets, dns);
-                matched = matcher.matchInetNetwork(mail.getRemoteAddr());
-            }
-            return matched;
-        } catch (SQLException sqle) {
-            log("Error accessing database", sqle);
-            throw new MessagingException("Exception thrown", sqle);
-        } finally {
-            theJDBCUtil.closeJDBCResultSet(selectRS);
-            theJDBCUtil.closeJDBCStatement(selectStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+        if (whitelists.get(recipientUser, recipientHost, whitelistLoader).matchInetNetwork(mail.getRemoteAddr())) {
+            return true;
         }
+        return whitelists.get("*", recipientHost, whitelistLoader).matchInetNetwork(mail.getRemoteAddr());
     }
 
     /**
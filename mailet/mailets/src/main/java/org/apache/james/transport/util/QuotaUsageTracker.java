@@ -0,0 +1,591 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.lifecycle.api.LogEnabled;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.FetchGroupImpl;
+import org.apache.james.mailbox.model.MailboxMetaData;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MailboxQuery;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.slf4j.Logger;
+
+/**
+ * Keeps track of the storage used by the inbox of each user, so that quota
+ * matchers do not need to scan the whole mailbox for every recipient.
+ * <p>
+ * The usage is updated incrementally from the {@link MailboxListener} events
+ * fired by the {@link MailboxManager}, which covers every delivery path
+ * (LocalDelivery, SieveMailet, LMTP, IMAP APPEND) as well as expunges. A user
+ * which is not tracked yet is scanned once on first access.
+ * </p>
+ * <p>
+ * The counters are saved periodically to a properties file, so that they
+ * survive a restart, and are reconciled against a full scan from time to time
+ * to correct any drift.
+ * </p>
+ */
+public class QuotaUsageTracker implements MailboxListener, LogEnabled {
+
+    public final static String DEFAULT_STORAGE_URL = "file://var/quota/usage.properties";
+
+    private final static String INBOX = "INBOX";
+
+    private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+
+    /**
+     * The first scans running, the usage is only published once complete
+     */
+    private final ConcurrentMap<String, Scan> scans = new ConcurrentHashMap<String, Scan>();
+
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    private MailboxManager manager;
+
+    private FileSystem fileSystem;
+
+    private Logger log;
+
+    private String storageURL = DEFAULT_STORAGE_URL;
+
+    private long reconcileInterval = TimeUnit.HOURS.toMillis(6);
+
+    private long saveInterval = TimeUnit.MINUTES.toMillis(5);
+
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public void setMailboxManager(MailboxManager manager) {
+        this.manager = manager;
+    }
+
+    @Inject
+    public void setFileSystem(@Named("filesystem") FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.LogEnabled#setLog(org.slf4j.Logger)
+     */
+    public void setLog(Logger log) {
+        this.log = log;
+    }
+
+    /**
+     * Set the url of the file in which the usage is persisted
+     * 
+     * @param storageURL
+     */
+    public void setStorageURL(String storageURL) {
+        this.storageURL = storageURL;
+    }
+
+    /**
+     * Set the interval in milliseconds between two reconciliations against
+     * the mailboxes. A value &lt;= 0 disables the reconciliation.
+     * 
+     * @param reconcileInterval
+     */
+    public void setReconcileInterval(long reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * Set the interval in milliseconds between two saves of the usage
+     * 
+     * @param saveInterval
+     */
+    public void setSaveInterval(long saveInterval) {
+        this.saveInterval = saveInterval;
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        load();
+
+        MailboxSession session = manager.createSystemSession("quota-usage-tracker", log);
+        manager.addGlobalListener(this, session);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "QuotaUsageTracker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (saveInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    save();
+                }
+            }, saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+        }
+        if (reconcileInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    reconcileAll();
+                }
+            }, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        save();
+    }
+
+    /**
+     * Return the number of bytes stored in the inbox of the given user
+     * 
+     * @param username
+     * @return usedBytes
+     * @throws MailboxException
+     */
+    public long getUsedBytes(String username) throws MailboxException {
+        return getUsage(username).bytes.get();
+    }
+
+    /**
+     * Return the number of messages stored in the inbox of the given user
+     * 
+     * @param username
+     * @return usedMessages
+     * @throws MailboxException
+     */
+    public long getUsedMessages(String username) throws MailboxException {
+        return getUsage(username).messages.get();
+    }
+
+    private Usage getUsage(String username) throws MailboxException {
+        String key = username.toLowerCase(Locale.US);
+        Usage usage = usages.get(key);
+        if (usage != null) {
+            return usage;
+        }
+
+        // only one thread scans the inbox, the others wait for its result
+        Scan scan = new Scan();
+        Scan running = scans.putIfAbsent(key, scan);
+        if (running != null) {
+            return running.await();
+        }
+        usage = usages.get(key);
+        if (usage != null) {
+            // published in the meantime
+            scans.remove(key, scan);
+            scan.complete(usage, null);
+            return usage;
+        }
+
+        try {
+            usage = new Usage();
+            scan(key, usage, scan.seen);
+            synchronized (scan) {
+                // merge the changes the scan may have missed
+                for (Change change : scan.changes) {
+                    change.mergeInto(usage, scan.seen);
+                }
+                if (!scan.invalidated) {
+                    usages.put(key, usage);
+                    dirty.set(true);
+                }
+                scan.complete(usage, null);
+            }
+            return usage;
+        } catch (MailboxException e) {
+            // nothing was published, retry on next access
+            scan.complete(null, e);
+            throw e;
+        } catch (RuntimeException e) {
+            scan.complete(null, new MailboxException("Unable to compute quota usage of " + key, e));
+            throw e;
+        } finally {
+            scans.remove(key, scan);
+        }
+    }
+
+    /**
+     * @see org.apache.james.mailbox.MailboxListener#event(org.apache.james.mailbox.MailboxListener.Event)
+     */
+    public void event(Event event) {
+        if (event instanceof MailboxRenamed) {
+            invalidate(event.getMailboxPath());
+            invalidate(((MailboxRenamed) event).getNewPath());
+        } else if (event instanceof MailboxDeletion) {
+            invalidate(event.getMailboxPath());
+        } else if (event instanceof Added) {
+            apply(event.getMailboxPath(), (MetaDataHoldingEvent) event, 1);
+        } else if (event instanceof Expunged) {
+            apply(event.getMailboxPath(), (MetaDataHoldingEvent) event, -1);
+        }
+    }
+
+    /**
+     * The tracker lives as long as the server does
+     */
+    public boolean isClosed() {
+        return false;
+    }
+
+    private void apply(MailboxPath path, MetaDataHoldingEvent event, int sign) {
+        if (!isInbox(path)) {
+            return;
+        }
+        String key = path.getUser().toLowerCase(Locale.US);
+        List<Long> uids = event.getUids();
+
+        // the scan running may or may not see the change, it is merged
+        // once the scan completed
+        Scan scan = scans.get(key);
+        if (scan != null) {
+            synchronized (scan) {
+                if (!scan.completed) {
+                    for (Long uid : uids) {
+                        scan.changes.add(new Change(uid, event.getMetaData(uid).getSize(), sign));
+                    }
+                    return;
+                }
+            }
+        }
+
+        // only track users which were already scanned, the others will be
+        // scanned on first access anyway
+        Usage usage = usages.get(key);
+        if (usage == null) {
+            return;
+        }
+        long bytes = 0;
+        for (Long uid : uids) {
+            bytes += event.getMetaData(uid).getSize();
+        }
+        synchronized (usage) {
+            usage.changes.incrementAndGet();
+            usage.bytes.addAndGet(sign * bytes);
+            usage.messages.addAndGet(sign * uids.size());
+        }
+        dirty.set(true);
+    }
+
+    private void invalidate(MailboxPath path) {
+        if (!isInbox(path)) {
+            return;
+        }
+        String key = path.getUser().toLowerCase(Locale.US);
+        Scan scan = scans.get(key);
+        if (scan != null) {
+            synchronized (scan) {
+                scan.invalidated = true;
+            }
+        }
+        if (usages.remove(key) != null) {
+            dirty.set(true);
+        }
+    }
+
+    private boolean isInbox(MailboxPath path) {
+        return path != null && path.getUser() != null && INBOX.equalsIgnoreCase(path.getName());
+    }
+
+    /**
+     * Scan the inbox of every tracked user and correct the stored usage
+     */
+    private void reconcileAll() {
+        for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+            try {
+                reconcile(entry.getKey(), entry.getValue());
+            } catch (MailboxException e) {
+                log.warn("Unable to reconcile quota usage of " + entry.getKey(), e);
+            } catch (RuntimeException e) {
+                log.warn("Unable to reconcile quota usage of " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Scan the inbox of the given user. The result is only stored if no event
+     * was applied while the scan was running, as the scan may or may not
+     * include the corresponding messages. The next reconciliation will pick
+     * it up then.
+     */
+    private void reconcile(String username, Usage usage) throws MailboxException {
+        long changes = usage.changes.get();
+        Usage scanned = new Usage();
+        scan(username, scanned, null);
+
+        synchronized (usage) {
+            if (usage.changes.get() == changes) {
+                long bytes = scanned.bytes.get();
+                long messages = scanned.messages.get();
+                if (usage.bytes.get() != bytes || usage.messages.get() != messages) {
+                    usage.bytes.set(bytes);
+                    usage.messages.set(messages);
+                    dirty.set(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the messages of the inbox of the given user to the usage
+     * 
+     * @param seen
+     *            if not null, the uids of the messages counted are added to it
+     */
+    private void scan(String username, Usage usage, Set<Long> seen) throws MailboxException {
+        long bytes = 0;
+        long messages = 0;
+
+        MailboxSession session = manager.createSystemSession(username, log);
+        manager.startProcessingRequest(session);
+        try {
+            // TODO: See JAMES-1198
+            List<MailboxMetaData> mList = manager.search(
+                    new MailboxQuery(MailboxPath.inbox(session), "", session.getPathDelimiter()), session);
+            for (MailboxMetaData aMList : mList) {
+                MessageManager mailbox = manager.getMailbox(aMList.getPath(), session);
+                Iterator<MessageResult> results = mailbox.getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL,
+                        session);
+                while (results.hasNext()) {
+                    MessageResult result = results.next();
+                    bytes += result.getSize();
+                    messages++;
+                    if (seen != null) {
+                        seen.add(result.getUid());
+                    }
+                }
+            }
+        } finally {
+            manager.endProcessingRequest(session);
+            manager.logout(session, true);
+        }
+
+        usage.bytes.addAndGet(bytes);
+        usage.messages.addAndGet(messages);
+    }
+
+    private void load() {
+        File file;
+        try {
+            file = fileSystem.getFile(storageURL);
+        } catch (IOException e) {
+            log.info("No quota usage found at " + storageURL + ", usage will be computed on demand");
+            return;
+        }
+        if (!file.exists()) {
+            return;
+        }
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+        } catch (IOException e) {
+            log.warn("Unable to load quota usage from " + file + ", usage will be computed on demand", e);
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+
+        for (String username : props.stringPropertyNames()) {
+            String value = props.getProperty(username);
+            int sep = value.indexOf(',');
+            try {
+                Usage usage = new Usage();
+                usage.bytes.set(Long.parseLong(value.substring(0, sep).trim()));
+                usage.messages.set(Long.parseLong(value.substring(sep + 1).trim()));
+                usages.put(username, usage);
+            } catch (RuntimeException e) {
+                log.warn("Ignore invalid quota usage entry for " + username + ": " + value);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded quota usage of " + usages.size() + " users from " + file);
+        }
+    }
+
+    private synchronized void save() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+            Usage usage = entry.getValue();
+            props.setProperty(entry.getKey(), usage.bytes.get() + "," + usage.messages.get());
+        }
+
+        OutputStream out = null;
+        try {
+            File file = fileSystem.getFile(storageURL);
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            out = new FileOutputStream(tmp);
+            props.store(out, "Quota usage: user=bytes,messages");
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // renameTo does not replace existing files on every platform
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+            log.warn("Unable to save quota usage to " + storageURL, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    /**
+     * Usage of a single inbox
+     */
+    private final static class Usage {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong messages = new AtomicLong();
+
+        /**
+         * Number of events applied, used to detect concurrent changes while
+         * reconciling
+         */
+        private final AtomicLong changes = new AtomicLong();
+    }
+
+    /**
+     * First scan of an inbox, which collects the changes notified while it
+     * runs. All fields but seen are guarded by the instance.
+     */
+    private final static class Scan {
+        private final Set<Long> seen = new HashSet<Long>();
+        private final List<Change> changes = new ArrayList<Change>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean completed;
+        private boolean invalidated;
+        private Usage usage;
+        private MailboxException exception;
+
+        private synchronized void complete(Usage usage, MailboxException exception) {
+            if (!completed) {
+                this.usage = usage;
+                this.exception = exception;
+                completed = true;
+                done.countDown();
+            }
+        }
+
+        private Usage await() throws MailboxException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailboxException("Interrupted while waiting for the quota usage", e);
+            }
+            synchronized (this) {
+                if (exception != null) {
+                    throw exception;
+                }
+                return usage;
+            }
+        }
+    }
+
+    /**
+     * A message added or expunged while a scan was running
+     */
+    private final static class Change {
+        private final long uid;
+        private final long size;
+        private final int sign;
+
+        private Change(long uid, long size, int sign) {
+            this.uid = uid;
+            this.size = size;
+            this.sign = sign;
+        }
+
+        /**
+         * Apply the change unless the scan already reflects it: an added
+         * message may have been counted, and an expunged message only needs
+         * to be removed if it was counted.
+         */
+        private void mergeInto(Usage usage, Set<Long> seen) {
+            if (sign > 0 ? seen.add(uid) : seen.remove(uid)) {
+                usage.bytes.addAndGet(sign * size);
+                usage.messages.addAndGet(sign);
+            }
+        }
+    }
+}
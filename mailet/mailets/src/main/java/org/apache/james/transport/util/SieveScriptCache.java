@@ -0,0 +1,311 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Caches the parsed sieve scripts of the users, so a script is not parsed
+ * again for every mail. A cached script is parsed again when the modification
+ * time or the length of its file changed, or when it was
+ * {@link #invalidate(String) invalidated}. Users without a script are
+ * remembered for a short time, so their mails do not need to look for the
+ * script files every time.
+ * 
+ * @param <V>
+ *            the type of the parsed script
+ */
+public class SieveScriptCache<V> implements SieveScriptCacheMBean {
+
+    /**
+     * Finds and parses the script of a user
+     */
+    public interface Loader<V> {
+
+        /**
+         * Return the script file of the given user
+         * 
+         * @return file or null if the user has no script
+         */
+        File locate(String user) throws IOException;
+
+        /**
+         * Parse the given script file
+         */
+        V parse(File script) throws IOException, MessagingException;
+    }
+
+    /** The default time (in ms) users without a script are remembered */
+    public final static long DEFAULT_NEGATIVE_TIME_TO_LIVE = 60 * 1000;
+
+    /** The default count of scripts to keep */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final long negativeTimeToLive;
+
+    private final Map<String, Entry<V>> entries;
+
+    /** Changed on every invalidation, guarded by this */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong parseTime = new AtomicLong();
+
+    private MBeanServer mbeanServer;
+
+    private ObjectName mbeanName;
+
+    public SieveScriptCache() {
+        this(DEFAULT_NEGATIVE_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param negativeTimeToLive
+     *            The time (in ms) users without a script are remembered
+     * @param maxEntries
+     *            The count of scripts to keep, the least recently used ones
+     *            are dropped first
+     */
+    public SieveScriptCache(long negativeTimeToLive, final int maxEntries) {
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache and registers its statistics under
+     * <code>org.apache.james:type=component,component=sieve,name=jmxName</code>.
+     * The registration is removed by {@link #dispose()}.
+     * 
+     * @param negativeTimeToLive
+     *            The time (in ms) users without a script are remembered
+     * @param maxEntries
+     *            The count of scripts to keep
+     * @param jmxName
+     *            The name to register the statistics under
+     */
+    public SieveScriptCache(long negativeTimeToLive, int maxEntries, String jmxName) {
+        this(negativeTimeToLive, maxEntries);
+        registerMBean(jmxName);
+    }
+
+    /**
+     * Return the parsed script of the given user, parsing it if it is not
+     * cached or changed since it was parsed
+     * 
+     * @param user
+     *            The owner of the script
+     * @param loader
+     *            The loader to use on a miss
+     * @return script or null if the user has no script
+     * @throws IOException
+     *             if the script could not be read
+     * @throws MessagingException
+     *             if the script could not be parsed
+     */
+    public V get(String user, Loader<V> loader) throws IOException, MessagingException {
+        long now = System.currentTimeMillis();
+        long loadGeneration;
+        Entry<V> entry;
+        synchronized (this) {
+            entry = entries.get(user);
+            loadGeneration = generation;
+        }
+        if (entry != null) {
+            if (entry.file == null) {
+                if (entry.expires > now) {
+                    negativeHits.incrementAndGet();
+                    return null;
+                }
+            } else if (entry.file.lastModified() == entry.lastModified && entry.file.length() == entry.length) {
+                hits.incrementAndGet();
+                return entry.script;
+            }
+        }
+
+        File file = loader.locate(user);
+        if (file == null) {
+            entry = new Entry<V>(null, null, 0, 0, now + negativeTimeToLive);
+        } else {
+            // read the attributes before parsing, so a change while parsing
+            // is detected on the next use
+            long lastModified = file.lastModified();
+            long length = file.length();
+            long start = System.currentTimeMillis();
+            V script = loader.parse(file);
+            parses.incrementAndGet();
+            parseTime.addAndGet(System.currentTimeMillis() - start);
+            entry = new Entry<V>(script, file, lastModified, length, 0);
+        }
+
+        synchronized (this) {
+            // do not cache what may have been read before a change
+            if (loadGeneration == generation) {
+                entries.put(user, entry);
+            }
+        }
+        return entry.script;
+    }
+
+    /**
+     * Drop the cached script of the given user. Must be called after the
+     * script of the user was changed
+     * 
+     * @param user
+     *            The owner of the script
+     */
+    public synchronized void invalidate(String user) {
+        generation++;
+        entries.remove(user);
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#clear()
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getHits()
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getNegativeHits()
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getParses()
+     */
+    public long getParses() {
+        return parses.get();
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getAverageParseTime()
+     */
+    public double getAverageParseTime() {
+        long p = parses.get();
+        if (p == 0) {
+            return 0;
+        }
+        return (double) parseTime.get() / p;
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getParseTimeSaved()
+     */
+    public long getParseTimeSaved() {
+        return Math.round(hits.get() * getAverageParseTime());
+    }
+
+    /**
+     * @see org.apache.james.transport.util.SieveScriptCacheMBean#getSize()
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Unregisters the statistics from JMX.
+     */
+    public synchronized void dispose() {
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                // ignore on dispose
+            }
+            mbeanName = null;
+        }
+    }
+
+    private static ObjectName getMBeanName(String name) throws MalformedObjectNameException {
+        if (name.matches(".*[,=:\"*?\\\\\n].*")) {
+            name = ObjectName.quote(name);
+        }
+        return new ObjectName("org.apache.james:type=component,component=sieve,name=" + name);
+    }
+
+    /**
+     * Register the statistics under the jmxName. If another cache uses the
+     * name already a counter is appended to the name.
+     * 
+     * @param jmxName
+     *            the name
+     */
+    private synchronized void registerMBean(String jmxName) {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String name = jmxName;
+            for (int i = 2;; i++) {
+                try {
+                    mbeanName = mbeanServer.registerMBean(this, getMBeanName(name)).getObjectName();
+                    break;
+                } catch (InstanceAlreadyExistsException e) {
+                    name = jmxName + "-" + i;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V script;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final long expires;
+
+        public Entry(V script, File file, long lastModified, long length, long expires) {
+            this.script = script;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.expires = expires;
+        }
+    }
+}
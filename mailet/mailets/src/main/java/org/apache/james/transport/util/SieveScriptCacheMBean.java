@@ -0,0 +1,73 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.util;
+
+/**
+ * JMX view on the statistics collected by a {@link SieveScriptCache}
+ */
+public interface SieveScriptCacheMBean {
+
+    /**
+     * Return the count of mails which used a cached script
+     * 
+     * @return hits
+     */
+    long getHits();
+
+    /**
+     * Return the count of mails for users known to have no script
+     * 
+     * @return negativeHits
+     */
+    long getNegativeHits();
+
+    /**
+     * Return the count of parsed scripts
+     * 
+     * @return parses
+     */
+    long getParses();
+
+    /**
+     * Return the average time (in ms) needed to parse a script
+     * 
+     * @return aTime
+     */
+    double getAverageParseTime();
+
+    /**
+     * Return the estimated time (in ms) saved by using cached scripts
+     * 
+     * @return saved
+     */
+    long getParseTimeSaved();
+
+    /**
+     * Return the count of cached entries
+     * 
+     * @return size
+     */
+    int getSize();
+
+    /**
+     * Drop all cached scripts
+     */
+    void clear();
+}
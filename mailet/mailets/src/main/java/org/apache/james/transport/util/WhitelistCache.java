@@ -0,0 +1,177 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.MessagingException;
+
+/**
+ * Caches the whitelist of local users, so matching a mail does not need to
+ * query the database for every recipient. Entries are keyed by local user and
+ * host and are dropped when
+ * {@link org.apache.james.transport.mailets.WhiteListManager} changes the list
+ * of that user, after a time to live (to pick up changes done directly in the
+ * database) or when the cache is full.
+ * 
+ * @param <V>
+ *            the type of the loaded whitelist
+ */
+public class WhitelistCache<V> {
+
+    /**
+     * Loads the whitelist of a local user
+     */
+    public interface Loader<V> {
+
+        /**
+         * Load the whitelist which is stored for the given local user and
+         * host. The user may be <code>*</code> for entries valid for the whole
+         * domain
+         */
+        V load(String localUser, String localHost) throws MessagingException;
+    }
+
+    /** The default time (in ms) a loaded whitelist is used */
+    public final static long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    /** The default count of whitelists to keep */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** All caches of this JVM, used for invalidation */
+    private final static List<WeakReference<WhitelistCache<?>>> CACHES = new CopyOnWriteArrayList<WeakReference<WhitelistCache<?>>>();
+
+    private final long timeToLive;
+
+    private final Map<String, Entry<V>> entries;
+
+    /** Changed on every invalidation, guarded by this */
+    private long generation;
+
+    public WhitelistCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param timeToLive
+     *            The time (in ms) a loaded whitelist is used
+     * @param maxEntries
+     *            The count of whitelists to keep, the least recently used
+     *            ones are dropped first
+     */
+    public WhitelistCache(long timeToLive, final int maxEntries) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        CACHES.add(new WeakReference<WhitelistCache<?>>(this));
+    }
+
+    /**
+     * Return the whitelist of the given local user and host, loading it if it
+     * is not cached
+     * 
+     * @param localUser
+     *            The local user
+     * @param localHost
+     *            The local host
+     * @param loader
+     *            The loader to use on a miss
+     * @return whitelist
+     * @throws MessagingException
+     *             if the whitelist could not be loaded
+     */
+    public V get(String localUser, String localHost, Loader<V> loader) throws MessagingException {
+        String key = localUser + "@" + localHost;
+        long now = System.currentTimeMillis();
+        long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expires > now) {
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+
+        V value = loader.load(localUser, localHost);
+
+        synchronized (this) {
+            // do not cache what may have been read before a change
+            if (loadGeneration == generation) {
+                entries.put(key, new Entry<V>(value, now + timeToLive));
+            }
+        }
+        return value;
+    }
+
+    private synchronized void remove(String key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    /**
+     * Drop all cached whitelists
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Drop the cached whitelist of the given local user and host in all
+     * caches. Must be called after a change of the whitelist was committed
+     * 
+     * @param localUser
+     *            The local user
+     * @param localHost
+     *            The local host
+     */
+    public static void invalidate(String localUser, String localHost) {
+        String key = localUser + "@" + localHost;
+        Iterator<WeakReference<WhitelistCache<?>>> it = CACHES.iterator();
+        while (it.hasNext()) {
+            WeakReference<WhitelistCache<?>> ref = it.next();
+            WhitelistCache<?> cache = ref.get();
+            if (cache == null) {
+                CACHES.remove(ref);
+            } else {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        public Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.management.ObjectName;
+
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailContext;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SieveMailetTest {
+
+    private final static String MESSAGE = "Delivered-To: old@example.org\r\n" +
+            "Subject: test\r\n" +
+            "\r\n" +
+            "body\r\n";
+
+    /** The count of calls per method of the mailbox manager */
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+
+    /** The messages appended, by user */
+    private final Map<String, String> appended = new HashMap<String, String>();
+
+    private SieveMailet mailet;
+
+    private void called(String method) {
+        Integer count = calls.get(method);
+        calls.put(method, count == null ? 1 : count + 1);
+    }
+
+    private int count(String method) {
+        Integer count = calls.get(method);
+        return count == null ? 0 : count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(SieveMailetTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return false;
+        } else if (type == Character.TYPE) {
+            return '.';
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        }
+        return null;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        return out.toString();
+    }
+
+    private MailboxSession session(final String user) {
+        return proxy(MailboxSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getUser")) {
+                    return proxy(MailboxSession.User.class, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return method.getName().equals("getUserName") ? user : defaultValue(method);
+                        }
+                    });
+                } else if (method.getName().equals("getPersonalSpace")) {
+                    return "#private";
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private final MailboxManager manager = proxy(MailboxManager.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            called(name);
+            if (name.equals("createSystemSession")) {
+                return session((String) args[0]);
+            } else if (name.equals("mailboxExists")) {
+                return true;
+            } else if (name.equals("getMailbox")) {
+                final MailboxPath path = (MailboxPath) args[0];
+                return proxy(MessageManager.class, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                        if (method.getName().equals("appendMessage")) {
+                            appended.put(path.getUser(), read((InputStream) args[0]));
+                        }
+                        return defaultValue(method);
+                    }
+                });
+            }
+            return defaultValue(method);
+        }
+    });
+
+    @Before
+    public void setUp() throws Exception {
+        mailet = new SieveMailet();
+        mailet.setUsersRepository(proxy(UsersRepository.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("supportVirtualHosting") ? true : defaultValue(method);
+            }
+        }));
+        // nobody has a sieve script
+        mailet.setFileSystem(proxy(FileSystem.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws FileNotFoundException {
+                throw new FileNotFoundException(String.valueOf(args[0]));
+            }
+        }));
+        mailet.setMailboxManager(manager);
+        FakeMailetConfig config = new FakeMailetConfig("SieveMailet", new FakeMailContext());
+        config.setProperty("addDeliveryHeader", "Delivered-To");
+        mailet.init(config);
+        mailet.setFolder("INBOX");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mailet.destroy();
+    }
+
+    @Test
+    public void testDestroyUnregistersTheScriptCache() throws Exception {
+        ObjectName name = new ObjectName("org.apache.james:type=component,component=sieve,name=SieveMailet");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        mailet.destroy();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testRecipientsAreDeliveredInOneBatch() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(MESSAGE.getBytes()));
+        FakeMail mail = new FakeMail();
+        mail.setSender(new MailAddress("sender@example.org"));
+        mail.setRecipients(Arrays.asList(new MailAddress("user1@localhost"), new MailAddress("user2@localhost"), new MailAddress("user3@localhost")));
+        mail.setMessage(message);
+
+        mailet.service(mail);
+
+        // one session per recipient, all closed at the end of the mail
+        assertEquals(3, count("createSystemSession"));
+        assertEquals(3, count("logout"));
+        assertEquals(3, count("endProcessingRequest"));
+
+        // every recipient gets its own delivery header on top of the shared
+        // content
+        assertEquals(3, appended.size());
+        for (String user : new String[] { "user1@localhost", "user2@localhost", "user3@localhost" }) {
+            String content = appended.get(user);
+            assertTrue(content, content.startsWith("Delivered-To: old@example.org\r\nDelivered-To: " + user + "\r\n"));
+            assertTrue(content, content.endsWith("Subject: test\r\n\r\nbody\r\n"));
+        }
+
+        // the shared message was not reordered
+        assertArrayEquals(new String[] { "old@example.org" }, message.getHeader("Delivered-To"));
+        List<String> names = new ArrayList<String>();
+        for (Object header : Collections.list(message.getAllHeaderLines())) {
+            names.add(((String) header).substring(0, ((String) header).indexOf(':')));
+        }
+        assertEquals(Arrays.asList("Delivered-To", "Subject"), names.subList(0, 2));
+    }
+}
@@ -0,0 +1,311 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.model.MailboxMetaData;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageMetaData;
+import org.apache.james.mailbox.model.MessageResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class QuotaUsageTrackerTest {
+
+    private final static String USER = "user";
+    private final static MailboxPath INBOX = new MailboxPath("#private", USER, "INBOX");
+
+    /** uid and size of the messages in the inbox */
+    private final List<long[]> messages = Collections.synchronizedList(new ArrayList<long[]>());
+
+    private final AtomicInteger scans = new AtomicInteger();
+
+    /** Run by the scan once it counted the first message */
+    private volatile Runnable duringScan;
+
+    private QuotaUsageTracker tracker;
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(QuotaUsageTrackerTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return false;
+        } else if (type == Character.TYPE) {
+            return '.';
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        }
+        return null;
+    }
+
+    private MessageResult message(final long uid, final long size) {
+        return proxy(MessageResult.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getUid")) {
+                    return uid;
+                } else if (method.getName().equals("getSize")) {
+                    return size;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private final MessageManager inbox = proxy(MessageManager.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getMessages")) {
+                scans.incrementAndGet();
+                // like a database cursor, sees the changes done while
+                // iterating
+                return new Iterator<MessageResult>() {
+                    private long lastUid;
+
+                    private long[] nextMessage() {
+                        synchronized (messages) {
+                            for (long[] message : messages) {
+                                if (message[0] > lastUid) {
+                                    return message;
+                                }
+                            }
+                            return null;
+                        }
+                    }
+
+                    public boolean hasNext() {
+                        Runnable r = duringScan;
+                        if (lastUid > 0 && r != null) {
+                            duringScan = null;
+                            r.run();
+                        }
+                        return nextMessage() != null;
+                    }
+
+                    public MessageResult next() {
+                        long[] message = nextMessage();
+                        lastUid = message[0];
+                        return message(message[0], message[1]);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+            return defaultValue(method);
+        }
+    });
+
+    private final MailboxSession session = proxy(MailboxSession.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getUser")) {
+                return proxy(MailboxSession.User.class, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getUserName") ? USER : defaultValue(method);
+                    }
+                });
+            } else if (method.getName().equals("getPersonalSpace")) {
+                return "#private";
+            }
+            return defaultValue(method);
+        }
+    });
+
+    private final MailboxManager manager = proxy(MailboxManager.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("createSystemSession")) {
+                return session;
+            } else if (method.getName().equals("search")) {
+                MailboxMetaData metaData = proxy(MailboxMetaData.class, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getPath") ? INBOX : defaultValue(method);
+                    }
+                });
+                return Arrays.asList(metaData);
+            } else if (method.getName().equals("getMailbox")) {
+                return inbox;
+            }
+            return defaultValue(method);
+        }
+    });
+
+    private static MessageMetaData metaData(final long size) {
+        return proxy(MessageMetaData.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getSize") ? size : defaultValue(method);
+            }
+        });
+    }
+
+    private void added(long uid, final long size) {
+        messages.add(new long[] { uid, size });
+        final List<Long> uids = Arrays.asList(uid);
+        tracker.event(new MailboxListener.Added(session, INBOX) {
+            public List<Long> getUids() {
+                return uids;
+            }
+
+            public MessageMetaData getMetaData(Long uid) {
+                return metaData(size);
+            }
+        });
+    }
+
+    private void expunged(final long uid) {
+        long size = 0;
+        synchronized (messages) {
+            for (Iterator<long[]> it = messages.iterator(); it.hasNext();) {
+                long[] message = it.next();
+                if (message[0] == uid) {
+                    size = message[1];
+                    it.remove();
+                }
+            }
+        }
+        final long expungedSize = size;
+        final List<Long> uids = Arrays.asList(uid);
+        tracker.event(new MailboxListener.Expunged(session, INBOX) {
+            public List<Long> getUids() {
+                return uids;
+            }
+
+            public MessageMetaData getMetaData(Long uid) {
+                return metaData(expungedSize);
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tracker = new QuotaUsageTracker();
+        tracker.setMailboxManager(manager);
+        tracker.setLog(LoggerFactory.getLogger(QuotaUsageTrackerTest.class));
+
+        messages.add(new long[] { 1, 10 });
+        messages.add(new long[] { 2, 20 });
+        messages.add(new long[] { 3, 30 });
+    }
+
+    @Test
+    public void testEventsAreAppliedOnceScanned() throws Exception {
+        // not tracked yet, the scan will see it
+        added(4, 40);
+        assertEquals(100, tracker.getUsedBytes(USER));
+        assertEquals(4, tracker.getUsedMessages(USER));
+
+        added(5, 50);
+        expunged(1);
+        assertEquals(140, tracker.getUsedBytes(USER));
+        assertEquals(4, tracker.getUsedMessages(USER));
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void testEventsDuringScanAreMerged() throws Exception {
+        duringScan = new Runnable() {
+            public void run() {
+                // counted by the scan already
+                expunged(1);
+                // not counted yet, the scan won't see it anymore
+                expunged(3);
+                // will be counted by the scan
+                added(4, 40);
+                // added and expunged before the scan could see it
+                added(5, 50);
+                expunged(5);
+            }
+        };
+
+        assertEquals(20 + 40, tracker.getUsedBytes(USER));
+        assertEquals(2, tracker.getUsedMessages(USER));
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void testConcurrentFirstAccess() throws Exception {
+        final CountDownLatch scanning = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        duringScan = new Runnable() {
+            public void run() {
+                scanning.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        final long[] results = new long[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[index] = tracker.getUsedBytes(USER);
+                    } catch (Exception e) {
+                        results[index] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        assertTrue(scanning.await(10, TimeUnit.SECONDS));
+        // nobody gets a partial usage while the scan is running
+        Thread.sleep(100);
+        for (Thread thread : threads) {
+            assertTrue(thread.isAlive());
+        }
+
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        for (long result : results) {
+            assertEquals(60, result);
+        }
+        assertEquals(1, scans.get());
+    }
+}
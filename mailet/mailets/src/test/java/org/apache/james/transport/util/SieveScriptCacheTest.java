@@ -0,0 +1,182 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import javax.mail.MessagingException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SieveScriptCacheTest {
+
+    private File directory;
+    private int locates;
+    private int parses;
+
+    private final SieveScriptCache.Loader<String> loader = new SieveScriptCache.Loader<String>() {
+        public File locate(String user) throws IOException {
+            locates++;
+            File file = new File(directory, user + ".sieve");
+            return file.exists() ? file : null;
+        }
+
+        public String parse(File script) throws IOException, MessagingException {
+            parses++;
+            Reader in = new FileReader(script);
+            try {
+                StringBuilder content = new StringBuilder();
+                char[] buf = new char[1024];
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    content.append(buf, 0, len);
+                }
+                return content.toString();
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("sieve", "test");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private File write(String user, String content) throws IOException {
+        File file = new File(directory, user + ".sieve");
+        Writer out = new FileWriter(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testScriptIsParsedOnce() throws Exception {
+        SieveScriptCache<String> cache = new SieveScriptCache<String>();
+        write("user1", "keep;");
+
+        assertEquals("keep;", cache.get("user1", loader));
+        assertEquals("keep;", cache.get("user1", loader));
+        assertEquals(1, parses);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getParses());
+    }
+
+    @Test
+    public void testChangedScriptIsParsedAgain() throws Exception {
+        SieveScriptCache<String> cache = new SieveScriptCache<String>();
+        File file = write("user1", "keep;");
+        cache.get("user1", loader);
+
+        write("user1", "discard;");
+        file.setLastModified(file.lastModified() - 10000);
+
+        assertEquals("discard;", cache.get("user1", loader));
+        assertEquals(2, parses);
+    }
+
+    @Test
+    public void testMissingScriptIsRemembered() throws Exception {
+        SieveScriptCache<String> cache = new SieveScriptCache<String>();
+
+        assertNull(cache.get("user1", loader));
+        assertNull(cache.get("user1", loader));
+        assertEquals(1, locates);
+        assertEquals(1, cache.getNegativeHits());
+    }
+
+    @Test
+    public void testMissingScriptExpires() throws Exception {
+        SieveScriptCache<String> cache = new SieveScriptCache<String>(10, 100);
+        cache.get("user1", loader);
+        write("user1", "keep;");
+        Thread.sleep(50);
+
+        assertEquals("keep;", cache.get("user1", loader));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        SieveScriptCache<String> cache = new SieveScriptCache<String>();
+        cache.get("user1", loader);
+        write("user1", "keep;");
+
+        cache.invalidate("user1");
+
+        assertEquals("keep;", cache.get("user1", loader));
+        assertEquals(2, locates);
+    }
+
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName first = new ObjectName("org.apache.james:type=component,component=sieve,name=sievetest");
+        ObjectName second = new ObjectName("org.apache.james:type=component,component=sieve,name=sievetest-2");
+
+        SieveScriptCache<String> cache = new SieveScriptCache<String>(1000, 100, "sievetest");
+        SieveScriptCache<String> other = new SieveScriptCache<String>(1000, 100, "sievetest");
+        try {
+            assertTrue(mbeanServer.isRegistered(first));
+            assertTrue(mbeanServer.isRegistered(second));
+
+            write("user1", "keep;");
+            cache.get("user1", loader);
+            cache.get("user1", loader);
+
+            assertEquals(1L, mbeanServer.getAttribute(first, "Hits"));
+            assertEquals(0L, mbeanServer.getAttribute(second, "Hits"));
+            assertEquals(1, mbeanServer.getAttribute(first, "Size"));
+        } finally {
+            cache.dispose();
+            other.dispose();
+        }
+        assertFalse(mbeanServer.isRegistered(first));
+        assertFalse(mbeanServer.isRegistered(second));
+    }
+}
@@ -0,0 +1,98 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class WhitelistCacheTest {
+
+    private static class CountingLoader implements WhitelistCache.Loader<String> {
+        private final AtomicInteger loads = new AtomicInteger();
+
+        public String load(String localUser, String localHost) throws MessagingException {
+            return localUser + "@" + localHost + "#" + loads.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testCached() throws MessagingException {
+        WhitelistCache<String> cache = new WhitelistCache<String>();
+        CountingLoader loader = new CountingLoader();
+
+        assertEquals("user@localhost#1", cache.get("user", "localhost", loader));
+        assertEquals("user@localhost#1", cache.get("user", "localhost", loader));
+        assertEquals("*@localhost#2", cache.get("*", "localhost", loader));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void testInvalidate() throws MessagingException {
+        WhitelistCache<String> cache = new WhitelistCache<String>();
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("user", "localhost", loader);
+        cache.get("other", "localhost", loader);
+        WhitelistCache.invalidate("user", "localhost");
+
+        assertEquals("user@localhost#3", cache.get("user", "localhost", loader));
+        assertEquals("other@localhost#2", cache.get("other", "localhost", loader));
+    }
+
+    @Test
+    public void testInvalidateWhileLoading() throws MessagingException {
+        final WhitelistCache<String> cache = new WhitelistCache<String>();
+        final CountingLoader loader = new CountingLoader();
+
+        // a change committed while loading must not be hidden by the cache
+        String value = cache.get("user", "localhost", new WhitelistCache.Loader<String>() {
+            public String load(String localUser, String localHost) throws MessagingException {
+                String value = loader.load(localUser, localHost);
+                WhitelistCache.invalidate(localUser, localHost);
+                return value;
+            }
+        });
+        assertEquals("user@localhost#1", value);
+        assertEquals("user@localhost#2", cache.get("user", "localhost", loader));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        WhitelistCache<String> cache = new WhitelistCache<String>(0, 10);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("user", "localhost", loader);
+        Thread.sleep(5);
+        assertEquals("user@localhost#2", cache.get("user", "localhost", loader));
+    }
+
+    @Test
+    public void testMaxEntries() throws MessagingException {
+        WhitelistCache<String> cache = new WhitelistCache<String>(60000, 2);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("a", "localhost", loader);
+        cache.get("b", "localhost", loader);
+        cache.get("c", "localhost", loader);
+        assertEquals("b@localhost#2", cache.get("b", "localhost", loader));
+        assertEquals("a@localhost#4", cache.get("a", "localhost", loader));
+    }
+}
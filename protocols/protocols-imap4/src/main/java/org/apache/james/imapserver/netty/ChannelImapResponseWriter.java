@@ -26,63 +26,168 @@ import java.nio.channels.FileChannel;
 
 import org.apache.james.imap.encode.ImapResponseWriter;
 import org.apache.james.imap.message.response.Literal;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.compression.ZlibEncoder;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedInput;
 import org.jboss.netty.handler.stream.ChunkedNioFile;
 import org.jboss.netty.handler.stream.ChunkedStream;
 
 /**
  * {@link ImapResponseWriter} implementation which writes the data to a
  * {@link Channel}
+ * <p>
+ * While a command is processed (see {@link #startBuffering()}) the small
+ * fragments produced by the encoders are collected in a buffer, which is
+ * written to the {@link Channel} once it is full, before a literal and when
+ * the command is done. This keeps the count of writes (and so of passes
+ * through the SSL / COMPRESS handlers and of system calls) low. Writes done
+ * by other threads, like the updates sent while idling, are written at once.
+ * </p>
  */
-public class ChannelImapResponseWriter implements ImapResponseWriter {
+public class ChannelImapResponseWriter implements ImapResponseWriter, NettyConstants {
+
+    /** The default size (in bytes) of the buffer */
+    public final static int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final static int INITIAL_BUFFER_SIZE = 512;
 
     private final Channel channel;
 	private final boolean zeroCopy;
+    private final int bufferSize;
+
+    /** The buffered data, guarded by this */
+    private ChannelBuffer out;
+
+    /** The thread which processes a command, guarded by this */
+    private Thread bufferingThread;
+
+    /** The count of writes to the channel, guarded by this */
+    private long writes;
 
     public ChannelImapResponseWriter(Channel channel) {
     	this(channel, true);
     }
 
     public ChannelImapResponseWriter(Channel channel, boolean zeroCopy) {
+        this(channel, zeroCopy, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel
+     *            The channel to write to
+     * @param zeroCopy
+     *            true if literals from files may be sent using zero-copy
+     * @param bufferSize
+     *            The size (in bytes) of the buffer, 0 disables buffering
+     */
+    public ChannelImapResponseWriter(Channel channel, boolean zeroCopy, int bufferSize) {
         this.channel = channel;
         this.zeroCopy = zeroCopy;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Start buffering the writes done by the current thread, until
+     * {@link #stopBuffering()} is called
+     */
+    public synchronized void startBuffering() {
+        bufferingThread = Thread.currentThread();
+    }
+
+    /**
+     * Write the buffered data and stop buffering
+     */
+    public synchronized void stopBuffering() {
+        bufferingThread = null;
+        flush();
+    }
+
+    /**
+     * Write the buffered data to the channel. Must be called before the
+     * channel pipeline is changed, for example when starting TLS
+     */
+    public synchronized void flush() {
+        if (out != null && out.readable()) {
+            if (channel.isConnected()) {
+                writeToChannel(out);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Return the count of writes to the channel
+     * 
+     * @return writes
+     */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    private void writeToChannel(Object message) {
+        writes++;
+        channel.write(message);
     }
 
     /**
      * @see org.apache.james.imap.encode.ImapResponseWriter#write(byte[])
      */
-    public void write(byte[] buffer) throws IOException {
+    public synchronized void write(byte[] buffer) throws IOException {
         if (channel.isConnected()) {
-            channel.write(ChannelBuffers.wrappedBuffer(buffer));
+            if (buffer.length >= bufferSize) {
+                // too big to be worth copying
+                flush();
+                writeToChannel(ChannelBuffers.wrappedBuffer(buffer));
+                return;
+            }
+            if (out != null && out.readableBytes() + buffer.length > bufferSize) {
+                flush();
+            }
+            if (out == null) {
+                // most responses are small, so let the buffer grow on demand
+                out = ChannelBuffers.dynamicBuffer(Math.min(bufferSize, INITIAL_BUFFER_SIZE));
+            }
+            out.writeBytes(buffer);
+            if (bufferingThread != Thread.currentThread() || out.readableBytes() >= bufferSize) {
+                flush();
+            }
         }
     }
 
     /**
      * @see org.apache.james.imap.encode.ImapResponseWriter#write(org.apache.james.imap.message.response.Literal)
      */
-    public void write(Literal literal) throws IOException {
+    public synchronized void write(Literal literal) throws IOException {
         if (channel.isConnected()) {
+            // keep the order of the data
+            flush();
+
             InputStream in = literal.getInputStream();
+            ChannelPipeline cp = channel.getPipeline();
+            ChunkedInput input;
             if (in instanceof FileInputStream && channel.getFactory() instanceof NioServerSocketChannelFactory) {
                 FileChannel fc = ((FileInputStream) in).getChannel();
                    // Zero-copy is only possible if no SSL/TLS  and no COMPRESS is in place
                 //
                 // See JAMES-1305 and JAMES-1306
-                ChannelPipeline cp = channel.getPipeline();
-                if (zeroCopy && cp.get(SslHandler.class) == null && cp.get(ZlibEncoder.class) == null ) {
-                    channel.write(new DefaultFileRegion(fc, fc.position(), literal.size()));
-                } else {
-                    channel.write(new ChunkedNioFile(fc, 8192));
+                if (zeroCopy && cp.get(SslHandler.class) == null && cp.get(ZLIB_ENCODER) == null ) {
+                    writeToChannel(new DefaultFileRegion(fc, fc.position(), literal.size()));
+                    return;
                 }
+                input = new ChunkedNioFile(fc, 8192);
             } else {
-                channel.write(new ChunkedStream(literal.getInputStream()));
+                input = new ChunkedStream(in);
+            }
+            if (cp.get(ZLIB_ENCODER) instanceof DeflateEncoder) {
+                // let the encoder skip the content if it does not compress
+                input = new LiteralChunkedInput(input);
             }
+            writeToChannel(input);
         }
     }
     
@@ -0,0 +1,235 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.handler.codec.compression.CompressionException;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+
+/**
+ * Creates the encoder and decoder which are added to the pipeline once a
+ * client issued COMPRESS DEFLATE (RFC 4978).
+ * <p>
+ * The {@link Deflater} and {@link Inflater} instances are kept in a bounded
+ * pool and reset when a session ends, so the native zlib state is not
+ * allocated and freed again for every connection. The totals of all the
+ * sessions are kept for JMX.
+ * </p>
+ * <p>
+ * Pooled deflaters need {@link Deflater} to support SYNC_FLUSH, which is only
+ * the case since Java 7. On older runtimes a netty {@link ZlibEncoder} is
+ * used for every session instead.
+ * </p>
+ */
+public class DeflateCodecFactory {
+
+    /** Flush mode which is missing in {@link Deflater} before Java 7 */
+    private final static int SYNC_FLUSH = 2;
+
+    private final static Method DEFLATE_METHOD;
+
+    static {
+        Method method;
+        try {
+            method = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        DEFLATE_METHOD = method;
+    }
+
+    public final static int DEFAULT_LEVEL = 5;
+    public final static double DEFAULT_SKIP_RATIO = 0.9;
+    public final static int DEFAULT_POOL_SIZE = 64;
+
+    private final int level;
+    private final double skipRatio;
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+
+    private final AtomicLong uncompressedBytesSent = new AtomicLong();
+    private final AtomicLong compressedBytesSent = new AtomicLong();
+    private final AtomicLong compressedBytesReceived = new AtomicLong();
+    private final AtomicLong uncompressedBytesReceived = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+
+    public DeflateCodecFactory() {
+        this(DEFAULT_LEVEL, DEFAULT_SKIP_RATIO, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param level
+     *            The compression level, from 0 (none) to 9 (best)
+     * @param skipRatio
+     *            A literal is sent uncompressed once the start of it does not
+     *            compress below this ratio, 0 or less disables it
+     * @param poolSize
+     *            The count of idle deflaters and inflaters to keep
+     */
+    public DeflateCodecFactory(int level, double skipRatio, int poolSize) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.level = level;
+        this.skipRatio = skipRatio;
+        this.deflaters = new ArrayBlockingQueue<Deflater>(Math.max(1, poolSize));
+        this.inflaters = new ArrayBlockingQueue<Inflater>(Math.max(1, poolSize));
+    }
+
+    /**
+     * Return true if the deflaters can be pooled and literals which do not
+     * compress can be skipped
+     * 
+     * @return pooled
+     */
+    public static boolean isSyncFlushSupported() {
+        return DEFLATE_METHOD != null;
+    }
+
+    /**
+     * Create the encoder for a new session
+     * 
+     * @return encoder
+     */
+    public ChannelHandler createEncoder() {
+        if (isSyncFlushSupported()) {
+            return new DeflateEncoder(this, skipRatio);
+        }
+        return new ZlibEncoder(ZlibWrapper.NONE, level);
+    }
+
+    /**
+     * Create the decoder for a new session
+     * 
+     * @return decoder
+     */
+    public DeflateDecoder createDecoder() {
+        return new DeflateDecoder(this);
+    }
+
+    Deflater getDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        return deflater;
+    }
+
+    void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    Inflater getInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        return inflater;
+    }
+
+    void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Deflate the input which was set on the given {@link Deflater} and flush
+     * it, so the client can decode all of it
+     * 
+     * @return the count of bytes written to the buffer
+     */
+    static int syncFlush(Deflater deflater, byte[] buffer) {
+        try {
+            return (Integer) DEFLATE_METHOD.invoke(deflater, buffer, 0, buffer.length, SYNC_FLUSH);
+        } catch (IllegalAccessException e) {
+            throw new CompressionException(e);
+        } catch (InvocationTargetException e) {
+            throw new CompressionException(e.getCause());
+        }
+    }
+
+    void sent(long uncompressed, long compressed, long nanos) {
+        uncompressedBytesSent.addAndGet(uncompressed);
+        compressedBytesSent.addAndGet(compressed);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    void received(long compressed, long uncompressed, long nanos) {
+        compressedBytesReceived.addAndGet(compressed);
+        uncompressedBytesReceived.addAndGet(uncompressed);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Free the idle deflaters and inflaters
+     */
+    public void destroy() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getUncompressedBytesSent() {
+        return uncompressedBytesSent.get();
+    }
+
+    public long getCompressedBytesSent() {
+        return compressedBytesSent.get();
+    }
+
+    public long getCompressedBytesReceived() {
+        return compressedBytesReceived.get();
+    }
+
+    public long getUncompressedBytesReceived() {
+        return uncompressedBytesReceived.get();
+    }
+
+    /**
+     * Return the time spent compressing and decompressing, in milliseconds
+     * 
+     * @return time
+     */
+    public long getCompressionTime() {
+        return compressionNanos.get() / 1000000;
+    }
+}
@@ -0,0 +1,145 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.compression.CompressionException;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Decoder for COMPRESS DEFLATE which uses a pooled {@link Inflater}
+ */
+public class DeflateDecoder extends OneToOneDecoder {
+
+    private final static int BUFFER_SIZE = 8192;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final DeflateCodecFactory factory;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Inflater inflater;
+
+    private long compressedBytes;
+    private long uncompressedBytes;
+    private long nanos;
+
+    public DeflateDecoder(DeflateCodecFactory factory) {
+        this.factory = factory;
+        this.inflater = factory.getInflater();
+    }
+
+    @Override
+    protected synchronized Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (!(msg instanceof ChannelBuffer)) {
+            return msg;
+        }
+        if (inflater == null || inflater.finished()) {
+            // the session was closed or the client ended the stream
+            return null;
+        }
+        ChannelBuffer in = (ChannelBuffer) msg;
+        int length = in.readableBytes();
+        if (length == 0) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            byte[] data = new byte[length];
+            in.getBytes(in.readerIndex(), data);
+            inflater.setInput(data);
+        }
+        in.skipBytes(length);
+
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(length * 2);
+        try {
+            while (true) {
+                int read = inflater.inflate(buffer);
+                if (read > 0) {
+                    out.writeBytes(buffer, 0, read);
+                } else if (inflater.needsDictionary()) {
+                    throw new CompressionException("Preset dictionaries are not supported");
+                } else if (inflater.needsInput() || inflater.finished()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new CompressionException(e);
+        }
+        // don't hold a reference to the data
+        inflater.setInput(EMPTY);
+        long time = System.nanoTime() - start;
+
+        compressedBytes += length;
+        uncompressedBytes += out.readableBytes();
+        nanos += time;
+        factory.received(length, out.readableBytes(), time);
+
+        if (out.readable()) {
+            return out;
+        }
+        return null;
+    }
+
+    /**
+     * Return the {@link Inflater} to the pool. Must be called once the
+     * session ended
+     */
+    public synchronized void release() {
+        if (inflater != null) {
+            factory.release(inflater);
+            inflater = null;
+        }
+    }
+
+    /**
+     * Return the count of bytes received by this decoder
+     * 
+     * @return compressedBytes
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Return the count of bytes this decoder produced
+     * 
+     * @return uncompressedBytes
+     */
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Return the time spent decompressing, in nanoseconds
+     * 
+     * @return nanos
+     */
+    public synchronized long getDecompressionNanos() {
+        return nanos;
+    }
+}
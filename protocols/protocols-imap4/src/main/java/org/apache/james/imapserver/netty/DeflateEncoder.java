@@ -0,0 +1,208 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import java.util.zip.Deflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+/**
+ * Encoder for COMPRESS DEFLATE which uses a pooled {@link Deflater}.
+ * <p>
+ * The start of every literal is compressed and if it does not shrink enough
+ * (for example images or zip files) the rest of the literal is sent in stored
+ * blocks, which costs no CPU. The deflater is reset before that, so it never
+ * refers to data it did not see. This is allowed as every write ends with a
+ * sync flush, and so on a byte boundary.
+ * </p>
+ */
+public class DeflateEncoder extends OneToOneEncoder {
+
+    /** The count of bytes of a literal to compress before deciding to skip it */
+    private final static int SAMPLE_SIZE = 4096;
+
+    private final static int MAX_STORED_BLOCK_SIZE = 65535;
+
+    private final static int BUFFER_SIZE = 8192;
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final DeflateCodecFactory factory;
+    private final double skipRatio;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Deflater deflater;
+
+    private LiteralChunkedInput literal;
+    private long literalIn;
+    private long literalOut;
+    private boolean sampled;
+    private boolean skipping;
+
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private long nanos;
+
+    public DeflateEncoder(DeflateCodecFactory factory, double skipRatio) {
+        this.factory = factory;
+        this.skipRatio = skipRatio;
+        this.deflater = factory.getDeflater();
+    }
+
+    @Override
+    protected synchronized Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        LiteralChunkedInput current = null;
+        ChannelBuffer in;
+        if (msg instanceof LiteralChunkedInput.Chunk) {
+            LiteralChunkedInput.Chunk chunk = (LiteralChunkedInput.Chunk) msg;
+            current = chunk.getLiteral();
+            in = chunk.getBuffer();
+        } else if (msg instanceof ChannelBuffer) {
+            in = (ChannelBuffer) msg;
+        } else {
+            return msg;
+        }
+
+        if (deflater == null) {
+            // the session was closed already, so let the write fail
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        if (current != literal) {
+            literal = current;
+            literalIn = 0;
+            literalOut = 0;
+            sampled = false;
+            skipping = false;
+        }
+
+        int length = in.readableBytes();
+        if (length == 0) {
+            return in;
+        }
+
+        long start = System.nanoTime();
+        ChannelBuffer out;
+        if (skipping) {
+            out = store(in);
+        } else {
+            out = deflate(in, length);
+            if (literal != null && !sampled && skipRatio > 0) {
+                literalIn += length;
+                literalOut += out.readableBytes();
+                if (literalIn >= SAMPLE_SIZE) {
+                    sampled = true;
+                    if (literalOut >= literalIn * skipRatio) {
+                        skipping = true;
+                        deflater.reset();
+                    }
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+
+        uncompressedBytes += length;
+        compressedBytes += out.readableBytes();
+        nanos += time;
+        factory.sent(length, out.readableBytes(), time);
+        return out;
+    }
+
+    private ChannelBuffer deflate(ChannelBuffer in, int length) {
+        if (in.hasArray()) {
+            deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            byte[] data = new byte[length];
+            in.getBytes(in.readerIndex(), data);
+            deflater.setInput(data);
+        }
+        in.skipBytes(length);
+
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(Math.min(length, BUFFER_SIZE));
+        int written;
+        do {
+            written = DeflateCodecFactory.syncFlush(deflater, buffer);
+            out.writeBytes(buffer, 0, written);
+        } while (written == buffer.length);
+
+        // don't hold a reference to the data
+        deflater.setInput(EMPTY);
+        return out;
+    }
+
+    /**
+     * Copy the data into stored (uncompressed) deflate blocks
+     */
+    private ChannelBuffer store(ChannelBuffer in) {
+        int length = in.readableBytes();
+        ChannelBuffer out = ChannelBuffers.buffer(length + 5 * (length / MAX_STORED_BLOCK_SIZE + 1));
+        while (in.readable()) {
+            int size = Math.min(in.readableBytes(), MAX_STORED_BLOCK_SIZE);
+            // not the final block, type stored, then LEN and NLEN in little endian
+            out.writeByte(0);
+            out.writeByte(size);
+            out.writeByte(size >>> 8);
+            out.writeByte(~size);
+            out.writeByte(~size >>> 8);
+            out.writeBytes(in, size);
+        }
+        return out;
+    }
+
+    /**
+     * Return the {@link Deflater} to the pool. Must be called once the
+     * session ended
+     */
+    public synchronized void release() {
+        if (deflater != null) {
+            factory.release(deflater);
+            deflater = null;
+            literal = null;
+        }
+    }
+
+    /**
+     * Return the count of bytes given to this encoder
+     * 
+     * @return uncompressedBytes
+     */
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Return the count of bytes written by this encoder
+     * 
+     * @return compressedBytes
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Return the time spent compressing, in nanoseconds
+     * 
+     * @return nanos
+     */
+    public synchronized long getCompressionNanos() {
+        return nanos;
+    }
+}
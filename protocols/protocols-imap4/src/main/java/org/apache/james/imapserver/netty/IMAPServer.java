@@ -48,7 +48,7 @@ import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
-import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 /**
  * NIO IMAP Server which use Netty.
@@ -63,6 +63,7 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
 
     private String hello;
     private boolean compress;
+    private DeflateCodecFactory compression;
     private int maxLineLength;
     private int inMemorySizeLimit;
     private boolean plainAuthDisallowed;
@@ -96,6 +97,15 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         
         hello = softwaretype + " Server " + getHelloName() + " is ready.";
         compress = configuration.getBoolean("compress", false);
+        if (compress) {
+            int compressionLevel = configuration.getInt("compressionLevel", DeflateCodecFactory.DEFAULT_LEVEL);
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                throw new ConfigurationException("compressionLevel must be between 0 and 9");
+            }
+            double compressionSkipRatio = configuration.getDouble("compressionSkipRatio", DeflateCodecFactory.DEFAULT_SKIP_RATIO);
+            int compressionPoolSize = configuration.getInt("compressionPoolSize", DeflateCodecFactory.DEFAULT_POOL_SIZE);
+            compression = new DeflateCodecFactory(compressionLevel, compressionSkipRatio, compressionPoolSize);
+        }
         maxLineLength = configuration.getInt("maxLineLength", DEFAULT_MAX_LINE_LENGTH);
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", DEFAULT_IN_MEMORY_SIZE_LIMIT);
         literalSizeLimit = configuration.getInt("literalSizeLimit", DEFAULT_LITERAL_SIZE_LIMIT);
@@ -133,7 +143,7 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         return new ChannelPipelineFactory() {
             
             private final ChannelGroupHandler groupHandler = new ChannelGroupHandler(group);
-            private final HashedWheelTimer timer = new HashedWheelTimer();
+            private final Timer timer = getTimer();
             
             private final TimeUnit TIMEOUT_UNIT = TimeUnit.SECONDS;
 
@@ -178,6 +188,48 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         };
     }
 
+    @Override
+    protected void postDestroy() {
+        if (compression != null) {
+            compression.destroy();
+        }
+    }
+
+    /**
+     * @see IMAPServerMBean#getCompressionUncompressedBytesSent()
+     */
+    public long getCompressionUncompressedBytesSent() {
+        return compression == null ? 0 : compression.getUncompressedBytesSent();
+    }
+
+    /**
+     * @see IMAPServerMBean#getCompressionCompressedBytesSent()
+     */
+    public long getCompressionCompressedBytesSent() {
+        return compression == null ? 0 : compression.getCompressedBytesSent();
+    }
+
+    /**
+     * @see IMAPServerMBean#getCompressionCompressedBytesReceived()
+     */
+    public long getCompressionCompressedBytesReceived() {
+        return compression == null ? 0 : compression.getCompressedBytesReceived();
+    }
+
+    /**
+     * @see IMAPServerMBean#getCompressionUncompressedBytesReceived()
+     */
+    public long getCompressionUncompressedBytesReceived() {
+        return compression == null ? 0 : compression.getUncompressedBytesReceived();
+    }
+
+    /**
+     * @see IMAPServerMBean#getCompressionTime()
+     */
+    public long getCompressionTime() {
+        return compression == null ? 0 : compression.getCompressionTime();
+    }
+
     @Override
     protected String getDefaultJMXName() {
         return "imapserver";
@@ -188,9 +240,9 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         ImapChannelUpstreamHandler coreHandler;
         Encryption secure = getEncryption();
         if (secure!= null && secure.isStartTLS()) {
-           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed, secure.getContext(), getEnabledCipherSuites());
+           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compression, plainAuthDisallowed, secure.getContext(), getEnabledCipherSuites());
         } else {
-           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compress, plainAuthDisallowed);
+           coreHandler = new ImapChannelUpstreamHandler(hello, processor, encoder, getLogger(), compression, plainAuthDisallowed);
         }
         return coreHandler;
     }
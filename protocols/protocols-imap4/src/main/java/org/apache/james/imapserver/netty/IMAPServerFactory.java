@@ -74,6 +74,7 @@ public class IMAPServerFactory extends AbstractServerFactory {
         for (HierarchicalConfiguration serverConfig: configs) {
             IMAPServer server = createServer();
             server.setLog(log);
+            server.setServerRuntime(getServerRuntime());
             server.setFileSystem(fileSystem);
             server.setImapDecoder(decoder);
             server.setImapEncoder(encoder);
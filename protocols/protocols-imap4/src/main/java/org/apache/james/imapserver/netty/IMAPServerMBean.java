@@ -22,4 +22,38 @@ import org.apache.james.protocols.lib.jmx.ServerMBean;
 
 public interface IMAPServerMBean extends ServerMBean {
 
+    /**
+     * Return the count of bytes which were compressed for COMPRESS sessions
+     * 
+     * @return bytes
+     */
+    long getCompressionUncompressedBytesSent();
+
+    /**
+     * Return the count of bytes which were sent to COMPRESS sessions
+     * 
+     * @return bytes
+     */
+    long getCompressionCompressedBytesSent();
+
+    /**
+     * Return the count of bytes which were received from COMPRESS sessions
+     * 
+     * @return bytes
+     */
+    long getCompressionCompressedBytesReceived();
+
+    /**
+     * Return the count of bytes which were decompressed for COMPRESS sessions
+     * 
+     * @return bytes
+     */
+    long getCompressionUncompressedBytesReceived();
+
+    /**
+     * Return the time spent compressing and decompressing, in milliseconds
+     * 
+     * @return time
+     */
+    long getCompressionTime();
 }
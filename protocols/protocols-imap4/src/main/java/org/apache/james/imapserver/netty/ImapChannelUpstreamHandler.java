@@ -60,7 +60,7 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
 
     private final SSLContext context;
 
-    private final boolean compress;
+    private final DeflateCodecFactory compression;
 
     private final ImapProcessor processor;
 
@@ -75,13 +75,26 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
     }
 
     public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, boolean compress, boolean plainAuthDisallowed, SSLContext context, String[] enabledCipherSuites) {
+        this(hello, processor, encoder, logger, compress ? new DeflateCodecFactory() : null, plainAuthDisallowed, context, enabledCipherSuites);
+    }
+
+    public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, DeflateCodecFactory compression, boolean plainAuthDisallowed) {
+        this(hello, processor, encoder, logger, compression, plainAuthDisallowed, null, null);
+    }
+
+    /**
+     * @param compression
+     *            The factory for the COMPRESS handlers, null if COMPRESS is
+     *            not supported
+     */
+    public ImapChannelUpstreamHandler(final String hello, final ImapProcessor processor, ImapEncoder encoder, final Logger logger, DeflateCodecFactory compression, boolean plainAuthDisallowed, SSLContext context, String[] enabledCipherSuites) {
         this.logger = logger;
         this.hello = hello;
         this.processor = processor;
         this.encoder = encoder;
         this.context = context;
         this.enabledCipherSuites = enabledCipherSuites;
-        this.compress = compress;
+        this.compression = compression;
         this.plainAuthDisallowed = plainAuthDisallowed;
     }
 
@@ -89,9 +102,17 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
         return new Slf4jLoggerAdapter(new ProtocolSessionLogger("" + channel.getId(), new ProtocolLoggerAdapter(logger)));
     }
 
+    private ChannelImapResponseWriter getResponseWriter(Channel channel) {
+        NettyImapSession session = (NettyImapSession) attributes.get(channel);
+        if (session == null) {
+            return null;
+        }
+        return session.getResponseWriter();
+    }
+
     @Override
     public void channelBound(final ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        ImapSession imapsession = new NettyImapSession(ctx.getChannel(), logger, context, enabledCipherSuites, compress, plainAuthDisallowed);
+        ImapSession imapsession = new NettyImapSession(ctx.getChannel(), logger, context, enabledCipherSuites, compression, plainAuthDisallowed);
         attributes.set(ctx.getChannel(), imapsession);
         super.channelBound(ctx, e);
     }
@@ -117,11 +138,19 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
         InetSocketAddress address = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
         getLogger(ctx.getChannel()).info("Connection established from " + address.getAddress().getHostAddress());
 
-        ImapResponseComposer response = new ImapResponseComposerImpl(new ChannelImapResponseWriter(ctx.getChannel()));
+        ChannelImapResponseWriter writer = new ChannelImapResponseWriter(ctx.getChannel());
+        NettyImapSession imapSession = (NettyImapSession) attributes.get(ctx.getChannel());
+        imapSession.setResponseWriter(writer);
+        ImapResponseComposer response = new ImapResponseComposerImpl(writer);
         ctx.setAttachment(response);
 
         // write hello to client
-        response.untagged().message("OK").message(hello).end();
+        writer.startBuffering();
+        try {
+            response.untagged().message("OK").message(hello).end();
+        } finally {
+            writer.stopBuffering();
+        }
         super.channelConnected(ctx, e);
 
     }
@@ -150,6 +179,10 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
             // See also JAMES-1190
             ImapResponseComposer composer = (ImapResponseComposer) ctx.getAttachment();
             composer.untaggedResponse(ImapConstants.BAD + " failed. Maximum command line length exceeded");
+            ChannelImapResponseWriter writer = getResponseWriter(ctx.getChannel());
+            if (writer != null) {
+                writer.flush();
+            }
             
         } else {
 
@@ -161,6 +194,10 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
             // Make sure we close the channel after all the buffers were flushed out
             Channel channel = ctx.getChannel();
             if (channel.isConnected()) {
+                ChannelImapResponseWriter writer = getResponseWriter(channel);
+                if (writer != null) {
+                    writer.stopBuffering();
+                }
                 channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
             }
 
@@ -175,7 +212,10 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
         ImapResponseComposer response = (ImapResponseComposer) ctx.getAttachment();
         ImapMessage message = (ImapMessage) e.getMessage();
         ChannelPipeline cp = ctx.getPipeline();
+        ChannelImapResponseWriter writer = getResponseWriter(ctx.getChannel());
 
+        // collect the responses of the command and write them at once
+        writer.startBuffering();
         try {
             if (cp.get(NettyConstants.EXECUTION_HANDLER) != null) {
                 cp.addBefore(NettyConstants.EXECUTION_HANDLER, NettyConstants.HEARTBEAT_HANDLER, heartbeatHandler);
@@ -185,6 +225,7 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
             }
             final ResponseEncoder responseEncoder = new ResponseEncoder(encoder, response, session);
             processor.process(message, responseEncoder, session);
+            writer.stopBuffering();
 
             if (session.getState() == ImapSessionState.LOGOUT) {
                 // Make sure we close the channel after all the buffers were flushed out
@@ -204,6 +245,7 @@ public class ImapChannelUpstreamHandler extends SimpleChannelUpstreamHandler imp
                 throw failure;
             }
         } finally {
+            writer.stopBuffering();
             ctx.getPipeline().remove(NettyConstants.HEARTBEAT_HANDLER);
         }
 
@@ -0,0 +1,82 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.imapserver.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+/**
+ * {@link ChunkedInput} which marks the chunks of a literal, so the
+ * {@link DeflateEncoder} can tell them from the rest of the responses
+ */
+public class LiteralChunkedInput implements ChunkedInput {
+
+    /**
+     * A chunk of the content of a literal
+     */
+    public static class Chunk {
+        private final LiteralChunkedInput literal;
+        private final ChannelBuffer buffer;
+
+        public Chunk(LiteralChunkedInput literal, ChannelBuffer buffer) {
+            this.literal = literal;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Return the literal this chunk belongs to
+         * 
+         * @return literal
+         */
+        public LiteralChunkedInput getLiteral() {
+            return literal;
+        }
+
+        public ChannelBuffer getBuffer() {
+            return buffer;
+        }
+    }
+
+    private final ChunkedInput input;
+
+    public LiteralChunkedInput(ChunkedInput input) {
+        this.input = input;
+    }
+
+    public boolean hasNextChunk() throws Exception {
+        return input.hasNextChunk();
+    }
+
+    public Object nextChunk() throws Exception {
+        Object chunk = input.nextChunk();
+        if (chunk instanceof ChannelBuffer) {
+            return new Chunk(this, (ChannelBuffer) chunk);
+        }
+        return chunk;
+    }
+
+    public boolean isEndOfInput() throws Exception {
+        return input.isEndOfInput();
+    }
+
+    public void close() throws Exception {
+        input.close();
+    }
+
+}
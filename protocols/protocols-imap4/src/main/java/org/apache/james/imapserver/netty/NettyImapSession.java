@@ -31,9 +31,9 @@ import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
 import org.apache.james.protocols.api.logger.ProtocolSessionLogger;
 import org.apache.james.protocols.lib.Slf4jLoggerAdapter;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.handler.codec.compression.ZlibDecoder;
-import org.jboss.netty.handler.codec.compression.ZlibEncoder;
-import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 
@@ -44,18 +44,28 @@ public class NettyImapSession implements ImapSession, NettyConstants {
     private final Map<String, Object> attributesByKey = new HashMap<String, Object>();
     private final SSLContext sslContext;
     private final String[] enabledCipherSuites;
-    private final boolean compress;
+    private final DeflateCodecFactory compression;
     private final ProtocolSessionLogger log;
     private final Channel channel;
     private int handlerCount;
     private final boolean plainAuthDisallowed;
+    private ChannelImapResponseWriter responseWriter;
 
     public NettyImapSession(Channel channel, Logger log, SSLContext sslContext, String[] enabledCipherSuites, boolean compress, boolean plainAuthDisallowed) {
+        this(channel, log, sslContext, enabledCipherSuites, compress ? new DeflateCodecFactory() : null, plainAuthDisallowed);
+    }
+
+    /**
+     * @param compression
+     *            The factory for the COMPRESS handlers, null if COMPRESS is
+     *            not supported
+     */
+    public NettyImapSession(Channel channel, Logger log, SSLContext sslContext, String[] enabledCipherSuites, DeflateCodecFactory compression, boolean plainAuthDisallowed) {
         this.channel = channel;
         this.log = new ProtocolSessionLogger(channel.getId() + "", new ProtocolLoggerAdapter(log));
         this.sslContext = sslContext;
         this.enabledCipherSuites = enabledCipherSuites;
-        this.compress = compress;
+        this.compression = compression;
         this.plainAuthDisallowed = plainAuthDisallowed;
     }
 
@@ -69,6 +79,34 @@ public class NettyImapSession implements ImapSession, NettyConstants {
         return channel;
     }
 
+    /**
+     * Set the writer which is used for the responses of this session
+     * 
+     * @param responseWriter
+     */
+    public void setResponseWriter(ChannelImapResponseWriter responseWriter) {
+        this.responseWriter = responseWriter;
+    }
+
+    /**
+     * Return the writer which is used for the responses of this session
+     * 
+     * @return responseWriter
+     */
+    public ChannelImapResponseWriter getResponseWriter() {
+        return responseWriter;
+    }
+
+    /**
+     * Write the buffered responses, so they are not encoded by a handler
+     * which is added to the pipeline afterwards
+     */
+    private void flushResponses() {
+        if (responseWriter != null) {
+            responseWriter.flush();
+        }
+    }
+
     /**
      * @see org.apache.james.imap.api.process.ImapSession#logout()
      */
@@ -150,6 +188,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
     public boolean startTLS() {
         if (!supportStartTLS())
             return false;
+        flushResponses();
         channel.setReadable(false);
 
         SslHandler filter = new SslHandler(sslContext.createSSLEngine(), false);
@@ -176,7 +215,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
      * org.apache.james.imap.api.process.ImapSession#isCompressionSupported()
      */
     public boolean isCompressionSupported() {
-        return compress;
+        return compression != null;
     }
 
     /**
@@ -186,9 +225,10 @@ public class NettyImapSession implements ImapSession, NettyConstants {
         if (!isCompressionSupported())
             return false;
 
+        flushResponses();
         channel.setReadable(false);
-        ZlibDecoder decoder = new ZlibDecoder(ZlibWrapper.NONE);
-        ZlibEncoder encoder = new ZlibEncoder(ZlibWrapper.NONE, 5);
+        final ChannelHandler encoder = compression.createEncoder();
+        final DeflateDecoder decoder = compression.createDecoder();
 
         // Check if we have the SslHandler in the pipeline already
         // if so we need to move the compress encoder and decoder
@@ -202,11 +242,37 @@ public class NettyImapSession implements ImapSession, NettyConstants {
             channel.getPipeline().addAfter(SSL_HANDLER, ZLIB_ENCODER, encoder);
         }
 
+        // give the pooled deflate state back once the connection is gone
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                endCompression(encoder, decoder);
+            }
+        });
+
         channel.setReadable(true);
 
         return true;
     }
 
+    private void endCompression(ChannelHandler encoder, DeflateDecoder decoder) {
+        decoder.release();
+        if (encoder instanceof DeflateEncoder) {
+            DeflateEncoder deflateEncoder = (DeflateEncoder) encoder;
+            deflateEncoder.release();
+
+            Logger logger = getLog();
+            if (logger.isDebugEnabled()) {
+                long uncompressed = deflateEncoder.getUncompressedBytes();
+                long compressed = deflateEncoder.getCompressedBytes();
+                logger.debug("COMPRESS sent " + uncompressed + " bytes as " + compressed
+                        + " (ratio " + (uncompressed > 0 ? compressed * 100 / uncompressed : 100) + "%) in "
+                        + deflateEncoder.getCompressionNanos() / 1000000 + "ms, received "
+                        + decoder.getCompressedBytes() + " bytes as " + decoder.getUncompressedBytes() + " in "
+                        + decoder.getDecompressionNanos() / 1000000 + "ms");
+            }
+        }
+    }
+
     /**
      * @see
      * org.apache.james.imap.api.process.ImapSession#pushLineHandler(org.apache.james.imap.api.process.ImapLineHandler)
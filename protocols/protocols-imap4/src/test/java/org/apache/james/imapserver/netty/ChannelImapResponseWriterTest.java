@@ -0,0 +1,204 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imapserver.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.imap.message.response.Literal;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.stream.ChunkedStream;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class ChannelImapResponseWriterTest {
+
+    /**
+     * Records the messages written to a {@link Channel}
+     */
+    private static class RecordingChannel implements InvocationHandler {
+        private final List<Object> written = new ArrayList<Object>();
+        private final ChannelPipeline pipeline = Channels.pipeline();
+        private final Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class }, this);
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("write")) {
+                written.add(args[0]);
+                return Channels.succeededFuture(channel);
+            } else if (name.equals("isConnected") || name.equals("isOpen")) {
+                return true;
+            } else if (name.equals("getPipeline")) {
+                return pipeline;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("getId")) {
+                return 1;
+            }
+            return null;
+        }
+
+        public byte[] getBufferedBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Object message : written) {
+                ChannelBuffer buffer = (ChannelBuffer) message;
+                byte[] data = new byte[buffer.readableBytes()];
+                buffer.getBytes(buffer.readerIndex(), data);
+                out.write(data, 0, data.length);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Write the fragments of a FETCH response of the given count of envelopes,
+     * the way the encoders produce them
+     */
+    private byte[] writeFetchResponse(ChannelImapResponseWriter writer, int messages) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 1; i <= messages; i++) {
+            String[] fragments = new String[] { "*", " ", String.valueOf(i), " ", "FETCH", " ", "(", "UID", " ", String.valueOf(1000 + i), " ", "ENVELOPE", " ", "(", "\"Mon, 7 Feb 1994 21:52:25 -0800\"", " ", "\"Subject " + i + "\"", " ", "((", "\"Sender\"", " ", "NIL", " ", "\"sender\"", " ", "\"example.org\"", "))", " ", "NIL", " ", "NIL", " ", "NIL", " ", "\"<" + i + "@example.org>\"", ")", ")", "\r\n" };
+            for (String fragment : fragments) {
+                byte[] bytes = fragment.getBytes("US-ASCII");
+                writer.write(bytes);
+                expected.write(bytes, 0, bytes.length);
+            }
+        }
+        return expected.toByteArray();
+    }
+
+    @Test
+    public void testFragmentsAreCoalesced() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelImapResponseWriter writer = new ChannelImapResponseWriter(channel.channel);
+
+        writer.startBuffering();
+        byte[] expected = writeFetchResponse(writer, 1000);
+        writer.stopBuffering();
+
+        assertArrayEquals(expected, channel.getBufferedBytes());
+        assertEquals(channel.written.size(), writer.getWriteCount());
+        assertTrue(writer.getWriteCount() <= expected.length / ChannelImapResponseWriter.DEFAULT_BUFFER_SIZE + 1);
+    }
+
+    @Test
+    public void testWritesOutsideCommandAreNotBuffered() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelImapResponseWriter writer = new ChannelImapResponseWriter(channel.channel);
+
+        writer.write("* 3 EXISTS\r\n".getBytes("US-ASCII"));
+        writer.write("* 1 RECENT\r\n".getBytes("US-ASCII"));
+
+        assertEquals(2, channel.written.size());
+    }
+
+    @Test
+    public void testBufferIsFlushedBeforeLiteral() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelImapResponseWriter writer = new ChannelImapResponseWriter(channel.channel);
+        final byte[] content = "Subject: test\r\n\r\nbody\r\n".getBytes("US-ASCII");
+
+        writer.startBuffering();
+        writer.write("* 1 FETCH (BODY[] {".getBytes("US-ASCII"));
+        writer.write((content.length + "}\r\n").getBytes("US-ASCII"));
+        writer.write(new Literal() {
+            public long size() throws IOException {
+                return content.length;
+            }
+
+            public InputStream getInputStream() throws IOException {
+                return new ByteArrayInputStream(content);
+            }
+        });
+        writer.write(")\r\n".getBytes("US-ASCII"));
+        writer.stopBuffering();
+
+        assertEquals(3, channel.written.size());
+        assertTrue(channel.written.get(0) instanceof ChannelBuffer);
+        assertTrue(channel.written.get(1) instanceof ChunkedStream);
+        assertTrue(channel.written.get(2) instanceof ChannelBuffer);
+    }
+
+    @Test
+    public void testLargeFetchNeedsFewWrites() throws Exception {
+        int messages = 1000;
+
+        RecordingChannel unbufferedChannel = new RecordingChannel();
+        ChannelImapResponseWriter unbuffered = new ChannelImapResponseWriter(unbufferedChannel.channel, true, 0);
+        unbuffered.startBuffering();
+        writeFetchResponse(unbuffered, messages);
+        unbuffered.stopBuffering();
+
+        RecordingChannel bufferedChannel = new RecordingChannel();
+        ChannelImapResponseWriter buffered = new ChannelImapResponseWriter(bufferedChannel.channel);
+        buffered.startBuffering();
+        byte[] expected = writeFetchResponse(buffered, messages);
+        buffered.stopBuffering();
+
+        assertArrayEquals(expected, bufferedChannel.getBufferedBytes());
+        assertTrue(buffered.getWriteCount() * 100 < unbuffered.getWriteCount());
+    }
+
+    /**
+     * Compare the count of writes and the throughput for a big FETCH
+     * response with and without buffering. Every write passes the pipeline
+     * and usually ends in its own system call. Run it by hand, the timings
+     * are only printed
+     */
+    @Ignore
+    @Test
+    public void testLargeFetchBenchmark() throws Exception {
+        int messages = 20000;
+
+        RecordingChannel unbufferedChannel = new RecordingChannel();
+        ChannelImapResponseWriter unbuffered = new ChannelImapResponseWriter(unbufferedChannel.channel, true, 0);
+        long start = System.nanoTime();
+        unbuffered.startBuffering();
+        int size = writeFetchResponse(unbuffered, messages).length;
+        unbuffered.stopBuffering();
+        long unbufferedTime = System.nanoTime() - start;
+
+        RecordingChannel bufferedChannel = new RecordingChannel();
+        ChannelImapResponseWriter buffered = new ChannelImapResponseWriter(bufferedChannel.channel);
+        start = System.nanoTime();
+        buffered.startBuffering();
+        writeFetchResponse(buffered, messages);
+        buffered.stopBuffering();
+        long bufferedTime = System.nanoTime() - start;
+
+        System.out.println("FETCH of " + messages + " envelopes (" + size + " bytes): " + unbuffered.getWriteCount() + " writes in " + unbufferedTime / 1000000 + " ms unbuffered, " + buffered.getWriteCount() + " writes in " + bufferedTime / 1000000 + " ms buffered");
+    }
+}
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imapserver.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeflateEncoderTest {
+
+    private final static byte[] RESPONSE = "* 1 FETCH (FLAGS (\\Seen) UID 1)\r\n* 2 FETCH (FLAGS (\\Seen) UID 2)\r\n".getBytes();
+
+    private DeflateCodecFactory factory;
+    private DeflateEncoder encoder;
+    private Inflater inflater;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(DeflateCodecFactory.isSyncFlushSupported());
+        factory = new DeflateCodecFactory();
+        encoder = new DeflateEncoder(factory, DeflateCodecFactory.DEFAULT_SKIP_RATIO);
+        inflater = new Inflater(true);
+    }
+
+    private ChannelBuffer encode(Object msg) throws Exception {
+        return (ChannelBuffer) encoder.encode(null, null, msg);
+    }
+
+    private byte[] inflate(ChannelBuffer compressed) throws Exception {
+        byte[] data = new byte[compressed.readableBytes()];
+        compressed.readBytes(data);
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testResponsesAreCompressed() throws Exception {
+        ChannelBuffer compressed = encode(ChannelBuffers.wrappedBuffer(RESPONSE));
+        assertTrue(compressed.readableBytes() < RESPONSE.length);
+        assertArrayEquals(RESPONSE, inflate(compressed));
+
+        // the dictionary is kept between the writes
+        int size = encode(ChannelBuffers.wrappedBuffer(RESPONSE)).readableBytes();
+        assertTrue(size < RESPONSE.length / 4);
+    }
+
+    @Test
+    public void testIncompressibleLiteralIsStored() throws Exception {
+        assertArrayEquals(RESPONSE, inflate(encode(ChannelBuffers.wrappedBuffer(RESPONSE))));
+
+        LiteralChunkedInput literal = new LiteralChunkedInput(null);
+        byte[] data = randomBytes(3 * 8192);
+        for (int i = 0; i < 3; i++) {
+            byte[] chunk = new byte[8192];
+            System.arraycopy(data, i * 8192, chunk, 0, chunk.length);
+            ChannelBuffer compressed = encode(new LiteralChunkedInput.Chunk(literal, ChannelBuffers.wrappedBuffer(chunk)));
+            if (i > 0) {
+                // one stored block header
+                assertEquals(chunk.length + 5, compressed.readableBytes());
+            }
+            assertArrayEquals(chunk, inflate(compressed));
+        }
+
+        // the stream is still valid after the deflater was reset
+        assertArrayEquals(RESPONSE, inflate(encode(ChannelBuffers.wrappedBuffer(RESPONSE))));
+        assertEquals(3 * 8192 + 2 * RESPONSE.length, encoder.getUncompressedBytes());
+        assertEquals(encoder.getUncompressedBytes(), factory.getUncompressedBytesSent());
+    }
+
+    @Test
+    public void testCompressibleLiteralIsCompressed() throws Exception {
+        LiteralChunkedInput literal = new LiteralChunkedInput(null);
+        byte[] chunk = new byte[8192];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = RESPONSE[i % RESPONSE.length];
+        }
+        for (int i = 0; i < 3; i++) {
+            ChannelBuffer compressed = encode(new LiteralChunkedInput.Chunk(literal, ChannelBuffers.wrappedBuffer(chunk)));
+            assertTrue(compressed.readableBytes() < chunk.length / 4);
+            assertArrayEquals(chunk, inflate(compressed));
+        }
+    }
+
+    @Test
+    public void testDecoder() throws Exception {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] buffer = new byte[1024];
+        deflater.setInput(RESPONSE);
+        int size = DeflateCodecFactory.syncFlush(deflater, buffer);
+
+        DeflateDecoder decoder = factory.createDecoder();
+        ChannelBuffer compressed = ChannelBuffers.dynamicBuffer(size);
+        compressed.writeBytes(buffer, 0, size);
+        ChannelBuffer decoded = (ChannelBuffer) decoder.decode(null, null, compressed);
+        byte[] data = new byte[decoded.readableBytes()];
+        decoded.readBytes(data);
+        assertArrayEquals(RESPONSE, data);
+        assertEquals(size, decoder.getCompressedBytes());
+        decoder.release();
+    }
+
+}
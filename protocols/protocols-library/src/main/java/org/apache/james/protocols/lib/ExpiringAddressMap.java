@@ -0,0 +1,343 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores ip addresses together with the time they were added, without
+ * locking.
+ * <p>
+ * The addresses are kept in their binary form and are grouped into buckets by
+ * the time they were added, so expiring them only needs to look at the
+ * buckets which are old enough instead of at every stored address. If more
+ * than the maximal count of addresses are stored, the oldest ones are evicted.
+ * </p>
+ */
+public class ExpiringAddressMap implements ExpiringAddressMapMBean {
+
+    /** The default time span (in ms) of one bucket */
+    public final static long DEFAULT_BUCKET_SIZE = 60 * 1000;
+
+    /** The default maximal count of addresses */
+    public final static int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final ConcurrentMap<AddressKey, Long> entries = new ConcurrentHashMap<AddressKey, Long>();
+    private final ConcurrentSkipListMap<Long, Queue<AddressKey>> buckets = new ConcurrentSkipListMap<Long, Queue<AddressKey>>();
+    private final long bucketSize;
+    private volatile int maxEntries;
+
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ExpiringAddressMap() {
+        this(DEFAULT_BUCKET_SIZE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param bucketSize
+     *            The time span (in ms) of one bucket
+     * @param maxEntries
+     *            The maximal count of addresses
+     */
+    public ExpiringAddressMap(long bucketSize, int maxEntries) {
+        if (bucketSize < 1) {
+            throw new IllegalArgumentException("bucketSize must be at least 1");
+        }
+        this.bucketSize = bucketSize;
+        setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Add the given address or refresh its time if it is already stored
+     * 
+     * @param ipAddress
+     *            The ipAddress
+     */
+    public void add(String ipAddress) {
+        AddressKey key = toKey(ipAddress);
+        long now = currentTimeMillis();
+        Long bucket = now / bucketSize;
+        Long previous = entries.put(key, now);
+        added.incrementAndGet();
+
+        // An address refreshed within its bucket is queued there already. If
+        // the bucket is dropped after this check, the drop sees the new time.
+        if (previous != null && previous / bucketSize == bucket && buckets.containsKey(bucket)) {
+            if (entries.size() > maxEntries) {
+                evict();
+            }
+            return;
+        }
+
+        while (true) {
+            Queue<AddressKey> queue = buckets.get(bucket);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<AddressKey>();
+                Queue<AddressKey> existing = buckets.putIfAbsent(bucket, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            queue.add(key);
+            // If the bucket was dropped in the meantime the address may have
+            // been missed, so add it to a new one
+            if (buckets.get(bucket) == queue) {
+                break;
+            }
+        }
+
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Return true if the given address is stored
+     * 
+     * @param ipAddress
+     *            The ipAddress
+     * @return stored
+     */
+    public boolean contains(String ipAddress) {
+        return entries.containsKey(toKey(ipAddress));
+    }
+
+    /**
+     * Return true if the given address is stored and not older than the
+     * given time
+     * 
+     * @param ipAddress
+     *            The ipAddress
+     * @param expireTime
+     *            The time in ms after which an address is expired
+     * @return stored and not expired
+     */
+    public boolean contains(String ipAddress, long expireTime) {
+        Long time = entries.get(toKey(ipAddress));
+        return time != null && currentTimeMillis() - expireTime <= time;
+    }
+
+    /**
+     * Remove all addresses which are older than the given time
+     * 
+     * @param expireTime
+     *            The time in ms after which an address is expired
+     */
+    public void removeExpired(long expireTime) {
+        long limit = currentTimeMillis() - expireTime;
+        long limitBucket = limit / bucketSize;
+
+        // all addresses of the buckets before the one of the limit are expired
+        Iterator<Map.Entry<Long, Queue<AddressKey>>> it = buckets.headMap(limitBucket).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Queue<AddressKey>> entry = it.next();
+            it.remove();
+            drop(entry.getKey(), entry.getValue(), expirations);
+        }
+
+        // the bucket of the limit is only partly expired
+        Queue<AddressKey> queue = buckets.get(limitBucket);
+        if (queue != null) {
+            for (AddressKey key : queue) {
+                Long time = entries.get(key);
+                if (time != null && time < limit && entries.remove(key, time)) {
+                    expirations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict the addresses of the oldest buckets until there are not more than
+     * the maximal count of addresses
+     */
+    private void evict() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<Long, Queue<AddressKey>> entry = buckets.pollFirstEntry();
+            if (entry == null) {
+                return;
+            }
+            drop(entry.getKey(), entry.getValue(), evictions);
+        }
+    }
+
+    /**
+     * Remove the addresses of the given bucket which were not refreshed since
+     * then
+     */
+    private void drop(long bucket, Queue<AddressKey> queue, AtomicLong counter) {
+        AddressKey key;
+        while ((key = queue.poll()) != null) {
+            Long time = entries.get(key);
+            if (time != null && time / bucketSize <= bucket && entries.remove(key, time)) {
+                counter.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return the count of queued addresses of the bucket holding the given
+     * time
+     */
+    int getQueuedCount(long time) {
+        Queue<AddressKey> queue = buckets.get(time / bucketSize);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#clear()
+     */
+    public void clear() {
+        entries.clear();
+        buckets.clear();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#getSize()
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#getMaxEntries()
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#setMaxEntries(int)
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#getAdded()
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#getExpirations()
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.ExpiringAddressMapMBean#getEvictions()
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the current time in ms
+     * 
+     * @return time
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Return the key of the given address. Ip literals are stored in their
+     * binary form, everything else as it is.
+     */
+    private static AddressKey toKey(String ipAddress) {
+        if (isIPLiteral(ipAddress)) {
+            try {
+                // no lookup is done for literals
+                return new AddressKey(InetAddress.getByName(ipAddress).getAddress(), true);
+            } catch (UnknownHostException e) {
+                // not a valid literal, so use the string
+            }
+        }
+        try {
+            return new AddressKey(ipAddress.getBytes("UTF-8"), false);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isIPLiteral(String ipAddress) {
+        if (ipAddress.indexOf(':') != -1) {
+            return true;
+        }
+        if (ipAddress.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < ipAddress.length(); i++) {
+            char c = ipAddress.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class AddressKey {
+        private final byte[] address;
+        private final boolean literal;
+        private final int hashCode;
+
+        public AddressKey(byte[] address, boolean literal) {
+            this.address = address;
+            this.literal = literal;
+            this.hashCode = Arrays.hashCode(address);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof AddressKey)) {
+                return false;
+            }
+            AddressKey other = (AddressKey) obj;
+            return literal == other.literal && Arrays.equals(address, other.address);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib;
+
+/**
+ * JMX view on an {@link ExpiringAddressMap}
+ */
+public interface ExpiringAddressMapMBean {
+
+    /**
+     * Return the count of addresses which are stored at the moment
+     * 
+     * @return size
+     */
+    int getSize();
+
+    /**
+     * Return the maximal count of addresses which are stored
+     * 
+     * @return maxEntries
+     */
+    int getMaxEntries();
+
+    /**
+     * Set the maximal count of addresses which are stored
+     * 
+     * @param maxEntries
+     *            maxEntries
+     */
+    void setMaxEntries(int maxEntries);
+
+    /**
+     * Return the count of addresses which were added or refreshed
+     * 
+     * @return added
+     */
+    long getAdded();
+
+    /**
+     * Return the count of addresses which were removed because they expired
+     * 
+     * @return expirations
+     */
+    long getExpirations();
+
+    /**
+     * Return the count of addresses which were removed before they expired,
+     * because the maximal count of addresses was reached
+     * 
+     * @return evictions
+     */
+    long getEvictions();
+
+    /**
+     * Remove all addresses
+     */
+    void clear();
+}
@@ -19,14 +19,14 @@
 
 package org.apache.james.protocols.lib;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
 
 /**
  * Helper class which is used to store ipAddresses and timestamps for pop before
- * smtp support.
+ * smtp support. The addresses are shared by all POP3 and SMTP servers of the
+ * JVM and can be watched via JMX.
  */
 public class POP3BeforeSMTPHelper {
 
@@ -36,7 +36,15 @@ public class POP3BeforeSMTPHelper {
     /**
      * The map in which the ipAddresses and timestamp stored
      */
-    public static final Map<String, Long> ipMap = Collections.synchronizedMap(new HashMap<String, Long>());
+    private static final ExpiringAddressMap ipMap = new ExpiringAddressMap();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(ipMap, new ObjectName("org.apache.james:type=server,name=pop3beforesmtp"));
+        } catch (Exception e) {
+            // ignore here, the map works without JMX
+        }
+    }
 
     /**
      * Default expire time in ms (1 hour)
@@ -51,7 +59,22 @@ public class POP3BeforeSMTPHelper {
      * @return true if authorized. Else false
      */
     public static boolean isAuthorized(String ipAddress) {
-        return ipMap.containsKey(ipAddress);
+        return ipMap.contains(ipAddress);
+    }
+
+    /**
+     * Return true if the ip is authorized to relay and its authorization is not
+     * older than the given time
+     * 
+     * @param ipAddress
+     *            The ipAddress
+     * @param expireTime
+     *            The time in milliseconds after which an ipAddress should be
+     *            handled as expired
+     * @return true if authorized. Else false
+     */
+    public static boolean isAuthorized(String ipAddress, long expireTime) {
+        return ipMap.contains(ipAddress, expireTime);
     }
 
     /**
@@ -61,7 +84,7 @@ public class POP3BeforeSMTPHelper {
      *            The ipAddress
      */
     public static void addIPAddress(String ipAddress) {
-        ipMap.put(ipAddress, System.currentTimeMillis());
+        ipMap.add(ipAddress);
     }
 
     /**
@@ -80,25 +103,18 @@ public class POP3BeforeSMTPHelper {
      *            handled as expired
      */
     public static void removeExpiredIP(long clearTime) {
-        synchronized (ipMap) {
-            Iterator<String> storedIP = ipMap.keySet().iterator();
-            long currTime = System.currentTimeMillis();
-
-            while (storedIP.hasNext()) {
-                String key = storedIP.next();
-                long storedTime = ipMap.get(key);
-
-                // remove the ip from the map when it is expired
-                if ((currTime - clearTime) > storedTime) {
-                    // remove the entry from the iterator first to get sure that
-                    // we not get
-                    // a ConcurrentModificationException
-                    storedIP.remove();
+        ipMap.removeExpired(clearTime);
+    }
 
-                    ipMap.remove(key);
-                }
-            }
-        }
+    /**
+     * Set the maximal count of authorized ipAddresses, the oldest ones are
+     * removed first if there are more
+     * 
+     * @param maxEntries
+     *            The maximal count
+     */
+    public static void setMaxEntries(int maxEntries) {
+        ipMap.setMaxEntries(maxEntries);
     }
 
     /**
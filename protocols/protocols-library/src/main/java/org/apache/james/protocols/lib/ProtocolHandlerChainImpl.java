@@ -54,6 +54,14 @@ public class ProtocolHandlerChainImpl implements ProtocolHandlerChain {
     public void init() throws Exception {
         List<org.apache.commons.configuration.HierarchicalConfiguration> children = handlerchainConfig.configurationsAt("handler");
 
+        // handlers which register mbeans need the jmxName of the server they
+        // belong to, so pass it to all which don't configure their own
+        for (HierarchicalConfiguration hConf : children) {
+            if (hConf.getString("jmxName", null) == null) {
+                hConf.addProperty("jmxName", jmxName);
+            }
+        }
+
         // check if the coreHandlersPackage was specified in the config, if
         // not add the default
         if (handlerchainConfig.getString("[@coreHandlersPackage]") == null)
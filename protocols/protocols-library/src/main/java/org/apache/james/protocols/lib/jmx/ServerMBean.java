@@ -44,6 +44,27 @@ public interface ServerMBean {
      */
     long getHandledConnections();
 
+    /**
+     * Return the count of TLS handshakes done since startup
+     * 
+     * @return tlsHandshakes
+     */
+    long getTlsHandshakes();
+
+    /**
+     * Return the count of TLS handshakes which resumed a cached session
+     * 
+     * @return tlsResumedHandshakes
+     */
+    long getTlsResumedHandshakes();
+
+    /**
+     * Return the percentage of TLS handshakes which resumed a cached session
+     * 
+     * @return tlsResumptionRate
+     */
+    double getTlsResumptionRate();
+
     /**
      * Return true if the server is enabled
      * 
@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.protocols.lib.netty;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
@@ -36,6 +37,7 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -52,6 +54,8 @@ import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 
 /**
@@ -108,14 +112,36 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
     private String[] enabledCipherSuites;
 
+    private boolean preferFastCipherSuites;
+
+    private boolean ownTlsSessionCache;
+
+    private int tlsSessionCacheSize;
+
+    private int tlsSessionTimeout;
+
+    private final TlsHandshakeStats tlsStats = new TlsHandshakeStats();
+
     private final ConnectionCountHandler countHandler = new ConnectionCountHandler();
 
     private ExecutionHandler executionHandler = null;
 
     private int maxExecutorThreads;
 
+    /**
+     * true if the server uses its own executor for the blocking handlers
+     * instead of the one of the runtime
+     */
+    private boolean ownExecutor;
+
     private MBeanServer mbeanServer;
 
+    private ProtocolServerRuntime serverRuntime;
+
+    private ServerRuntimeStats runtimeStats;
+
+    private Timer timer;
+
     @Inject
     public final void setFileSystem(@Named("filesystem") FileSystem filesystem) {
         this.fileSystem = filesystem;
@@ -128,10 +154,24 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         this.logger = logger;
     }
 
+    /**
+     * Set the {@link ProtocolServerRuntime} which provides the threads and the
+     * timer for this server. If none is set the server creates its own. This
+     * must be called before the server gets configured.
+     * 
+     * @param serverRuntime
+     */
+    public void setServerRuntime(ProtocolServerRuntime serverRuntime) {
+        this.serverRuntime = serverRuntime;
+    }
+
     protected void registerMBean() {
 
         try {
             mbeanServer.registerMBean(this, new ObjectName(getMBeanName()));
+            if (runtimeStats != null) {
+                mbeanServer.registerMBean(runtimeStats, new ObjectName(getRuntimeMBeanName()));
+            }
         } catch (Exception e) {
             throw new RuntimeException("Unable to register mbean", e);
         }
@@ -141,6 +181,9 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     protected void unregisterMBean() {
         try {
             mbeanServer.unregisterMBean(new ObjectName(getMBeanName()));
+            if (runtimeStats != null) {
+                mbeanServer.unregisterMBean(new ObjectName(getRuntimeMBeanName()));
+            }
         } catch (Exception e) {
             throw new RuntimeException("Unable to unregister mbean", e);
         }
@@ -150,6 +193,10 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     private String getMBeanName() {
         return  "org.apache.james:type=server,name=" + jmxName;
     }
+
+    private String getRuntimeMBeanName() {
+        return getMBeanName() + ",sub-type=runtime";
+    }
     
     /**
      * @see
@@ -191,9 +238,12 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         setListenAddresses(bindAddresses.toArray(new InetSocketAddress[bindAddresses.size()]));
 
         jmxName = config.getString("jmxName", getDefaultJMXName());
-        int ioWorker = config.getInt("ioWorkerCount", DEFAULT_IO_WORKER_COUNT);
+        int ioWorker = config.getInt("ioWorkerCount", serverRuntime != null ? serverRuntime.getIoWorkerCount() : DEFAULT_IO_WORKER_COUNT);
         setIoWorkerCount(ioWorker);
 
+        // a server which configures its own limit gets its own executor, so
+        // the limit holds even if a runtime is used
+        ownExecutor = serverRuntime == null || config.containsKey("maxExecutorCount");
         maxExecutorThreads = config.getInt("maxExecutorCount", DEFAULT_MAX_EXECUTOR_COUNT);
 
         
@@ -255,6 +305,15 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             }
             secret = config.getString("tls.secret", "");
             x509Algorithm = config.getString("tls.algorithm", defaultX509algorithm);
+            preferFastCipherSuites = config.getBoolean("tls.preferFastCipherSuites", false);
+
+            // servers which size their own session cache don't share it
+            ownTlsSessionCache = serverRuntime == null || config.containsKey("tls.sessionCacheSize") || config.containsKey("tls.sessionTimeout");
+            tlsSessionCacheSize = config.getInt("tls.sessionCacheSize", serverRuntime != null ? serverRuntime.getTlsSessionCacheSize() : ProtocolServerRuntime.DEFAULT_TLS_SESSION_CACHE_SIZE);
+            tlsSessionTimeout = config.getInt("tls.sessionTimeout", serverRuntime != null ? serverRuntime.getTlsSessionTimeout() : ProtocolServerRuntime.DEFAULT_TLS_SESSION_TIMEOUT);
+            if (tlsSessionCacheSize < 0 || tlsSessionTimeout < 0) {
+                throw new ConfigurationException("tls.sessionCacheSize and tls.sessionTimeout must not be negative");
+            }
         }
 
         doConfigure(config);
@@ -268,6 +327,9 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
             buildSSLContext();
             preInit();
+            if (serverRuntime != null) {
+                runtimeStats = serverRuntime.registerServer(jmxName);
+            }
             executionHandler = createExecutionHander();
             bind();
 
@@ -294,6 +356,18 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             }
 
             unregisterMBean();
+
+            if (runtimeStats != null) {
+                serverRuntime.unregisterServer(jmxName);
+                runtimeStats = null;
+            }
+            synchronized (this) {
+                // the timer of the runtime is shared, so only stop our own
+                if (timer != null && serverRuntime == null) {
+                    timer.stop();
+                }
+                timer = null;
+            }
         }
         getLogger().info("Dispose " + getServiceType() + " done");
 
@@ -399,29 +473,60 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
     private void buildSSLContext() throws Exception {
         if (useStartTLS || useSSL) {
-            FileInputStream fis = null;
-            try {
-                KeyStore ks = KeyStore.getInstance("JKS");
-                fis = new FileInputStream(fileSystem.getFile(keystore));
-                ks.load(fis, secret.toCharArray());
-
-                // Set up key manager factory to use our key store
-                KeyManagerFactory kmf = KeyManagerFactory.getInstance(x509Algorithm);
-                kmf.init(ks, secret.toCharArray());
-
-                // Initialize the SSLContext to work with our key managers.
-                SSLContext context = SSLContext.getInstance("TLS");
-                context.init(kmf.getKeyManagers(), null, null);
-                if (useStartTLS) {
-                	encryption = Encryption.createStartTls(context, enabledCipherSuites);
+            File keystoreFile = fileSystem.getFile(keystore);
+            SSLContext context = null;
+            if (!ownTlsSessionCache) {
+                context = serverRuntime.getSSLContext(keystoreFile, x509Algorithm, secret);
+            }
+            if (context == null) {
+                context = createSSLContext(keystoreFile);
+                if (ownTlsSessionCache) {
+                    SSLSessionContext sessions = context.getServerSessionContext();
+                    sessions.setSessionCacheSize(tlsSessionCacheSize);
+                    sessions.setSessionTimeout(tlsSessionTimeout);
                 } else {
-                	encryption = Encryption.createTls(context, enabledCipherSuites);
+                    context = serverRuntime.shareSSLContext(keystoreFile, x509Algorithm, secret, context);
+                }
+            }
+
+            if (preferFastCipherSuites) {
+                if (enabledCipherSuites == null || enabledCipherSuites.length == 0) {
+                    enabledCipherSuites = MonitoredSSLContext.orderBySpeed(context.getDefaultSSLParameters().getCipherSuites());
                 }
-            } finally {
-                if (fis != null) {
-                    fis.close();
+                if (!MonitoredSSLContext.isServerCipherSuitesOrderSupported()) {
+                    getLogger().warn("The cipher suites of " + getServiceType() + " can only be preferred on Java 8 or later");
                 }
             }
+
+            // Count the handshakes of this server, even if the context is shared
+            context = MonitoredSSLContext.wrap(context, tlsStats, preferFastCipherSuites);
+            if (useStartTLS) {
+            	encryption = Encryption.createStartTls(context, enabledCipherSuites);
+            } else {
+            	encryption = Encryption.createTls(context, enabledCipherSuites);
+            }
+        }
+    }
+
+    private SSLContext createSSLContext(File keystoreFile) throws Exception {
+        FileInputStream fis = null;
+        try {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            fis = new FileInputStream(keystoreFile);
+            ks.load(fis, secret.toCharArray());
+
+            // Set up key manager factory to use our key store
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(x509Algorithm);
+            kmf.init(ks, secret.toCharArray());
+
+            // Initialize the SSLContext to work with our key managers.
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
         }
     }
 
@@ -467,14 +572,39 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     
     @Override
     protected Executor createBossExecutor() {
+        if (runtimeStats != null) {
+            return runtimeStats.getBossExecutor();
+        }
         return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), "boss");
     }
 
     @Override
     protected Executor createWorkerExecutor() {
+        if (runtimeStats != null) {
+            return runtimeStats.getWorkerExecutor();
+        }
         return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), "worker");
     }
 
+    /**
+     * Return the {@link Timer} which should be used by the handlers of this
+     * server. This is the timer of the {@link ProtocolServerRuntime} if one
+     * was set, otherwise one which is owned by this server and stopped on
+     * {@link #destroy()}
+     * 
+     * @return timer
+     */
+    protected synchronized Timer getTimer() {
+        if (timer == null) {
+            if (serverRuntime != null) {
+                timer = serverRuntime.getTimer();
+            } else {
+                timer = new HashedWheelTimer();
+            }
+        }
+        return timer;
+    }
+
     /**
      * Return the default name of the the server in JMX if none is configured
      * via "jmxname" in the configuration
@@ -529,6 +659,27 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         return countHandler.getCurrentConnectionCount();
     }
 
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getTlsHandshakes()
+     */
+    public long getTlsHandshakes() {
+        return tlsStats.getHandshakes();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getTlsResumedHandshakes()
+     */
+    public long getTlsResumedHandshakes() {
+        return tlsStats.getResumedHandshakes();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getTlsResumptionRate()
+     */
+    public double getTlsResumptionRate() {
+        return tlsStats.getResumptionRate();
+    }
+
     protected ConnectionCountHandler getConnectionCountHandler() {
         return countHandler;
     }
@@ -557,11 +708,16 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     }
     
     /**
-     * Create a new {@link ExecutionHandler} which is used to execute IO-Bound handlers
+     * Create a new {@link ExecutionHandler} which is used to execute IO-Bound handlers.
+     * The executor of the {@link ProtocolServerRuntime} is used unless the server
+     * configures its own maxExecutorCount.
      * 
      * @return ehandler
      */
     protected ExecutionHandler createExecutionHander() {
+        if (runtimeStats != null && !ownExecutor) {
+            return new ExecutionHandler(runtimeStats.getHandlerExecutor());
+        }
         return new ExecutionHandler(new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorThreads, 0, 0, getThreadPoolJMXPath(), "executor"));
     }
 
@@ -38,6 +38,7 @@ public abstract class AbstractServerFactory implements Configurable, LogEnabled
     private Logger log;
     private List<AbstractConfigurableAsyncServer> servers;
     private HierarchicalConfiguration config;
+    private ProtocolServerRuntime serverRuntime;
 
     /**
      * Create {@link AbstractConfigurableAsyncServer} servers, inject dependencies and configure them before return all fo them in a {@link List}
@@ -59,6 +60,25 @@ public abstract class AbstractServerFactory implements Configurable, LogEnabled
         this.log = log;
     }
 
+    /**
+     * Set the {@link ProtocolServerRuntime} which is shared by the created
+     * servers. If none is set every server uses its own threads.
+     * 
+     * @param serverRuntime
+     */
+    public void setServerRuntime(ProtocolServerRuntime serverRuntime) {
+        this.serverRuntime = serverRuntime;
+    }
+
+    /**
+     * Return the {@link ProtocolServerRuntime} to pass to the created servers
+     * 
+     * @return serverRuntime or null
+     */
+    protected ProtocolServerRuntime getServerRuntime() {
+        return serverRuntime;
+    }
+
     @PostConstruct
     public void init() throws Exception {
         servers = createServers(log, config);
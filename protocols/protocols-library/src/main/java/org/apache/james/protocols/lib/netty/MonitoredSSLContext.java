@@ -0,0 +1,233 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.lang.reflect.Method;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * {@link SSLContext} which wraps the {@link SSLEngine}s of another one in
+ * {@link MonitoredSSLEngine}s, so the handshakes of every connection are
+ * counted, no matter if it uses SSL from the start or STARTTLS. The
+ * sessions, and so the session cache, are the ones of the wrapped context.
+ */
+public class MonitoredSSLContext extends SSLContext {
+
+    /** SSLParameters#setUseCipherSuitesOrder, which exists since Java 8 */
+    private final static Method USE_CIPHER_SUITES_ORDER;
+
+    static {
+        Method method;
+        try {
+            method = SSLParameters.class.getMethod("setUseCipherSuitesOrder", boolean.class);
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        USE_CIPHER_SUITES_ORDER = method;
+    }
+
+    /** The ciphers from the fastest to the slowest, all others come after */
+    private final static String[] CIPHERS_BY_SPEED = { "_AES_128_GCM_", "_AES_256_GCM_", "_CHACHA20_POLY1305_", "_AES_128_", "_AES_256_" };
+
+    /** Ciphers which authenticate the data they encrypt */
+    private final static String[] AEAD_CIPHERS = { "_GCM_", "_CCM", "_CHACHA20_POLY1305_" };
+
+    /** Broken or weak ciphers, key exchanges and hashes */
+    private final static String[] LEGACY = { "_3DES_", "_DES_", "_DES40_", "_RC4_", "_RC2_", "_NULL_", "_EXPORT", "_anon_", "_MD5" };
+
+    private MonitoredSSLContext(SSLContext context, TlsHandshakeStats stats, boolean serverCipherSuitesOrder) {
+        super(new Spi(context, stats, serverCipherSuitesOrder), context.getProvider(), context.getProtocol());
+    }
+
+    /**
+     * Wrap the given {@link SSLContext}
+     * 
+     * @param context
+     *            the initialized context to wrap
+     * @param stats
+     *            the stats to report the handshakes to
+     * @param serverCipherSuitesOrder
+     *            true if the cipher suite is chosen in the order of the
+     *            server, not of the client. Only supported since Java 8
+     * @return monitoredContext
+     */
+    public static SSLContext wrap(SSLContext context, TlsHandshakeStats stats, boolean serverCipherSuitesOrder) {
+        return new MonitoredSSLContext(context, stats, serverCipherSuitesOrder);
+    }
+
+    /**
+     * Return true if the order of the cipher suites of the server can be
+     * enforced
+     * 
+     * @return supported
+     */
+    public static boolean isServerCipherSuitesOrderSupported() {
+        return USE_CIPHER_SUITES_ORDER != null;
+    }
+
+    /**
+     * Return the given cipher suites ordered by their security first and the
+     * cost of their handshake and encryption second. Forward secret suites
+     * with an AEAD cipher come first, then the other forward secret ones, then
+     * the ones with a static RSA key exchange. Suites with legacy ciphers like
+     * 3DES or RC4 come last. Within each of these groups AES-GCM comes first
+     * and 128 bit keys before 256 bit ones, and elliptic curve key exchanges
+     * come before the slow plain Diffie-Hellman ones. The order of suites with
+     * the same cost is kept.
+     * 
+     * @param suites
+     * @return orderedSuites
+     */
+    public static String[] orderBySpeed(String[] suites) {
+        List<String> ordered = new ArrayList<String>(Arrays.asList(suites));
+        Collections.sort(ordered, new Comparator<String>() {
+            public int compare(String suite1, String suite2) {
+                return cost(suite1) - cost(suite2);
+            }
+        });
+        return ordered.toArray(new String[ordered.size()]);
+    }
+
+    private static int cost(String suite) {
+        int cost = 0;
+        if (containsAny(suite, LEGACY)) {
+            cost += 4000;
+        } else {
+            if (!isForwardSecret(suite)) {
+                cost += 2000;
+            }
+            if (!containsAny(suite, AEAD_CIPHERS)) {
+                cost += 1000;
+            }
+        }
+        if (suite.contains("_DHE_")) {
+            cost += 100;
+        }
+        int cipher = 0;
+        while (cipher < CIPHERS_BY_SPEED.length && !suite.contains(CIPHERS_BY_SPEED[cipher])) {
+            cipher++;
+        }
+        cost += cipher * 10;
+        if (!suite.contains("_ECDHE_")) {
+            cost += 1;
+        }
+        return cost;
+    }
+
+    private static boolean isForwardSecret(String suite) {
+        // The suites of TLS 1.3 don't name the key exchange, which is always
+        // ephemeral
+        return suite.contains("_ECDHE_") || suite.contains("_DHE_") || suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_");
+    }
+
+    private static boolean containsAny(String suite, String[] parts) {
+        for (String part : parts) {
+            if (suite.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final static class Spi extends SSLContextSpi {
+        private final SSLContext context;
+        private final TlsHandshakeStats stats;
+        private final boolean serverCipherSuitesOrder;
+
+        public Spi(SSLContext context, TlsHandshakeStats stats, boolean serverCipherSuitesOrder) {
+            this.context = context;
+            this.stats = stats;
+            this.serverCipherSuitesOrder = serverCipherSuitesOrder;
+        }
+
+        private SSLEngine monitor(SSLEngine engine) {
+            if (serverCipherSuitesOrder && USE_CIPHER_SUITES_ORDER != null) {
+                SSLParameters params = engine.getSSLParameters();
+                try {
+                    USE_CIPHER_SUITES_ORDER.invoke(params, true);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to prefer the cipher suites of the server", e);
+                }
+                engine.setSSLParameters(params);
+            }
+            return new MonitoredSSLEngine(engine, stats);
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            context.init(km, tm, sr);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return context.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return monitor(context.createSSLEngine());
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return monitor(context.createSSLEngine(host, port));
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return context.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            return context.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return context.getSupportedSSLParameters();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+/**
+ * IO runtime which is shared by all {@link AbstractConfigurableAsyncServer}'s
+ * it was injected into. Instead of creating their own boss, worker and
+ * handler pools and timers, the servers borrow the threads from one IO pool,
+ * one executor for blocking handlers and one {@link Timer}.
+ * 
+ * A server which configures its own maxExecutorCount keeps a handler executor
+ * of its own with that limit, so one busy server can't starve the blocking
+ * handlers of the others.
+ * 
+ * The pools are created on first use and released by {@link #destroy()}, so
+ * the runtime must outlive the servers which use it.
+ * 
+ * Servers which use the same keystore also share one {@link SSLContext}, and
+ * so one TLS session cache, which is sized by the runtime. Once the keystore
+ * file is replaced, servers which are (re)started get a new context.
+ */
+public class ProtocolServerRuntime implements ProtocolServerRuntimeMBean {
+
+    /** The default count of IO workers, one per core */
+    public static final int DEFAULT_IO_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** The default tick duration of the timer in milliseconds */
+    public static final long DEFAULT_TIMER_TICK_DURATION = 100;
+
+    public static final String DEFAULT_JMX_NAME = "runtime";
+
+    /** The default count of cached TLS sessions */
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 20000;
+
+    /** The default lifetime of cached TLS sessions in seconds */
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT = 60 * 60;
+
+    private int ioWorkerCount = DEFAULT_IO_WORKER_COUNT;
+    private int maxExecutorCount = AbstractConfigurableAsyncServer.DEFAULT_MAX_EXECUTOR_COUNT;
+    private long timerTickDuration = DEFAULT_TIMER_TICK_DURATION;
+    private String jmxName = DEFAULT_JMX_NAME;
+    private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+    private int tlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT;
+
+    private final Map<String, ServerRuntimeStats> servers = new LinkedHashMap<String, ServerRuntimeStats>();
+    private final Map<String, SharedSSLContext> sslContexts = new HashMap<String, SharedSSLContext>();
+
+    private JMXEnabledThreadPoolExecutor ioExecutor;
+    private JMXEnabledOrderedMemoryAwareThreadPoolExecutor handlerExecutor;
+    private HashedWheelTimer timer;
+    private MBeanServer mbeanServer;
+    private boolean started;
+
+    /**
+     * Set the default count of IO worker threads for servers which don't
+     * configure their own. Defaults to the count of cores.
+     * 
+     * @param ioWorkerCount
+     */
+    public void setIoWorkerCount(int ioWorkerCount) {
+        if (ioWorkerCount < 1) {
+            throw new IllegalArgumentException("ioWorkerCount must be at least 1");
+        }
+        this.ioWorkerCount = ioWorkerCount;
+    }
+
+    /**
+     * Set the maximal count of threads used to execute blocking handlers of all
+     * servers which don't configure their own maxExecutorCount
+     * 
+     * @param maxExecutorCount
+     */
+    public void setMaxExecutorCount(int maxExecutorCount) {
+        if (maxExecutorCount < 1) {
+            throw new IllegalArgumentException("maxExecutorCount must be at least 1");
+        }
+        this.maxExecutorCount = maxExecutorCount;
+    }
+
+    /**
+     * Set the tick duration of the shared {@link Timer} in milliseconds
+     * 
+     * @param timerTickDuration
+     */
+    public void setTimerTickDuration(long timerTickDuration) {
+        if (timerTickDuration < 1) {
+            throw new IllegalArgumentException("timerTickDuration must be at least 1");
+        }
+        this.timerTickDuration = timerTickDuration;
+    }
+
+    /**
+     * Set the maximal count of TLS sessions cached by the shared
+     * {@link SSLContext}s, 0 for no limit
+     * 
+     * @param tlsSessionCacheSize
+     */
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < 0) {
+            throw new IllegalArgumentException("tlsSessionCacheSize must not be negative");
+        }
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+
+    /**
+     * Set the time in seconds after which a cached TLS session can not be
+     * resumed anymore, 0 for no limit. This bounds how long the secrets of a
+     * session are kept.
+     * 
+     * @param tlsSessionTimeout
+     */
+    public void setTlsSessionTimeout(int tlsSessionTimeout) {
+        if (tlsSessionTimeout < 0) {
+            throw new IllegalArgumentException("tlsSessionTimeout must not be negative");
+        }
+        this.tlsSessionTimeout = tlsSessionTimeout;
+    }
+
+    /**
+     * Set the name under which the runtime and its pools are exposed via JMX
+     * 
+     * @param jmxName
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getIoWorkerCount()
+     */
+    public int getIoWorkerCount() {
+        return ioWorkerCount;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getMaxExecutorCount()
+     */
+    public int getMaxExecutorCount() {
+        return maxExecutorCount;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getTlsSessionCacheSize()
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getTlsSessionTimeout()
+     */
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getIoThreads()
+     */
+    public synchronized int getIoThreads() {
+        return ioExecutor == null ? 0 : ioExecutor.getPoolSize();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getExecutorThreads()
+     */
+    public synchronized int getExecutorThreads() {
+        return handlerExecutor == null ? 0 : handlerExecutor.getPoolSize();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ProtocolServerRuntimeMBean#getServers()
+     */
+    public synchronized String[] getServers() {
+        return servers.keySet().toArray(new String[servers.size()]);
+    }
+
+    /**
+     * Register a server with the runtime and return the
+     * {@link ServerRuntimeStats} which hands out the shared resources to it
+     * 
+     * @param name
+     *            the unique name of the server, its jmxName
+     * @return stats
+     */
+    public synchronized ServerRuntimeStats registerServer(String name) {
+        if (servers.containsKey(name)) {
+            throw new IllegalStateException("A server with the name " + name + " is already registered");
+        }
+        start();
+        ServerRuntimeStats stats = new ServerRuntimeStats(name, this, ioExecutor, handlerExecutor);
+        servers.put(name, stats);
+        return stats;
+    }
+
+    /**
+     * Remove the server with the given name from the runtime
+     * 
+     * @param name
+     */
+    public synchronized void unregisterServer(String name) {
+        servers.remove(name);
+    }
+
+    /**
+     * Return the {@link SSLContext} which was shared for the given keystore, or
+     * null if there is none yet. A context which was created before the
+     * keystore was replaced, or with another secret, is not returned.
+     * 
+     * @param keystore
+     *            the keystore file
+     * @param algorithm
+     *            the algorithm of the key manager
+     * @param secret
+     *            the secret of the keystore
+     * @return context
+     */
+    public synchronized SSLContext getSSLContext(File keystore, String algorithm, String secret) {
+        SharedSSLContext shared = sslContexts.get(getSSLContextKey(keystore, algorithm));
+        if (shared != null && shared.matches(keystore, secret)) {
+            return shared.context;
+        }
+        return null;
+    }
+
+    /**
+     * Share the given {@link SSLContext} with all servers which use the same
+     * keystore and size its session cache. If another server shared a context
+     * for the current version of the keystore already, that one is returned
+     * instead. A context for an older version of the keystore is replaced.
+     * 
+     * @param keystore
+     *            the keystore file the context was created from
+     * @param algorithm
+     *            the algorithm of the key manager
+     * @param secret
+     *            the secret of the keystore
+     * @param context
+     * @return sharedContext
+     */
+    public synchronized SSLContext shareSSLContext(File keystore, String algorithm, String secret, SSLContext context) {
+        String key = getSSLContextKey(keystore, algorithm);
+        SharedSSLContext shared = sslContexts.get(key);
+        if (shared == null || !shared.matches(keystore, secret)) {
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(tlsSessionCacheSize);
+            sessions.setSessionTimeout(tlsSessionTimeout);
+            shared = new SharedSSLContext(keystore.lastModified(), hash(secret), context);
+            sslContexts.put(key, shared);
+        }
+        return shared.context;
+    }
+
+    private static String getSSLContextKey(File keystore, String algorithm) {
+        return keystore.getAbsolutePath() + "|" + algorithm;
+    }
+
+    /**
+     * Return the SHA-256 hash of the given secret, so it is not kept in memory
+     * longer than needed
+     */
+    private static String hash(String secret) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes("UTF-8"));
+            return new BigInteger(1, digest).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * A shared {@link SSLContext} and the version of the keystore it was
+     * created from
+     */
+    private final static class SharedSSLContext {
+        private final long lastModified;
+        private final String secretHash;
+        private final SSLContext context;
+
+        public SharedSSLContext(long lastModified, String secretHash, SSLContext context) {
+            this.lastModified = lastModified;
+            this.secretHash = secretHash;
+            this.context = context;
+        }
+
+        public boolean matches(File keystore, String secret) {
+            return lastModified == keystore.lastModified() && secretHash.equals(hash(secret));
+        }
+    }
+
+    /**
+     * Return the shared {@link Timer}
+     * 
+     * @return timer
+     */
+    public synchronized Timer getTimer() {
+        start();
+        return timer;
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+        String jmxPath = getJMXPath();
+        // Boss and worker threads are long running loops, so the pool must
+        // not be bounded. Idle threads are reused by every server.
+        ioExecutor = JMXEnabledThreadPoolExecutor.newCachedThreadPool(jmxPath + ",sub-type=threadpool", "io");
+        handlerExecutor = new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorCount, 0, 0, jmxPath + ",sub-type=threadpool", "executor");
+        timer = new HashedWheelTimer(new NamedThreadFactory("timer"), timerTickDuration, TimeUnit.MILLISECONDS);
+
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(this, new ObjectName(jmxPath));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+        started = true;
+    }
+
+    /**
+     * Stop the timer and shutdown the shared pools. This must only be called
+     * once all servers which use this runtime are unbound
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        sslContexts.clear();
+        if (!started) {
+            return;
+        }
+        started = false;
+        timer.stop();
+        handlerExecutor.shutdown();
+        ioExecutor.shutdown();
+        try {
+            mbeanServer.unregisterMBean(new ObjectName(getJMXPath()));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to unregister mbean", e);
+        }
+    }
+
+    private String getJMXPath() {
+        return "org.apache.james:type=server,name=" + jmxName;
+    }
+}
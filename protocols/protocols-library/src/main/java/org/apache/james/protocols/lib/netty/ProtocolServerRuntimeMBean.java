@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+/**
+ * JMX MBean interface for the {@link ProtocolServerRuntime}
+ */
+public interface ProtocolServerRuntimeMBean {
+
+    /**
+     * Return the default count of IO worker threads used by every server which
+     * does not configure its own
+     * 
+     * @return ioWorkerCount
+     */
+    int getIoWorkerCount();
+
+    /**
+     * Return the maximal count of threads used to execute blocking handlers
+     * 
+     * @return maxExecutorCount
+     */
+    int getMaxExecutorCount();
+
+    /**
+     * Return the maximal count of TLS sessions cached for the servers which
+     * share a keystore
+     * 
+     * @return tlsSessionCacheSize
+     */
+    int getTlsSessionCacheSize();
+
+    /**
+     * Return the time in seconds after which a cached TLS session can not be
+     * resumed anymore
+     * 
+     * @return tlsSessionTimeout
+     */
+    int getTlsSessionTimeout();
+
+    /**
+     * Return the count of threads currently running in the shared IO pool
+     * 
+     * @return ioThreads
+     */
+    int getIoThreads();
+
+    /**
+     * Return the count of threads currently running in the shared handler
+     * pool
+     * 
+     * @return executorThreads
+     */
+    int getExecutorThreads();
+
+    /**
+     * Return the names of the servers which use this runtime
+     * 
+     * @return servers
+     */
+    String[] getServers();
+}
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The view of one server on the {@link ProtocolServerRuntime}. It hands out
+ * the shared executors and counts how much of them the server uses.
+ * 
+ * None of the returned {@link Executor}s is an
+ * {@link java.util.concurrent.ExecutorService}, so Netty will not shut down
+ * the shared pools when the server releases its external resources.
+ */
+public class ServerRuntimeStats implements ServerRuntimeStatsMBean {
+
+    private final String name;
+    private final ProtocolServerRuntime runtime;
+    private final Executor sharedIoExecutor;
+    private final Executor sharedHandlerExecutor;
+    private final AtomicInteger bossThreads = new AtomicInteger();
+    private final AtomicInteger workerThreads = new AtomicInteger();
+    private final AtomicLong handlerTasks = new AtomicLong();
+
+    private final Executor bossExecutor = new Executor() {
+        public void execute(Runnable command) {
+            sharedIoExecutor.execute(new CountingRunnable(command, bossThreads));
+        }
+    };
+
+    private final Executor workerExecutor = new Executor() {
+        public void execute(Runnable command) {
+            sharedIoExecutor.execute(new CountingRunnable(command, workerThreads));
+        }
+    };
+
+    private final Executor handlerExecutor = new Executor() {
+        public void execute(Runnable command) {
+            handlerTasks.incrementAndGet();
+            // Hand over the task as it is, the ordered executor needs the
+            // original ChannelEventRunnable to keep the per channel ordering
+            sharedHandlerExecutor.execute(command);
+        }
+    };
+
+    ServerRuntimeStats(String name, ProtocolServerRuntime runtime, Executor sharedIoExecutor, Executor sharedHandlerExecutor) {
+        this.name = name;
+        this.runtime = runtime;
+        this.sharedIoExecutor = sharedIoExecutor;
+        this.sharedHandlerExecutor = sharedHandlerExecutor;
+    }
+
+    /**
+     * Return the name of the server
+     * 
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the {@link Executor} which runs the boss threads of the server
+     * 
+     * @return bossExecutor
+     */
+    public Executor getBossExecutor() {
+        return bossExecutor;
+    }
+
+    /**
+     * Return the {@link Executor} which runs the IO worker threads of the
+     * server
+     * 
+     * @return workerExecutor
+     */
+    public Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Return the {@link Executor} which should be used for the
+     * {@link org.jboss.netty.handler.execution.ExecutionHandler} of the
+     * server
+     * 
+     * @return handlerExecutor
+     */
+    public Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ServerRuntimeStatsMBean#getBossThreads()
+     */
+    public int getBossThreads() {
+        return bossThreads.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ServerRuntimeStatsMBean#getWorkerThreads()
+     */
+    public int getWorkerThreads() {
+        return workerThreads.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ServerRuntimeStatsMBean#getHandlerTasks()
+     */
+    public long getHandlerTasks() {
+        return handlerTasks.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.ServerRuntimeStatsMBean#getIoThreadShare()
+     */
+    public double getIoThreadShare() {
+        int total = runtime.getIoThreads();
+        if (total == 0) {
+            return 0;
+        }
+        return (bossThreads.get() + workerThreads.get()) * 100.0 / total;
+    }
+
+    /**
+     * {@link Runnable} which keeps track of the threads currently running a
+     * task of the server
+     */
+    private final static class CountingRunnable implements Runnable {
+        private final Runnable task;
+        private final AtomicInteger running;
+
+        public CountingRunnable(Runnable task, AtomicInteger running) {
+            this.task = task;
+            this.running = running;
+        }
+
+        public void run() {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+/**
+ * JMX MBean interface which expose how much of the shared
+ * {@link ProtocolServerRuntime} a server uses
+ */
+public interface ServerRuntimeStatsMBean {
+
+    /**
+     * Return the count of shared threads which currently accept connections
+     * for the server
+     * 
+     * @return bossThreads
+     */
+    int getBossThreads();
+
+    /**
+     * Return the count of shared threads which currently do the IO of the
+     * server
+     * 
+     * @return workerThreads
+     */
+    int getWorkerThreads();
+
+    /**
+     * Return the count of tasks the server handed to the shared handler
+     * executor
+     * 
+     * @return handlerTasks
+     */
+    long getHandlerTasks();
+
+    /**
+     * Return the percentage of the shared IO threads which are currently
+     * used by the server
+     * 
+     * @return ioThreadShare
+     */
+    double getIoThreadShare();
+}
@@ -0,0 +1,75 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes of a server and how many of them resumed a
+ * cached session
+ */
+public class TlsHandshakeStats {
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Called once a handshake is finished
+     * 
+     * @param resumed
+     *            true if an existing session was resumed
+     */
+    public void handshakeFinished(boolean resumed) {
+        handshakes.incrementAndGet();
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the count of finished handshakes
+     * 
+     * @return handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Return the count of finished handshakes which resumed a session
+     * 
+     * @return resumedHandshakes
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Return the percentage of the handshakes which resumed a session
+     * 
+     * @return rate
+     */
+    public double getResumptionRate() {
+        long total = handshakes.get();
+        if (total == 0) {
+            return 0;
+        }
+        return resumedHandshakes.get() * 100.0 / total;
+    }
+}
@@ -0,0 +1,118 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExpiringAddressMapTest {
+
+    private final static class FakeTimeAddressMap extends ExpiringAddressMap {
+        private long now;
+
+        public FakeTimeAddressMap(long bucketSize, int maxEntries) {
+            super(bucketSize, maxEntries);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testContains() {
+        ExpiringAddressMap map = new ExpiringAddressMap();
+        map.add("192.168.200.1");
+        map.add("::1");
+
+        assertTrue(map.contains("192.168.200.1"));
+        assertTrue(map.contains("0:0:0:0:0:0:0:1"));
+        assertFalse(map.contains("192.168.200.2"));
+        assertEquals(2, map.getSize());
+    }
+
+    @Test
+    public void testRemoveExpired() {
+        FakeTimeAddressMap map = new FakeTimeAddressMap(100, 10);
+        map.now = 50;
+        map.add("192.168.200.1");
+        map.now = 150;
+        map.add("192.168.200.2");
+        map.now = 180;
+        map.add("192.168.200.3");
+
+        map.now = 1000;
+        assertFalse(map.contains("192.168.200.1", 900));
+        assertTrue(map.contains("192.168.200.2", 900));
+
+        // removes a whole bucket and a part of the next one
+        map.removeExpired(840);
+        assertFalse(map.contains("192.168.200.1"));
+        assertFalse(map.contains("192.168.200.2"));
+        assertTrue(map.contains("192.168.200.3"));
+        assertEquals(2, map.getExpirations());
+    }
+
+    @Test
+    public void testRefreshKeepsOneQueuedAddressPerBucket() {
+        FakeTimeAddressMap map = new FakeTimeAddressMap(1000, 10);
+        for (int i = 0; i < 5000; i++) {
+            map.now = i / 10;
+            map.add("192.168.200.1");
+        }
+        assertEquals(1, map.getQueuedCount(0));
+        assertEquals(1, map.getSize());
+
+        // the next bucket gets a new one
+        map.now = 1000;
+        map.add("192.168.200.1");
+        assertEquals(1, map.getQueuedCount(1000));
+        assertTrue(map.contains("192.168.200.1", 10));
+    }
+
+    @Test
+    public void testRefreshedAddressIsNotExpired() {
+        FakeTimeAddressMap map = new FakeTimeAddressMap(100, 10);
+        map.add("192.168.200.1");
+        map.now = 500;
+        map.add("192.168.200.1");
+
+        map.now = 1000;
+        map.removeExpired(600);
+        assertTrue(map.contains("192.168.200.1"));
+        assertEquals(0, map.getExpirations());
+    }
+
+    @Test
+    public void testEvictOldest() {
+        FakeTimeAddressMap map = new FakeTimeAddressMap(100, 3);
+        for (int i = 0; i < 4; i++) {
+            map.now = i * 100;
+            map.add("192.168.200." + i);
+        }
+        assertEquals(3, map.getSize());
+        assertEquals(1, map.getEvictions());
+        assertFalse(map.contains("192.168.200.0"));
+        assertTrue(map.contains("192.168.200.3"));
+    }
+}
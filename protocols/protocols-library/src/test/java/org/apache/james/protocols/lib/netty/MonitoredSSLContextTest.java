@@ -0,0 +1,151 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.Test;
+
+public class MonitoredSSLContextTest {
+
+    private final static char[] SECRET = "jamestest".toCharArray();
+
+    private final static TrustManager TRUST_ALL = new X509TrustManager() {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    private static SSLContext createServerContext() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream in = MonitoredSSLContextTest.class.getResourceAsStream("/test_keystore");
+        try {
+            ks.load(in, SECRET);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, SECRET);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Run a handshake between the two engines in memory
+     */
+    private static void handshake(SSLEngine client, SSLEngine server) throws Exception {
+        int size = Math.max(client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientOut = ByteBuffer.allocate(size);
+        ByteBuffer serverOut = ByteBuffer.allocate(size);
+        ByteBuffer app = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 100 && !(isDone(client) && isDone(server)); i++) {
+            client.wrap(empty, clientOut);
+            runTasks(client);
+            clientOut.flip();
+            server.unwrap(clientOut, app);
+            runTasks(server);
+            clientOut.compact();
+            app.clear();
+
+            server.wrap(empty, serverOut);
+            runTasks(server);
+            serverOut.flip();
+            client.unwrap(serverOut, app);
+            runTasks(client);
+            serverOut.compact();
+            app.clear();
+        }
+        assertTrue(isDone(client) && isDone(server));
+    }
+
+    private static boolean isDone(SSLEngine engine) {
+        return engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void testHandshakesAreCounted() throws Exception {
+        TlsHandshakeStats stats = new TlsHandshakeStats();
+        SSLContext server = MonitoredSSLContext.wrap(createServerContext(), stats, true);
+        SSLContext client = SSLContext.getInstance("TLSv1.2");
+        client.init(null, new TrustManager[] { TRUST_ALL }, null);
+
+        for (int i = 0; i < 3; i++) {
+            SSLEngine clientEngine = client.createSSLEngine("localhost", 143);
+            clientEngine.setUseClientMode(true);
+            SSLEngine serverEngine = server.createSSLEngine();
+            serverEngine.setUseClientMode(false);
+            handshake(clientEngine, serverEngine);
+        }
+
+        // the client resumes the session of the first handshake
+        assertEquals(3, stats.getHandshakes());
+        assertEquals(2, stats.getResumedHandshakes());
+        assertEquals(200.0 / 3, stats.getResumptionRate(), 0.01);
+    }
+
+    @Test
+    public void testOrderBySpeed() {
+        String[] suites = { "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256", "SSL_RSA_WITH_3DES_EDE_CBC_SHA", "TLS_RSA_WITH_AES_256_CBC_SHA",
+                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256" };
+        String[] expected = { "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA", "TLS_RSA_WITH_AES_256_CBC_SHA", "SSL_RSA_WITH_3DES_EDE_CBC_SHA" };
+        assertArrayEquals(expected, MonitoredSSLContext.orderBySpeed(suites));
+    }
+
+    @Test
+    public void testLegacyCipherSuitesComeLast() {
+        String[] suites = { "SSL_RSA_WITH_RC4_128_SHA", "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA", "TLS_RSA_WITH_AES_128_GCM_SHA256", "TLS_RSA_WITH_AES_128_CBC_SHA",
+                "TLS_DHE_RSA_WITH_AES_128_CBC_SHA", "TLS_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256" };
+        String[] expected = { "TLS_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",
+                "TLS_RSA_WITH_AES_128_GCM_SHA256", "TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA", "SSL_RSA_WITH_RC4_128_SHA" };
+        assertArrayEquals(expected, MonitoredSSLContext.orderBySpeed(suites));
+    }
+}
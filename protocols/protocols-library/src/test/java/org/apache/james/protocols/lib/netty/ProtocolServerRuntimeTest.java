@@ -0,0 +1,192 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProtocolServerRuntimeTest {
+
+    private ProtocolServerRuntime runtime;
+
+    @Before
+    public void setUp() {
+        runtime = new ProtocolServerRuntime();
+        runtime.setJmxName("runtimetest");
+        runtime.setMaxExecutorCount(2);
+    }
+
+    @After
+    public void tearDown() {
+        runtime.destroy();
+    }
+
+    @Test
+    public void testRegisterAndUnregister() {
+        assertEquals(0, runtime.getServers().length);
+        runtime.registerServer("smtpserver");
+        runtime.registerServer("pop3server");
+        assertArrayEquals(new String[] { "smtpserver", "pop3server" }, runtime.getServers());
+
+        runtime.unregisterServer("smtpserver");
+        assertArrayEquals(new String[] { "pop3server" }, runtime.getServers());
+
+        // the name can be used again once the server is gone
+        runtime.registerServer("smtpserver");
+        assertEquals(2, runtime.getServers().length);
+    }
+
+    @Test
+    public void testDuplicateNameIsRejected() {
+        runtime.registerServer("smtpserver");
+        try {
+            runtime.registerServer("smtpserver");
+            fail("A second server with the same name must be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testServersShareTheHandlerExecutor() throws Exception {
+        ServerRuntimeStats smtp = runtime.registerServer("smtpserver");
+        ServerRuntimeStats pop3 = runtime.registerServer("pop3server");
+
+        // Netty must not be able to shut down the shared pools
+        assertFalse(smtp.getHandlerExecutor() instanceof ExecutorService);
+        assertFalse(smtp.getWorkerExecutor() instanceof ExecutorService);
+        assertFalse(smtp.getBossExecutor() instanceof ExecutorService);
+
+        final CountDownLatch done = new CountDownLatch(3);
+        Runnable task = new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        };
+        smtp.getHandlerExecutor().execute(task);
+        smtp.getHandlerExecutor().execute(task);
+        pop3.getHandlerExecutor().execute(task);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, smtp.getHandlerTasks());
+        assertEquals(1, pop3.getHandlerTasks());
+        assertTrue(runtime.getExecutorThreads() <= 2);
+    }
+
+    @Test
+    public void testWorkerThreadsAreCounted() throws Exception {
+        ServerRuntimeStats smtp = runtime.registerServer("smtpserver");
+
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        smtp.getWorkerExecutor().execute(new Runnable() {
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        assertEquals(1, smtp.getWorkerThreads());
+        assertEquals(0, smtp.getBossThreads());
+        assertTrue(smtp.getIoThreadShare() > 0);
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (smtp.getWorkerThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, smtp.getWorkerThreads());
+    }
+
+    @Test
+    public void testDestroyReleasesThePools() {
+        runtime.registerServer("smtpserver");
+        runtime.destroy();
+
+        // the runtime can be started again, its mbean was unregistered
+        runtime.registerServer("imapserver");
+    }
+
+    private SSLContext createSSLContext() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        return context;
+    }
+
+    @Test
+    public void testSSLContextIsSharedPerKeystore() throws Exception {
+        File keystore = File.createTempFile("keystore", ".jks");
+        try {
+            assertNull(runtime.getSSLContext(keystore, "SunX509", "secret"));
+
+            SSLContext context = createSSLContext();
+            assertSame(context, runtime.shareSSLContext(keystore, "SunX509", "secret", context));
+            // the first shared context wins
+            assertSame(context, runtime.shareSSLContext(keystore, "SunX509", "secret", createSSLContext()));
+            assertSame(context, runtime.getSSLContext(keystore, "SunX509", "secret"));
+            assertEquals(runtime.getTlsSessionCacheSize(), context.getServerSessionContext().getSessionCacheSize());
+
+            // a wrong secret must not get the context
+            assertNull(runtime.getSSLContext(keystore, "SunX509", "other"));
+            assertNull(runtime.getSSLContext(keystore, "PKIX", "secret"));
+        } finally {
+            keystore.delete();
+        }
+    }
+
+    @Test
+    public void testReplacedKeystoreGetsNewSSLContext() throws Exception {
+        File keystore = File.createTempFile("keystore", ".jks");
+        try {
+            keystore.setLastModified(System.currentTimeMillis() - 60000);
+            SSLContext context = createSSLContext();
+            runtime.shareSSLContext(keystore, "SunX509", "secret", context);
+
+            keystore.setLastModified(System.currentTimeMillis());
+            assertNull(runtime.getSSLContext(keystore, "SunX509", "secret"));
+
+            SSLContext replaced = createSSLContext();
+            assertSame(replaced, runtime.shareSSLContext(keystore, "SunX509", "secret", replaced));
+            assertNotSame(context, runtime.getSSLContext(keystore, "SunX509", "secret"));
+        } finally {
+            keystore.delete();
+        }
+    }
+}
@@ -18,6 +18,9 @@
  ****************************************************************/
 package org.apache.james.lmtpserver;
 
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.lmtpserver.hook.EndOfDeliveryHook;
+import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.WiringException;
 import org.apache.james.protocols.lmtp.LMTPMultiResponse;
@@ -30,52 +33,65 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.AbstractHookableCmdHandler;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.smtpserver.DataLineJamesMessageHookHandler;
+import org.apache.james.smtpserver.SMTPConstants;
 import org.apache.mailet.Mail;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 /**
- * Handler which takes care of deliver the mail to the recipients INBOX
+ * Handler which takes care of deliver the mail to the recipients INBOX. The
+ * message is read from the spooled DATA for every recipient, and all
+ * recipients are delivered in one batch.
  */
 public class DataLineLMTPHandler extends DataLineJamesMessageHookHandler {
 
     private final List<DeliverToRecipientHook> handlers = new ArrayList<DeliverToRecipientHook>();
 
+    private final List<EndOfDeliveryHook> endOfDeliveryHooks = new ArrayList<EndOfDeliveryHook>();
+
 
     @Override
     protected Response processExtensions(SMTPSession session, final Mail mail) {
         LMTPMultiResponse mResponse = null;
 
         // build a wrapper around the Mail
-        final ReadOnlyMailEnvelope env = new ReadOnlyMailEnvelope(mail);
-
-        for (org.apache.mailet.MailAddress recipient : mail.getRecipients()) {
-            // TODO: the transformation code between MailAddress is purely to compile. No idea if it does what it's supposed
-            MailAddress recipientAddress;
-            try {
-                recipientAddress = new MailAddress(recipient.getLocalPart(), recipient.getDomain());
-            } catch (MailAddressException e) {
-                throw new RuntimeException(e);
-            }
-            Response response = null;
-            for (DeliverToRecipientHook handler : handlers) {
-                response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(handler.deliver(session, recipientAddress, env));
-                if (response != null) {
-                    break;
+        MimeMessageInputStreamSource source = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
+        final ReadOnlyMailEnvelope env = new ReadOnlyMailEnvelope(mail, source);
+
+        try {
+            for (org.apache.mailet.MailAddress recipient : mail.getRecipients()) {
+                // TODO: the transformation code between MailAddress is purely to compile. No idea if it does what it's supposed
+                MailAddress recipientAddress;
+                try {
+                    recipientAddress = new MailAddress(recipient.getLocalPart(), recipient.getDomain());
+                } catch (MailAddressException e) {
+                    throw new RuntimeException(e);
+                }
+                Response response = null;
+                for (DeliverToRecipientHook handler : handlers) {
+                    response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(handler.deliver(session, recipientAddress, env));
+                    if (response != null) {
+                        break;
+                    }
+                }
+                if (response == null) {
+                    // Add some default response for not handled responses
+                    response = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + "Temporary error deliver message to " + recipient);
+                }
+                if (mResponse == null) {
+                    mResponse = new LMTPMultiResponse(response);
+                } else {
+                    mResponse.addResponse(response);
                 }
             }
-            if (response == null) {
-                // Add some default response for not handled responses
-                response = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + "Temporary error deliver message to " + recipient);
-            }
-            if (mResponse == null) {
-                mResponse = new LMTPMultiResponse(response);
-            } else {
-                mResponse.addResponse(response);
+        } finally {
+            for (EndOfDeliveryHook hook : endOfDeliveryHooks) {
+                hook.endDelivery(session);
             }
         }
         return mResponse;
@@ -85,6 +101,7 @@ public class DataLineLMTPHandler extends DataLineJamesMessageHookHandler {
     public List<Class<?>> getMarkerInterfaces() {
         List<Class<?>> markers = new ArrayList<Class<?>>();
         markers.add(DeliverToRecipientHook.class);
+        markers.add(EndOfDeliveryHook.class);
         return markers;
     }
 
@@ -93,13 +110,35 @@ public class DataLineLMTPHandler extends DataLineJamesMessageHookHandler {
     public void wireExtensions(Class interfaceName, List extension) throws WiringException {
         if (interfaceName.equals(DeliverToRecipientHook.class)) {
             handlers.addAll((Collection<? extends DeliverToRecipientHook>) extension);
+        } else if (interfaceName.equals(EndOfDeliveryHook.class)) {
+            endOfDeliveryHooks.addAll((Collection<? extends EndOfDeliveryHook>) extension);
         }
     }
 
     private final class ReadOnlyMailEnvelope extends MailToMailEnvelopeWrapper {
 
-        public ReadOnlyMailEnvelope(Mail mail) {
+        private final MimeMessageInputStreamSource source;
+
+        /**
+         * @param mail
+         *            The mail
+         * @param source
+         *            The spooled message of the mail, null to read it from
+         *            the mail
+         */
+        public ReadOnlyMailEnvelope(Mail mail, MimeMessageInputStreamSource source) {
             super(mail, null);
+            this.source = source;
+        }
+
+        @Override
+        public InputStream getMessageInputStream() throws IOException {
+            if (source == null) {
+                return super.getMessageInputStream();
+            }
+            // the message is not modified while delivering, so every
+            // recipient gets a fresh stream on the spool
+            return source.getInputStream();
         }
 
         @Override
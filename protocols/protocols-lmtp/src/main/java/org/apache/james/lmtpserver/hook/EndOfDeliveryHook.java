@@ -0,0 +1,38 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.lmtpserver.hook;
+
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * Hook which gets called once all recipients of a LMTP transaction were
+ * delivered, so it can release the resources it opened for the transaction.
+ * It is called even if the delivery failed.
+ */
+public interface EndOfDeliveryHook {
+
+    /**
+     * Release the resources of the current transaction, if any
+     * 
+     * @param session
+     */
+    void endDelivery(SMTPSession session);
+
+}
@@ -20,14 +20,13 @@
 package org.apache.james.lmtpserver.hook;
 
 import java.io.IOException;
-import java.util.Date;
 
 import javax.inject.Inject;
 
+import org.apache.james.adapter.mailbox.delivery.MailboxDelivery;
 import org.apache.james.mailbox.MailboxManager;
-import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
-import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.lib.Slf4jLoggerAdapter;
 import org.apache.james.protocols.lmtp.hook.DeliverToRecipientHook;
 import org.apache.james.protocols.smtp.MailAddress;
@@ -42,13 +41,19 @@ import org.apache.james.user.api.UsersRepositoryException;
 
 /**
  * {@link DeliverToRecipientHook} which deliver the message directly to the recipients mailbox.
- * 
- *
+ * <p>
+ * All recipients of a transaction are delivered in one
+ * {@link MailboxDelivery.Batch}, which must be closed with
+ * {@link #endDelivery(SMTPSession)} once the DATA command was handled.
+ * </p>
  */
-public class MailboxDeliverToRecipientHandler implements DeliverToRecipientHook {
-  
+public class MailboxDeliverToRecipientHandler implements DeliverToRecipientHook, EndOfDeliveryHook {
+
+    /** The key of the batch of the current transaction */
+    private final static String BATCH = MailboxDeliverToRecipientHandler.class.getName() + ".batch";
+
     private UsersRepository users;
-    private MailboxManager mailboxManager;
+    private MailboxDelivery delivery;
 
     @Inject
     public final void setUsersRepository(UsersRepository users) {
@@ -57,7 +62,7 @@ public class MailboxDeliverToRecipientHandler implements DeliverToRecipientHook
 
     @Inject
     public final void setMailboxManager(MailboxManager mailboxManager) {
-        this.mailboxManager = mailboxManager;
+        this.delivery = new MailboxDelivery(mailboxManager);
     }
     
     @Override
@@ -73,17 +78,13 @@ public class MailboxDeliverToRecipientHandler implements DeliverToRecipientHook
                 username = recipient.getLocalPart();
             }
 
-            MailboxSession mailboxSession = mailboxManager.createSystemSession(username, new Slf4jLoggerAdapter(session.getLogger()));
-            MailboxPath inbox = MailboxPath.inbox(mailboxSession);
-
-            mailboxManager.startProcessingRequest(mailboxSession);
-
-            // create inbox if not exist
-            if (!mailboxManager.mailboxExists(inbox, mailboxSession)) {
-                mailboxManager.createMailbox(inbox, mailboxSession);
+            MailboxDelivery.Batch batch = (MailboxDelivery.Batch) session.getAttachment(BATCH, State.Transaction);
+            if (batch == null) {
+                batch = delivery.newBatch(new Slf4jLoggerAdapter(session.getLogger()));
+                session.setAttachment(BATCH, batch, State.Transaction);
             }
-            mailboxManager.getMailbox(MailboxPath.inbox(mailboxSession), mailboxSession).appendMessage(envelope.getMessageInputStream(), new Date(), mailboxSession, true, null);
-            mailboxManager.endProcessingRequest(mailboxSession);
+            // the inbox is created if it does not exist yet
+            batch.appendToInbox(username, envelope.getMessageInputStream());
             result = new HookResult(HookReturnCode.OK, SMTPRetCode.MAIL_OK, DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.CONTENT_OTHER) + " Message received");
 
         } catch (IOException e) {
@@ -99,4 +100,22 @@ public class MailboxDeliverToRecipientHandler implements DeliverToRecipientHook
         return result;
     }
 
+    /**
+     * Close the batch of the current transaction, if any
+     * 
+     * @see org.apache.james.lmtpserver.hook.EndOfDeliveryHook#endDelivery(org.apache.james.protocols.smtp.SMTPSession)
+     */
+    public void endDelivery(SMTPSession session) {
+        MailboxDelivery.Batch batch = (MailboxDelivery.Batch) session.getAttachment(BATCH, State.Transaction);
+        if (batch != null) {
+            session.setAttachment(BATCH, null, State.Transaction);
+            try {
+                batch.close();
+            } catch (MailboxException e) {
+                // the messages were delivered already
+                session.getLogger().info("Unable to close mailbox sessions", e);
+            }
+        }
+    }
+
 }
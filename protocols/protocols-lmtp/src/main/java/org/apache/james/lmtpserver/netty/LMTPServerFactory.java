@@ -60,6 +60,7 @@ public class LMTPServerFactory extends AbstractServerFactory{
             server.setFileSystem(fileSystem);
             server.setProtocolHandlerLoader(loader);
             server.setLog(log);
+            server.setServerRuntime(getServerRuntime());
             server.configure(serverConfig);
             servers.add(server);
         }
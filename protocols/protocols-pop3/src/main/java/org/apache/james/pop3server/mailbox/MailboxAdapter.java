@@ -18,12 +18,18 @@
  ****************************************************************/
 package org.apache.james.pop3server.mailbox;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.mail.Flags;
@@ -38,8 +44,24 @@ import org.apache.james.mailbox.model.MessageResult.FetchGroup;
 import org.apache.james.protocols.pop3.mailbox.Mailbox;
 import org.apache.james.protocols.pop3.mailbox.MessageMetaData;
 
+/**
+ * {@link Mailbox} which gives access to the messages of a {@link MessageManager}.
+ * <p>
+ * The message list is fetched once per session, as POP3 shows the messages
+ * which existed when the session started. Once a client retrieves messages in
+ * order, like most clients do when downloading a mailbox, the contents of the
+ * following messages are fetched together in one request. Removed messages
+ * are expunged at once if that does not expunge other messages.
+ * </p>
+ */
 public class MailboxAdapter implements Mailbox {
 
+    /** The maximal count of messages fetched ahead */
+    private final static int PREFETCH_COUNT = 16;
+
+    /** The maximal size of the messages fetched ahead */
+    private final static long PREFETCH_SIZE = 1024 * 1024;
+
     private static abstract class POP3FetchGroup implements FetchGroup {
         @Override
         public Set<PartContentDescriptor> getPartContentDescriptors() {
@@ -86,6 +108,19 @@ public class MailboxAdapter implements Mailbox {
 
     private final MailboxManager mailboxManager;
 
+    /** The messages of the mailbox, null until first needed */
+    private List<MessageMetaData> messages;
+
+    /** The uids and sizes of the messages, only set if they are sorted by uid */
+    private long[] uids;
+    private long[] sizes;
+    private String identifier;
+
+    /** The index of the message which was retrieved last */
+    private int lastRetrieved = -1;
+    /** The contents of the messages which were fetched ahead, by uid */
+    private final Map<Long, byte[]> prefetched = new HashMap<Long, byte[]>();
+
     public MailboxAdapter(MailboxManager mailboxManager, MessageManager manager, MailboxSession session) {
         this.manager = manager;
         this.session = session;
@@ -129,14 +164,45 @@ public class MailboxAdapter implements Mailbox {
 
     @Override
     public InputStream getMessage(String uid) throws IOException {
+        long id = Long.parseLong(uid);
+        int index = uids == null ? -1 : Arrays.binarySearch(uids, id);
+        boolean inOrder = index >= 0 && lastRetrieved >= 0 && index == lastRetrieved + 1;
+        lastRetrieved = index;
+
+        byte[] content = prefetched.remove(id);
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+
+        // what is left was not retrieved in order, so it is of no use
+        prefetched.clear();
+        MessageRange range = MessageRange.one(id);
+        if (inOrder) {
+            int last = index;
+            long size = sizes[index];
+            while (last + 1 < uids.length && last + 1 - index < PREFETCH_COUNT && size + sizes[last + 1] <= PREFETCH_SIZE) {
+                last++;
+                size += sizes[last];
+            }
+            if (last > index) {
+                range = MessageRange.range(id, uids[last]);
+            }
+        }
         try {
             mailboxManager.startProcessingRequest(session);
-            Iterator<MessageResult> results = manager.getMessages(MessageRange.one(new Long(uid)), FULL_GROUP, session);
-            if (results.hasNext()) {
-                return results.next().getFullContent().getInputStream();
-            } else {
-                return null;
+            Iterator<MessageResult> results = manager.getMessages(range, FULL_GROUP, session);
+            InputStream message = null;
+            while (results.hasNext()) {
+                MessageResult next = results.next();
+                if (next.getUid() == id) {
+                    message = next.getFullContent().getInputStream();
+                } else {
+                    // the content may only be readable during the request, so
+                    // copy it
+                    prefetched.put(next.getUid(), toByteArray(next.getFullContent().getInputStream()));
+                }
             }
+            return message;
         } catch (MailboxException e) {
             throw new IOException("Unable to retrieve message for uid " + uid, e);
         } finally {
@@ -144,18 +210,51 @@ public class MailboxAdapter implements Mailbox {
         }
     }
 
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     @Override
     public List<MessageMetaData> getMessages() throws IOException {
+        if (messages != null) {
+            return messages;
+        }
         try {
             mailboxManager.startProcessingRequest(session);
             Iterator<MessageResult> results = manager.getMessages(MessageRange.all(), METADATA_GROUP, session);
             List<MessageMetaData> mList = new ArrayList<MessageMetaData>();
+            List<MessageResult> resultList = new ArrayList<MessageResult>();
             while (results.hasNext()) {
                 MessageResult result = results.next();
                 MessageMetaData metaData = new MessageMetaData(Long.toString(result.getUid()), result.getSize());
                 mList.add(metaData);
+                resultList.add(result);
+            }
+            long[] uidArray = new long[resultList.size()];
+            long[] sizeArray = new long[resultList.size()];
+            boolean sorted = true;
+            for (int i = 0; i < uidArray.length; i++) {
+                uidArray[i] = resultList.get(i).getUid();
+                sizeArray[i] = resultList.get(i).getSize();
+                sorted &= i == 0 || uidArray[i] > uidArray[i - 1];
             }
-            return Collections.unmodifiableList(mList);
+            messages = Collections.unmodifiableList(mList);
+            if (sorted) {
+                // needed to find the messages to fetch ahead
+                uids = uidArray;
+                sizes = sizeArray;
+            }
+            return messages;
         } catch (MailboxException e) {
             throw new IOException("Unable to retrieve messages", e);
         } finally {
@@ -172,26 +271,58 @@ public class MailboxAdapter implements Mailbox {
         }
 
         List<MessageRange> ranges = MessageRange.toRanges(uidList);
+        if (ranges.isEmpty()) {
+            return;
+        }
         try {
             mailboxManager.startProcessingRequest(session);
             for (MessageRange range : ranges) {
                 manager.setFlags(new Flags(Flags.Flag.DELETED), true, false, range, session);
-                manager.expunge(range, session);
+            }
+
+            // expunge all ranges at once, unless there are messages in
+            // between which someone else marked as deleted
+            MessageRange all = MessageRange.range(ranges.get(0).getUidFrom(), ranges.get(ranges.size() - 1).getUidTo());
+            if (ranges.size() == 1 || !isOtherMessageDeleted(all, new HashSet<Long>(uidList))) {
+                manager.expunge(all, session);
+            } else {
+                for (MessageRange range : ranges) {
+                    manager.expunge(range, session);
+                }
             }
         } catch (MailboxException e) {
             throw new IOException("Unable to remove messages for ranges " + ranges);
         } finally {
             mailboxManager.endProcessingRequest(session);
         }
+        messages = null;
+        uids = null;
+        sizes = null;
+        prefetched.clear();
+    }
+
+    private boolean isOtherMessageDeleted(MessageRange range, Set<Long> removed) throws MailboxException {
+        Iterator<MessageResult> results = manager.getMessages(range, METADATA_GROUP, session);
+        while (results.hasNext()) {
+            MessageResult result = results.next();
+            if (result.getFlags().contains(Flags.Flag.DELETED) && !removed.contains(result.getUid())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public String getIdentifier() throws IOException {
+        if (identifier != null) {
+            return identifier;
+        }
         try {
             mailboxManager.startProcessingRequest(session);
             long validity = manager.getMetaData(false, session, MessageManager.MetaData.FetchGroup.NO_COUNT)
                     .getUidValidity();
-            return Long.toString(validity);
+            identifier = Long.toString(validity);
+            return identifier;
         } catch (MailboxException e) {
             throw new IOException("Unable to retrieve indentifier for mailbox", e);
         } finally {
@@ -201,6 +332,7 @@ public class MailboxAdapter implements Mailbox {
 
     @Override
     public void close() throws IOException {
+        prefetched.clear();
         try {
             mailboxManager.logout(session, true);
         } catch (MailboxException e) {
@@ -42,6 +42,7 @@ public class POP3ServerFactory extends AbstractServerFactory{
             POP3Server server = createServer();
             server.setProtocolHandlerLoader(loader);
             server.setLog(log);
+            server.setServerRuntime(getServerRuntime());
             server.setFileSystem(fileSystem);
             server.configure(serverConfig);
             servers.add(server);
@@ -27,9 +27,14 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Flags;
 
@@ -37,6 +42,7 @@ import org.apache.commons.net.pop3.POP3Client;
 import org.apache.commons.net.pop3.POP3MessageInfo;
 import org.apache.commons.net.pop3.POP3Reply;
 import org.apache.james.filesystem.api.mock.MockFileSystem;
+import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MessageManager;
 import org.apache.james.mailbox.acl.GroupMembershipResolver;
@@ -47,6 +53,9 @@ import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.inmemory.InMemoryMailboxSessionMapperFactory;
 import org.apache.james.mailbox.model.MailboxConstants;
 import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResult.FetchGroup;
 import org.apache.james.mailbox.store.Authenticator;
 import org.apache.james.mailbox.store.StoreMailboxManager;
 import org.apache.james.pop3server.netty.POP3Server;
@@ -411,6 +420,200 @@ public class POP3ServerTest {
 
     }
 
+    @Test
+    public void testRetrInOrderAndRemove() throws Exception {
+        CountingHandler counts = countMailboxRequests();
+        finishSetUp(pop3Configuration);
+
+        pop3Client = new POP3Client();
+        pop3Client.connect("127.0.0.1", pop3Port);
+
+        usersRepository.addUser("foo7", "bar7");
+
+        MailboxPath mailboxPath = new MailboxPath(MailboxConstants.USER_NAMESPACE, "foo7", "INBOX");
+        MailboxSession session = mailboxManager.login("foo7", "bar7", LoggerFactory.getLogger("Test"));
+
+        if (!mailboxManager.mailboxExists(mailboxPath, session)) {
+            mailboxManager.createMailbox(mailboxPath, session);
+        }
+
+        MessageManager mailbox = mailboxManager.getMailbox(mailboxPath, session);
+        int msgCount = 40;
+        for (int i = 0; i < msgCount; i++) {
+            mailbox.appendMessage(new ByteArrayInputStream(("Subject: test\r\n\r\nmessage " + i + " end\r\n").getBytes()),
+                    new Date(), session, true, new Flags());
+        }
+        // marked as deleted by another client, but not expunged
+        mailbox.setFlags(new Flags(Flags.Flag.DELETED), true, false, MessageRange.one(6), session);
+
+        pop3Client.login("foo7", "bar7");
+        POP3MessageInfo[] entries = pop3Client.listMessages();
+        assertEquals(msgCount, entries.length);
+
+        // retrieve out of order first, then in order
+        assertTrue(readMessage(entries[9].number).contains("message 9 end"));
+        for (int i = 0; i < msgCount; i++) {
+            assertTrue(readMessage(entries[i].number).contains("message " + i + " end"));
+        }
+        assertTrue(readMessage(entries[3].number).contains("message 3 end"));
+
+        // 2-17, 18-33 and 34-40 were fetched ahead, 10, 1 and 4 one by one
+        assertEquals(3, counts.rangeFetches.get());
+        assertEquals(3, counts.singleFetches.get());
+        assertEquals(0, counts.contentsReadOutsideRequest.get());
+
+        int[] deleted = { 1, 2, 3, 7, 9, 30 };
+        for (int number : deleted) {
+            assertTrue(pop3Client.deleteMessage(number));
+        }
+        pop3Client.logout();
+        pop3Client.disconnect();
+
+        // message 6 is in between, so each range is expunged on its own
+        assertEquals(4, counts.expunges.get());
+
+        // the message marked by the other client is still there
+        pop3Client.connect("127.0.0.1", pop3Port);
+        pop3Client.login("foo7", "bar7");
+        POP3MessageInfo stats = pop3Client.status();
+        assertEquals(msgCount - deleted.length, stats.number);
+
+        mailboxManager.deleteMailbox(mailboxPath, session);
+    }
+
+    @Test
+    public void testRemoveExpungesOnce() throws Exception {
+        CountingHandler counts = countMailboxRequests();
+        finishSetUp(pop3Configuration);
+
+        pop3Client = new POP3Client();
+        pop3Client.connect("127.0.0.1", pop3Port);
+
+        usersRepository.addUser("foo8", "bar8");
+
+        MailboxPath mailboxPath = new MailboxPath(MailboxConstants.USER_NAMESPACE, "foo8", "INBOX");
+        MailboxSession session = mailboxManager.login("foo8", "bar8", LoggerFactory.getLogger("Test"));
+
+        if (!mailboxManager.mailboxExists(mailboxPath, session)) {
+            mailboxManager.createMailbox(mailboxPath, session);
+        }
+
+        MessageManager mailbox = mailboxManager.getMailbox(mailboxPath, session);
+        int msgCount = 10;
+        for (int i = 0; i < msgCount; i++) {
+            mailbox.appendMessage(new ByteArrayInputStream(("Subject: test\r\n\r\nmessage " + i + " end\r\n").getBytes()),
+                    new Date(), session, true, new Flags());
+        }
+
+        pop3Client.login("foo8", "bar8");
+        int[] deleted = { 2, 3, 5, 8 };
+        for (int number : deleted) {
+            assertTrue(pop3Client.deleteMessage(number));
+        }
+        pop3Client.logout();
+        pop3Client.disconnect();
+
+        assertEquals(1, counts.expunges.get());
+
+        pop3Client.connect("127.0.0.1", pop3Port);
+        pop3Client.login("foo8", "bar8");
+        POP3MessageInfo[] entries = pop3Client.listMessages();
+        assertEquals(msgCount - deleted.length, entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            assertFalse(Arrays.binarySearch(deleted, entries[i].number) >= 0);
+        }
+
+        mailboxManager.deleteMailbox(mailboxPath, session);
+    }
+
+    /**
+     * Let the server use a {@link MailboxManager} which counts the requests to
+     * the mailboxes. Must be called before the server is set up
+     * 
+     * @return counts
+     */
+    private CountingHandler countMailboxRequests() {
+        CountingHandler counts = new CountingHandler();
+        protocolHandlerChain.put("mailboxmanager", counts.wrap(mailboxManager, MailboxManager.class));
+        return counts;
+    }
+
+    /**
+     * Counts the fetches and expunges done through the wrapped
+     * {@link MailboxManager}, and the message contents which are read while
+     * no request is processed
+     */
+    private final static class CountingHandler implements InvocationHandler {
+        private final Object target;
+        private final CountingHandler counts;
+
+        private final AtomicInteger singleFetches = new AtomicInteger();
+        private final AtomicInteger rangeFetches = new AtomicInteger();
+        private final AtomicInteger expunges = new AtomicInteger();
+        private final AtomicInteger contentsReadOutsideRequest = new AtomicInteger();
+        private volatile boolean inRequest;
+
+        public CountingHandler() {
+            this(null, null);
+        }
+
+        private CountingHandler(Object target, CountingHandler counts) {
+            this.target = target;
+            this.counts = counts == null ? this : counts;
+        }
+
+        public Object wrap(Object object, Class<?> type) {
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new CountingHandler(object, counts));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("startProcessingRequest")) {
+                counts.inRequest = true;
+            } else if (name.equals("endProcessingRequest")) {
+                counts.inRequest = false;
+            } else if (name.equals("getMessages") && args[1] != null && (((FetchGroup) args[1]).content() & FetchGroup.BODY_CONTENT) != 0) {
+                if (((MessageRange) args[0]).getType() == MessageRange.Type.ONE) {
+                    counts.singleFetches.incrementAndGet();
+                } else {
+                    counts.rangeFetches.incrementAndGet();
+                }
+            } else if (name.equals("expunge")) {
+                counts.expunges.incrementAndGet();
+            } else if (name.equals("getInputStream") && !counts.inRequest) {
+                counts.contentsReadOutsideRequest.incrementAndGet();
+            }
+
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result == null) {
+                return null;
+            } else if (name.equals("getMailbox") || name.equals("getMessages") || name.equals("getFullContent")) {
+                return wrap(result, method.getReturnType());
+            } else if (name.equals("next") && result instanceof MessageResult) {
+                return wrap(result, MessageResult.class);
+            }
+            return result;
+        }
+    }
+
+    private String readMessage(int number) throws Exception {
+        Reader reader = pop3Client.retrieveMessage(number);
+        assertNotNull(reader);
+        StringBuilder message = new StringBuilder();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            message.append(buffer, 0, read);
+        }
+        reader.close();
+        return message.toString();
+    }
+
     /**
      * Test for JAMES-1202 - This was failing before as the more then one connection to the same
      * mailbox was not handled the right way
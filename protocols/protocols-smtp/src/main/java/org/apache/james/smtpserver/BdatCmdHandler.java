@@ -0,0 +1,346 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Request;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.ReceivedDataLineFilter;
+import org.apache.james.protocols.smtp.core.esmtp.EhloExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailParametersHook;
+
+/**
+ * Handles the BDAT command of the CHUNKING extension (RFC 3030) and the BODY
+ * parameter of the MAIL command, which is needed for BINARYMIME.
+ * <p>
+ * The chunks are not split into lines. The SMTPServer passes them around its
+ * framer and they are written to the spool as they arrive, without any
+ * dot-stuffing or line filtering. CHUNKING is only announced if it is enabled
+ * for the server.
+ * </p>
+ */
+public class BdatCmdHandler extends AbstractJamesMessageHookHandler implements CommandHandler<SMTPSession>, EhloExtension, MailParametersHook {
+
+    private final static String COMMAND_NAME = "BDAT";
+
+    private final static String LAST = "LAST";
+
+    private final static String BODY_PARAMETER = "BODY";
+
+    /**
+     * The BODY type of messages which must be sent with BDAT
+     */
+    public final static String BINARYMIME = "BINARYMIME";
+
+    private final ReceivedDataLineFilter receivedHeaderFilter = new ReceivedDataLineFilter();
+
+    /**
+     * Parse the argument of a BDAT command
+     * 
+     * @param argument
+     *            the argument, like "1024" or "1024 LAST"
+     * @return the size of the chunk, or -1 if the argument is invalid
+     */
+    public static long parseChunkSize(String argument) {
+        String[] tokens = argument.trim().split(" +");
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equalsIgnoreCase(LAST))) {
+            return -1;
+        }
+        String size = tokens[0];
+        // more digits would not fit into a long
+        if (size.length() == 0 || size.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < size.length(); i++) {
+            if (!Character.isDigit(size.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(size);
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#onCommand(org.apache.james.protocols.api.ProtocolSession,
+     *      org.apache.james.protocols.api.Request)
+     */
+    public Response onCommand(SMTPSession session, Request request) {
+        if (!isChunkingEnabled(session)) {
+            return new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_COMMAND_UNRECOGNIZED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_CMD) + " Command " + COMMAND_NAME + " unrecognized.");
+        }
+        String argument = request.getArgument();
+        long size = argument == null ? -1 : parseChunkSize(argument);
+        if (size < 0) {
+            return new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Usage: " + COMMAND_NAME + " chunk-size [" + LAST + "]");
+        }
+        boolean last = argument.trim().split(" +").length == 2;
+
+        Chunk chunk = new Chunk(size, last);
+        chunk.checkTransaction(session);
+        if (size == 0) {
+            return chunk.complete(session);
+        }
+        // the chunk itself is consumed even if it will be rejected
+        session.pushLineHandler(chunk);
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#getImplCommands()
+     */
+    public Collection<String> getImplCommands() {
+        return Collections.singletonList(COMMAND_NAME);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.esmtp.EhloExtension#getImplementedEsmtpFeatures(org.apache.james.protocols.smtp.SMTPSession)
+     */
+    public List<String> getImplementedEsmtpFeatures(SMTPSession session) {
+        if (isChunkingEnabled(session)) {
+            return Arrays.asList("CHUNKING", BINARYMIME);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#doMailParameter(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public HookResult doMailParameter(SMTPSession session, String paramName, String paramValue) {
+        String body = paramValue == null ? "" : paramValue.toUpperCase(Locale.US);
+        if (body.equals("7BIT") || body.equals("8BITMIME")) {
+            return new HookResult(HookReturnCode.DECLINED);
+        } else if (body.equals(BINARYMIME) && isChunkingEnabled(session)) {
+            session.setAttachment(SMTPConstants.BODY_TYPE, BINARYMIME, State.Transaction);
+            return new HookResult(HookReturnCode.DECLINED);
+        }
+        return new HookResult(HookReturnCode.DENY, SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Unsupported BODY type " + paramValue);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#getMailParamNames()
+     */
+    public String[] getMailParamNames() {
+        return new String[] { BODY_PARAMETER };
+    }
+
+    private boolean isChunkingEnabled(SMTPSession session) {
+        return session instanceof ExtendedSMTPSession && ((ExtendedSMTPSession) session).isChunkingEnabled();
+    }
+
+    private long getMaxMessageSize(SMTPSession session) {
+        if (session instanceof ExtendedSMTPSession) {
+            return ((ExtendedSMTPSession) session).getSMTPConfiguration().getMaxMessageSize();
+        }
+        return 0;
+    }
+
+    /**
+     * Write the Received header. The line filters are not used for BDAT, so
+     * the {@link ReceivedDataLineFilter} of the DATA command is called here
+     * with an empty first line and writes its header lines to the spool.
+     */
+    private void writeReceivedHeader(SMTPSession session, final OutputStream out) throws IOException {
+        final IOException[] failure = new IOException[1];
+        receivedHeaderFilter.onLine(session, ByteBuffer.allocate(0), new LineHandler<SMTPSession>() {
+            public Response onLine(SMTPSession session, ByteBuffer line) {
+                if (failure[0] == null) {
+                    try {
+                        byte[] data = new byte[line.remaining()];
+                        line.get(data);
+                        out.write(data);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+                return null;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Receives the data of one BDAT chunk and completes the command once the
+     * whole chunk was read
+     */
+    private class Chunk implements LineHandler<SMTPSession> {
+
+        private final long size;
+        private final boolean last;
+        private long remaining;
+        private SMTPResponse error;
+        private boolean abort;
+
+        public Chunk(long size, boolean last) {
+            this.size = size;
+            this.last = last;
+            this.remaining = size;
+        }
+
+        /**
+         * Check if the chunk can be accepted and start the spool for the first
+         * chunk of a transaction
+         */
+        public void checkTransaction(SMTPSession session) {
+            if (session.getAttachment(SMTPSession.SENDER, State.Transaction) == null) {
+                error = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No sender specified");
+                return;
+            }
+            Collection<?> rcpts = (Collection<?>) session.getAttachment(SMTPSession.RCPT_LIST, State.Transaction);
+            if (rcpts == null || rcpts.isEmpty()) {
+                error = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No recipients specified");
+                return;
+            }
+
+            Long received = (Long) session.getAttachment(SMTPConstants.BDAT_RECEIVED, State.Transaction);
+            if (received == null) {
+                MimeMessageInputStreamSource mmiss = null;
+                try {
+                    mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
+                    writeReceivedHeader(session, mmiss.getWritableOutputStream());
+                } catch (Exception e) {
+                    LifecycleUtil.dispose(mmiss);
+                    session.getLogger().warn("Error creating mimemessagesource for incoming data", e);
+                    error = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error preparing to receive BDAT.");
+                    abort = true;
+                    return;
+                }
+                session.setAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss, State.Transaction);
+                // keep a reference which survives the transaction, so the
+                // spool of an aborted transaction gets disposed
+                LifecycleUtil.dispose(session.setAttachment(SMTPConstants.BDAT_SPOOL, mmiss, State.Connection));
+                received = 0L;
+                session.setAttachment(SMTPConstants.BDAT_RECEIVED, received, State.Transaction);
+            }
+
+            long maxMessageSize = getMaxMessageSize(session);
+            if (maxMessageSize > 0 && received + size > maxMessageSize) {
+                session.getLogger().info("Rejected message from " + session.getRemoteAddress().getAddress().getHostAddress() + " exceeding system maximum message size of " + maxMessageSize);
+                error = new SMTPResponse(SMTPRetCode.QUOTA_EXCEEDED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SYSTEM_MSG_TOO_BIG) + " Message size exceeds fixed maximum message size");
+                abort = true;
+            }
+        }
+
+        /**
+         * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession,
+         *      java.nio.ByteBuffer)
+         */
+        public Response onLine(SMTPSession session, ByteBuffer buffer) {
+            int length = (int) Math.min(buffer.remaining(), remaining);
+            remaining -= length;
+            if (error == null) {
+                MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
+                try {
+                    OutputStream out = mmiss.getWritableOutputStream();
+                    if (buffer.hasArray()) {
+                        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                    } else {
+                        byte[] data = new byte[length];
+                        buffer.get(data);
+                        out.write(data);
+                    }
+                } catch (IOException e) {
+                    session.getLogger().error("Unknown error occurred while processing BDAT.", e);
+                    error = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage());
+                    abort = true;
+                }
+            }
+            if (remaining > 0) {
+                return null;
+            }
+            session.popLineHandler();
+            return complete(session);
+        }
+
+        /**
+         * Complete the BDAT command after the whole chunk was received
+         */
+        public Response complete(SMTPSession session) {
+            if (error != null) {
+                if (abort) {
+                    abortTransaction(session);
+                }
+                return error;
+            }
+            Long received = (Long) session.getAttachment(SMTPConstants.BDAT_RECEIVED, State.Transaction);
+            session.setAttachment(SMTPConstants.BDAT_RECEIVED, received + size, State.Transaction);
+            if (!last) {
+                return new SMTPResponse(SMTPRetCode.MAIL_OK, DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.UNDEFINED_STATUS) + " " + size + " octets received");
+            }
+
+            MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
+            MailImpl mail = null;
+            MimeMessageCopyOnWriteProxy mimeMessageCopyOnWriteProxy = null;
+            try {
+                OutputStream out = mmiss.getWritableOutputStream();
+                out.flush();
+                out.close();
+
+                mail = createMail(session);
+                mimeMessageCopyOnWriteProxy = new MimeMessageCopyOnWriteProxy(mmiss);
+                mail.setMessage(mimeMessageCopyOnWriteProxy);
+
+                return processExtensions(session, mail);
+            } catch (IOException e) {
+                session.getLogger().error("Unknown error occurred while processing BDAT.", e);
+                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage());
+            } catch (AddressException e) {
+                session.getLogger().error("Invalid email address while processing BDAT.", e);
+                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage());
+            } catch (MessagingException e) {
+                session.getLogger().info("Unexpected error handling BDAT stream", e);
+                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error handling BDAT stream.");
+            } finally {
+                LifecycleUtil.dispose(mimeMessageCopyOnWriteProxy);
+                LifecycleUtil.dispose(mail);
+                abortTransaction(session);
+            }
+        }
+
+        private void abortTransaction(SMTPSession session) {
+            LifecycleUtil.dispose(session.setAttachment(SMTPConstants.BDAT_SPOOL, null, State.Connection));
+            session.resetState();
+        }
+    }
+}
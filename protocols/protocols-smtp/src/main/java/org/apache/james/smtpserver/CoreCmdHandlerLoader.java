@@ -58,6 +58,8 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
         commands.add(AUTHCMDHANDLER);
         String DATACMDHANDLER = JamesDataCmdHandler.class.getName();
         commands.add(DATACMDHANDLER);
+        String BDATCMDHANDLER = BdatCmdHandler.class.getName();
+        commands.add(BDATCMDHANDLER);
         String EHLOCMDHANDLER = EhloCmdHandler.class.getName();
         commands.add(EHLOCMDHANDLER);
         String EXPNCMDHANDLER = ExpnCmdHandler.class.getName();
@@ -40,4 +40,22 @@ public class ExtendedSMTPSession extends org.apache.james.protocols.smtp.SMTPSes
 	public boolean verifyIdentity() {
         return !(smtpConfiguration instanceof SMTPHandlerConfigurationDataImpl) || ((SMTPHandlerConfigurationDataImpl) smtpConfiguration).verifyIdentity();
     }
+
+    /**
+     * Return true if the CHUNKING extension is enabled for this session
+     * 
+     * @return chunking
+     */
+    public boolean isChunkingEnabled() {
+        return smtpConfiguration instanceof SMTPHandlerConfigurationDataImpl && ((SMTPHandlerConfigurationDataImpl) smtpConfiguration).isChunkingEnabled();
+    }
+
+    /**
+     * Return the configuration of the server which accepted this session
+     * 
+     * @return configuration
+     */
+    public SMTPConfiguration getSMTPConfiguration() {
+        return smtpConfiguration;
+    }
 }
@@ -0,0 +1,187 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * Collects the mails which concurrent sessions want to spool and enqueues them
+ * with one commit of a {@link BatchMailQueue} (group commit).
+ * <p>
+ * A session waits until the batch which holds its mail was committed, so it
+ * still replies only once its mail is durable. But the commit, which is a JMS
+ * transaction or a few fsync calls, is shared by all mails of the batch. The
+ * mails which arrive while a batch gets committed form the next batch, so no
+ * mail waits for a batch to fill up.
+ * </p>
+ */
+public class GroupCommitEnqueuer implements Runnable {
+
+    private final BatchMailQueue queue;
+
+    private final int maxBatchSize;
+
+    private final Logger logger;
+
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<Request>();
+
+    private final Thread thread;
+
+    private volatile boolean stopped = false;
+
+    public GroupCommitEnqueuer(BatchMailQueue queue, int maxBatchSize, Logger logger) {
+        this.queue = queue;
+        this.maxBatchSize = maxBatchSize;
+        this.logger = logger;
+        this.thread = new NamedThreadFactory("smtp-spool").newThread(this);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the committing thread. Mails which were not committed yet are
+     * rejected.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Enqueue the given mail with the next batch and wait until it was
+     * committed
+     * 
+     * @param mail
+     * @throws MailQueueException
+     *             if the batch could not be committed
+     */
+    public void enQueue(Mail mail) throws MailQueueException {
+        Request request = new Request(mail);
+        pending.add(request);
+        if (stopped && pending.remove(request)) {
+            throw new MailQueueException("Unable to enqueue mail " + mail.getName() + ", the spool is stopped");
+        }
+        request.await();
+    }
+
+    public void run() {
+        List<Request> batch = new ArrayList<Request>(maxBatchSize);
+        while (!stopped) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(batch, maxBatchSize - 1);
+            commit(batch);
+            batch.clear();
+        }
+
+        MailQueueException stoppedException = new MailQueueException("Unable to enqueue mail, the spool is stopped");
+        pending.drainTo(batch);
+        for (Request request : batch) {
+            request.done(stoppedException);
+        }
+    }
+
+    private void commit(List<Request> batch) {
+        List<Mail> mails = new ArrayList<Mail>(batch.size());
+        for (Request request : batch) {
+            mails.add(request.mail);
+        }
+        try {
+            queue.enQueue(mails);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Committed " + mails.size() + " mails to the spool");
+            }
+            for (Request request : batch) {
+                request.done(null);
+            }
+        } catch (MailQueueException e) {
+            if (batch.size() == 1) {
+                batch.get(0).done(e);
+            } else {
+                // don't let one broken mail fail the others
+                logger.info("Unable to commit a batch of " + mails.size() + " mails, enqueue them one by one", e);
+                for (Request request : batch) {
+                    try {
+                        queue.enQueue(Collections.singletonList(request.mail));
+                        request.done(null);
+                    } catch (MailQueueException e1) {
+                        request.done(e1);
+                    } catch (RuntimeException e1) {
+                        request.done(new MailQueueException("Unable to enqueue mail " + request.mail.getName(), e1));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            MailQueueException exception = new MailQueueException("Unable to enqueue " + mails.size() + " mails", e);
+            for (Request request : batch) {
+                request.done(exception);
+            }
+        }
+    }
+
+    /**
+     * A mail which waits for its commit
+     */
+    private final static class Request {
+
+        private final Mail mail;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile MailQueueException error;
+
+        public Request(Mail mail) {
+            this.mail = mail;
+        }
+
+        public void done(MailQueueException error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        public void await() throws MailQueueException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailQueueException("Interrupted while waiting for the spool", e);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
 
 /**
  * handles DATA command
@@ -39,6 +40,13 @@ public class JamesDataCmdHandler extends DataCmdHandler {
      * @param argument the argument passed in with the command by the SMTP client
      */
     protected SMTPResponse doDATA(SMTPSession session, String argument) {
+        // RFC 3030 does not allow to mix DATA and BDAT
+        if (BdatCmdHandler.BINARYMIME.equals(session.getAttachment(SMTPConstants.BODY_TYPE, State.Transaction))) {
+            return new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_CMD) + " BDAT must be used for BINARYMIME messages");
+        }
+        if (session.getAttachment(SMTPConstants.BDAT_RECEIVED, State.Transaction) != null) {
+            return new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_CMD) + " DATA can not be used after BDAT");
+        }
         try {
             MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
             session.setAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss, State.Transaction);
@@ -0,0 +1,227 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+
+/**
+ * Executes the blocking lookups (DNS, JDBC) of the SMTP hooks on a pool which
+ * is shared by all SMTP servers. Hooks use it to start their lookups as soon
+ * as the input is known and to run independent lookups at the same time,
+ * instead of running them one after the other on the thread which executes
+ * the handler chain.
+ * 
+ * The pool is bounded. If all of its threads are busy the lookup is executed
+ * by the calling thread, which is what happened before. The same is true
+ * before the pool was started by {@link #init()} and after it was disposed by
+ * {@link #destroy()}.
+ */
+public class LookupExecutor {
+
+    /** The default maximal count of threads which execute lookups */
+    public static final int DEFAULT_MAX_THREADS = 64;
+
+    public static final String DEFAULT_JMX_NAME = "smtplookup";
+
+    private int maxThreads = DEFAULT_MAX_THREADS;
+    private String jmxName = DEFAULT_JMX_NAME;
+
+    private volatile JMXEnabledThreadPoolExecutor executor;
+
+    /** The tasks which wait for the task of the same key to complete */
+    private final Map<String, LinkedList<Runnable>> pendingTasks = new HashMap<String, LinkedList<Runnable>>();
+
+    /**
+     * Set the maximal count of threads which execute lookups. Defaults to
+     * {@link #DEFAULT_MAX_THREADS}
+     * 
+     * @param maxThreads
+     */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1");
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Set the name under which the statistics of the pool are registered
+     * 
+     * @param jmxName
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    @PostConstruct
+    public synchronized void init() {
+        if (executor == null) {
+            JMXEnabledThreadPoolExecutor pool = new JMXEnabledThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("smtp-lookup"), "org.apache.james:type=server,name=" + jmxName + ",sub-type=threadpool");
+            // unlike the CallerRunsPolicy this also runs lookups which were
+            // submitted while the pool shuts down, nobody would complete
+            // their futures otherwise
+            pool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+                    task.run();
+                }
+            });
+            executor = pool;
+        }
+    }
+
+    /**
+     * Shutdown the pool. Lookups which are still running are interrupted
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Start the given lookup
+     * 
+     * @param lookup
+     * @return future
+     */
+    public <T> Future<T> submit(Callable<T> lookup) {
+        ThreadPoolExecutor pool = executor;
+        if (pool == null) {
+            FutureTask<T> task = new FutureTask<T>(lookup);
+            task.run();
+            return task;
+        }
+        return pool.submit(lookup);
+    }
+
+    /**
+     * Execute the given task without waiting for it. This is used for writes
+     * whose outcome does not change the response to the client
+     * 
+     * @param task
+     */
+    public void execute(Runnable task) {
+        ThreadPoolExecutor pool = executor;
+        if (pool == null) {
+            task.run();
+        } else {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Execute the given task without waiting for it, after all tasks which were
+     * passed with the same key before. Tasks with different keys still run at
+     * the same time.
+     * 
+     * @param key
+     * @param task
+     */
+    public void execute(final String key, Runnable task) {
+        synchronized (pendingTasks) {
+            LinkedList<Runnable> tasks = pendingTasks.get(key);
+            if (tasks != null) {
+                // the thread which executes the tasks of the key picks it up
+                tasks.add(task);
+                return;
+            }
+            tasks = new LinkedList<Runnable>();
+            tasks.add(task);
+            pendingTasks.put(key, tasks);
+        }
+        execute(new Runnable() {
+            public void run() {
+                runPendingTasks(key);
+            }
+        });
+    }
+
+    /**
+     * Execute the pending tasks of the given key until there are none left
+     * 
+     * @param key
+     */
+    private void runPendingTasks(String key) {
+        while (true) {
+            Runnable task;
+            synchronized (pendingTasks) {
+                LinkedList<Runnable> tasks = pendingTasks.get(key);
+                task = tasks.peek();
+                if (task == null) {
+                    pendingTasks.remove(key);
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (pendingTasks) {
+                    pendingTasks.get(key).poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the result of a lookup which was started by
+     * {@link #submit(Callable)}. Unchecked exceptions thrown by the lookup are
+     * rethrown.
+     * 
+     * @param future
+     * @return result the result or null if the waiting thread was interrupted
+     *         or the lookup cancelled
+     */
+    public static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -45,6 +45,13 @@ public class POP3BeforeSMTPHandler implements ConnectHandler<SMTPSession>, Confi
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Please configure a valid expireTime: " + e.getMessage());
         }
+        int maxEntries = config.getInt("maxEntries", -1);
+        if (maxEntries != -1) {
+            if (maxEntries < 1) {
+                throw new ConfigurationException("Please configure a valid maxEntries: " + maxEntries);
+            }
+            POP3BeforeSMTPHelper.setMaxEntries(maxEntries);
+        }
     }
 
     /**
@@ -64,13 +71,14 @@ public class POP3BeforeSMTPHandler implements ConnectHandler<SMTPSession>, Confi
      */
     public Response onConnect(SMTPSession session) {
 
-        // some kind of random cleanup process
+        // some kind of random cleanup process, expired ips are never
+        // authorized so it only needs to keep the map small
         if (Math.random() > 0.99) {
             POP3BeforeSMTPHelper.removeExpiredIP(expireTime);
         }
 
         // Check if the ip is allowed to relay
-        if (!session.isRelayingAllowed() && POP3BeforeSMTPHelper.isAuthorized(session.getRemoteAddress().getAddress().getHostAddress())) {
+        if (!session.isRelayingAllowed() && POP3BeforeSMTPHelper.isAuthorized(session.getRemoteAddress().getAddress().getHostAddress(), expireTime)) {
             session.setRelayingAllowed(true);
         }
         return null;
@@ -27,4 +27,13 @@ public interface SMTPConstants {
     static final String DATA_MIMEMESSAGE_STREAMSOURCE = "org.apache.james.core.DataCmdHandler.DATA_MIMEMESSAGE_STREAMSOURCE";
     static final String MAIL = "MAIL";
 
+    /** The count of bytes received via BDAT in the current transaction */
+    static final String BDAT_RECEIVED = "BDAT_RECEIVED";
+
+    /** The spool of the last BDAT transaction of the connection */
+    static final String BDAT_SPOOL = "BDAT_SPOOL";
+
+    /** The BODY parameter of the MAIL command */
+    static final String BODY_TYPE = "BODY_TYPE";
+
 }
@@ -22,6 +22,7 @@ package org.apache.james.smtpserver;
 import java.util.Collection;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
@@ -30,18 +31,27 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.queue.api.BatchMailQueue;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
+import org.slf4j.LoggerFactory;
 
 /**
- * Queue the message
+ * Queue the message. If the spool supports it the mails of concurrent sessions
+ * are enqueued with one commit by a {@link GroupCommitEnqueuer}.
  */
 public class SendMailHandler implements JamesMessageHook {
 
+    /**
+     * The maximal count of mails which are committed together
+     */
+    private final static int MAX_BATCH_SIZE = 64;
+
     private MailQueue queue;
     private MailQueueFactory queueFactory;
+    private GroupCommitEnqueuer enqueuer;
 
     @Inject
     public void setMailQueueFactory(@Named("mailqueuefactory") MailQueueFactory queueFactory) {
@@ -51,6 +61,17 @@ public class SendMailHandler implements JamesMessageHook {
     @PostConstruct
     public void init() {
         queue = queueFactory.getQueue(MailQueueFactory.SPOOL);
+        if (queue instanceof BatchMailQueue) {
+            enqueuer = new GroupCommitEnqueuer((BatchMailQueue) queue, MAX_BATCH_SIZE, LoggerFactory.getLogger(SendMailHandler.class));
+            enqueuer.start();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (enqueuer != null) {
+            enqueuer.stop();
+        }
     }
 
     /**
@@ -62,7 +83,11 @@ public class SendMailHandler implements JamesMessageHook {
         session.getLogger().debug("sending mail");
 
         try {
-            queue.enQueue(mail);
+            if (enqueuer != null) {
+                enqueuer.enQueue(mail);
+            } else {
+                queue.enQueue(mail);
+            }
             Collection<MailAddress> theRecipients = mail.getRecipients();
             String recipientString = "";
             if (theRecipients != null) {
@@ -0,0 +1,235 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.util.TimeConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the GreylistHandlers which holds the configuration they
+ * share: the lifetimes of the triplets and the whitelisted networks, which
+ * are never greylisted.
+ */
+public abstract class AbstractConfigurableGreylistHandler extends AbstractGreylistHandler implements InitializingLifecycleAwareProtocolHandler {
+
+    /** This log is the fall back shared by all instances */
+    private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(AbstractConfigurableGreylistHandler.class);
+
+    /**
+     * Non context specific log should only be used when no context specific log
+     * is available
+     */
+    private Logger serviceLog = FALLBACK_LOG;
+
+    private FileSystem fileSystem = null;
+
+    private DNSService dnsService;
+
+    private NetMatcher wNetworks;
+
+    private long autoWhiteListLifeTime;
+
+    private long unseenLifeTime;
+
+    /**
+     * Gets the file system service.
+     * 
+     * @return the fileSystem
+     */
+    public final FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * Sets the filesystem service
+     * 
+     * @param system
+     *            The filesystem service
+     */
+    @Inject
+    public void setFileSystem(FileSystem system) {
+        this.fileSystem = system;
+    }
+
+    @Inject
+    public final void setDNSService(@Named("dnsservice") DNSService dnsService) {
+        this.dnsService = dnsService;
+    }
+
+    /**
+     * Setup the temporary blocking time
+     * 
+     * @param tempBlockTime
+     *            The temporary blocking time
+     */
+    public void setTempBlockTime(String tempBlockTime) {
+        setTempBlockTime(TimeConverter.getMilliSeconds(tempBlockTime));
+    }
+
+    /**
+     * Setup the autowhitelist lifetime for which we should whitelist a triplet.
+     * After this lifetime the record will be deleted
+     * 
+     * @param autoWhiteListLifeTime
+     *            The lifeTime
+     */
+    public void setAutoWhiteListLifeTime(String autoWhiteListLifeTime) {
+        setAutoWhiteListLifeTime(TimeConverter.getMilliSeconds(autoWhiteListLifeTime));
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#setAutoWhiteListLifeTime(long)
+     */
+    public void setAutoWhiteListLifeTime(long autoWhiteListLifeTime) {
+        this.autoWhiteListLifeTime = autoWhiteListLifeTime;
+        super.setAutoWhiteListLifeTime(autoWhiteListLifeTime);
+    }
+
+    /**
+     * Return the time after which an auto whitelisted triplet is deleted
+     * 
+     * @return autoWhiteListLifeTime
+     */
+    protected long getAutoWhiteListLifeTime() {
+        return autoWhiteListLifeTime;
+    }
+
+    /**
+     * Set up the liftime of only once seen triplet. After this liftime the
+     * record will be deleted
+     * 
+     * @param unseenLifeTime
+     *            The lifetime
+     */
+    public void setUnseenLifeTime(String unseenLifeTime) {
+        setUnseenLifeTime(TimeConverter.getMilliSeconds(unseenLifeTime));
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#setUnseenLifeTime(long)
+     */
+    public void setUnseenLifeTime(long unseenLifeTime) {
+        this.unseenLifeTime = unseenLifeTime;
+        super.setUnseenLifeTime(unseenLifeTime);
+    }
+
+    /**
+     * Return the time after which a triplet which was seen only once is
+     * deleted
+     * 
+     * @return unseenLifeTime
+     */
+    protected long getUnseenLifeTime() {
+        return unseenLifeTime;
+    }
+
+    public void setWhiteListedNetworks(NetMatcher wNetworks) {
+        this.wNetworks = wNetworks;
+    }
+
+    protected NetMatcher getWhiteListedNetworks() {
+        return wNetworks;
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.LogEnabled#setLog(Logger)
+     */
+    public void setLog(Logger log) {
+        this.serviceLog = log;
+    }
+
+    /**
+     * Return the log of the service
+     * 
+     * @return log
+     */
+    protected Logger getLog() {
+        return serviceLog;
+    }
+
+    /**
+     * Skip greylisting for clients of the whitelisted networks
+     * 
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#doRcpt(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        if ((wNetworks == null) || (!wNetworks.matchInetNetwork(session.getRemoteAddress().getAddress().getHostAddress()))) {
+            return super.doRcpt(session, sender, rcpt);
+        } else {
+            session.getLogger().info("IpAddress " + session.getRemoteAddress().getAddress().getHostAddress() + " is whitelisted. Skip greylisting.");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    /**
+     * Read the lifetimes and the whitelisted networks from the configuration
+     * 
+     * @see org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler#init(org.apache.commons.configuration.Configuration)
+     */
+    public void init(Configuration handlerConfiguration) throws ConfigurationException {
+        try {
+            setTempBlockTime(handlerConfiguration.getString("tempBlockTime"));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+
+        try {
+            setAutoWhiteListLifeTime(handlerConfiguration.getString("autoWhiteListLifeTime"));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+
+        try {
+            setUnseenLifeTime(handlerConfiguration.getString("unseenLifeTime"));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+        String nets = handlerConfiguration.getString("whitelistedNetworks");
+        if (nets != null) {
+            String[] whitelistArray = nets.split(",");
+            List<String> wList = new ArrayList<String>(whitelistArray.length);
+            for (String aWhitelistArray : whitelistArray) {
+                wList.add(aWhitelistArray.trim());
+            }
+            setWhiteListedNetworks(new NetMatcher(wList, dnsService));
+            serviceLog.info("Whitelisted addresses: " + getWhiteListedNetworks().toString());
+
+        }
+    }
+}
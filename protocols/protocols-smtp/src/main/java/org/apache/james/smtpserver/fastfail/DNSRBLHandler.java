@@ -22,6 +22,13 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -31,16 +38,47 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.smtpserver.LookupExecutor;
 
+/**
+ * DNSRBLHandler which looks up the client address in all configured RBL
+ * servers at the same time. The first lookup of a client address starts the
+ * lookups for all servers, the following ones only wait for their result.
+ */
 public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler implements InitializingLifecycleAwareProtocolHandler {
 
+    /** Lookups which were not asked for after this time in ms are dropped */
+    private static final long PREFETCH_TIMEOUT = 60 * 1000;
+
+    /** The count of pending client addresses above which old ones are dropped */
+    private static final int MAX_PREFETCHES = 1000;
+
     private DNSService dns;
 
+    private LookupExecutor lookupExecutor = new LookupExecutor();
+
+    /** All configured RBL servers, whitelist and blacklist */
+    private final Collection<String> rblServers = new ArrayList<String>();
+
+    /** The pending lookups by reversed client address */
+    private final ConcurrentMap<String, Prefetch> prefetches = new ConcurrentHashMap<String, Prefetch>();
+
     @Inject
     public void setDNSService(@Named("dnsservice") DNSService dns) {
         this.dns = dns;
     }
 
+    /**
+     * Set the {@link LookupExecutor} which runs the lookups. Without one they
+     * are executed by the calling thread
+     * 
+     * @param lookupExecutor
+     */
+    @Inject
+    public void setLookupExecutor(@Named("lookupexecutor") LookupExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void init(Configuration config) throws ConfigurationException {
@@ -51,12 +89,14 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
         Collections.addAll(rblserverCollection, handlerConfiguration.getStringArray("rblservers.whitelist"));
         if (rblserverCollection.size() > 0) {
             setWhitelist(rblserverCollection.toArray(new String[rblserverCollection.size()]));
+            rblServers.addAll(rblserverCollection);
             rblserverCollection.clear();
             validConfig = true;
         }
         Collections.addAll(rblserverCollection, handlerConfiguration.getStringArray("rblservers.blacklist"));
         if (rblserverCollection.size() > 0) {
             setBlacklist(rblserverCollection.toArray(new String[rblserverCollection.size()]));
+            rblServers.addAll(rblserverCollection);
             rblserverCollection.clear();
             validConfig = true;
         }
@@ -76,14 +116,95 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
 
     @Override
     protected boolean resolve(String ip) {
+        String server = null;
+        for (String rblServer : rblServers) {
+            int prefixLength = ip.length() - rblServer.length();
+            if (prefixLength > 0 && ip.endsWith(rblServer) && (rblServer.startsWith(".") || ip.charAt(prefixLength - 1) == '.')) {
+                server = rblServer;
+                break;
+            }
+        }
+        if (server == null) {
+            return lookup(ip);
+        }
+
+        String reversedIp = ip.substring(0, ip.length() - server.length());
+        Prefetch prefetch = prefetches.get(reversedIp);
+        Future<Boolean> result = prefetch == null ? null : prefetch.take(server);
+        if (result == null) {
+            prefetch = new Prefetch(reversedIp);
+            prefetches.put(reversedIp, prefetch);
+            purgePrefetches();
+            result = prefetch.take(server);
+        }
+        Boolean listed = LookupExecutor.get(result);
+        return listed != null && listed;
+    }
+
+    /**
+     * Resolve the given name with the {@link DNSService}
+     * 
+     * @param name
+     * @return true if it could be resolved
+     */
+    private boolean lookup(String name) {
         try {
-            dns.getByName(ip);
+            dns.getByName(name);
             return true;
         } catch (UnknownHostException e) {
             return false;
         }
     }
 
+    /**
+     * Drop the lookups which were not asked for in time. This happens when a
+     * client is found on the whitelist or the first blacklist which lists it
+     */
+    private void purgePrefetches() {
+        if (prefetches.size() > MAX_PREFETCHES) {
+            long oldest = System.currentTimeMillis() - PREFETCH_TIMEOUT;
+            Iterator<Prefetch> it = prefetches.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().created < oldest) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The lookups of one client address in all RBL servers
+     */
+    private final class Prefetch {
+        private final long created = System.currentTimeMillis();
+        private final String reversedIp;
+        private final Map<String, Future<Boolean>> results = new HashMap<String, Future<Boolean>>();
+
+        public Prefetch(String reversedIp) {
+            this.reversedIp = reversedIp;
+            for (String server : rblServers) {
+                final String name = reversedIp + server;
+                results.put(server, lookupExecutor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return lookup(name);
+                    }
+                }));
+            }
+        }
+
+        /**
+         * Return the lookup for the given server. Every lookup is handed out
+         * only once, so a later check of the same address looks it up again
+         */
+        public synchronized Future<Boolean> take(String server) {
+            Future<Boolean> result = results.remove(server);
+            if (results.isEmpty()) {
+                prefetches.remove(reversedIp, this);
+            }
+            return result;
+        }
+    }
+
     @Override
     protected Collection<String> resolveTXTRecords(String ip) {
         return dns.findTXTRecords(ip);
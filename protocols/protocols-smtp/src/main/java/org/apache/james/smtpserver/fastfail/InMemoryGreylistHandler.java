@@ -0,0 +1,417 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.util.TimeConverter;
+
+/**
+ * GreylistHandler which keeps the triplets in memory, so the check done for
+ * every RCPT is a single hash lookup. Triplets are keyed by a 64 bit hash of
+ * ip address, sender and recipient. Expired triplets are evicted and the table
+ * is written to a snapshot file by a background task, the snapshot is loaded
+ * again on startup. At most maxTriplets triplets are kept. If the table is
+ * full the expired triplets are evicted at once, and if this does not free
+ * enough room the oldest triplets are dropped, the ones never accepted first.
+ * 
+ * <pre>
+ * &lt;handler class="org.apache.james.smtpserver.fastfail.InMemoryGreylistHandler"&gt;
+ *   &lt;tempBlockTime&gt;1 hour&lt;/tempBlockTime&gt;
+ *   &lt;unseenLifeTime&gt;4 hours&lt;/unseenLifeTime&gt;
+ *   &lt;autoWhiteListLifeTime&gt;36 days&lt;/autoWhiteListLifeTime&gt;
+ *   &lt;whitelistedNetworks&gt;127.0.0.0/8&lt;/whitelistedNetworks&gt;
+ *   &lt;snapshotFile&gt;file://var/greylist/greylist.dat&lt;/snapshotFile&gt;
+ *   &lt;snapshotInterval&gt;5 minutes&lt;/snapshotInterval&gt;
+ *   &lt;maxTriplets&gt;1000000&lt;/maxTriplets&gt;
+ * &lt;/handler&gt;
+ * </pre>
+ * 
+ * If no snapshotFile is configured the triplets are lost on shutdown.
+ */
+public class InMemoryGreylistHandler extends AbstractConfigurableGreylistHandler {
+
+    /** Marks the format of the snapshot file */
+    private static final int SNAPSHOT_MAGIC = 0x4a475231;
+
+    /** The default count of triplets to keep */
+    public static final int DEFAULT_MAX_TRIPLETS = 1000000;
+
+    /** Orders the triplets which are dropped first to the front */
+    private static final Comparator<Map.Entry<Long, Triplet>> DROP_ORDER = new Comparator<Map.Entry<Long, Triplet>>() {
+        public int compare(Map.Entry<Long, Triplet> o1, Map.Entry<Long, Triplet> o2) {
+            Triplet t1 = o1.getValue();
+            Triplet t2 = o2.getValue();
+            if ((t1.count == 0) != (t2.count == 0)) {
+                return t1.count == 0 ? -1 : 1;
+            }
+            return t1.time < t2.time ? -1 : (t1.time == t2.time ? 0 : 1);
+        }
+    };
+
+    private String snapshotFile;
+
+    private int maxTriplets = DEFAULT_MAX_TRIPLETS;
+
+    private long snapshotInterval = 5 * 60 * 1000;
+
+    private final ConcurrentHashMap<Long, Triplet> triplets = new ConcurrentHashMap<Long, Triplet>();
+
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Set the file the triplets are saved to. If null the triplets are only
+     * kept in memory
+     * 
+     * @param snapshotFile
+     *            The file url
+     */
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Set the interval in which expired triplets are evicted and the snapshot
+     * is written
+     * 
+     * @param snapshotInterval
+     *            The interval
+     */
+    public void setSnapshotInterval(String snapshotInterval) {
+        this.snapshotInterval = TimeConverter.getMilliSeconds(snapshotInterval);
+    }
+
+    /**
+     * Set the count of triplets to keep
+     * 
+     * @param maxTriplets
+     *            The maximal count of triplets
+     */
+    public void setMaxTriplets(int maxTriplets) {
+        this.maxTriplets = maxTriplets;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#getGreyListData(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) {
+        Triplet triplet = triplets.get(hash(ipAddress, sender, recip));
+        if (triplet == null) {
+            return Collections.<String> emptyList().iterator();
+        }
+        List<String> data = new ArrayList<String>(2);
+        data.add(String.valueOf(triplet.time));
+        data.add(String.valueOf(triplet.count));
+        return data.iterator();
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#insertTriplet(java.lang.String,
+     *      java.lang.String, java.lang.String, int, long)
+     */
+    protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) {
+        if (triplets.size() >= maxTriplets) {
+            makeRoom(createTime);
+        }
+        triplets.put(hash(ipAddress, sender, recip), new Triplet(createTime, count));
+        dirty.set(true);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#updateTriplet(java.lang.String,
+     *      java.lang.String, java.lang.String, int, long)
+     */
+    protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) {
+        triplets.put(hash(ipAddress, sender, recip), new Triplet(time, count + 1));
+        dirty.set(true);
+    }
+
+    /**
+     * Expired triplets are evicted by the background task, so the RCPT
+     * handling never has to walk the table
+     * 
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupAutoWhiteListGreyList(long)
+     */
+    protected void cleanupAutoWhiteListGreyList(long time) {
+    }
+
+    /**
+     * @see #cleanupAutoWhiteListGreyList(long)
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupGreyList(long)
+     */
+    protected void cleanupGreyList(long time) {
+    }
+
+    /**
+     * Remove all triplets which were not seen in their lifetime
+     * 
+     * @param now
+     *            The current time
+     * @return evicted The count of removed triplets
+     */
+    int evict(long now) {
+        long unseenLimit = now - getUnseenLifeTime();
+        long autoWhiteListLimit = now - getAutoWhiteListLifeTime();
+        int evicted = 0;
+        Iterator<Triplet> it = triplets.values().iterator();
+        while (it.hasNext()) {
+            Triplet triplet = it.next();
+            if (triplet.time < autoWhiteListLimit || (triplet.count == 0 && triplet.time < unseenLimit)) {
+                it.remove();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            dirty.set(true);
+        }
+        return evicted;
+    }
+
+    /**
+     * Make room for new triplets once the table is full. The expired triplets
+     * are evicted first. If the table is still full the oldest triplets which
+     * were never accepted and then the oldest accepted ones are dropped until
+     * a tenth of the table is free, so this does not run again on the next
+     * insert.
+     * 
+     * @param now
+     *            The current time
+     */
+    synchronized void makeRoom(long now) {
+        if (triplets.size() < maxTriplets) {
+            // another thread made room already
+            return;
+        }
+        evict(now);
+        int limit = maxTriplets - Math.max(1, maxTriplets / 10);
+        int drop = triplets.size() - limit;
+        if (drop <= 0) {
+            return;
+        }
+        List<Map.Entry<Long, Triplet>> entries = new ArrayList<Map.Entry<Long, Triplet>>(triplets.entrySet());
+        Collections.sort(entries, DROP_ORDER);
+        for (int i = 0; i < drop && i < entries.size(); i++) {
+            Map.Entry<Long, Triplet> entry = entries.get(i);
+            triplets.remove(entry.getKey(), entry.getValue());
+        }
+        dirty.set(true);
+        getLog().warn("Greylist is full, dropped the " + drop + " oldest triplets. Consider to raise maxTriplets of " + maxTriplets);
+    }
+
+    /**
+     * Return the count of stored triplets
+     * 
+     * @return size
+     */
+    public int getTripletCount() {
+        return triplets.size();
+    }
+
+    /**
+     * Return a 64 bit FNV-1a hash of the triplet
+     */
+    private static Long hash(String ipAddress, String sender, String recip) {
+        long h = 0xcbf29ce484222325L;
+        h = hash(h, ipAddress);
+        h = hash(h, sender);
+        h = hash(h, recip);
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // separate the parts, so "a","bc" and "ab","c" differ
+        return (h ^ 0xff) * 0x100000001b3L;
+    }
+
+    /**
+     * Load the triplets from the snapshot file, expired triplets are skipped
+     */
+    void load() throws IOException {
+        File file = getFileSystem().getFile(snapshotFile);
+        if (!file.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long unseenLimit = now - getUnseenLifeTime();
+        long autoWhiteListLimit = now - getAutoWhiteListLifeTime();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                getLog().warn("Ignoring greylist snapshot " + snapshotFile + " with unknown format");
+                return;
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long key = in.readLong();
+                long time = in.readLong();
+                int count = in.readInt();
+                if (time >= autoWhiteListLimit && (count > 0 || time >= unseenLimit) && triplets.size() < maxTriplets) {
+                    triplets.put(key, new Triplet(time, count));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        getLog().info("Loaded " + triplets.size() + " greylist triplets from " + snapshotFile);
+    }
+
+    /**
+     * Write the triplets to the snapshot file if they changed since the last
+     * snapshot
+     */
+    synchronized void snapshot() {
+        if (snapshotFile == null || !dirty.getAndSet(false)) {
+            return;
+        }
+
+        // copy first, the table may change while it is written
+        List<Map.Entry<Long, Triplet>> entries = new ArrayList<Map.Entry<Long, Triplet>>(triplets.entrySet());
+
+        DataOutputStream out = null;
+        try {
+            File file = getFileSystem().getFile(snapshotFile);
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, Triplet> entry : entries) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue().time);
+                out.writeInt(entry.getValue().count);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // renameTo does not replace existing files on every platform
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+            getLog().warn("Unable to save greylist snapshot to " + snapshotFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    @Override
+    public void init(Configuration handlerConfiguration) throws ConfigurationException {
+        super.init(handlerConfiguration);
+        try {
+            setSnapshotInterval(handlerConfiguration.getString("snapshotInterval", "5 minutes"));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+        if (snapshotInterval <= 0) {
+            throw new ConfigurationException("snapshotInterval must be greater then 0");
+        }
+        setMaxTriplets(handlerConfiguration.getInt("maxTriplets", DEFAULT_MAX_TRIPLETS));
+        if (maxTriplets <= 0) {
+            throw new ConfigurationException("maxTriplets must be greater then 0");
+        }
+
+        setSnapshotFile(handlerConfiguration.getString("snapshotFile", null));
+        if (snapshotFile != null) {
+            try {
+                load();
+            } catch (Exception e) {
+                getLog().warn("Unable to load greylist snapshot from " + snapshotFile, e);
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InMemoryGreylistHandler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                int evicted = evict(System.currentTimeMillis());
+                if (evicted > 0) {
+                    getLog().debug("Evicted " + evicted + " greylist triplets");
+                }
+                snapshot();
+            }
+        }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        snapshot();
+    }
+
+    /**
+     * Time of the last update and count of accepted deliveries of a triplet
+     */
+    private static final class Triplet {
+        private final long time;
+        private final int count;
+
+        public Triplet(long time, int count) {
+            this.time = time;
+            this.count = count;
+        }
+    }
+}
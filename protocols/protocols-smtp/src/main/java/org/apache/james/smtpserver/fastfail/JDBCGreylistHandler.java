@@ -29,7 +29,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -38,39 +37,21 @@ import javax.sql.DataSource;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
-import org.apache.james.dnsservice.api.DNSService;
-import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
-import org.apache.james.filesystem.api.FileSystem;
-import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
-import org.apache.james.protocols.smtp.MailAddress;
-import org.apache.james.protocols.smtp.SMTPSession;
-import org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler;
-import org.apache.james.protocols.smtp.hook.HookResult;
-import org.apache.james.protocols.smtp.hook.HookReturnCode;
-import org.apache.james.util.TimeConverter;
+import org.apache.james.smtpserver.LookupExecutor;
+import org.apache.james.util.sql.JDBCTemplate;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * GreylistHandler which can be used to activate Greylisting
  */
-public class JDBCGreylistHandler extends AbstractGreylistHandler implements InitializingLifecycleAwareProtocolHandler {
+public class JDBCGreylistHandler extends AbstractConfigurableGreylistHandler {
 
-    /** This log is the fall back shared by all instances */
-    private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(JDBCGreylistHandler.class);
-
-    /**
-     * Non context specific log should only be used when no context specific log
-     * is available
-     */
-    private Logger serviceLog = FALLBACK_LOG;
+    /** The key of the updates which clean up the whole greylist */
+    private static final String CLEANUP_KEY = "";
 
     private DataSource datasource = null;
 
-    private FileSystem fileSystem = null;
-
     private String selectQuery;
 
     private String insertQuery;
@@ -92,29 +73,12 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
     /** Holds value of property sqlParameters. */
     private final Map<String, String> sqlParameters = new HashMap<String, String>();
 
-    private DNSService dnsService;
-
-    private NetMatcher wNetworks;
-
-    /**
-     * Gets the file system service.
-     * 
-     * @return the fileSystem
-     */
-    public final FileSystem getFileSystem() {
-        return fileSystem;
-    }
+    private LookupExecutor lookupExecutor = new LookupExecutor();
 
     /**
-     * Sets the filesystem service
-     * 
-     * @param system
-     *            The filesystem service
+     * The shared JDBC access layer
      */
-    @Inject
-    public void setFileSystem(FileSystem system) {
-        this.fileSystem = system;
-    }
+    private JDBCTemplate jdbcTemplate;
 
     /**
      * Set the datasources.
@@ -138,77 +102,31 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
     }
 
     /**
-     * Setup the temporary blocking time
-     * 
-     * @param tempBlockTime
-     *            The temporary blocking time
-     */
-    public void setTempBlockTime(String tempBlockTime) {
-        setTempBlockTime(TimeConverter.getMilliSeconds(tempBlockTime));
-    }
-
-    /**
-     * Setup the autowhitelist lifetime for which we should whitelist a triplet.
-     * After this lifetime the record will be deleted
+     * Set the {@link LookupExecutor} which runs the lookups. Without one they
+     * are executed by the calling thread
      * 
-     * @param autoWhiteListLifeTime
-     *            The lifeTime
+     * @param lookupExecutor
      */
-    public void setAutoWhiteListLifeTime(String autoWhiteListLifeTime) {
-        setAutoWhiteListLifeTime(TimeConverter.getMilliSeconds(autoWhiteListLifeTime));
-    }
-
-    /**
-     * Set up the liftime of only once seen triplet. After this liftime the
-     * record will be deleted
-     * 
-     * @param unseenLifeTime
-     *            The lifetime
-     */
-    public void setUnseenLifeTime(String unseenLifeTime) {
-        setUnseenLifeTime(TimeConverter.getMilliSeconds(unseenLifeTime));
-    }
-
     @Inject
-    public final void setDNSService(@Named("dnsservice") DNSService dnsService) {
-        this.dnsService = dnsService;
-    }
-
-    public void setWhiteListedNetworks(NetMatcher wNetworks) {
-        this.wNetworks = wNetworks;
+    public final void setLookupExecutor(@Named("lookupexecutor") LookupExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
     }
 
-    protected NetMatcher getWhiteListedNetworks() {
-        return wNetworks;
-    }
-    
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#getGreyListData(java.lang.String,
      *      java.lang.String, java.lang.String)
      */
     protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) throws SQLException {
-        Collection<String> data = new ArrayList<String>(2);
-        PreparedStatement mappingStmt = null;
-        Connection conn = datasource.getConnection();
-        try {
-            mappingStmt = conn.prepareStatement(selectQuery);
-            ResultSet mappingRS = null;
-            try {
-                mappingStmt.setString(1, ipAddress);
-                mappingStmt.setString(2, sender);
-                mappingStmt.setString(3, recip);
-                mappingRS = mappingStmt.executeQuery();
-
-                if (mappingRS.next()) {
-                    data.add(String.valueOf(mappingRS.getTimestamp(1).getTime()));
-                    data.add(String.valueOf(mappingRS.getInt(2)));
-                }
-            } finally {
-                theJDBCUtil.closeJDBCResultSet(mappingRS);
+        Collection<String> data = jdbcTemplate.queryForObject(selectQuery, new JDBCTemplate.RowMapper<Collection<String>>() {
+            public Collection<String> mapRow(ResultSet rs) throws SQLException {
+                Collection<String> row = new ArrayList<String>(2);
+                row.add(String.valueOf(rs.getTimestamp(1).getTime()));
+                row.add(String.valueOf(rs.getInt(2)));
+                return row;
             }
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
+        }, ipAddress, sender, recip);
+        if (data == null) {
+            data = new ArrayList<String>(0);
         }
         return data.iterator();
     }
@@ -218,23 +136,7 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) throws SQLException {
-        Connection conn = datasource.getConnection();
-
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(insertQuery);
-
-            mappingStmt.setString(1, ipAddress);
-            mappingStmt.setString(2, sender);
-            mappingStmt.setString(3, recip);
-            mappingStmt.setInt(4, count);
-            mappingStmt.setTimestamp(5, new Timestamp(createTime));
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        updateLater(getTripletKey(ipAddress, sender, recip), false, insertQuery, ipAddress, sender, recip, count, new Timestamp(createTime));
     }
 
     /**
@@ -242,60 +144,57 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) throws SQLException {
-        Connection conn = datasource.getConnection();
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(updateQuery);
-            mappingStmt.setTimestamp(1, new Timestamp(time));
-            mappingStmt.setInt(2, (count + 1));
-            mappingStmt.setString(3, ipAddress);
-            mappingStmt.setString(4, sender);
-            mappingStmt.setString(5, recip);
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        updateLater(getTripletKey(ipAddress, sender, recip), true, updateQuery, new Timestamp(time), (count + 1), ipAddress, sender, recip);
     }
 
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupAutoWhiteListGreyList(long)
      */
     protected void cleanupAutoWhiteListGreyList(long time) throws SQLException {
-        PreparedStatement mappingStmt = null;
-        Connection conn = datasource.getConnection();
-
-        try {
-            mappingStmt = conn.prepareStatement(deleteAutoWhiteListQuery);
-
-            mappingStmt.setTimestamp(1, new Timestamp(time));
-
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+        updateLater(CLEANUP_KEY, true, deleteAutoWhiteListQuery, new Timestamp(time));
     }
 
     /**
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupGreyList(long)
      */
     protected void cleanupGreyList(long time) throws SQLException {
-        Connection conn = datasource.getConnection();
-
-        PreparedStatement mappingStmt = null;
-
-        try {
-            mappingStmt = conn.prepareStatement(deleteQuery);
+        updateLater(CLEANUP_KEY, true, deleteQuery, new Timestamp(time));
+    }
 
-            mappingStmt.setTimestamp(1, new Timestamp(time));
+    /**
+     * Execute the given update without waiting for it. The response to the
+     * client only depends on the data which was read, so the writes and the
+     * cleanups are done by the {@link LookupExecutor} and errors are only
+     * logged.
+     * 
+     * The updates of a triplet are executed one after the other in the order
+     * they were requested, so they can't overtake each other.
+     * 
+     * @param key
+     *            the triplet the update belongs to
+     * @param idempotent
+     *            true if the update can be retried after a lost connection
+     * @param query
+     * @param params
+     */
+    private void updateLater(String key, final boolean idempotent, final String query, final Object... params) {
+        lookupExecutor.execute(key, new Runnable() {
+            public void run() {
+                try {
+                    if (idempotent) {
+                        jdbcTemplate.idempotentUpdate(query, params);
+                    } else {
+                        jdbcTemplate.update(query, params);
+                    }
+                } catch (SQLException e) {
+                    getLog().error("Unable to update the greylist", e);
+                }
+            }
+        });
+    }
 
-            mappingStmt.executeUpdate();
-        } finally {
-            theJDBCUtil.closeJDBCStatement(mappingStmt);
-            theJDBCUtil.closeJDBCConnection(conn);
-        }
+    private String getTripletKey(String ipAddress, String sender, String recip) {
+        return ipAddress + "\0" + sender + "\0" + recip;
     }
 
     /**
@@ -303,7 +202,7 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      */
     private final JDBCUtil theJDBCUtil = new JDBCUtil() {
         protected void delegatedLog(String logString) {
-            serviceLog.debug("JDBCRecipientRewriteTable: " + logString);
+            getLog().debug("JDBCRecipientRewriteTable: " + logString);
         }
     };
 
@@ -324,10 +223,10 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
             File sqlFile;
 
             try {
-                sqlFile = fileSystem.getFile(sqlFileUrl);
+                sqlFile = getFileSystem().getFile(sqlFileUrl);
                 sqlFileUrl = null;
             } catch (Exception e) {
-                serviceLog.error(e.getMessage(), e);
+                getLog().error(e.getMessage(), e);
                 throw e;
             }
 
@@ -374,7 +273,7 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
                 StringBuilder logBuffer;
                 logBuffer = new StringBuilder(64).append("Created table '").append(tableName).append("' using sqlResources string '").append(createSqlStringName).append("'.");
-                serviceLog.info(logBuffer.toString());
+                getLog().info(logBuffer.toString());
 
             } finally {
                 theJDBCUtil.closeJDBCStatement(createStatement);
@@ -385,54 +284,9 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
         }
     }
 
-    /**
-     */
-    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
-        if ((wNetworks == null) || (!wNetworks.matchInetNetwork(session.getRemoteAddress().getAddress().getHostAddress()))) {
-            return super.doRcpt(session, sender, rcpt);
-        } else {
-            session.getLogger().info("IpAddress " + session.getRemoteAddress().getAddress().getHostAddress() + " is whitelisted. Skip greylisting.");
-        }
-        return new HookResult(HookReturnCode.DECLINED);
-    }
-
-    /**
-     * @see org.apache.james.lifecycle.api.LogEnabled#setLog(Logger)
-     */
-    public void setLog(Logger log) {
-        this.serviceLog = log;
-    }
-
     @Override
     public void init(Configuration handlerConfiguration) throws ConfigurationException {
-        try {
-            setTempBlockTime(handlerConfiguration.getString("tempBlockTime"));
-        } catch (NumberFormatException e) {
-            throw new ConfigurationException(e.getMessage());
-        }
-
-        try {
-            setAutoWhiteListLifeTime(handlerConfiguration.getString("autoWhiteListLifeTime"));
-        } catch (NumberFormatException e) {
-            throw new ConfigurationException(e.getMessage());
-        }
-
-        try {
-            setUnseenLifeTime(handlerConfiguration.getString("unseenLifeTime"));
-        } catch (NumberFormatException e) {
-            throw new ConfigurationException(e.getMessage());
-        }
-        String nets = handlerConfiguration.getString("whitelistedNetworks");
-        if (nets != null) {
-            String[] whitelistArray = nets.split(",");
-            List<String> wList = new ArrayList<String>(whitelistArray.length);
-            for (String aWhitelistArray : whitelistArray) {
-                wList.add(aWhitelistArray.trim());
-            }
-            setWhiteListedNetworks(new NetMatcher(wList, dnsService));
-            serviceLog.info("Whitelisted addresses: " + getWhiteListedNetworks().toString());
-
-        }
+        super.init(handlerConfiguration);
 
         // Get the SQL file location
         String sFile = handlerConfiguration.getString("sqlFile", null);
@@ -451,6 +305,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
             // create table if not exist
             createTable("greyListTableName", "createGreyListTable");
+
+            jdbcTemplate = new JDBCTemplate(datasource, theJDBCUtil, "greylist");
         } catch (Exception e) {
             throw new RuntimeException("Unable to init datasource", e);
         }
@@ -458,6 +314,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
     @Override
     public void destroy() {
-        // nothing todo
+        if (jdbcTemplate != null) {
+            jdbcTemplate.dispose();
+        }
     }
 }
@@ -0,0 +1,229 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailHook;
+import org.apache.james.protocols.smtp.hook.RcptHook;
+import org.apache.james.smtpserver.jmx.RateLimitStats;
+
+/**
+ * Limits the rate of connections and messages per ip address and the rate of
+ * recipients per authenticated user (per ip address for clients which did not
+ * authenticate). Clients which exceed their rate get a temporary error.
+ * 
+ * The rates can be configured per network, the first matching limit is used
+ * and a limit without networks matches every client:
+ * 
+ * <pre>
+ * &lt;handler class="org.apache.james.smtpserver.fastfail.RateLimitHandler"&gt;
+ *     &lt;limit&gt;
+ *         &lt;networks&gt;127.0.0.0/8, 192.168.0.0/16&lt;/networks&gt;
+ *     &lt;/limit&gt;
+ *     &lt;limit&gt;
+ *         &lt;connectionsPerSecond&gt;5&lt;/connectionsPerSecond&gt;
+ *         &lt;messagesPerMinute&gt;30&lt;/messagesPerMinute&gt;
+ *         &lt;recipientsPerHour&gt;500&lt;/recipientsPerHour&gt;
+ *     &lt;/limit&gt;
+ *     &lt;maxEntries&gt;100000&lt;/maxEntries&gt;
+ * &lt;/handler&gt;
+ * </pre>
+ * 
+ * A missing or 0 rate means unlimited.
+ */
+public class RateLimitHandler implements ConnectHandler<SMTPSession>, MailHook, RcptHook, InitializingLifecycleAwareProtocolHandler {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    private DNSService dnsService;
+
+    private final List<Limit> limits = new ArrayList<Limit>();
+
+    private RateLimiter connections;
+    private RateLimiter messages;
+    private RateLimiter recipients;
+
+    private RateLimitStats stats;
+
+    /**
+     * Sets the DNS service.
+     * 
+     * @param dnsService
+     *            the dnsService to set
+     */
+    @Inject
+    public final void setDNSService(@Named("dnsservice") DNSService dnsService) {
+        this.dnsService = dnsService;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void init(Configuration config) throws ConfigurationException {
+        List<HierarchicalConfiguration> limitConfigs = ((HierarchicalConfiguration) config).configurationsAt("limit");
+        if (limitConfigs.isEmpty()) {
+            throw new ConfigurationException("Please configure at least one limit");
+        }
+        for (HierarchicalConfiguration limitConfig : limitConfigs) {
+            NetMatcher networks = null;
+            String nets = limitConfig.getString("networks", null);
+            if (nets != null) {
+                List<String> netList = new ArrayList<String>();
+                for (String net : nets.split(",")) {
+                    netList.add(net.trim());
+                }
+                networks = new NetMatcher(netList, dnsService);
+            }
+            limits.add(new Limit(networks, getRate(limitConfig, "connectionsPerSecond", SECOND), getRate(limitConfig, "messagesPerMinute", MINUTE), getRate(limitConfig, "recipientsPerHour", HOUR)));
+        }
+
+        int maxEntries = config.getInt("maxEntries", RateLimiter.DEFAULT_MAX_ENTRIES);
+        if (maxEntries < 1) {
+            throw new ConfigurationException("maxEntries must be at least 1");
+        }
+        connections = new RateLimiter(maxEntries);
+        messages = new RateLimiter(maxEntries);
+        recipients = new RateLimiter(maxEntries);
+
+        try {
+            // the handler chain passes the jmxName of the server, so the
+            // statistics of several SMTP servers don't collide
+            stats = new RateLimitStats(config.getString("jmxName", "smtpserver"), connections, messages, recipients);
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to register the rate limit statistics", e);
+        }
+    }
+
+    private RateLimiter.Rate getRate(HierarchicalConfiguration config, String name, long period) throws ConfigurationException {
+        int permits = config.getInt(name, 0);
+        if (permits < 0) {
+            throw new ConfigurationException(name + " must not be negative");
+        }
+        return permits == 0 ? null : new RateLimiter.Rate(permits, period);
+    }
+
+    @Override
+    public void destroy() {
+        if (stats != null) {
+            stats.dispose();
+            stats = null;
+        }
+    }
+
+    /**
+     * Return the limit for the given ip address, null if it is unlimited
+     */
+    private Limit getLimit(String ip) {
+        for (Limit limit : limits) {
+            if (limit.networks == null || limit.networks.matchInetNetwork(ip)) {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ConnectHandler#onConnect(org.apache.james.protocols.api.ProtocolSession)
+     */
+    public Response onConnect(SMTPSession session) {
+        String ip = session.getRemoteAddress().getAddress().getHostAddress();
+        Limit limit = getLimit(ip);
+        if (limit != null && limit.connections != null && !connections.tryAcquire(ip, limit.connections)) {
+            stats.incrementConnections();
+            session.getLogger().info("Too many connections from " + ip + ", closing the connection");
+            SMTPResponse response = new SMTPResponse(SMTPRetCode.SERVICE_NOT_AVAILABLE, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.NETWORK_CONGESTION) + " Too many connections, try again later");
+            response.setEndSession(true);
+            return response;
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailHook#doMail(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doMail(SMTPSession session, MailAddress sender) {
+        String ip = session.getRemoteAddress().getAddress().getHostAddress();
+        Limit limit = getLimit(ip);
+        if (limit != null && limit.messages != null && !messages.tryAcquire(ip, limit.messages)) {
+            stats.incrementMessages();
+            session.getLogger().info("Too many messages from " + ip);
+            return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.NETWORK_CONGESTION) + " Too many messages, try again later");
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.RcptHook#doRcpt(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        String ip = session.getRemoteAddress().getAddress().getHostAddress();
+        Limit limit = getLimit(ip);
+        if (limit != null && limit.recipients != null) {
+            String user = session.getUser();
+            String key = user != null ? "user:" + user : "ip:" + ip;
+            if (!recipients.tryAcquire(key, limit.recipients)) {
+                stats.incrementRecipients();
+                session.getLogger().info("Too many recipients for " + key);
+                return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.NETWORK_CONGESTION) + " Too many recipients, try again later");
+            }
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    /**
+     * The rates of the clients of some networks
+     */
+    private final static class Limit {
+        private final NetMatcher networks;
+        private final RateLimiter.Rate connections;
+        private final RateLimiter.Rate messages;
+        private final RateLimiter.Rate recipients;
+
+        public Limit(NetMatcher networks, RateLimiter.Rate connections, RateLimiter.Rate messages, RateLimiter.Rate recipients) {
+            this.networks = networks;
+            this.connections = connections;
+            this.messages = messages;
+            this.recipients = recipients;
+        }
+    }
+}
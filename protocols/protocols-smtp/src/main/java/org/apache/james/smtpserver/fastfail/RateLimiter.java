@@ -0,0 +1,225 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one token bucket per key (ip address, user) and tells if an event of
+ * the key is within its rate.
+ * 
+ * A bucket which was not used for a whole period is full again and so the
+ * same as no bucket at all; such buckets are dropped from time to time. The
+ * count of buckets is bounded: if the limit is reached even after dropping
+ * the full buckets, the least recently used ones are evicted, which resets the
+ * rate of their keys.
+ */
+public class RateLimiter {
+
+    /** The default maximal count of keys which are tracked */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /** The minimal time in ms between two sweeps which are not forced */
+    private static final long SWEEP_INTERVAL = 60 * 1000;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final int maxEntries;
+    private final AtomicLong lastSweep = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RateLimiter() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximal count of keys which are tracked
+     */
+    public RateLimiter(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        lastSweep.set(currentTimeMillis());
+    }
+
+    /**
+     * Take one token of the bucket of the given key
+     * 
+     * @param key
+     *            the key, for example the ip address
+     * @param rate
+     *            the rate of the key
+     * @return true if the key is within its rate, false if it should be
+     *         throttled
+     */
+    public boolean tryAcquire(String key, Rate rate) {
+        long now = currentTimeMillis();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            sweep(now, buckets.size() >= maxEntries);
+            bucket = new Bucket(rate, now);
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    /**
+     * Return the count of keys which are tracked at the moment
+     * 
+     * @return size
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Return the count of keys which were evicted before their bucket was full
+     * again, because the maximal count of keys was reached
+     * 
+     * @return evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Drop the full buckets, and evict the least recently used ones if there
+     * are still too many
+     */
+    private void sweep(long now, boolean force) {
+        long last = lastSweep.get();
+        if (!force && now - last < SWEEP_INTERVAL) {
+            return;
+        }
+        if (!lastSweep.compareAndSet(last, now)) {
+            // someone else is sweeping
+            return;
+        }
+
+        long oldest = Long.MAX_VALUE;
+        Iterator<Bucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            Bucket bucket = it.next();
+            long lastUsed = bucket.getLastUsed();
+            if (now - lastUsed >= bucket.rate.period) {
+                it.remove();
+            } else if (lastUsed < oldest) {
+                oldest = lastUsed;
+            }
+        }
+
+        // Evict the least recently used buckets, widening the window until
+        // a tenth of the entries are free again
+        long threshold = oldest;
+        int target = maxEntries - maxEntries / 10;
+        while (buckets.size() > target && threshold <= now) {
+            threshold += Math.max(1, (now - oldest) / 10);
+            it = buckets.values().iterator();
+            while (it.hasNext() && buckets.size() > target) {
+                if (it.next().getLastUsed() < threshold) {
+                    it.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the current time in ms
+     * 
+     * @return time
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A rate of events, for example 10 per minute
+     */
+    public final static class Rate {
+        private final int permits;
+        private final long period;
+
+        /**
+         * @param permits
+         *            the count of events allowed per period, this is also the
+         *            burst size
+         * @param period
+         *            the period in ms
+         */
+        public Rate(int permits, long period) {
+            if (permits < 1 || period < 1) {
+                throw new IllegalArgumentException("permits and period must be at least 1");
+            }
+            this.permits = permits;
+            this.period = period;
+        }
+
+        public int getPermits() {
+            return permits;
+        }
+
+        public long getPeriod() {
+            return period;
+        }
+
+        @Override
+        public String toString() {
+            return permits + "/" + period + "ms";
+        }
+    }
+
+    /**
+     * Token bucket which is refilled continuously
+     */
+    private final static class Bucket {
+        private final Rate rate;
+        private double tokens;
+        private long lastUsed;
+
+        public Bucket(Rate rate, long now) {
+            this.rate = rate;
+            this.tokens = rate.permits;
+            this.lastUsed = now;
+        }
+
+        public synchronized boolean tryAcquire(long now) {
+            if (now > lastUsed) {
+                tokens = Math.min(rate.permits, tokens + (now - lastUsed) * (double) rate.permits / rate.period);
+                lastUsed = now;
+            }
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+
+        public synchronized long getLastUsed() {
+            return lastUsed;
+        }
+    }
+}
@@ -18,6 +18,9 @@
  ****************************************************************/
 package org.apache.james.smtpserver.fastfail;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -39,6 +42,10 @@ import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.hook.MailHook;
 import org.apache.james.protocols.smtp.hook.RcptHook;
 import org.apache.james.smtpserver.JamesMessageHook;
+import org.apache.james.smtpserver.LookupExecutor;
+import org.apache.james.util.TimeConverter;
+import org.apache.james.util.spf.SPFCheckResult;
+import org.apache.james.util.spf.SPFResultCache;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +71,11 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
 
     public final static String SPF_HEADER_MAIL_ATTRIBUTE_NAME = "org.apache.james.spf.header";
 
+    public final static String SPF_RESULT = "SPF_RESULT";
+
+    /** The check started by MAIL, until it was completed */
+    private final static String SPF_PENDING = "SPF_PENDING";
+
     /** If set to true the mail will also be rejected on a softfail */
     private boolean blockSoftFail = false;
 
@@ -71,6 +83,18 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
 
     private SPF spf = new DefaultSPF(new SPFLogger());
 
+    private LookupExecutor lookupExecutor = new LookupExecutor();
+
+    /** The cache of results, null if caching is disabled */
+    private SPFResultCache cache = new SPFResultCache();
+
+    private final SPFResultCache.Evaluator evaluator = new SPFResultCache.Evaluator() {
+        public SPFCheckResult evaluate(String ip, String sender, String helo) {
+            SPFResult result = spf.checkSPF(ip, sender, helo);
+            return new SPFCheckResult(ip, sender, helo, result.getResult(), result.getExplanation(), result.getHeaderName(), result.getHeaderText());
+        }
+    };
+
     /**
      * block the email on a softfail
      * 
@@ -91,6 +115,19 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
         this.blockPermError = blockPermError;
     }
 
+    /**
+     * Set the cache to use for the results. The container injects the cache
+     * which is shared with the SPF mailet, without one the handler uses its
+     * own.
+     * 
+     * @param cache
+     *            The cache, or null to check every time
+     */
+    @Inject
+    public void setSPFResultCache(@Named("spfresultcache") SPFResultCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * DNSService to use
      * 
@@ -103,45 +140,100 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
     }
 
     /**
-     * Calls a SPF check
+     * Set the {@link LookupExecutor} which runs the lookups. Without one they
+     * are executed by the calling thread
+     * 
+     * @param lookupExecutor
+     */
+    @Inject
+    public void setLookupExecutor(@Named("lookupexecutor") LookupExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /**
+     * Start a SPF check. The check runs in the background while the client
+     * sends the next command, its result is applied to the session by
+     * {@link #completeSPFCheck(SMTPSession)} once it is needed.
      * 
      * @param session
      *            SMTP session object
      */
-    private void doSPFCheck(SMTPSession session, MailAddress sender) {
-        String heloEhlo = (String) session.getAttachment(SMTPSession.CURRENT_HELO_NAME, State.Transaction);
+    private void startSPFCheck(SMTPSession session, MailAddress sender) {
+        final String heloEhlo = (String) session.getAttachment(SMTPSession.CURRENT_HELO_NAME, State.Transaction);
 
         // We have no Sender or HELO/EHLO yet return false
         if (sender == null || heloEhlo == null) {
             session.getLogger().info("No Sender or HELO/EHLO present");
         } else {
 
-            String ip = session.getRemoteAddress().getAddress().getHostAddress();
+            final String ip = session.getRemoteAddress().getAddress().getHostAddress();
+            final String mailFrom = sender.toString();
 
-            SPFResult result = spf.checkSPF(ip, sender.toString(), heloEhlo);
+            Future<SPFCheckResult> result = lookupExecutor.submit(new Callable<SPFCheckResult>() {
+                public SPFCheckResult call() {
+                    if (cache != null) {
+                        return cache.get(ip, mailFrom, heloEhlo, evaluator);
+                    } else {
+                        return evaluator.evaluate(ip, mailFrom, heloEhlo);
+                    }
+                }
+            });
+            session.setAttachment(SPF_PENDING, result, State.Transaction);
+        }
+    }
 
-            String spfResult = result.getResult();
+    /**
+     * Wait for the SPF check started by MAIL, if there is one which was not
+     * completed yet, and store its result in the session
+     * 
+     * @param session
+     *            SMTP session object
+     */
+    @SuppressWarnings("unchecked")
+    private void completeSPFCheck(SMTPSession session) {
+        Future<SPFCheckResult> pending = (Future<SPFCheckResult>) session.setAttachment(SPF_PENDING, null, State.Transaction);
+        if (pending != null) {
+            SPFCheckResult result = LookupExecutor.get(pending);
+            if (result != null) {
+                applySPFResult(session, result);
+            }
+        }
+    }
+
+    /**
+     * Store the result of a SPF check in the session
+     * 
+     * @param session
+     *            SMTP session object
+     * @param result
+     *            the result of the check
+     */
+    private void applySPFResult(SMTPSession session, SPFCheckResult result) {
+        String ip = result.getIp();
+        String sender = result.getSender();
+        String heloEhlo = result.getHelo();
 
-            String explanation = "Blocked - see: " + result.getExplanation();
+        String spfResult = result.getResult();
 
-            // Store the header
-            session.setAttachment(SPF_HEADER, result.getHeaderText(), State.Transaction);
+        String explanation = "Blocked - see: " + result.getExplanation();
 
-            session.getLogger().info("Result for " + ip + " - " + sender + " - " + heloEhlo + " = " + spfResult);
+        // Store the header
+        session.setAttachment(SPF_HEADER, result.getHeaderText(), State.Transaction);
+        session.setAttachment(SPF_RESULT, result, State.Transaction);
 
-            // Check if we should block!
-            if ((spfResult.equals(SPFErrorConstants.FAIL_CONV)) || (spfResult.equals(SPFErrorConstants.SOFTFAIL_CONV) && blockSoftFail) || (spfResult.equals(SPFErrorConstants.PERM_ERROR_CONV) && blockPermError)) {
+        session.getLogger().info("Result for " + ip + " - " + sender + " - " + heloEhlo + " = " + spfResult);
 
-                if (spfResult.equals(SPFErrorConstants.PERM_ERROR_CONV)) {
-                    explanation = "Block caused by an invalid SPF record";
-                }
-                session.setAttachment(SPF_DETAIL, explanation, State.Transaction);
-                session.setAttachment(SPF_BLOCKLISTED, "true", State.Transaction);
+        // Check if we should block!
+        if ((spfResult.equals(SPFErrorConstants.FAIL_CONV)) || (spfResult.equals(SPFErrorConstants.SOFTFAIL_CONV) && blockSoftFail) || (spfResult.equals(SPFErrorConstants.PERM_ERROR_CONV) && blockPermError)) {
 
-            } else if (spfResult.equals(SPFErrorConstants.TEMP_ERROR_CONV)) {
-                session.setAttachment(SPF_TEMPBLOCKLISTED, "true", State.Transaction);
+            if (spfResult.equals(SPFErrorConstants.PERM_ERROR_CONV)) {
+                explanation = "Block caused by an invalid SPF record";
             }
+            session.setAttachment(SPF_DETAIL, explanation, State.Transaction);
+            session.setAttachment(SPF_BLOCKLISTED, "true", State.Transaction);
 
+        } else if (spfResult.equals(SPFErrorConstants.TEMP_ERROR_CONV)) {
+            session.setAttachment(SPF_TEMPBLOCKLISTED, "true", State.Transaction);
         }
 
     }
@@ -150,6 +242,8 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
      */
     public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
         if (!session.isRelayingAllowed()) {
+            completeSPFCheck(session);
+
             // Check if session is blocklisted
             if (session.getAttachment(SPF_BLOCKLISTED, State.Transaction) != null) {
                 return new HookResult(HookReturnCode.DENY, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_AUTH) + " " + session.getAttachment(SPF_TEMPBLOCKLISTED, State.Transaction));
@@ -163,7 +257,7 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
     /**
      */
     public HookResult doMail(SMTPSession session, MailAddress sender) {
-        doSPFCheck(session, sender);
+        startSPFCheck(session, sender);
         return new HookResult(HookReturnCode.DECLINED);
     }
 
@@ -290,16 +384,38 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Initial
      *      org.apache.mailet.Mail)
      */
     public HookResult onMessage(SMTPSession session, Mail mail) {
+        completeSPFCheck(session);
+
         // Store the spf header as attribute for later using
         mail.setAttribute(SPF_HEADER_MAIL_ATTRIBUTE_NAME, (String) session.getAttachment(SPF_HEADER, State.Transaction));
 
+        // Store the whole result, so the SPF mailet does not need to check
+        // again
+        SPFCheckResult result = (SPFCheckResult) session.getAttachment(SPF_RESULT, State.Transaction);
+        if (result != null) {
+            mail.setAttribute(SPFCheckResult.MAIL_ATTRIBUTE_NAME, result);
+        }
+
         return null;
     }
 
     @Override
     public void init(Configuration config) throws ConfigurationException {
         setBlockSoftFail(config.getBoolean("blockSoftFail", false));
-        setBlockPermError(config.getBoolean("blockPermError", true));        
+        setBlockPermError(config.getBoolean("blockPermError", true));
+        if (!config.getBoolean("useCache", true)) {
+            setSPFResultCache(null);
+        } else {
+            String ttl = config.getString("cacheTimeToLive", null);
+            if (ttl != null) {
+                // The cache is shared with the SPF mailet
+                try {
+                    cache.setTimeToLive(TimeConverter.getMilliSeconds(ttl));
+                } catch (NumberFormatException e) {
+                    throw new ConfigurationException("Invalid cacheTimeToLive: " + ttl, e);
+                }
+            }
+        }
     }
 
     @Override
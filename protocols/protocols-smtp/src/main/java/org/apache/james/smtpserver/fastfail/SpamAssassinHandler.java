@@ -32,6 +32,7 @@ import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.smtpserver.JamesMessageHook;
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.Mail;
 
 /**
@@ -58,10 +59,21 @@ import org.apache.mailet.Mail;
  *   &lt;spamdPort&gt;783&lt;/spamdPort&gt; <br>
  *   &lt;spamdRejectionHits&gt;15.0&lt;/spamdRejectionHits&gt;
  *   &lt;checkAuthNetworks&gt;false&lt;/checkAuthNetworks&gt;
+ *   &lt;connectTimeout&gt;5000&lt;/connectTimeout&gt;
+ *   &lt;readTimeout&gt;30000&lt;/readTimeout&gt;
+ *   &lt;maxConcurrentScans&gt;20&lt;/maxConcurrentScans&gt;
+ *   &lt;maxMessageSize&gt;524288&lt;/maxMessageSize&gt;
  * &lt;/handler&gt;
  * </pre>
  * 
  * </p>
+ * <p>
+ * The timeouts are in ms. If maxMessageSize (in bytes) or maxConcurrentScans
+ * are set, bigger messages and messages which arrive while that many scans are
+ * running are accepted without a scan, so a slow spamd does not hold up the
+ * DATA command. Both default to 0, which means no limit. The statistics of the
+ * client are exposed in JMX under the jmxName of the server.
+ * </p>
  */
 public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecycleAwareProtocolHandler {
 
@@ -74,14 +86,28 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
     /** The hits on which the message get rejected */
     private double spamdRejectionHits = 0.0;
 
+    private int connectTimeout = SpamdClient.DEFAULT_CONNECT_TIMEOUT;
+
+    private int readTimeout = SpamdClient.DEFAULT_READ_TIMEOUT;
+
+    private int maxConcurrentScans = SpamdClient.DEFAULT_MAX_CONCURRENT_SCANS;
+
+    private long maxMessageSize = SpamdClient.DEFAULT_MAX_MESSAGE_SIZE;
+
+    private String jmxName;
+
+    /** The client shared by all scans, created on first use */
+    private SpamdClient client;
+
     /**
      * Set the host the spamd daemon is running at
      * 
      * @param spamdHost
      *            The spamdHost
      */
-    public void setSpamdHost(String spamdHost) {
+    public synchronized void setSpamdHost(String spamdHost) {
         this.spamdHost = spamdHost;
+        resetClient();
     }
 
     /**
@@ -90,8 +116,9 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
      * @param spamdPort
      *            the spamdPort
      */
-    public void setSpamdPort(int spamdPort) {
+    public synchronized void setSpamdPort(int spamdPort) {
         this.spamdPort = spamdPort;
+        resetClient();
     }
 
     /**
@@ -105,6 +132,73 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
     }
 
+    /**
+     * Set the timeouts (in ms) used when talking to spamd
+     * 
+     * @param connectTimeout
+     *            the time to wait for a connection
+     * @param readTimeout
+     *            the time to wait for data from spamd
+     */
+    public synchronized void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        resetClient();
+    }
+
+    /**
+     * Set the count of scans which may run at the same time
+     * 
+     * @param maxConcurrentScans
+     *            the maxConcurrentScans
+     */
+    public synchronized void setMaxConcurrentScans(int maxConcurrentScans) {
+        this.maxConcurrentScans = maxConcurrentScans;
+        resetClient();
+    }
+
+    /**
+     * Set the maximal size (in bytes) of messages to scan, 0 means no limit
+     * 
+     * @param maxMessageSize
+     *            the maxMessageSize
+     */
+    public synchronized void setMaxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+        resetClient();
+    }
+
+    /**
+     * Set the name to register the statistics of the client under, <code>null</code>
+     * to not register them
+     * 
+     * @param jmxName
+     *            the jmxName
+     */
+    public synchronized void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+        resetClient();
+    }
+
+    private void resetClient() {
+        if (client != null) {
+            client.dispose();
+            client = null;
+        }
+    }
+
+    /**
+     * Return the client used to talk to spamd
+     * 
+     * @return client
+     */
+    public synchronized SpamdClient getSpamdClient() {
+        if (client == null) {
+            client = new SpamdClient(spamdHost, spamdPort, connectTimeout, readTimeout, maxConcurrentScans, maxMessageSize, jmxName);
+        }
+        return client;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -113,8 +207,12 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
         try {
             MimeMessage message = mail.getMessage();
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
+            SpamAssassinInvoker sa = new SpamAssassinInvoker(getSpamdClient());
             sa.scanMail(message);
+            if (!sa.isScanned()) {
+                session.getLogger().debug("Message was not scanned by spamd because of its size or the count of running scans");
+                return new HookResult(HookReturnCode.DECLINED);
+            }
 
             // Add the headers
             for (String key : sa.getHeadersAsAttribute().keySet()) {
@@ -149,11 +247,19 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
     public void init(Configuration config) throws ConfigurationException {
         setSpamdHost(config.getString("spamdHost", "localhost"));
         setSpamdPort(config.getInt("spamdPort", 783));
-        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));        
+        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));
+        setTimeouts(config.getInt("connectTimeout", SpamdClient.DEFAULT_CONNECT_TIMEOUT), config.getInt("readTimeout", SpamdClient.DEFAULT_READ_TIMEOUT));
+        int maxConcurrentScans = config.getInt("maxConcurrentScans", SpamdClient.DEFAULT_MAX_CONCURRENT_SCANS);
+        if (maxConcurrentScans < 0) {
+            throw new ConfigurationException("Please configure a valid maxConcurrentScans. Not valid: " + maxConcurrentScans);
+        }
+        setMaxConcurrentScans(maxConcurrentScans);
+        setMaxMessageSize(config.getLong("maxMessageSize", SpamdClient.DEFAULT_MAX_MESSAGE_SIZE));
+        setJmxName(config.getString("jmxName", "spamassassin"));
     }
 
     @Override
-    public void destroy() {
-        // nothing to-do
+    public synchronized void destroy() {
+        resetClient();
     }
 }
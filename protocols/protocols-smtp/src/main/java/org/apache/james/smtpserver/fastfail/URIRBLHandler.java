@@ -19,19 +19,27 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -43,6 +51,7 @@ import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.smtpserver.JamesMessageHook;
+import org.apache.james.smtpserver.LookupExecutor;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +59,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Extract domains from message and check against URIRBLServer. For more
  * informations see <a href="http://www.surbl.org">www.surbl.org</a>
+ * <p>
+ * The text parts are scanned as decoded character streams. At most
+ * maxScanChars characters (default 1048576, 0 for no limit) of a message are
+ * scanned.
+ * </p>
  */
 public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwareProtocolHandler {
 
@@ -68,10 +82,17 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
 
     private DNSService dnsService;
 
+    private LookupExecutor lookupExecutor = new LookupExecutor();
+
     private Collection<String> uriRbl;
 
     private boolean getDetail = false;
 
+    /** The default count of characters scanned per message */
+    public final static long DEFAULT_MAX_SCAN_CHARS = 1024 * 1024;
+
+    private long maxScanChars = DEFAULT_MAX_SCAN_CHARS;
+
     /**
      * Gets the DNS service.
      * 
@@ -92,6 +113,17 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         this.dnsService = dnsService;
     }
 
+    /**
+     * Set the {@link LookupExecutor} which runs the lookups. Without one they
+     * are executed by the calling thread
+     * 
+     * @param lookupExecutor
+     */
+    @Inject
+    public final void setLookupExecutor(@Named("lookupexecutor") LookupExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
     /**
      * Set the UriRBL Servers
      * 
@@ -112,6 +144,16 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         this.getDetail = getDetail;
     }
 
+    /**
+     * Set the maximal count of characters to scan per message
+     * 
+     * @param maxScanChars
+     *            The count, 0 means no limit
+     */
+    public void setMaxScanChars(long maxScanChars) {
+        this.maxScanChars = maxScanChars;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -146,45 +188,59 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
     }
 
     /**
-     * Recursively scans all MimeParts of an email for domain strings. Domain
-     * strings that are found are added to the supplied HashSet.
+     * Recursively scans all text parts of an email for URIs. The hosts found
+     * are collected by the supplied scanner.
      * 
      * @param part
      *            MimePart to scan
+     * @param scanner
+     *            the scanner which collects the hosts
      * @param session
      *            not null
-     * @return domains The HashSet that contains the domains which were
-     *         extracted
      */
-    private HashSet<String> scanMailForDomains(MimePart part, SMTPSession session) throws MessagingException, IOException {
-        HashSet<String> domains = new HashSet<String>();
+    private void scanMailForDomains(MimePart part, URIScanner scanner, SMTPSession session) throws MessagingException, IOException {
         session.getLogger().debug("mime type is: \"" + part.getContentType() + "\"");
 
         if (part.isMimeType("text/plain") || part.isMimeType("text/html")) {
-            session.getLogger().debug("scanning: \"" + part.getContent().toString() + "\"");
-            HashSet<String> newDom = URIScanner.scanContentForDomains(domains, part.getContent().toString());
-
-            // Check if new domains are found and add the domains
-            if (newDom != null && newDom.size() > 0) {
-                domains.addAll(newDom);
+            Reader reader = new InputStreamReader(part.getInputStream(), getCharset(part));
+            try {
+                scanner.scan(reader);
+            } finally {
+                reader.close();
             }
         } else if (part.isMimeType("multipart/*")) {
             MimeMultipart multipart = (MimeMultipart) part.getContent();
             int count = multipart.getCount();
             session.getLogger().debug("multipart count is: " + count);
 
-            for (int index = 0; index < count; index++) {
+            for (int index = 0; index < count && !scanner.isLimitReached(); index++) {
                 session.getLogger().debug("recursing index: " + index);
                 MimeBodyPart mimeBodyPart = (MimeBodyPart) multipart.getBodyPart(index);
-                HashSet<String> newDomains = scanMailForDomains(mimeBodyPart, session);
+                scanMailForDomains(mimeBodyPart, scanner, session);
+            }
+        }
+    }
 
-                // Check if new domains are found and add the domains
-                if (newDomains != null && newDomains.size() > 0) {
-                    domains.addAll(newDomains);
-                }
+    /**
+     * Return the java charset of a text part, ISO-8859-1 if it is unknown
+     */
+    private String getCharset(MimePart part) throws MessagingException {
+        String charset = null;
+        try {
+            charset = new ContentType(part.getContentType()).getParameter("charset");
+        } catch (ParseException e) {
+            // use the default
+        }
+        if (charset != null) {
+            charset = MimeUtility.javaCharset(charset);
+            try {
+                "".getBytes(charset);
+                return charset;
+            } catch (UnsupportedEncodingException e) {
+                // use the default
             }
         }
-        return domains;
+        return "ISO-8859-1";
     }
 
     /**
@@ -196,33 +252,43 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         try {
             message = mail.getMessage();
 
-            HashSet<String> domains = scanMailForDomains(message, session);
+            URIScanner scanner = new URIScanner(maxScanChars);
+            scanMailForDomains(message, scanner, session);
+            HashSet<String> domains = scanner.getDomains();
+            if (scanner.isLimitReached()) {
+                session.getLogger().debug("Scanned only the first " + maxScanChars + " characters for URIs");
+            }
 
+            // Start all lookups at once and check the results in the order
+            // of the domains and servers
+            List<Lookup> lookups = new ArrayList<Lookup>(domains.size() * uriRbl.size());
             for (String domain : domains) {
-                Iterator<String> uRbl = uriRbl.iterator();
-                String target = domain;
-
-                while (uRbl.hasNext()) {
-                    try {
-                        String uRblServer = uRbl.next();
-                        String address = target + "." + uRblServer;
+                for (String uRblServer : uriRbl) {
+                    String address = domain + "." + uRblServer;
 
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("Lookup " + address);
-                        }
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("Lookup " + address);
+                    }
 
-                        dnsService.getByName(address);
+                    lookups.add(new Lookup(domain, uRblServer, lookupExecutor.submit(new AddressLookup(address))));
+                }
+            }
 
-                        // store server name for later use
-                        session.setAttachment(URBLSERVER, uRblServer, State.Transaction);
-                        session.setAttachment(LISTED_DOMAIN, target, State.Transaction);
+            Lookup listed = null;
+            for (Lookup lookup : lookups) {
+                if (listed != null) {
+                    lookup.found.cancel(false);
+                } else if (Boolean.TRUE.equals(LookupExecutor.get(lookup.found))) {
+                    listed = lookup;
+                }
+            }
 
-                        return true;
+            if (listed != null) {
+                // store server name for later use
+                session.setAttachment(URBLSERVER, listed.server, State.Transaction);
+                session.setAttachment(LISTED_DOMAIN, listed.domain, State.Transaction);
 
-                    } catch (UnknownHostException uhe) {
-                        // domain not found. keep processing
-                    }
-                }
+                return true;
             }
         } catch (MessagingException e) {
             session.getLogger().error(e.getMessage());
@@ -232,6 +298,42 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         return false;
     }
 
+    /**
+     * The lookup of one domain in one URIRBL server
+     */
+    private final static class Lookup {
+        private final String domain;
+        private final String server;
+        private final Future<Boolean> found;
+
+        public Lookup(String domain, String server, Future<Boolean> found) {
+            this.domain = domain;
+            this.server = server;
+            this.found = found;
+        }
+    }
+
+    /**
+     * Resolves an address, true if it could be resolved
+     */
+    private final class AddressLookup implements Callable<Boolean> {
+        private final String address;
+
+        public AddressLookup(String address) {
+            this.address = address;
+        }
+
+        public Boolean call() {
+            try {
+                dnsService.getByName(address);
+                return true;
+            } catch (UnknownHostException uhe) {
+                // domain not found
+                return false;
+            }
+        }
+    }
+
     @Override
     public void init(Configuration config) throws ConfigurationException {
         String[] servers = config.getStringArray("uriRblServers.server");
@@ -248,7 +350,8 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
             throw new ConfigurationException("Please provide at least one server");
         }
 
-        setGetDetail(config.getBoolean("getDetail", false));        
+        setGetDetail(config.getBoolean("getDetail", false));
+        setMaxScanChars(config.getLong("maxScanChars", DEFAULT_MAX_SCAN_CHARS));
     }
 
     @Override
@@ -19,95 +19,65 @@
 
 package org.apache.james.smtpserver.fastfail;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.james.smtpserver.TLDLookup;
 
+/**
+ * Extracts the hosts and registrar domains of URIs and email addresses found
+ * in text. The text is scanned in a single pass without regular expressions,
+ * so the work is linear in the length of the text and can be bounded by a
+ * maximal count of characters. The recognized URIs follow the ones
+ * SpamAssassin looks for: URIs starting with http, https, ftp, mailto,
+ * javascript or file and schemeless URIs starting with www. or ftp.
+ */
 public class URIScanner {
 
-    // These regular expressions "inspired" by Spamassassin
-    static private final String reserved = ";/?:@&=+$,[]\\#|";
+    /** Characters which may be part of a URI */
+    private static final boolean[] URI_CHARS = new boolean[128];
 
-    static private final String reservedNoColon = ";/?@&=+$,[]\\#|";
+    /** Characters which may be part of the local part of an email address */
+    private static final boolean[] LOCAL_PART_CHARS = new boolean[128];
 
-    static private final String mark = "-_.!~*'()";
-
-    static private final String unreserved = "A-Za-z0-9" + escape(mark) + "\\x00-\\x08\\x0b\\x0c\\x0e-\\x1f";
-
-    static private final String uricSet = escape(reserved) + unreserved + "%";
-
-    static private final String uricNoColon = escape(reservedNoColon) + unreserved + "%";
-
-    static private final String schemeRE = "(?-xism:(?:https?|ftp|mailto|javascript|file))";
-
-    static private final String schemelessRE = "(?-xism:(?<![.=])(?:(?i)www\\d*\\.|(?i)ftp\\.))";
-
-    static private final String uriRE = "(?-xism:\\b(?:" + schemeRE + ":[" + uricNoColon + "]|" + schemelessRE + ")[" + uricSet + "#]*)";
-
-    /** Pre-compiled pattern that matches URIs */
-    static private final Pattern uriPattern = Pattern.compile(uriRE);
-
-    /** Pre-compiled pattern that matches URI scheme strings */
-    static private final Pattern schemePattern = Pattern.compile("^" + schemeRE + ":");
-
-    /** Pre-compiled pattern used to cleanup a found URI string */
-    static private final Pattern uriCleanup = Pattern.compile("^<(.*)>$");
-
-    /** Pre-compiled pattern used to cleanup a found URI string */
-    static private final Pattern uriCleanup2 = Pattern.compile("[\\]\\)>#]$");
-
-    /** Pre-compile pattern for identifying "mailto" patterns */
-    static private final Pattern uriCleanup3 = Pattern.compile("^(?i)mailto:([^\\/]{2})(.*)$");
-
-    // These regular expressions also "inspired" by Spamassassin
-    static private final String esc = "\\\\";
-
-    static private final String period = "\\.";
-
-    static private final String space = "\\040";
-
-    static private final String open_br = "\\[";
-
-    static private final String close_br = "\\]";
-
-    static private final String nonASCII = "\\x80-\\xff";
-
-    static private final String ctrl = "\\000-\\037";
-
-    static private final String cr_list = "\\n\\015";
-
-    static private final String qtext = "[^" + esc + nonASCII + cr_list + "\"]";
-
-    static private final String dtext = "[^" + esc + nonASCII + cr_list + open_br + close_br + "]";
-
-    static private final String quoted_pair = esc + "[^" + nonASCII + "]";
-
-    static private final String atom_char = "[^(" + space + ")<>@,;:\"." + esc + open_br + close_br + ctrl + nonASCII + "]";
-
-    static private final String atom = "(?>" + atom_char + "+)";
-
-    static private final String quoted_str = "\"" + qtext + "*(?:" + quoted_pair + qtext + "*)*\"";
-
-    static private final String word = "(?:" + atom + "|" + quoted_str + ")";
-
-    static private final String local_part = word + "(?:" + period + word + ")*";
-
-    static private final String label = "[A-Za-z\\d](?:[A-Za-z\\d-]*[A-Za-z\\d])?";
+    static {
+        String uriChars = ";/?:@&=+$,[]\\#|" + "-_.!~*'()" + "%";
+        for (int i = 0; i < uriChars.length(); i++) {
+            URI_CHARS[uriChars.charAt(i)] = true;
+        }
+        String localPartChars = "-_!~*'&=+$";
+        for (int i = 0; i < localPartChars.length(); i++) {
+            LOCAL_PART_CHARS[localPartChars.charAt(i)] = true;
+        }
+        for (char c = 0; c < 128; c++) {
+            if (isAlphaNumeric(c)) {
+                URI_CHARS[c] = true;
+                LOCAL_PART_CHARS[c] = true;
+            } else if (c <= 0x08 || c == 0x0b || c == 0x0c || (c >= 0x0e && c <= 0x1f)) {
+                URI_CHARS[c] = true;
+            }
+        }
+    }
 
-    static private final String domain_ref = label + "(?:" + period + label + ")*";
+    /** The URI schemes which are recognized, "https" has to come first */
+    private static final String[] SCHEMES = new String[] { "https:", "http:", "ftp:", "mailto:", "javascript:", "file:" };
 
-    static private final String domain_lit = open_br + "(?:" + dtext + "|" + quoted_pair + ")*" + close_br;
+    /**
+     * Runs of URI characters are inspected in pieces of at most this length,
+     * so a single huge "word" does not need unbounded memory
+     */
+    private static final int MAX_RUN_LENGTH = 4096;
 
-    static private final String domain = "(?:" + domain_ref + "|" + domain_lit + ")";
+    private static final int MAX_HOST_LENGTH = 255;
 
-    static private final String Addr_spec_re = "(?-xism:" + local_part + "\\s*\\@\\s*" + domain + ")";
+    /** Returned by {@link #uriAuthority} if no URI starts at the position */
+    private static final int NO_URI = -1;
 
-    /** Pre-compiled pattern for matching "schemeless" mailto strings */
-    static private final Pattern emailAddrPattern = Pattern.compile(Addr_spec_re);
+    /** Returned by {@link #uriAuthority} if the URI has no host */
+    private static final int NO_HOST = -2;
 
     /** Simple reqular expression to match an octet part of an IP address */
     static private final String octet = "(?:[1-2][0-9][0-9])|(?:[1-9][0-9])|(?:[0-9])";
@@ -166,6 +136,351 @@ public class URIScanner {
      */
     static private final Pattern tld3CapPattern = Pattern.compile(tld3Cap);
 
+    private final long maxChars;
+
+    private long chars;
+
+    private final HashSet<String> hosts = new HashSet<String>();
+
+    /** The current run of URI characters */
+    private final StringBuilder run = new StringBuilder();
+
+    /** Whether the current run contains a dot, runs without can be skipped */
+    private boolean runHasDot;
+
+    /**
+     * Create a scanner without limit
+     */
+    public URIScanner() {
+        this(0);
+    }
+
+    /**
+     * Create a scanner
+     * 
+     * @param maxChars
+     *            The maximal count of characters to scan over all calls of
+     *            scan, 0 means no limit
+     */
+    public URIScanner(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Scan the characters of the given reader, the reader is not closed
+     * 
+     * @param in
+     *            the reader to scan
+     * @throws IOException
+     */
+    public void scan(Reader in) throws IOException {
+        char[] buffer = new char[4096];
+        int read;
+        while (!isLimitReached() && (read = in.read(buffer)) != -1) {
+            int length = limit(read);
+            for (int i = 0; i < length; i++) {
+                append(buffer[i]);
+            }
+            chars += length;
+        }
+        endRun();
+    }
+
+    /**
+     * Scan the given character sequence
+     * 
+     * @param content
+     *            the character sequence to scan
+     */
+    public void scan(CharSequence content) {
+        int length = limit(content.length());
+        for (int i = 0; i < length; i++) {
+            append(content.charAt(i));
+        }
+        chars += length;
+        endRun();
+    }
+
+    /**
+     * Return true if the maximal count of characters was scanned
+     * 
+     * @return limitReached
+     */
+    public boolean isLimitReached() {
+        return maxChars > 0 && chars >= maxChars;
+    }
+
+    /**
+     * Return the lower cased hosts found so far
+     * 
+     * @return hosts
+     */
+    public HashSet<String> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Return the registrar domains of the hosts found so far
+     * 
+     * @return domains
+     */
+    public HashSet<String> getDomains() {
+        HashSet<String> domains = new HashSet<String>();
+        for (String host : hosts) {
+            String domain = domainFromHost(host);
+            if (domain != null) {
+                domains.add(domain);
+            }
+        }
+        return domains;
+    }
+
+    private int limit(int length) {
+        if (maxChars > 0 && chars + length > maxChars) {
+            return (int) (maxChars - chars);
+        }
+        return length;
+    }
+
+    private void append(char c) {
+        if (c < 128 && URI_CHARS[c]) {
+            run.append(c);
+            if (c == '.') {
+                runHasDot = true;
+            }
+            if (run.length() >= MAX_RUN_LENGTH) {
+                endRun();
+            }
+        } else if (run.length() > 0) {
+            endRun();
+        }
+    }
+
+    private void endRun() {
+        if (runHasDot) {
+            scanRun(run);
+        }
+        run.setLength(0);
+        runHasDot = false;
+    }
+
+    /**
+     * Find the URI and the email addresses in a run of URI characters. As the
+     * URI extends to the end of the run, only the leftmost one is used.
+     */
+    private void scanRun(CharSequence run) {
+        int length = run.length();
+        for (int p = 0; p < length; p++) {
+            if (p > 0 && isWordChar(run.charAt(p - 1))) {
+                // a URI starts at a word boundary
+                continue;
+            }
+            int authority = uriAuthority(run, p);
+            if (authority >= 0) {
+                addHost(run, authority, authorityEnd(run, authority));
+            }
+            if (authority != NO_URI) {
+                break;
+            }
+        }
+
+        int lower = 0;
+        for (int at = indexOf(run, '@', lower); at >= 0; at = indexOf(run, '@', lower)) {
+            int start = localPartStart(run, at, lower);
+            int end = hostEnd(run, at + 1, length);
+            if (start < at && end > at + 1) {
+                addHost(run, at + 1, end);
+                lower = end;
+            } else {
+                lower = at + 1;
+            }
+        }
+    }
+
+    /**
+     * Return the position of the authority of the URI starting at the given
+     * position, {@link #NO_HOST} if the URI has no authority or
+     * {@link #NO_URI} if no URI starts there
+     */
+    private static int uriAuthority(CharSequence run, int p) {
+        int length = run.length();
+        for (String scheme : SCHEMES) {
+            int q = p + scheme.length();
+            if (q < length && regionMatches(run, p, scheme, false) && run.charAt(q) != ':') {
+                if (q + 1 < length && run.charAt(q) == '/' && run.charAt(q + 1) == '/') {
+                    return q + 2;
+                }
+                if (scheme.equals("mailto:") && q + 1 < length && run.charAt(q) != '/' && run.charAt(q + 1) != '/') {
+                    return q;
+                }
+                return NO_HOST;
+            }
+        }
+
+        if (p > 0 && (run.charAt(p - 1) == '.' || run.charAt(p - 1) == '=')) {
+            return NO_URI;
+        }
+        if (regionMatches(run, p, "ftp.", true)) {
+            return p;
+        }
+        if (regionMatches(run, p, "www", true)) {
+            int q = p + 3;
+            while (q < length && Character.isDigit(run.charAt(q))) {
+                q++;
+            }
+            if (q < length && run.charAt(q) == '.') {
+                return p;
+            }
+        }
+        return NO_URI;
+    }
+
+    /**
+     * Return the end of the authority starting at the given position
+     */
+    private static int authorityEnd(CharSequence run, int start) {
+        int end = start;
+        while (end < run.length()) {
+            char c = run.charAt(end);
+            if (c == '/' || c == '?' || c == '#' || c == '\\') {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private void addHost(CharSequence run, int start, int end) {
+        // skip the user info
+        for (int i = end - 1; i >= start; i--) {
+            if (run.charAt(i) == '@') {
+                start = i + 1;
+                break;
+            }
+        }
+        end = hostEnd(run, start, end);
+        if (end > start && end - start <= MAX_HOST_LENGTH) {
+            String host = run.subSequence(start, end).toString();
+            if (isValidHost(host)) {
+                hosts.add(host.toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Return the end of the host name starting at the given position, this is
+     * the position itself if there is none. Host names are dot separated
+     * labels of letters, digits and hyphens which start and end with a letter
+     * or digit
+     */
+    private static int hostEnd(CharSequence run, int start, int limit) {
+        int end = start;
+        int i = start;
+        while (i < limit && isAlphaNumeric(run.charAt(i))) {
+            int j = i;
+            while (j < limit && (isAlphaNumeric(run.charAt(j)) || run.charAt(j) == '-')) {
+                j++;
+            }
+            end = j;
+            while (run.charAt(end - 1) == '-') {
+                end--;
+            }
+            if (end != j || j + 1 >= limit || run.charAt(j) != '.') {
+                break;
+            }
+            i = j + 1;
+        }
+        return end;
+    }
+
+    /**
+     * Return the start of the local part of the email address whose @ is at
+     * the given position, this is the position itself if there is none. The
+     * local part consists of dot separated words.
+     */
+    private static int localPartStart(CharSequence run, int at, int lower) {
+        int start = at;
+        while (start > lower) {
+            char c = run.charAt(start - 1);
+            if (c < 128 && LOCAL_PART_CHARS[c]) {
+                start--;
+            } else if (c == '.' && start < at && start - 1 > lower && isLocalPartChar(run.charAt(start - 2))) {
+                start--;
+            } else {
+                break;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Return true if the host is a valid host name or IPv4 address
+     */
+    private static boolean isValidHost(String host) {
+        int lastDot = host.lastIndexOf('.');
+        if (lastDot < 0) {
+            return false;
+        }
+        if (!Character.isDigit(host.charAt(lastDot + 1))) {
+            return true;
+        }
+        String[] octets = host.split("\\.");
+        if (octets.length != 4) {
+            return false;
+        }
+        for (String octet : octets) {
+            if (octet.length() > 3) {
+                return false;
+            }
+            for (int i = 0; i < octet.length(); i++) {
+                if (!Character.isDigit(octet.charAt(i))) {
+                    return false;
+                }
+            }
+            if (Integer.parseInt(octet) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlphaNumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isWordChar(char c) {
+        return isAlphaNumeric(c) || c == '_';
+    }
+
+    private static boolean isLocalPartChar(char c) {
+        return c < 128 && LOCAL_PART_CHARS[c];
+    }
+
+    private static boolean regionMatches(CharSequence run, int offset, String s, boolean ignoreCase) {
+        if (offset + s.length() > run.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = run.charAt(offset + i);
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            if (c != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence run, char c, int from) {
+        for (int i = from; i < run.length(); i++) {
+            if (run.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * <p>
      * Scans a character sequence for URIs. Then add all unique domain strings
@@ -208,86 +523,9 @@ public class URIScanner {
      * @return a HashSet containing host strings
      */
     static protected HashSet<String> scanContentForHosts(CharSequence content) {
-        HashSet<String> set = new HashSet<String>();
-
-        // look for URIs
-        Matcher mat = uriPattern.matcher(content);
-        while (mat.find()) {
-            String found = mat.group();
-            Matcher cleanMat = uriCleanup.matcher(found);
-            if (cleanMat.find()) {
-                found = cleanMat.group(1);
-            }
-
-            cleanMat = uriCleanup2.matcher(found);
-            if (cleanMat.find()) {
-                found = cleanMat.replaceAll("");
-            }
-
-            cleanMat = uriCleanup3.matcher(found);
-            if (cleanMat.find()) {
-                found = "mailto://" + cleanMat.group(1) + cleanMat.group(2);
-            }
-
-            cleanMat = schemePattern.matcher(found);
-            if (!cleanMat.find()) {
-                if (found.matches("^(?i)www\\d*\\..*")) {
-                    found = "http://" + found;
-                } else if (found.matches("^(?i)ftp\\..*")) {
-                    found = "ftp://" + found;
-                }
-            }
-
-            String host = hostFromUriStr(found);
-            if (null != host) {
-                host = host.toLowerCase();
-                if (!set.contains(host)) {
-                    set.add(host);
-                }
-            }
-        }
-
-        // look for "schemeless" email addresses, too
-        mat = emailAddrPattern.matcher(content);
-        while (mat.find()) {
-            String found = mat.group();
-            debugOut("******** mailfound=\"" + found + "\"");
-            found = "mailto://" + found;
-            debugOut("*******6 mailfoundfound=\"" + found + "\" after cleanup 6");
-
-            String host = hostFromUriStr(found);
-            if (null != host) {
-
-                host = host.toLowerCase();
-                if (!set.contains(host)) {
-                    set.add(host);
-                }
-            }
-        }
-        return set;
-    }
-
-    /**
-     * Extracts and returns the host portion of URI string.
-     * 
-     * This function uses java.net.URI.
-     * 
-     * @param uriStr
-     *            a string containing a URI
-     * @return the host portion of the supplied URI, null if no host string
-     *         could be found
-     */
-    static protected String hostFromUriStr(String uriStr) {
-        debugOut("hostFromUriStr(\"" + uriStr + "\")");
-        String host = null;
-        URI uri;
-        try {
-            uri = new URI(uriStr);
-            host = uri.getHost();
-        } catch (URISyntaxException e) {
-            debugOut(e.getMessage());
-        }
-        return host;
+        URIScanner scanner = new URIScanner();
+        scanner.scan(content);
+        return scanner.getHosts();
     }
 
     /**
@@ -360,25 +598,4 @@ public class URIScanner {
             System.out.println(msg);
         }
     }
-
-    /**
-     * A utility function that "escapes" special characters in a string.
-     * 
-     * @param str
-     *            a string to be processed
-     * @return modified "escaped" string
-     */
-    private static String escape(String str) {
-        StringBuilder buffer = new StringBuilder();
-        for (int i = 0; i < str.length(); i++) {
-            char ch = str.charAt(i);
-            if (Character.isDigit(ch) || Character.isUpperCase(ch) || Character.isLowerCase(ch) || ch == '_') {
-                buffer.append(ch);
-            } else {
-                buffer.append("\\");
-                buffer.append(ch);
-            }
-        }
-        return buffer.toString();
-    }
 }
@@ -21,7 +21,9 @@ package org.apache.james.smtpserver.fastfail;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -39,6 +41,7 @@ import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.hook.RcptHook;
+import org.apache.james.smtpserver.LookupExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,6 +64,8 @@ public class ValidRcptMX implements InitializingLifecycleAwareProtocolHandler, R
 
     private DNSService dnsService = null;
 
+    private LookupExecutor lookupExecutor = new LookupExecutor();
+
     private static final String LOCALHOST = "localhost";
 
     private NetMatcher bNetwork = null;
@@ -94,6 +99,17 @@ public class ValidRcptMX implements InitializingLifecycleAwareProtocolHandler, R
         this.dnsService = dnsService;
     }
 
+    /**
+     * Set the {@link LookupExecutor} which runs the lookups. Without one they
+     * are executed by the calling thread
+     * 
+     * @param lookupExecutor
+     */
+    @Inject
+    public final void setLookupExecutor(@Named("lookupexecutor") LookupExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
 
     /**
      * Set the banned networks
@@ -116,28 +132,45 @@ public class ValidRcptMX implements InitializingLifecycleAwareProtocolHandler, R
         // Email should be deliver local
         if (!domain.equals(LOCALHOST)) {
 
-            Iterator<String> mx;
+            Collection<String> mx;
             try {
-                mx = dnsService.findMXRecords(domain).iterator();
+                mx = dnsService.findMXRecords(domain);
             } catch (TemporaryResolutionException e1) {
                 return new HookResult(HookReturnCode.DENYSOFT);
             }
 
-            if (mx != null && mx.hasNext()) {
-                while (mx.hasNext()) {
-                    String mxRec = mx.next();
+            if (mx != null && !mx.isEmpty()) {
+                // Resolve all MX hosts at the same time
+                List<Future<String>> addresses = new ArrayList<Future<String>>(mx.size());
+                for (final String mxRec : mx) {
+                    addresses.add(lookupExecutor.submit(new Callable<String>() {
+                        public String call() {
+                            try {
+                                return dnsService.getByName(mxRec).getHostAddress();
+                            } catch (UnknownHostException e) {
+                                // Ignore this
+                                return null;
+                            }
+                        }
+                    }));
+                }
 
-                    try {
-                        String ip = dnsService.getByName(mxRec).getHostAddress();
+                HookResult result = null;
+                for (Future<String> address : addresses) {
+                    if (result != null) {
+                        address.cancel(false);
+                        continue;
+                    }
+                    String ip = LookupExecutor.get(address);
 
-                        // Check for invalid MX
-                        if (bNetwork.matchInetNetwork(ip)) {
-                            return new HookResult(HookReturnCode.DENY, SMTPRetCode.AUTH_REQUIRED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_AUTH) + " Invalid MX " + session.getRemoteAddress().getAddress().toString() + " for domain " + domain + ". Reject email");
-                        }
-                    } catch (UnknownHostException e) {
-                        // Ignore this
+                    // Check for invalid MX
+                    if (ip != null && bNetwork.matchInetNetwork(ip)) {
+                        result = new HookResult(HookReturnCode.DENY, SMTPRetCode.AUTH_REQUIRED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_AUTH) + " Invalid MX " + session.getRemoteAddress().getAddress().toString() + " for domain " + domain + ". Reject email");
                     }
                 }
+                if (result != null) {
+                    return result;
+                }
             }
         }
         return new HookResult(HookReturnCode.DECLINED);
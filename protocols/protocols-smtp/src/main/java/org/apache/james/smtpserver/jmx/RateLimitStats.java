@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.smtpserver.fastfail.RateLimiter;
+
+/**
+ * JMX Bean which keep track of the events throttled by the
+ * {@link org.apache.james.smtpserver.fastfail.RateLimitHandler}
+ */
+public class RateLimitStats extends StandardMBean implements RateLimitStatsMBean, Disposable {
+
+    private final AtomicLong connections = new AtomicLong(0);
+    private final AtomicLong messages = new AtomicLong(0);
+    private final AtomicLong recipients = new AtomicLong(0);
+
+    private final RateLimiter[] limiters;
+    private final String name;
+    private final MBeanServer mbeanserver;
+
+    public RateLimitStats(String jmxName, RateLimiter... limiters) throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException, MalformedObjectNameException, NullPointerException {
+        super(RateLimitStatsMBean.class);
+        this.limiters = limiters;
+        name = "org.apache.james:type=server,name=" + jmxName + ",chain=handlerchain,handler=ratelimit";
+        mbeanserver = ManagementFactory.getPlatformMBeanServer();
+        mbeanserver.registerMBean(this, new ObjectName(name));
+    }
+
+    public void incrementConnections() {
+        connections.incrementAndGet();
+    }
+
+    public void incrementMessages() {
+        messages.incrementAndGet();
+    }
+
+    public void incrementRecipients() {
+        recipients.incrementAndGet();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.RateLimitStatsMBean#getThrottledConnections()
+     */
+    public long getThrottledConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.RateLimitStatsMBean#getThrottledMessages()
+     */
+    public long getThrottledMessages() {
+        return messages.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.RateLimitStatsMBean#getThrottledRecipients()
+     */
+    public long getThrottledRecipients() {
+        return recipients.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.RateLimitStatsMBean#getTrackedKeys()
+     */
+    public int getTrackedKeys() {
+        int size = 0;
+        for (RateLimiter limiter : limiters) {
+            size += limiter.size();
+        }
+        return size;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.jmx.RateLimitStatsMBean#getEvictions()
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (RateLimiter limiter : limiters) {
+            evictions += limiter.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        try {
+            mbeanserver.unregisterMBean(new ObjectName(name));
+        } catch (Exception e) {
+            // ignore here;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.jmx;
+
+/**
+ * JMX Bean which shows the statistics of the
+ * {@link org.apache.james.smtpserver.fastfail.RateLimitHandler}
+ */
+public interface RateLimitStatsMBean {
+
+    /**
+     * Return the count of connections which were refused
+     * 
+     * @return throttledConnections
+     */
+    long getThrottledConnections();
+
+    /**
+     * Return the count of MAIL commands which were temporary rejected
+     * 
+     * @return throttledMessages
+     */
+    long getThrottledMessages();
+
+    /**
+     * Return the count of RCPT commands which were temporary rejected
+     * 
+     * @return throttledRecipients
+     */
+    long getThrottledRecipients();
+
+    /**
+     * Return the count of ip addresses and users which are tracked at the
+     * moment
+     * 
+     * @return trackedKeys
+     */
+    int getTrackedKeys();
+
+    /**
+     * Return the count of keys which were evicted because too many were
+     * tracked
+     * 
+     * @return evictions
+     */
+    long getEvictions();
+}
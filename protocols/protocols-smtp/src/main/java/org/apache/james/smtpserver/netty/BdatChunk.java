@@ -0,0 +1,50 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.EstimatableObjectWrapper;
+
+/**
+ * A part of a BDAT chunk which is passed around the framer
+ */
+public final class BdatChunk implements EstimatableObjectWrapper {
+
+    private final ChannelBuffer content;
+
+    public BdatChunk(ChannelBuffer content) {
+        this.content = content;
+    }
+
+    /**
+     * Return the bytes of the chunk
+     * 
+     * @return content
+     */
+    public ChannelBuffer getContent() {
+        return content;
+    }
+
+    /**
+     * @see org.jboss.netty.util.EstimatableObjectWrapper#unwrap()
+     */
+    public Object unwrap() {
+        return content;
+    }
+}
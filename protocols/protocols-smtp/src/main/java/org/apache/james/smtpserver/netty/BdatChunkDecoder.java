@@ -0,0 +1,163 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.netty;
+
+import java.nio.charset.Charset;
+
+import org.apache.james.smtpserver.BdatCmdHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Cuts the chunks of BDAT commands (RFC 3030) out of the received bytes before
+ * they reach the framer, so they get passed to the BDAT handler as
+ * {@link BdatChunk}'s without splitting them into lines. Everything else is
+ * passed on unchanged.
+ * <p>
+ * To know whether a line is a command the decoder follows the DATA commands:
+ * the lines after a DATA command or a 354 reply belong to the message until the
+ * terminating dot, and a 4xx or 5xx reply means the DATA command failed.
+ * </p>
+ * <p>
+ * This handler holds the state of the connection, so every channel needs its
+ * own instance.
+ * </p>
+ */
+public class BdatChunkDecoder extends SimpleChannelHandler {
+
+    /**
+     * BDAT command lines are short, longer lines are never checked
+     */
+    private final static int MAX_COMMAND_LENGTH = 64;
+
+    private final static Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final static byte CR = '\r';
+
+    private final static byte LF = '\n';
+
+    private final byte[] line = new byte[MAX_COMMAND_LENGTH];
+
+    private int lineLength;
+
+    private long chunkRemaining;
+
+    private volatile boolean dataMode;
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+        int index = buffer.readerIndex();
+        int limit = buffer.writerIndex();
+        int forwardFrom = index;
+        while (index < limit) {
+            if (chunkRemaining > 0) {
+                int length = (int) Math.min(chunkRemaining, limit - index);
+                chunkRemaining -= length;
+                Channels.fireMessageReceived(ctx, new BdatChunk(buffer.slice(index, length)), e.getRemoteAddress());
+                index += length;
+                forwardFrom = index;
+            } else {
+                int eol = buffer.indexOf(index, limit, LF);
+                int end = eol == -1 ? limit : eol + 1;
+                appendToLine(buffer, index, end - index);
+                index = end;
+                if (eol != -1) {
+                    long size = lineComplete();
+                    if (size > 0) {
+                        // pass the command on before its chunk
+                        Channels.fireMessageReceived(ctx, buffer.slice(forwardFrom, index - forwardFrom), e.getRemoteAddress());
+                        forwardFrom = index;
+                        chunkRemaining = size;
+                    }
+                }
+            }
+        }
+        if (forwardFrom == buffer.readerIndex()) {
+            ctx.sendUpstream(e);
+        } else if (forwardFrom < limit) {
+            Channels.fireMessageReceived(ctx, buffer.slice(forwardFrom, limit - forwardFrom), e.getRemoteAddress());
+        }
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+            int index = buffer.readerIndex();
+            if (buffer.readableBytes() >= 3) {
+                byte code = buffer.getByte(index);
+                if (code == '3' && buffer.getByte(index + 1) == '5' && buffer.getByte(index + 2) == '4') {
+                    dataMode = true;
+                } else if (code == '4' || code == '5') {
+                    dataMode = false;
+                }
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * Remember the start of the current line
+     */
+    private void appendToLine(ChannelBuffer buffer, int index, int length) {
+        if (lineLength < MAX_COMMAND_LENGTH) {
+            buffer.getBytes(index, line, lineLength, Math.min(length, MAX_COMMAND_LENGTH - lineLength));
+        }
+        lineLength = Math.min(lineLength + length, MAX_COMMAND_LENGTH + 1);
+    }
+
+    /**
+     * Check the line which was just completed
+     * 
+     * @return the size of the chunk which follows the line, or 0 if it is not
+     *         a BDAT command
+     */
+    private long lineComplete() {
+        int length = lineLength;
+        lineLength = 0;
+        if (length > MAX_COMMAND_LENGTH) {
+            return 0;
+        }
+        // strip the line delimiter
+        while (length > 0 && (line[length - 1] == LF || line[length - 1] == CR)) {
+            length--;
+        }
+        if (dataMode) {
+            if (length == 1 && line[0] == '.') {
+                dataMode = false;
+            }
+            return 0;
+        }
+        String command = new String(line, 0, length, US_ASCII);
+        if (command.trim().equalsIgnoreCase("DATA")) {
+            dataMode = true;
+        } else if (command.length() > 5 && command.regionMatches(true, 0, "BDAT ", 0, 5)) {
+            return Math.max(BdatCmdHandler.parseChunkSize(command.substring(5)), 0);
+        }
+        return 0;
+    }
+}
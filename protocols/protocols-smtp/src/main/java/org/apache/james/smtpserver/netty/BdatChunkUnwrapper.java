@@ -0,0 +1,51 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Turns the {@link BdatChunk}'s which passed the framer back into
+ * {@link ChannelBuffer}'s, so they can be handled by the line handler of the
+ * BDAT command
+ */
+@Sharable
+public class BdatChunkUnwrapper extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        if (message instanceof BdatChunk) {
+            ChannelBuffer content = ((BdatChunk) message).getContent();
+            // Line handlers may read the whole backing array of the buffer,
+            // so only buffers which span it are passed on as they are
+            if (!content.hasArray() || content.arrayOffset() + content.readerIndex() != 0 || content.readableBytes() != content.array().length) {
+                content = content.copy();
+            }
+            Channels.fireMessageReceived(ctx, content, e.getRemoteAddress());
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+}
@@ -57,6 +57,7 @@ public class SMTPChannelUpstreamHandler extends BasicChannelUpstreamHandler {
         if (smtpSession != null) {
             LifecycleUtil.dispose(smtpSession.getAttachment(SMTPConstants.MAIL, State.Transaction));
             LifecycleUtil.dispose(smtpSession.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction));
+            LifecycleUtil.dispose(smtpSession.getAttachment(SMTPConstants.BDAT_SPOOL, State.Connection));
         }
 
         super.cleanup(ctx);
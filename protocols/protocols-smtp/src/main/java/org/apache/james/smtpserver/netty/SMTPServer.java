@@ -29,12 +29,17 @@ import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
 import org.apache.james.protocols.lib.handler.HandlersPackage;
 import org.apache.james.protocols.lib.netty.AbstractProtocolAsyncServer;
+import org.apache.james.protocols.netty.HandlerConstants;
 import org.apache.james.protocols.smtp.SMTPConfiguration;
 import org.apache.james.protocols.smtp.SMTPProtocol;
 import org.apache.james.smtpserver.CoreCmdHandlerLoader;
 import org.apache.james.smtpserver.ExtendedSMTPSession;
 import org.apache.james.smtpserver.jmx.JMXHandlersLoader;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.util.ExternalResourceReleasable;
 
 /**
  * NIO SMTPServer which use Netty
@@ -80,6 +85,17 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
 
     private boolean verifyIdentity;
 
+    /**
+     * Whether the CHUNKING extension (BDAT) is offered
+     */
+    private boolean chunking = false;
+
+    private final static String CHUNK_DECODER = "bdatChunkDecoder";
+
+    private final static String CHUNK_UNWRAPPER = "bdatChunkUnwrapper";
+
+    private final ChannelUpstreamHandler chunkUnwrapper = new BdatChunkUnwrapper();
+
     private DNSService dns;
     private String authorizedAddresses;
     
@@ -174,6 +190,11 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
 
             verifyIdentity = configuration.getBoolean("verifyIdentity", true);
 
+            chunking = configuration.getBoolean("chunking", false);
+            if (chunking) {
+                getLogger().info("This SMTP server offers CHUNKING and BINARYMIME.");
+            }
+
         }
     }
 
@@ -267,6 +288,15 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
             return SMTPServer.this.verifyIdentity;
         }
 
+        /**
+         * Return true if the BDAT command of the CHUNKING extension can be used
+         * 
+         * @return chunking
+         */
+        public boolean isChunkingEnabled() {
+            return SMTPServer.this.chunking;
+        }
+
         @Override
         public String getGreeting() {
             return SMTPServer.this.smtpGreeting;
@@ -344,6 +374,15 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
         return coreHandler;
     }
 
+    @Override
+    protected ChannelPipelineFactory createPipelineFactory(ChannelGroup group) {
+        ChannelPipelineFactory factory = super.createPipelineFactory(group);
+        if (chunking) {
+            return new ChunkingChannelPipelineFactory(factory);
+        }
+        return factory;
+    }
+
     @Override
     protected Class<? extends HandlersPackage> getCoreHandlersPackage() {
         return CoreCmdHandlerLoader.class;
@@ -354,4 +393,30 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
         return JMXHandlersLoader.class;
     }
 
+    /**
+     * Adds the handlers which pass BDAT chunks around the framer to the
+     * pipelines of another {@link ChannelPipelineFactory}
+     */
+    private final class ChunkingChannelPipelineFactory implements ChannelPipelineFactory, ExternalResourceReleasable {
+
+        private final ChannelPipelineFactory factory;
+
+        public ChunkingChannelPipelineFactory(ChannelPipelineFactory factory) {
+            this.factory = factory;
+        }
+
+        public ChannelPipeline getPipeline() throws Exception {
+            ChannelPipeline pipeline = factory.getPipeline();
+            pipeline.addBefore(HandlerConstants.FRAMER, CHUNK_DECODER, new BdatChunkDecoder());
+            pipeline.addBefore(HandlerConstants.CORE_HANDLER, CHUNK_UNWRAPPER, chunkUnwrapper);
+            return pipeline;
+        }
+
+        public void releaseExternalResources() {
+            if (factory instanceof ExternalResourceReleasable) {
+                ((ExternalResourceReleasable) factory).releaseExternalResources();
+            }
+        }
+    }
+
 }
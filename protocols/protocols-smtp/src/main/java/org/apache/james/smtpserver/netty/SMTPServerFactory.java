@@ -69,6 +69,7 @@ public class SMTPServerFactory extends AbstractServerFactory {
             server.setDnsService(dns);
             server.setProtocolHandlerLoader(loader);
             server.setLog(log);
+            server.setServerRuntime(getServerRuntime());
             server.setFileSystem(fileSystem);
             server.configure(serverConfig);
             servers.add(server);
@@ -0,0 +1,139 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.apache.james.smtpserver.fastfail.DNSRBLHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DNSRBLHandlerTest {
+
+    private static final String[] BLACKLIST = { "bl1.example.org.", "bl2.example.org.", "bl3.example.org." };
+
+    /** Only lets the lookups of the client complete if they all run at the same time */
+    private final CyclicBarrier concurrentLookups = new CyclicBarrier(BLACKLIST.length);
+
+    private LookupExecutor lookupExecutor;
+
+    @Before
+    public void setUp() {
+        lookupExecutor = new LookupExecutor();
+        lookupExecutor.init();
+    }
+
+    @After
+    public void tearDown() {
+        lookupExecutor.destroy();
+    }
+
+    private SMTPSession setupMockedSMTPSession(final String ip) {
+        return new BaseFakeSMTPSession() {
+
+            private final HashMap<String, Object> sstate = new HashMap<String, Object>();
+            private final HashMap<String, Object> connectionState = new HashMap<String, Object>();
+
+            @Override
+            public Object setAttachment(String key, Object value, State state) {
+                HashMap<String, Object> map = state == State.Connection ? connectionState : sstate;
+                if (value == null) {
+                    return map.remove(key);
+                }
+                return map.put(key, value);
+            }
+
+            @Override
+            public Object getAttachment(String key, State state) {
+                return state == State.Connection ? connectionState.get(key) : sstate.get(key);
+            }
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return new InetSocketAddress(ip, 10000);
+            }
+
+            @Override
+            public boolean isRelayingAllowed() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The client 127.0.0.2 is only listed by the last server of the blacklist
+     */
+    private DNSService setupMockedDNSServer() {
+        return new MockDNSService() {
+
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                if (host.startsWith("2.0.0.127.")) {
+                    try {
+                        concurrentLookups.await(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new UnknownHostException("The lookups were not executed concurrently");
+                    }
+                    if (host.endsWith(BLACKLIST[BLACKLIST.length - 1])) {
+                        return InetAddress.getByName("127.0.0.2");
+                    }
+                }
+                throw new UnknownHostException(host);
+            }
+        };
+    }
+
+    private DNSRBLHandler createHandler() {
+        DNSRBLHandler handler = new DNSRBLHandler();
+        handler.setDNSService(setupMockedDNSServer());
+        handler.setLookupExecutor(lookupExecutor);
+        handler.setBlacklist(BLACKLIST);
+        return handler;
+    }
+
+    @Test
+    public void testBlacklistedLookupsRunConcurrently() throws Exception {
+        DNSRBLHandler handler = createHandler();
+        SMTPSession session = setupMockedSMTPSession("127.0.0.2");
+
+        assertEquals(HookReturnCode.DENY, handler.doRcpt(session, null, new MailAddress("test@localhost")).getResult());
+    }
+
+    @Test
+    public void testNotListed() throws Exception {
+        DNSRBLHandler handler = createHandler();
+        SMTPSession session = setupMockedSMTPSession("127.0.0.3");
+
+        assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, null, new MailAddress("test@localhost")).getResult());
+    }
+}
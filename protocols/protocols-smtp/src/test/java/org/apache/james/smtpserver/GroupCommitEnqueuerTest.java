@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.mailet.Mail;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class GroupCommitEnqueuerTest {
+
+    /**
+     * Records the commits and takes some time for each of them
+     */
+    private static class SlowBatchMailQueue implements BatchMailQueue {
+        private final List<String> enqueued = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger commits = new AtomicInteger();
+        private volatile String broken;
+
+        public void enQueue(Collection<Mail> mails) throws MailQueueException {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new MailQueueException("Interrupted", e);
+            }
+            for (Mail mail : mails) {
+                if (mail.getName().equals(broken)) {
+                    throw new MailQueueException("Broken mail");
+                }
+            }
+            commits.incrementAndGet();
+            for (Mail mail : mails) {
+                enqueued.add(mail.getName());
+            }
+        }
+
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            enQueue(Collections.singletonList(mail));
+        }
+
+        public void enQueue(Mail mail) throws MailQueueException {
+            enQueue(Collections.singletonList(mail));
+        }
+
+        public MailQueueItem deQueue() throws MailQueueException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final SlowBatchMailQueue queue = new SlowBatchMailQueue();
+
+    private final GroupCommitEnqueuer enqueuer = new GroupCommitEnqueuer(queue, 64, LoggerFactory.getLogger(GroupCommitEnqueuerTest.class));
+
+    @After
+    public void tearDown() {
+        enqueuer.stop();
+    }
+
+    private List<Throwable> enqueueConcurrently(int count) throws InterruptedException {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final Mail mail = new MailImpl("mail" + i, null, new ArrayList<Object>());
+            new Thread() {
+                public void run() {
+                    try {
+                        enqueuer.enQueue(mail);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue("all sessions got their reply", done.await(10, TimeUnit.SECONDS));
+        return errors;
+    }
+
+    @Test
+    public void testConcurrentMailsShareCommits() throws Exception {
+        enqueuer.start();
+        List<Throwable> errors = enqueueConcurrently(20);
+
+        assertEquals(0, errors.size());
+        assertEquals(20, queue.enqueued.size());
+        assertTrue("mails were committed together", queue.commits.get() < 20);
+    }
+
+    @Test
+    public void testBrokenMailDoesNotFailOthers() throws Exception {
+        queue.broken = "mail3";
+        enqueuer.start();
+        List<Throwable> errors = enqueueConcurrently(10);
+
+        assertEquals(1, errors.size());
+        assertEquals(9, queue.enqueued.size());
+        assertTrue(!queue.enqueued.contains("mail3"));
+    }
+
+    @Test
+    public void testStoppedEnqueuerRejectsMails() throws Exception {
+        enqueuer.start();
+        enqueuer.stop();
+        try {
+            enqueuer.enQueue(new MailImpl("mail", null, new ArrayList<Object>()));
+            fail("mail must be rejected");
+        } catch (BatchMailQueue.MailQueueException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.filesystem.api.mock.MockFileSystem;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.apache.james.smtpserver.fastfail.InMemoryGreylistHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class InMemoryGreylistHandlerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryGreylistHandlerTest.class);
+
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshot = File.createTempFile("greylist", ".dat");
+        snapshot.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        snapshot.delete();
+        new File(snapshot.getPath() + ".tmp").delete();
+    }
+
+    private SMTPSession setupMockedSMTPSession(final String ip) {
+        return new BaseFakeSMTPSession() {
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return new InetSocketAddress(ip, 10000);
+            }
+
+            @Override
+            public boolean isRelayingAllowed() {
+                return false;
+            }
+
+            @Override
+            public Logger getLogger() {
+                return LOG;
+            }
+        };
+    }
+
+    private Configuration createConfiguration(String tempBlockTime) {
+        BaseConfiguration config = new BaseConfiguration();
+        config.addProperty("tempBlockTime", tempBlockTime);
+        config.addProperty("autoWhiteListLifeTime", "36 days");
+        config.addProperty("unseenLifeTime", "4 hours");
+        config.addProperty("whitelistedNetworks", "192.168.0.0/16");
+        config.addProperty("snapshotFile", "file://" + snapshot.getAbsolutePath());
+        return config;
+    }
+
+    private InMemoryGreylistHandler createHandler(Configuration config) throws Exception {
+        InMemoryGreylistHandler handler = new InMemoryGreylistHandler();
+        handler.setDNSService(new MockDNSService() {
+
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                return InetAddress.getByName(host);
+            }
+        });
+        handler.setFileSystem(new MockFileSystem());
+        handler.init(config);
+        return handler;
+    }
+
+    /**
+     * Let the given triplet pass the greylist, the handler must use a short
+     * tempBlockTime
+     */
+    private void accept(InMemoryGreylistHandler handler, SMTPSession session, MailAddress sender, MailAddress rcpt) throws Exception {
+        assertEquals(HookReturnCode.DENYSOFT, handler.doRcpt(session, sender, rcpt).getResult());
+        Thread.sleep(20);
+        assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, sender, rcpt).getResult());
+    }
+
+    @Test
+    public void testNewTripletIsRejectedTemporarily() throws Exception {
+        InMemoryGreylistHandler handler = createHandler(createConfiguration("1 hour"));
+        try {
+            SMTPSession session = setupMockedSMTPSession("10.0.0.1");
+            MailAddress sender = new MailAddress("sender@example.org");
+            MailAddress rcpt = new MailAddress("rcpt@localhost");
+
+            assertEquals(HookReturnCode.DENYSOFT, handler.doRcpt(session, sender, rcpt).getResult());
+            // too fast
+            assertEquals(HookReturnCode.DENYSOFT, handler.doRcpt(session, sender, rcpt).getResult());
+            assertEquals(1, handler.getTripletCount());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testTripletIsAcceptedAfterTempBlockTime() throws Exception {
+        InMemoryGreylistHandler handler = createHandler(createConfiguration("1 msec"));
+        try {
+            SMTPSession session = setupMockedSMTPSession("10.0.0.1");
+            MailAddress sender = new MailAddress("sender@example.org");
+            MailAddress rcpt = new MailAddress("rcpt@localhost");
+
+            accept(handler, session, sender, rcpt);
+            assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, sender, rcpt).getResult());
+
+            // another recipient is a new triplet
+            assertEquals(HookReturnCode.DENYSOFT, handler.doRcpt(session, sender, new MailAddress("other@localhost")).getResult());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testWhitelistedNetworkIsNotGreylisted() throws Exception {
+        InMemoryGreylistHandler handler = createHandler(createConfiguration("1 hour"));
+        try {
+            SMTPSession session = setupMockedSMTPSession("192.168.1.1");
+
+            assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, new MailAddress("sender@example.org"), new MailAddress("rcpt@localhost")).getResult());
+            assertEquals(0, handler.getTripletCount());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testFullGreylistDropsTheUnseenTripletsFirst() throws Exception {
+        Configuration config = createConfiguration("1 msec");
+        config.addProperty("maxTriplets", "10");
+        InMemoryGreylistHandler handler = createHandler(config);
+        try {
+            SMTPSession session = setupMockedSMTPSession("10.0.0.1");
+            MailAddress sender = new MailAddress("sender@example.org");
+            MailAddress rcpt = new MailAddress("rcpt@localhost");
+            accept(handler, session, sender, rcpt);
+
+            for (int i = 0; i < 25; i++) {
+                handler.doRcpt(session, sender, new MailAddress("rcpt" + i + "@localhost"));
+                assertTrue(handler.getTripletCount() <= 10);
+            }
+
+            // the accepted triplet was kept
+            assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, sender, rcpt).getResult());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsSavedAndLoaded() throws Exception {
+        SMTPSession session = setupMockedSMTPSession("10.0.0.1");
+        MailAddress sender = new MailAddress("sender@example.org");
+        MailAddress rcpt = new MailAddress("rcpt@localhost");
+
+        InMemoryGreylistHandler handler = createHandler(createConfiguration("1 msec"));
+        accept(handler, session, sender, rcpt);
+        handler.doRcpt(session, sender, new MailAddress("other@localhost"));
+        handler.destroy();
+        assertTrue(snapshot.exists());
+
+        handler = createHandler(createConfiguration("1 hour"));
+        try {
+            assertEquals(2, handler.getTripletCount());
+            // the triplet passed the greylist before the restart
+            assertEquals(HookReturnCode.DECLINED, handler.doRcpt(session, sender, rcpt).getResult());
+            // the one which did not pass is still too fast
+            assertEquals(HookReturnCode.DENYSOFT, handler.doRcpt(session, sender, new MailAddress("other@localhost")).getResult());
+        } finally {
+            handler.destroy();
+        }
+    }
+}
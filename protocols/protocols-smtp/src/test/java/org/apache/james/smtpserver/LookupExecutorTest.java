@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LookupExecutorTest {
+
+    private LookupExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new LookupExecutor();
+        executor.setMaxThreads(8);
+        executor.init();
+    }
+
+    @After
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testLookupsRunConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    // only returns if all lookups run at the same time
+                    barrier.await(10, TimeUnit.SECONDS);
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(LookupExecutor.get(result));
+        }
+    }
+
+    @Test
+    public void testTasksOfOneKeyRunInOrder() throws Exception {
+        final int keys = 4;
+        final int tasks = 200;
+        final List<List<Integer>> executed = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            executed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(keys * tasks);
+        for (int i = 0; i < tasks; i++) {
+            for (int k = 0; k < keys; k++) {
+                final List<Integer> list = executed.get(k);
+                final int task = i;
+                executor.execute("triplet" + k, new Runnable() {
+                    public void run() {
+                        list.add(task);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> list : executed) {
+            assertEquals(tasks, list.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(Integer.valueOf(i), list.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testTasksOfDifferentKeysRunConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        for (String key : new String[] { "triplet1", "triplet2" }) {
+            executor.execute(key, new Runnable() {
+                public void run() {
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                        done.countDown();
+                    } catch (Exception e) {
+                        // the latch is not counted down
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallerRunsWithoutPool() throws Exception {
+        executor.destroy();
+        final Thread caller = Thread.currentThread();
+        final List<Thread> threads = new ArrayList<Thread>();
+        executor.execute(new Runnable() {
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+        executor.execute("triplet", new Runnable() {
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+        threads.add(LookupExecutor.get(executor.submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        })));
+        assertEquals(3, threads.size());
+        for (Thread thread : threads) {
+            assertSame(caller, thread);
+        }
+    }
+}
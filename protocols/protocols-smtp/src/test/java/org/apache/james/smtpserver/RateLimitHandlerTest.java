@@ -0,0 +1,67 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.smtpserver.fastfail.RateLimitHandler;
+import org.junit.Test;
+
+public class RateLimitHandlerTest {
+
+    private static DefaultConfigurationBuilder createConfig(String jmxName) {
+        DefaultConfigurationBuilder config = new DefaultConfigurationBuilder();
+        config.addProperty("limit.connectionsPerSecond", 5);
+        config.addProperty("jmxName", jmxName);
+        return config;
+    }
+
+    private static ObjectName getStatsName(String jmxName) throws Exception {
+        return new ObjectName("org.apache.james:type=server,name=" + jmxName + ",chain=handlerchain,handler=ratelimit");
+    }
+
+    @Test
+    public void testStatsOfSeveralServers() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        RateLimitHandler smtp = new RateLimitHandler();
+        RateLimitHandler submission = new RateLimitHandler();
+        smtp.init(createConfig("smtpserver"));
+        try {
+            submission.init(createConfig("submissionserver"));
+            try {
+                assertTrue(mbeanServer.isRegistered(getStatsName("smtpserver")));
+                assertTrue(mbeanServer.isRegistered(getStatsName("submissionserver")));
+            } finally {
+                submission.destroy();
+            }
+            assertFalse(mbeanServer.isRegistered(getStatsName("submissionserver")));
+            assertTrue(mbeanServer.isRegistered(getStatsName("smtpserver")));
+        } finally {
+            smtp.destroy();
+        }
+        assertFalse(mbeanServer.isRegistered(getStatsName("smtpserver")));
+    }
+}
@@ -0,0 +1,110 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.james.smtpserver.fastfail.RateLimiter;
+import org.apache.james.smtpserver.fastfail.RateLimiter.Rate;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private final static Rate RATE = new Rate(3, 3000);
+
+    private final static class FakeTimeRateLimiter extends RateLimiter {
+        private long now;
+
+        public FakeTimeRateLimiter(int maxEntries) {
+            super(maxEntries);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testBurst() {
+        FakeTimeRateLimiter limiter = new FakeTimeRateLimiter(10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("127.0.0.1", RATE));
+        }
+        assertFalse(limiter.tryAcquire("127.0.0.1", RATE));
+
+        // other keys have their own bucket
+        assertTrue(limiter.tryAcquire("127.0.0.2", RATE));
+    }
+
+    @Test
+    public void testRefill() {
+        FakeTimeRateLimiter limiter = new FakeTimeRateLimiter(10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("127.0.0.1", RATE));
+        }
+        assertFalse(limiter.tryAcquire("127.0.0.1", RATE));
+
+        // one token per second
+        limiter.now = 1000;
+        assertTrue(limiter.tryAcquire("127.0.0.1", RATE));
+        assertFalse(limiter.tryAcquire("127.0.0.1", RATE));
+
+        limiter.now = 10000;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("127.0.0.1", RATE));
+        }
+        assertFalse(limiter.tryAcquire("127.0.0.1", RATE));
+    }
+
+    @Test
+    public void testIdleKeysAreDropped() {
+        FakeTimeRateLimiter limiter = new FakeTimeRateLimiter(10);
+        limiter.tryAcquire("127.0.0.1", RATE);
+        limiter.tryAcquire("127.0.0.2", RATE);
+        assertEquals(2, limiter.size());
+
+        limiter.now = 120000;
+        limiter.tryAcquire("127.0.0.3", RATE);
+        assertEquals(1, limiter.size());
+        assertEquals(0, limiter.getEvictions());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        FakeTimeRateLimiter limiter = new FakeTimeRateLimiter(10);
+        for (int i = 0; i < 10; i++) {
+            limiter.now = i;
+            limiter.tryAcquire("127.0.0." + i, RATE);
+        }
+        assertEquals(10, limiter.size());
+
+        limiter.now = 10;
+        limiter.tryAcquire("127.0.0.10", RATE);
+        assertTrue(limiter.size() <= 10);
+        assertTrue(limiter.getEvictions() > 0);
+
+        // the most recently used key is still throttled
+        limiter.tryAcquire("127.0.0.9", RATE);
+        limiter.tryAcquire("127.0.0.9", RATE);
+        assertFalse(limiter.tryAcquire("127.0.0.9", RATE));
+    }
+}
@@ -63,6 +63,7 @@ import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -159,6 +160,7 @@ public class SMTPServerTest {
     protected SMTPTestConfiguration smtpConfiguration;
     protected final MockUsersRepository usersRepository = new MockUsersRepository();
     protected AlterableDNSServer dnsServer;
+    protected LookupExecutor lookupExecutor;
     protected MockMailRepositoryStore store;
     protected MockFileSystem fileSystem;
     protected DNSService dnsService;
@@ -217,6 +219,10 @@ public class SMTPServerTest {
     
         dnsServer = new AlterableDNSServer();
         chain.put("dnsservice", dnsServer);
+
+        lookupExecutor = new LookupExecutor();
+        lookupExecutor.init();
+        chain.put("lookupexecutor", lookupExecutor);
     
         store = new MockMailRepositoryStore();
         chain.put("mailStore", store);
@@ -370,6 +376,7 @@ public class SMTPServerTest {
     public void tearDown() throws Exception {
         queue.clear();
         smtpServer.destroy();
+        lookupExecutor.destroy();
     }
 
     public void verifyLastMail(String sender, String recipient, MimeMessage msg) throws IOException, MessagingException {
@@ -1500,4 +1507,211 @@ public class SMTPServerTest {
         out.close();
         client.close();
     }
+
+    @Test
+    public void testChunkingInEHLO() throws Exception {
+        smtpConfiguration.setChunking();
+        init(smtpConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", smtpListenerPort);
+
+        smtpProtocol.sendCommand("EHLO " + InetAddress.getLocalHost());
+        String[] capabilityRes = smtpProtocol.getReplyStrings();
+
+        List<String> capabilitieslist = new ArrayList<String>();
+        for (int i = 1; i < capabilityRes.length; i++) {
+            capabilitieslist.add(capabilityRes[i].substring(4));
+        }
+
+        assertTrue("capabilities present CHUNKING", capabilitieslist.contains("CHUNKING"));
+        assertTrue("capabilities present BINARYMIME", capabilitieslist.contains("BINARYMIME"));
+
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+    }
+
+    // See http://www.ietf.org/rfc/rfc3030.txt 4.2: Examples
+    @Test
+    public void testBdat() throws Exception {
+        smtpConfiguration.setChunking();
+        init(smtpConfiguration);
+        Socket client = new Socket("127.0.0.1", smtpListenerPort);
+
+        // the chunks contain line breaks and lines with a single dot which
+        // must be kept as they are
+        String chunk1 = "Subject: test\r\n\r\nfirst\r\n.\r\n";
+        String chunk2 = "..second\r\nBDAT 5\r\n";
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("EHLO TEST\r\n");
+        buf.append("MAIL FROM: <test@localhost> BODY=BINARYMIME\r\n");
+        buf.append("RCPT TO: <test2@localhost>\r\n");
+        buf.append("BDAT ").append(chunk1.length()).append("\r\n");
+        buf.append(chunk1);
+        buf.append("BDAT ").append(chunk2.length()).append(" LAST\r\n");
+        buf.append(chunk2);
+        buf.append("QUIT\r\n");
+
+        OutputStream out = client.getOutputStream();
+        out.write(buf.toString().getBytes());
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        skipEhloResponse(in);
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("First chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("QUIT accepted", 221, Integer.parseInt(in.readLine().split(" ")[0]));
+        in.close();
+        out.close();
+        client.close();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(content);
+        assertTrue("chunks are spooled unchanged", content.toString().endsWith("first\r\n.\r\n..second\r\nBDAT 5\r\n"));
+        assertNotNull("Received header added", mail.getMessage().getHeader("Received"));
+    }
+
+    @Test
+    public void testBdatMessageSizeLimitExceeded() throws Exception {
+        smtpConfiguration.setChunking();
+        smtpConfiguration.setMaxMessageSize(1); // set message limit to 1kb
+        init(smtpConfiguration);
+        Socket client = new Socket("127.0.0.1", smtpListenerPort);
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("EHLO TEST\r\n");
+        buf.append("MAIL FROM: <test@localhost>\r\n");
+        buf.append("RCPT TO: <test2@localhost>\r\n");
+        buf.append("BDAT 600\r\n");
+        appendChunk(buf, 600);
+        buf.append("BDAT 600 LAST\r\n");
+        appendChunk(buf, 600);
+        buf.append("QUIT\r\n");
+
+        OutputStream out = client.getOutputStream();
+        out.write(buf.toString().getBytes());
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        skipEhloResponse(in);
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("First chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message rejected", 552, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("QUIT accepted", 221, Integer.parseInt(in.readLine().split(" ")[0]));
+        in.close();
+        out.close();
+        client.close();
+
+        assertNull("no mail received by mail server", queue.getLastMail());
+    }
+
+    @Test
+    public void testDataRejectedForBinaryMime() throws Exception {
+        smtpConfiguration.setChunking();
+        init(smtpConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", smtpListenerPort);
+
+        smtpProtocol.sendCommand("EHLO " + InetAddress.getLocalHost());
+        smtpProtocol.sendCommand("MAIL FROM:<mail@localhost> BODY=BINARYMIME");
+        assertEquals("sender accepted", 250, smtpProtocol.getReplyCode());
+        smtpProtocol.sendCommand("RCPT TO:<mail@localhost>");
+        assertEquals("recipient accepted", 250, smtpProtocol.getReplyCode());
+        smtpProtocol.sendCommand("DATA");
+        assertEquals("DATA rejected", 503, smtpProtocol.getReplyCode());
+
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+    }
+
+    /**
+     * Compare the time needed to receive a big message with DATA and with
+     * BDAT. Run it by hand, the timings are only logged.
+     */
+    @Ignore
+    @Test
+    public void testDataAndBdatThroughput() throws Exception {
+        smtpConfiguration.setChunking();
+        init(smtpConfiguration);
+
+        int size = 8 * 1024 * 1024;
+        int chunkSize = 1024 * 1024;
+        StringBuilder body = new StringBuilder(size);
+        body.append("Subject: test\r\n\r\n");
+        while (body.length() < size) {
+            body.append("0123456789012345678901234567890123456789012345678901234567890123456789\r\n");
+        }
+        byte[] message = body.toString().getBytes();
+
+        Logger log = LoggerFactory.getLogger("SMTP");
+        for (int run = 0; run < 3; run++) {
+            Socket client = new Socket("127.0.0.1", smtpListenerPort);
+            OutputStream out = client.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+            out.write("EHLO TEST\r\n".getBytes());
+            out.flush();
+            skipEhloResponse(in);
+
+            long start = System.currentTimeMillis();
+            out.write("MAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\nDATA\r\n".getBytes());
+            out.flush();
+            assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            assertEquals("DATA accepted", 354, Integer.parseInt(in.readLine().split(" ")[0]));
+            out.write(message);
+            out.write(".\r\n".getBytes());
+            out.flush();
+            assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            long data = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            out.write("MAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\n".getBytes());
+            for (int offset = 0; offset < message.length; offset += chunkSize) {
+                int length = Math.min(chunkSize, message.length - offset);
+                String command = "BDAT " + length + (offset + length == message.length ? " LAST" : "") + "\r\n";
+                out.write(command.getBytes());
+                out.write(message, offset, length);
+            }
+            out.flush();
+            assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            for (int offset = 0; offset < message.length; offset += chunkSize) {
+                assertEquals("Chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+            }
+            long bdat = System.currentTimeMillis() - start;
+
+            log.info("Received " + message.length + " bytes with DATA in " + data + "ms and with BDAT in " + bdat + "ms");
+            out.write("QUIT\r\n".getBytes());
+            out.flush();
+            in.close();
+            out.close();
+            client.close();
+        }
+    }
+
+    private void skipEhloResponse(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            assertEquals("EHLO accepted", "250", line.substring(0, 3));
+        } while (line.charAt(3) == '-');
+    }
+
+    private void appendChunk(StringBuilder buf, int size) {
+        for (int i = 0; i < size; i++) {
+            buf.append('x');
+        }
+    }
 }
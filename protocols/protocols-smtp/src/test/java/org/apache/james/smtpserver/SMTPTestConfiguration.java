@@ -44,6 +44,7 @@ public class SMTPTestConfiguration extends DefaultConfigurationBuilder {
     private boolean m_useRBL = false;
     private boolean m_addressBracketsEnforcement = true;
     private boolean m_startTLS = false;
+    private boolean m_chunking = false;
 
     public SMTPTestConfiguration(int smtpListenerPort) {
         m_smtpListenerPort = smtpListenerPort;
@@ -132,6 +133,10 @@ public class SMTPTestConfiguration extends DefaultConfigurationBuilder {
         m_startTLS = true;
     }
 
+    public void setChunking() {
+        m_chunking = true;
+    }
+
     public void init() {
 
         addProperty("[@enabled]", true);
@@ -149,6 +154,7 @@ public class SMTPTestConfiguration extends DefaultConfigurationBuilder {
         addProperty("authRequired", m_authorizingMode);
         addProperty("heloEhloEnforcement", m_heloEhloEnforcement);
         addProperty("addressBracketsEnforcement", m_addressBracketsEnforcement);
+        addProperty("chunking", m_chunking);
 
         addProperty("tls.[@startTLS]", m_startTLS);
         addProperty("tls.keystore", "file://conf/test_keystore");
@@ -21,6 +21,8 @@ package org.apache.james.smtpserver;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
@@ -29,7 +31,9 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
 import org.apache.james.smtpserver.fastfail.SPFHandler;
+import org.apache.james.util.spf.SPFResultCache;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -40,6 +44,10 @@ public class SPFHandlerTest {
 
     private boolean relaying = false;
 
+    /** Lets the lookup of spf7.james.apache.org complete */
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean lookupReleased;
+
     @Before
     public void setUp() throws Exception {
         setupMockedDnsService();
@@ -108,6 +116,15 @@ public class SPFHandlerTest {
                         } else if (req.getHostname().equals("spf5.james.apache.org")) {
                             // temperror
                             throw new TimeoutException("TIMEOUT");
+                        } else if (req.getHostname().equals("spf7.james.apache.org")) {
+                            // fail, once the test released the lookup
+                            try {
+                                lookupReleased = release.await(5, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                throw new TimeoutException("INTERRUPTED");
+                            }
+                            l.add("v=spf1 -all");
+                            return l;
                         } else {
                             return null;
                         }
@@ -195,6 +212,47 @@ public class SPFHandlerTest {
         assertEquals("fail", HookReturnCode.DENY, spf.doRcpt(mockedSMTPSession, sender, rcpt).getResult());
     }
 
+    @Test
+    public void testSPFCheckRunsWhileTheClientContinues() throws Exception {
+        MailAddress sender = new MailAddress("test@spf7.james.apache.org");
+        MailAddress rcpt = new MailAddress("test@localhost");
+        setupMockedSMTPSession("192.168.100.1", "spf7.james.apache.org");
+        SPFHandler spf = new SPFHandler();
+        LookupExecutor lookupExecutor = new LookupExecutor();
+        lookupExecutor.init();
+        try {
+            spf.setDNSService(mockedDnsService);
+            spf.setLookupExecutor(lookupExecutor);
+
+            // MAIL returns before the lookup completed
+            assertEquals("declined", HookReturnCode.DECLINED, spf.doMail(mockedSMTPSession, sender).getResult());
+            release.countDown();
+            assertEquals("fail", HookReturnCode.DENY, spf.doRcpt(mockedSMTPSession, sender, rcpt).getResult());
+            assertTrue("MAIL waited for the lookup", lookupReleased);
+        } finally {
+            lookupExecutor.destroy();
+        }
+    }
+
+    @Test
+    public void testHandlersShareTheInjectedCache() throws Exception {
+        MailAddress sender = new MailAddress("test@spf2.james.apache.org");
+        MailAddress rcpt = new MailAddress("test@localhost");
+        SPFResultCache cache = new SPFResultCache();
+
+        for (int i = 0; i < 2; i++) {
+            setupMockedSMTPSession("192.168.100.1", "spf2.james.apache.org");
+            SPFHandler spf = new SPFHandler();
+            spf.setDNSService(mockedDnsService);
+            spf.setSPFResultCache(cache);
+
+            assertEquals("declined", HookReturnCode.DECLINED, spf.doMail(mockedSMTPSession, sender).getResult());
+            assertEquals("fail", HookReturnCode.DENY, spf.doRcpt(mockedSMTPSession, sender, rcpt).getResult());
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
     @Test
     public void testSPFsoftFail() throws Exception {
         MailAddress sender = new MailAddress("test@spf3.james.apache.org");
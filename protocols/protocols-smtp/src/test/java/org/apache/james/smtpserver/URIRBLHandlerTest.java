@@ -25,6 +25,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -52,6 +54,9 @@ public class URIRBLHandlerTest {
     private static final String URISERVER = "multi.surbl.org.";
     private Mail mockedMail;
 
+    /** If set the lookups only complete if they are all running at the same time */
+    private CyclicBarrier concurrentLookups;
+
     private SMTPSession setupMockedSMTPSession(final Mail mail) {
         mockedMail = mail;
         SMTPSession mockedSMTPSession = new BaseFakeSMTPSession() {
@@ -165,6 +170,13 @@ public class URIRBLHandlerTest {
 
             @Override
             public InetAddress getByName(String host) throws UnknownHostException {
+                if (concurrentLookups != null) {
+                    try {
+                        concurrentLookups.await(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new UnknownHostException("The lookups were not executed concurrently");
+                    }
+                }
                 if ((BAD_DOMAIN1.substring(4) + "." + URISERVER).equals(host)) {
                     return InetAddress.getByName("127.0.0.1");
                 } else if ((BAD_DOMAIN2.substring(4) + "." + URISERVER).equals(host)) {
@@ -215,6 +227,31 @@ public class URIRBLHandlerTest {
         assertEquals("Email was rejected", response.getResult(), HookReturnCode.DENY);
     }
 
+    @Test
+    public void testLookupsRunConcurrently() throws IOException, MessagingException {
+
+        ArrayList servers = new ArrayList();
+        servers.add(URISERVER);
+
+        SMTPSession session = setupMockedSMTPSession(setupMockedMail(setupMockedMimeMessage(
+                "http://" + GOOD_DOMAIN + "/" + " " + "http://" + BAD_DOMAIN1 + "/")));
+
+        URIRBLHandler handler = new URIRBLHandler();
+        LookupExecutor lookupExecutor = new LookupExecutor();
+        lookupExecutor.init();
+        concurrentLookups = new CyclicBarrier(2);
+        try {
+            handler.setDNSService(setupMockedDnsServer());
+            handler.setLookupExecutor(lookupExecutor);
+            handler.setUriRblServer(servers);
+            HookResult response = handler.onMessage(session, mockedMail);
+
+            assertEquals("Email was rejected", response.getResult(), HookReturnCode.DENY);
+        } finally {
+            lookupExecutor.destroy();
+        }
+    }
+
     @Test
     public void testBlockedMultiPart() throws IOException, MessagingException {
 
@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.apache.james.smtpserver.fastfail.URIScanner;
+import static org.junit.Assert.*;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class URIScannerTest {
+
+    private Set<String> scan(String content) {
+        URIScanner scanner = new URIScanner();
+        scanner.scan(content);
+        return scanner.getDomains();
+    }
+
+    private Set<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testUris() {
+        assertEquals(set("example.com"), scan("visit http://www.example.com/path?x=1 now"));
+        assertEquals(set("example.net"), scan("http://user:pw@host.example.net:8080/x"));
+        assertEquals(set("example.co.uk"), scan("www.foo.example.co.uk is great"));
+        assertEquals(set("example.org"), scan("ftp.files.example.org/pub"));
+        assertEquals(set("4.3.2.1"), scan("https://1.2.3.4/a"));
+        assertEquals(set("example.com"), scan("(http://paren.example.com)"));
+        assertEquals(set("example.biz"), scan("mailto:joe@spam.example.biz?subject=hi"));
+    }
+
+    @Test
+    public void testNoUris() {
+        assertEquals(set(), scan("javascript:void(0)"));
+        assertEquals(set(), scan("xhttp://no.example.com"));
+        assertEquals(set(), scan("=www.no.example.com"));
+        assertEquals(set(), scan("http://host-.example.com/"));
+        assertEquals(set(), scan("version 1.2.3 released"));
+    }
+
+    @Test
+    public void testOnlyFirstUriOfRun() {
+        assertEquals(set("example.com"), scan("http://a.example.com/http://b.example.org"));
+    }
+
+    @Test
+    public void testEmailAddresses() {
+        assertEquals(set("example.org"), scan("mail me: bob@example.org."));
+        assertEquals(set("example.co.jp"), scan("email: first.last@sub.example.co.jp,"));
+        assertEquals(set(), scan("foo@bar"));
+    }
+
+    @Test
+    public void testHtmlSpam() throws IOException {
+        Reader in = new InputStreamReader(getClass().getResourceAsStream("/uri-spam.html"), "ISO-8859-1");
+        URIScanner scanner = new URIScanner();
+        try {
+            scanner.scan(in);
+        } finally {
+            in.close();
+        }
+        // apache.org is found in the license header
+        assertEquals(set("apache.org", "example.ru", "example.co.uk", "example.com", "example.net", "example.org", "45.113.0.203"), scanner.getDomains());
+    }
+
+    @Test
+    public void testPathologicalInput() throws IOException {
+        // a long run of dots and atoms used to overflow the stack of the
+        // regular expression which matched email addresses
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            content.append("a.");
+        }
+        content.append(" http://www.example.com/");
+
+        URIScanner scanner = new URIScanner();
+        scanner.scan(new StringReader(content.toString()));
+        assertEquals(set("example.com"), scanner.getDomains());
+    }
+
+    @Test
+    public void testMaxChars() throws IOException {
+        URIScanner scanner = new URIScanner(30);
+        scanner.scan(new StringReader("http://www.example.com/ and http://www.example.org/"));
+        assertTrue(scanner.isLimitReached());
+        assertEquals(set("example.com"), scanner.getDomains());
+
+        // the limit spans all scanned parts
+        scanner.scan("http://www.example.net/");
+        assertEquals(set("example.com"), scanner.getDomains());
+    }
+
+    private String readSpam() throws IOException {
+        Reader in = new InputStreamReader(getClass().getResourceAsStream("/uri-spam.html"), "ISO-8859-1");
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final String[] SCHEMES = { "http://", "https://", "HTTP://", "ftp://", "mailto:", "www.", "ftp.", "" };
+    private static final String[] TLDS = { "com", "org", "net", "de", "ru", "co.uk", "com.au", "info" };
+    private static final String[] PATHS = { "", "/", "/index.html", "/a/b?x=1&y=2", ":8080/path", "/#top", "?q=%20" };
+    private static final String[] SEPARATORS = { " ", "\n", "\t", " - ", "\r\n" };
+    private static final String[] WORDS = { "hello", "click", "here", "1.2", "price:", "$100", "a.b", "www", "http", "=" };
+
+    private String label(Random random) {
+        String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
+        StringBuilder label = new StringBuilder();
+        int length = 1 + random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            label.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return label.toString();
+    }
+
+    private String host(Random random) {
+        if (random.nextInt(10) == 0) {
+            return random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+        }
+        StringBuilder host = new StringBuilder();
+        int labels = 1 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            host.append(label(random)).append('.');
+        }
+        return host.append(TLDS[random.nextInt(TLDS.length)]).toString();
+    }
+
+    /**
+     * Generate text with well formed URIs and email addresses between words.
+     * They are only separated by white space, as the regular expressions keep
+     * trailing punctuation like "," in the host, and so drop it or return
+     * "info." as a domain
+     */
+    private String generate(Random random) {
+        StringBuilder content = new StringBuilder();
+        int tokens = 1 + random.nextInt(20);
+        for (int i = 0; i < tokens; i++) {
+            switch (random.nextInt(3)) {
+            case 0:
+                content.append(SCHEMES[random.nextInt(SCHEMES.length)]).append(host(random)).append(PATHS[random.nextInt(PATHS.length)]);
+                break;
+            case 1:
+                content.append(label(random)).append('@').append(host(random));
+                break;
+            default:
+                content.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            content.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+        }
+        return content.toString();
+    }
+
+    private Set<String> scanWithRegex(String content) {
+        return RegexURIScanner.scanContentForDomains(new HashSet<String>(), content);
+    }
+
+    @Test
+    public void testSameDomainsAsRegex() throws IOException {
+        String spam = readSpam();
+        Set<String> domains = scan(spam);
+        assertTrue(domains.containsAll(scanWithRegex(spam)));
+        // the regex takes the path before joe@example.com in the unsubscribe
+        // link as the local part of the address, and so misses the domain
+        domains.removeAll(scanWithRegex(spam));
+        assertEquals(set("example.com"), domains);
+
+        // the seed is fixed, so a failure can be reproduced
+        Random random = new Random(4711);
+        for (int i = 0; i < 20000; i++) {
+            String content = generate(random);
+            assertEquals(content, scanWithRegex(content), scan(content));
+        }
+    }
+
+    /**
+     * Compare the speed of the scanner and the regular expressions it
+     * replaced. Run it by hand, the timings are only printed
+     */
+    @Ignore
+    @Test
+    public void testThroughput() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            builder.append(readSpam());
+        }
+        String content = builder.toString();
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 50; i++) {
+                scanWithRegex(content);
+            }
+            long regex = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < 50; i++) {
+                scan(content);
+            }
+            long scanner = System.nanoTime() - start;
+
+            System.out.println("50 scans of " + content.length() + " chars: regex " + regex / 1000000 + "ms, scanner " + scanner / 1000000 + "ms");
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import javax.mail.internet.ParseException;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.mock.MockDNSService;
@@ -40,6 +42,10 @@ public class ValidRcptMXTest {
     private final static String INVALID_HOST = "invalid.host.de";
     private final static String INVALID_MX = "mx." + INVALID_HOST;
     private final static String LOOPBACK = "127.0.0.1";
+    private final static String CONCURRENT_HOST = "concurrent.host.de";
+
+    /** Only lets the MX hosts of CONCURRENT_HOST resolve if all are resolved at the same time */
+    private final CyclicBarrier concurrentLookups = new CyclicBarrier(3);
 
     private SMTPSession setupMockedSMTPSession(final MailAddress rcpt) {
         SMTPSession session = new BaseFakeSMTPSession() {
@@ -87,6 +93,10 @@ public class ValidRcptMXTest {
 
                 if (hostname.equals(INVALID_HOST)) {
                     mx.add(INVALID_MX);
+                } else if (hostname.equals(CONCURRENT_HOST)) {
+                    mx.add("mx1." + CONCURRENT_HOST);
+                    mx.add("mx2." + CONCURRENT_HOST);
+                    mx.add("mx3." + CONCURRENT_HOST);
                 }
                 return mx;
             }
@@ -97,6 +107,13 @@ public class ValidRcptMXTest {
                     return InetAddress.getByName(LOOPBACK);
                 } else if (host.equals("255.255.255.255")) {
                     return InetAddress.getByName("255.255.255.255");
+                } else if (host.endsWith("." + CONCURRENT_HOST)) {
+                    try {
+                        concurrentLookups.await(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new UnknownHostException("The MX hosts were not resolved concurrently");
+                    }
+                    return InetAddress.getByName(host.startsWith("mx3.") ? LOOPBACK : "192.0.2.1");
                 }
                 throw new UnknownHostException("Unknown host");
             }
@@ -121,4 +138,27 @@ public class ValidRcptMXTest {
 
         assertEquals("Reject", rCode, HookReturnCode.DENY);
     }
+
+    @Test
+    public void testResolveMXHostsConcurrently() throws ParseException, MailAddressException {
+        Collection bNetworks = new ArrayList();
+        bNetworks.add("127.0.0.1");
+
+        DNSService dns = setupMockedDNSServer();
+        MailAddress mailAddress = new MailAddress("test@" + CONCURRENT_HOST);
+        SMTPSession session = setupMockedSMTPSession(mailAddress);
+        ValidRcptMX handler = new ValidRcptMX();
+        LookupExecutor lookupExecutor = new LookupExecutor();
+        lookupExecutor.init();
+        try {
+            handler.setDNSService(dns);
+            handler.setLookupExecutor(lookupExecutor);
+            handler.setBannedNetworks(bNetworks, dns);
+            int rCode = handler.doRcpt(session, null, mailAddress).getResult();
+
+            assertEquals("Reject", rCode, HookReturnCode.DENY);
+        } finally {
+            lookupExecutor.destroy();
+        }
+    }
 }
@@ -139,7 +139,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     /**
      * Produce the mail to the JMS Queue
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+    protected Message produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
         MessageProducer producer = null;
         BlobMessage blobMessage = null;
         boolean reuse = false;
@@ -194,11 +194,12 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                     blobMessage.setObjectProperty(entry.getKey(), entry.getValue());
                 }
                 producer.send(blobMessage, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+                return blobMessage;
                     
               
 
             } else {
-                super.produceMail(session, props, msgPrio, mail);
+                return super.produceMail(session, props, msgPrio, mail);
             }
         } catch (JMSException e) {
             if (!reuse && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
@@ -217,6 +218,23 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
     }
 
+    /**
+     * Delete the uploaded blob of a message whose batch was rolled back. Blobs
+     * are never shared between messages, see JAMES-1240
+     * 
+     * @see org.apache.james.queue.jms.JMSMailQueue#discard(javax.jms.Message)
+     */
+    @Override
+    protected void discard(Message message) {
+        if (message instanceof ActiveMQBlobMessage) {
+            try {
+                ((ActiveMQBlobMessage) message).deleteFile();
+            } catch (Exception e) {
+                logger.error("Unable to delete blob file for message " + message, e);
+            }
+        }
+    }
+
     /**
      * Cast the given {@link Session} to an {@link ActiveMQSession}
      * 
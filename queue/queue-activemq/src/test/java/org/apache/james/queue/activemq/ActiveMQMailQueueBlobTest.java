@@ -19,13 +19,25 @@
 package org.apache.james.queue.activemq;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.james.core.MailImpl;
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.jms.JMSMailQueue;
-
+import org.apache.mailet.Mail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
 
 public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
 
@@ -73,6 +85,46 @@ public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
         return true;
     }
 
+    @Test
+    public void testRolledBackBatchDeletesBlobs() throws Exception {
+        File baseDir = fs.getFile(BASE_DIR);
+        int blobs = countFiles(baseDir);
+        long size = queue.getSize();
+
+        MailImpl broken = createMail();
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties())) {
+
+            @Override
+            public void writeTo(OutputStream os) throws IOException, MessagingException {
+                throw new IOException("broken");
+            }
+        };
+        message.setText("broken");
+        broken.setMessage(message);
+
+        try {
+            queue.enQueue(Arrays.<Mail> asList(createMail(), createMail(), broken));
+            fail("The batch must fail");
+        } catch (MailQueueException e) {
+            // expected
+        }
+
+        // the blobs of the mails which were sent before were deleted
+        assertEquals(blobs, countFiles(baseDir));
+        assertEquals(size, queue.getSize());
+    }
+
+    private int countFiles(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                count += file.isDirectory() ? countFiles(file) : 1;
+            }
+        }
+        return count;
+    }
+
     private final class MyFileSystem implements FileSystem {
 
         @Override
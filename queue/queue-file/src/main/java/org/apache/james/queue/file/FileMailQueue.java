@@ -23,6 +23,7 @@ import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageSource;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.BatchMailQueue;
 import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
@@ -38,7 +39,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
@@ -55,7 +62,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of
  * loading the needed meta-data into memory for fast access.
  */
-public class FileMailQueue implements ManageableMailQueue {
+public class FileMailQueue implements ManageableMailQueue, BatchMailQueue {
 
     private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
     private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
@@ -160,93 +167,111 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
-        FileOutputStream out = null;
-        FileOutputStream foout = null;
-        ObjectOutputStream oout = null;
-        try {
-            int i = (int) (Math.random() * SPLITCOUNT + 1);
-
-
-            String name = queueDirName + "/" + i + "/" + key;
-
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
-            if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
-            }
-            foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
-            if (sync) foout.getFD().sync();
-            out = new FileOutputStream(item.getMessageFile());
-
-            mail.getMessage().writeTo(out);
-            out.flush();
-            if (sync) out.getFD().sync();
+        enQueue(Collections.singletonList(mail), delay, unit);
+    }
 
-            keyMappings.put(key, item);
+    @Override
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+    }
 
-            if (delay > 0) {
-                // The message should get delayed so schedule it for later
-                scheduler.schedule(new Runnable() {
+    @Override
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        enQueue(mails, 0, TimeUnit.MILLISECONDS);
+    }
 
-                    @Override
-                    public void run() {
-                        try {
-                            inmemoryQueue.put(key);
+    /**
+     * Write the files of all mails before any of them get synced. Most file
+     * systems commit their journal with the first sync, so the others are
+     * cheap.
+     */
+    private void enQueue(Collection<Mail> mails, long delay, TimeUnit unit) throws MailQueueException {
+        final Map<String, FileItem> items = new LinkedHashMap<String, FileItem>();
+        final List<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+        boolean written = false;
+        try {
+            for (Mail mail : mails) {
+                final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
+                int i = (int) (Math.random() * SPLITCOUNT + 1);
 
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    }
-                }, delay, unit);
+                String name = queueDirName + "/" + i + "/" + key;
 
-            } else {
-                inmemoryQueue.put(key);
+                final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
+                items.put(key, item);
+                if (delay > 0) {
+                    mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
+                }
+                FileOutputStream foout = new FileOutputStream(item.getObjectFile());
+                streams.add(foout);
+                ObjectOutputStream oout = new ObjectOutputStream(foout);
+                oout.writeObject(mail);
+                oout.flush();
+
+                FileOutputStream out = new FileOutputStream(item.getMessageFile());
+                streams.add(out);
+                mail.getMessage().writeTo(out);
+                out.flush();
+            }
+            if (sync) {
+                for (FileOutputStream out : streams) {
+                    out.getFD().sync();
+                }
             }
+            written = true;
 
             //TODO: Think about exception handling in detail
-        } catch (FileNotFoundException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
         } catch (IOException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-
         } catch (MessagingException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-        } catch (InterruptedException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
-
         } finally {
-            if (out != null) {
+            for (FileOutputStream out : streams) {
                 try {
                     out.close();
                 } catch (IOException e) {
                     // ignore on close
                 }
             }
-            if (oout != null) {
-                try {
-                    oout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
-            if (foout != null) {
-                try {
-                    foout.close();
-                } catch (IOException e) {
-                    // ignore on close
+            if (!written) {
+                // don't leave parts of the batch behind
+                for (FileItem item : items.values()) {
+                    try {
+                        item.delete();
+                    } catch (MailQueueException e) {
+                        log.error("Unable to remove files of mail " + item.getObjectFile(), e);
+                    }
                 }
             }
         }
 
-    }
+        try {
+            for (Entry<String, FileItem> entry : items.entrySet()) {
+                final String key = entry.getKey();
+                keyMappings.put(key, entry.getValue());
 
-    @Override
-    public void enQueue(Mail mail) throws MailQueueException {
-        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+                if (delay > 0) {
+                    // The message should get delayed so schedule it for later
+                    scheduler.schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                inmemoryQueue.put(key);
+
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new RuntimeException("Unable to init", e);
+                            }
+                        }
+                    }, delay, unit);
+
+                } else {
+                    inmemoryQueue.put(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        }
     }
 
     @Override
@@ -21,6 +21,7 @@ package org.apache.james.queue.jms;
 import com.google.common.io.Closeables;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.queue.api.BatchMailQueue;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.ManageableMailQueue;
@@ -46,6 +47,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -67,7 +69,7 @@ import java.util.concurrent.TimeUnit;
  * {@link Mail} objects.
  * </p>
  */
-public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
+public class JMSMailQueue implements ManageableMailQueue, BatchMailQueue, JMSSupport, MailPrioritySupport {
 
     protected final String queueName;
     protected final ConnectionFactory connectionFactory;
@@ -233,10 +235,85 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         enQueue(mail, NO_DELAY, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Produce all the mails in one transacted session, so the broker needs only
+     * one commit for them
+     * 
+     * @see org.apache.james.queue.api.BatchMailQueue#enQueue(java.util.Collection)
+     */
+    @Override
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        Connection connection = null;
+        Session session = null;
+        List<Message> produced = new ArrayList<Message>();
+
+        try {
+
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+
+            for (Mail mail : mails) {
+                int msgPrio = NORMAL_PRIORITY;
+                Object prio = mail.getAttribute(MAIL_PRIORITY);
+                if (prio instanceof Integer) {
+                    msgPrio = (Integer) prio;
+                }
+
+                Map<String, Object> props = getJMSProperties(mail, NO_DELAY);
+
+                produced.add(produceMail(session, props, msgPrio, mail));
+            }
+            session.commit();
+
+        } catch (Exception e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            for (Message message : produced) {
+                discard(message);
+            }
+            throw new MailQueueException("Unable to enqueue " + mails.size() + " mails", e);
+
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Release what was stored outside of the broker for the given message,
+     * which was produced in a transaction that was rolled back. This does
+     * nothing by default
+     * 
+     * @param message
+     *            the message returned by
+     *            {@link #produceMail(Session, Map, int, Mail)}
+     */
+    protected void discard(Message message) {
+    }
+
     /**
      * Produce the mail to the JMS Queue
+     * 
+     * @return message the message which was sent
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+    protected Message produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
         MessageProducer producer = null;
 
         try {
@@ -264,6 +341,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             message.setObject(out.toByteArray());
 
             producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+            return message;
 
         } finally {
 